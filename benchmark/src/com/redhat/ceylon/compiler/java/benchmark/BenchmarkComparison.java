@@ -0,0 +1,291 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.java.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compares the JSON results of a JMH run with a baseline, and fails if any
+ * benchmark got slower than the baseline by more than a given percentage.
+ *
+ * Benchmarks are matched by name and parameters. A benchmark is only a
+ * regression if it is past the threshold and its error interval doesn't
+ * overlap the one of the baseline, so that noisy benchmarks don't fail the
+ * comparison. Benchmarks which are only in one of the files are reported but
+ * never fail it.
+ *
+ * Usage: <tt>BenchmarkComparison baseline.json results.json thresholdPercent</tt>
+ */
+public class BenchmarkComparison {
+
+    static class Result {
+        final String key;
+        final boolean higherIsBetter;
+        final double score;
+        final double error;
+        final String unit;
+
+        Result(String key, boolean higherIsBetter, double score, double error, String unit) {
+            this.key = key;
+            this.higherIsBetter = higherIsBetter;
+            this.score = score;
+            this.error = error;
+            this.unit = unit;
+        }
+
+        /**
+         * Returns how much worse this result is than the given baseline, in percent,
+         * or a negative number if it's better
+         */
+        double regressionPercent(Result baseline) {
+            double change = (score - baseline.score) / baseline.score * 100;
+            return higherIsBetter ? -change : change;
+        }
+
+        boolean overlaps(Result baseline) {
+            return score - error <= baseline.score + baseline.error
+                    && baseline.score - baseline.error <= score + error;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length != 3){
+            System.err.println("Usage: BenchmarkComparison baseline.json results.json thresholdPercent");
+            System.exit(2);
+        }
+        File baseline = new File(args[0]);
+        if(!baseline.isFile()){
+            System.err.println("No benchmark baseline in "+baseline+": record one with \"ant benchmark.baseline\"");
+            System.exit(2);
+        }
+        int regressions = compare(read(baseline), read(new File(args[1])), Double.parseDouble(args[2]), System.out);
+        if(regressions > 0){
+            System.err.println(regressions+" benchmark(s) regressed past the threshold of "+args[2]+"%");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Prints the comparison of every benchmark and returns the number of
+     * regressions past the given threshold
+     */
+    static int compare(Map<String, Result> baseline, Map<String, Result> results, double threshold, PrintStream out) {
+        int regressions = 0;
+        for(Result result : results.values()){
+            Result base = baseline.get(result.key);
+            if(base == null){
+                out.println("NEW        "+result.key+": "+format(result));
+                continue;
+            }
+            double regression = result.regressionPercent(base);
+            String status;
+            if(regression > threshold && !result.overlaps(base)){
+                status = "REGRESSION";
+                regressions++;
+            }else if(-regression > threshold && !result.overlaps(base)){
+                status = "FASTER    ";
+            }else{
+                status = "OK        ";
+            }
+            out.println(status+" "+result.key+": "+format(base)+" -> "+format(result)
+                    +String.format(" (%.1f%% %s)", Math.abs(regression), regression > 0 ? "slower" : "faster"));
+        }
+        for(Result base : baseline.values()){
+            if(!results.containsKey(base.key))
+                out.println("MISSING    "+base.key+": "+format(base));
+        }
+        return regressions;
+    }
+
+    private static String format(Result result) {
+        return String.format("%.3f +- %.3f %s", result.score, result.error, result.unit);
+    }
+
+    static Map<String, Result> read(File file) throws IOException {
+        return parse(new String(Files.readAllBytes(file.toPath()), "UTF-8"));
+    }
+
+    @SuppressWarnings("unchecked")
+    static Map<String, Result> parse(String json) {
+        Map<String, Result> ret = new LinkedHashMap<String, Result>();
+        for(Object run : (List<Object>)new JsonParser(json).parseDocument()){
+            Map<String, Object> fields = (Map<String, Object>)run;
+            StringBuilder key = new StringBuilder((String)fields.get("benchmark"));
+            Map<String, Object> params = (Map<String, Object>)fields.get("params");
+            if(params != null){
+                // sorted so that the key doesn't depend on their order
+                key.append(new TreeMap<String, Object>(params));
+            }
+            String mode = (String)fields.get("mode");
+            Map<String, Object> metric = (Map<String, Object>)fields.get("primaryMetric");
+            double error = toDouble(metric.get("scoreError"));
+            ret.put(key.toString(), new Result(key.toString(), "thrpt".equals(mode),
+                    toDouble(metric.get("score")), Double.isNaN(error) ? 0 : error,
+                    (String)metric.get("scoreUnit")));
+        }
+        return ret;
+    }
+
+    private static double toDouble(Object value) {
+        // JMH writes NaN as a string
+        return value instanceof Double ? (Double)value : Double.parseDouble(String.valueOf(value));
+    }
+
+    /**
+     * Just enough JSON to read the results of JMH
+     */
+    private static class JsonParser {
+        private final String json;
+        private int pos;
+
+        JsonParser(String json) {
+            this.json = json;
+        }
+
+        Object parseDocument() {
+            Object ret = parseValue();
+            skipWhitespace();
+            if(pos != json.length())
+                throw error("end of document");
+            return ret;
+        }
+
+        private Object parseValue() {
+            skipWhitespace();
+            if(pos >= json.length())
+                throw error("value");
+            char c = json.charAt(pos);
+            switch(c){
+            case '{': return parseObject();
+            case '[': return parseArray();
+            case '"': return parseString();
+            case 't': expect("true"); return Boolean.TRUE;
+            case 'f': expect("false"); return Boolean.FALSE;
+            case 'n': expect("null"); return null;
+            default: return parseNumber();
+            }
+        }
+
+        private Map<String, Object> parseObject() {
+            Map<String, Object> ret = new LinkedHashMap<String, Object>();
+            pos++;
+            skipWhitespace();
+            if(peek('}'))
+                return ret;
+            do{
+                skipWhitespace();
+                String name = parseString();
+                skipWhitespace();
+                expect(":");
+                ret.put(name, parseValue());
+                skipWhitespace();
+            }while(peek(','));
+            expect("}");
+            return ret;
+        }
+
+        private List<Object> parseArray() {
+            List<Object> ret = new ArrayList<Object>();
+            pos++;
+            skipWhitespace();
+            if(peek(']'))
+                return ret;
+            do{
+                ret.add(parseValue());
+                skipWhitespace();
+            }while(peek(','));
+            expect("]");
+            return ret;
+        }
+
+        private String parseString() {
+            expect("\"");
+            StringBuilder ret = new StringBuilder();
+            while(true){
+                if(pos >= json.length())
+                    throw error("end of string");
+                char c = json.charAt(pos++);
+                if(c == '"')
+                    return ret.toString();
+                if(c != '\\'){
+                    ret.append(c);
+                    continue;
+                }
+                if(pos >= json.length())
+                    throw error("escape");
+                c = json.charAt(pos++);
+                switch(c){
+                case 'b': ret.append('\b'); break;
+                case 'f': ret.append('\f'); break;
+                case 'n': ret.append('\n'); break;
+                case 'r': ret.append('\r'); break;
+                case 't': ret.append('\t'); break;
+                case 'u':
+                    if(pos + 4 > json.length())
+                        throw error("unicode escape");
+                    ret.append((char)Integer.parseInt(json.substring(pos, pos + 4), 16));
+                    pos += 4;
+                    break;
+                default: ret.append(c);
+                }
+            }
+        }
+
+        private Double parseNumber() {
+            int start = pos;
+            while(pos < json.length() && "+-0123456789.eE".indexOf(json.charAt(pos)) != -1)
+                pos++;
+            if(start == pos)
+                throw error("value");
+            return Double.valueOf(json.substring(start, pos));
+        }
+
+        private boolean peek(char c) {
+            if(pos < json.length() && json.charAt(pos) == c){
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String token) {
+            if(!json.startsWith(token, pos))
+                throw error(token);
+            pos += token.length();
+        }
+
+        private void skipWhitespace() {
+            while(pos < json.length() && Character.isWhitespace(json.charAt(pos)))
+                pos++;
+        }
+
+        private IllegalArgumentException error(String expected) {
+            return new IllegalArgumentException("Invalid JMH results: expected "+expected+" at offset "+pos);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.java.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.tools.JavaFileObject;
+
+import com.redhat.ceylon.compiler.java.launcher.Main.ExitState;
+import com.redhat.ceylon.compiler.java.tools.CeyloncFileManager;
+import com.redhat.ceylon.compiler.java.tools.CeyloncTaskImpl;
+import com.redhat.ceylon.compiler.java.tools.CeyloncTool;
+import com.redhat.ceylon.compiler.java.loader.CeylonModelLoader;
+import com.redhat.ceylon.compiler.java.tools.LanguageCompiler;
+import com.redhat.ceylon.compiler.loader.AbstractModelLoader;
+import com.redhat.ceylon.compiler.typechecker.context.PhasedUnit;
+import com.redhat.ceylon.compiler.typechecker.model.Module;
+import com.sun.tools.javac.util.Context;
+
+/**
+ * A {@link SyntheticModule} written to a temporary folder, with the compiler
+ * task which compiles it.
+ *
+ * Benchmarks either {@link #compile()} it end to end, or {@link #enter()} it,
+ * which typechecks it and gives access to the compiler {@link Context}, its
+ * phased units and model loader, so they can measure a single phase.
+ *
+ * Extra compiler options can be given with the
+ * <tt>ceylon.benchmark.options</tt> system property, separated by spaces.
+ */
+public class CompilerFixture {
+
+    public static final String OPTIONS_PROPERTY = "ceylon.benchmark.options";
+
+    private final File dir;
+    private final File sourceDir;
+    private final File outputDir;
+    private final List<File> files;
+    private CeyloncTaskImpl task;
+
+    public CompilerFixture(SyntheticModule module) throws IOException {
+        dir = File.createTempFile("ceylon-benchmark", "");
+        if (!dir.delete() || !dir.mkdirs())
+            throw new IOException("Failed to create "+dir);
+        sourceDir = new File(dir, "source");
+        outputDir = new File(dir, "modules");
+        files = module.write(sourceDir);
+    }
+
+    private CeyloncTaskImpl makeTask() {
+        CeyloncTool compiler = new CeyloncTool();
+        CeyloncFileManager fileManager = (CeyloncFileManager)compiler.getStandardFileManager(null, null, null);
+        List<String> options = new ArrayList<String>();
+        options.addAll(Arrays.asList("-src", sourceDir.getPath(), "-out", outputDir.getPath()));
+        String extra = System.getProperty(OPTIONS_PROPERTY);
+        if (extra != null && !extra.trim().isEmpty())
+            options.addAll(Arrays.asList(extra.trim().split("\\s+")));
+        Iterable<? extends JavaFileObject> fileObjects = fileManager.getJavaFileObjectsFromFiles(files);
+        return (CeyloncTaskImpl)compiler.getTask(null, fileManager, null, options, null, fileObjects);
+    }
+
+    /**
+     * Compiles the module with a new compiler task, throwing if it fails.
+     */
+    public void compile() {
+        task = makeTask();
+        ExitState exitState = task.call2();
+        if (exitState.ceylonState != ExitState.CeylonState.OK)
+            throw new IllegalStateException("Compilation of the synthetic module failed: "+exitState.ceylonState);
+    }
+
+    /**
+     * Parses and typechecks the module with a new compiler task, without
+     * generating any class.
+     */
+    public void enter() throws IOException {
+        task = makeTask();
+        task.enter();
+    }
+
+    public Context getContext() {
+        if (task == null)
+            throw new IllegalStateException("The fixture was neither compiled nor entered");
+        return task.getContext();
+    }
+
+    public List<PhasedUnit> getPhasedUnits() {
+        return LanguageCompiler.getPhasedUnitsInstance(getContext()).getPhasedUnits();
+    }
+
+    public AbstractModelLoader getModelLoader() {
+        return CeylonModelLoader.instance(getContext());
+    }
+
+    /**
+     * Returns the synthetic module, once entered or compiled.
+     */
+    public Module getModule() {
+        for (PhasedUnit unit : getPhasedUnits()) {
+            Module module = unit.getPackage().getModule();
+            if (module.getNameAsString().equals(SyntheticModule.NAME))
+                return module;
+        }
+        throw new IllegalStateException("Missing module "+SyntheticModule.NAME);
+    }
+
+    /**
+     * Deletes the sources and generated modules.
+     */
+    public void delete() {
+        delete(dir);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+}
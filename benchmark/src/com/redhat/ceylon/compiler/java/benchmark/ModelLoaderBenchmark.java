@@ -0,0 +1,135 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.java.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.redhat.ceylon.compiler.loader.AbstractModelLoader;
+import com.redhat.ceylon.compiler.loader.ModelLoader.DeclarationType;
+import com.redhat.ceylon.compiler.typechecker.model.Module;
+
+/**
+ * Measures {@link AbstractModelLoader#convertToDeclaration(Module, String, DeclarationType)},
+ * both for declarations it already loaded, and for declarations it has to
+ * load from their class mirrors with a fresh model loader.
+ */
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class ModelLoaderBenchmark {
+
+    /** Declarations from the JDK and the language module, which every module can see */
+    static final String[] TYPES = {
+        "java.lang.Object",
+        "java.lang.String",
+        "java.lang.Thread",
+        "java.lang.StringBuilder",
+        "java.util.ArrayList",
+        "java.util.HashMap",
+        "java.util.concurrent.ConcurrentHashMap",
+        "ceylon.language.Integer",
+        "ceylon.language.String",
+        "ceylon.language.Iterable",
+        "ceylon.language.Sequential",
+        "ceylon.language.Map",
+        "ceylon.language.Callable",
+        "ceylon.language.Tuple",
+    };
+
+    @State(Scope.Benchmark)
+    public static class Loaded {
+        CompilerFixture fixture;
+        AbstractModelLoader loader;
+        Module module;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            fixture = new CompilerFixture(new SyntheticModule(1, 1, 1));
+            fixture.enter();
+            loader = fixture.getModelLoader();
+            module = fixture.getModule();
+            // make sure they are loaded
+            for (String type : TYPES)
+                loader.convertToDeclaration(module, type, DeclarationType.TYPE);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            fixture.delete();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Fresh {
+        CompilerFixture fixture;
+        AbstractModelLoader loader;
+        Module module;
+
+        @Setup(Level.Iteration)
+        public void setup() throws IOException {
+            fixture = new CompilerFixture(new SyntheticModule(1, 1, 1));
+            fixture.enter();
+            loader = fixture.getModelLoader();
+            module = fixture.getModule();
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            fixture.delete();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void loaded(Loaded state, Blackhole blackhole) {
+        for (String type : TYPES)
+            blackhole.consume(state.loader.convertToDeclaration(state.module, type, DeclarationType.TYPE));
+    }
+
+    /**
+     * Only the first invocation of each iteration loads them, hence the
+     * single shot mode.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 10)
+    @Measurement(iterations = 20)
+    public void fresh(Fresh state, Blackhole blackhole) {
+        for (String type : TYPES)
+            blackhole.consume(state.loader.convertToDeclaration(state.module, type, DeclarationType.TYPE));
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.java.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates the sources of a synthetic module, whose size we can tune,
+ * for the benchmarks which need typechecked code or a whole compilation.
+ *
+ * Every unit declares classes and functions which use those of the
+ * previous unit, so that typechecking has cross-unit references to
+ * resolve, and every function ends with an arithmetic expression of
+ * the given number of terms, to exercise the expression transformer.
+ */
+public class SyntheticModule {
+
+    public static final String NAME = "bench.synthetic";
+    public static final String VERSION = "1";
+
+    private final int units;
+    private final int declarationsPerUnit;
+    private final int expressionSize;
+
+    public SyntheticModule(int units, int declarationsPerUnit, int expressionSize) {
+        this.units = units;
+        this.declarationsPerUnit = declarationsPerUnit;
+        this.expressionSize = expressionSize;
+    }
+
+    /**
+     * Writes the module descriptor and units in the given source folder
+     * and returns the files written.
+     */
+    public List<File> write(File sourceDir) throws IOException {
+        File packageDir = new File(sourceDir, NAME.replace('.', File.separatorChar));
+        if (!packageDir.isDirectory() && !packageDir.mkdirs())
+            throw new IOException("Failed to create "+packageDir);
+        List<File> files = new ArrayList<File>(units + 1);
+        File descriptor = new File(packageDir, "module.ceylon");
+        write(descriptor, "module " + NAME + " \"" + VERSION + "\" {}\n");
+        files.add(descriptor);
+        for (int unit = 0; unit < units; unit++) {
+            File file = new File(packageDir, "unit" + unit + ".ceylon");
+            write(file, unit(unit));
+            files.add(file);
+        }
+        return files;
+    }
+
+    String unit(int unit) {
+        StringBuilder sb = new StringBuilder();
+        for (int decl = 0; decl < declarationsPerUnit; decl++) {
+            String suffix = unit + "_" + decl;
+            sb.append("shared class Class").append(suffix).append("(shared Integer x) {\n");
+            sb.append("    shared variable Integer count = 0;\n");
+            sb.append("    shared Integer compute(Integer y) => x + y * 2;\n");
+            sb.append("    shared String describe() => \"Class").append(suffix).append("(``x``, ``count``)\";\n");
+            sb.append("}\n\n");
+            sb.append("shared Integer function").append(suffix).append("(Integer a, Float b, String s) {\n");
+            sb.append("    value c = Class").append(suffix).append("(a);\n");
+            sb.append("    c.count++;\n");
+            if (unit > 0) {
+                sb.append("    value previous = function").append(unit - 1).append("_").append(decl).append("(a, b, s);\n");
+            } else {
+                sb.append("    value previous = 0;\n");
+            }
+            sb.append("    value items = [ for (i in 0..a) if (i % 2 == 0) c.compute(i) ];\n");
+            sb.append("    return previous + s.size + items.size + (b > 1.0 then 1 else 0)");
+            for (int term = 0; term < expressionSize; term++) {
+                sb.append("\n        ").append(term % 2 == 0 ? "+ " : "- ")
+                  .append("(a + ").append(term).append(") * ").append(term + 1);
+            }
+            sb.append(";\n}\n\n");
+        }
+        return sb.toString();
+    }
+
+    private static void write(File file, String contents) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(contents);
+        } finally {
+            writer.close();
+        }
+    }
+}
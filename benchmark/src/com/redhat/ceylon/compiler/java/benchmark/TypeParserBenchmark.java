@@ -0,0 +1,92 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.java.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.redhat.ceylon.compiler.loader.TypeParser;
+import com.redhat.ceylon.compiler.typechecker.context.PhasedUnit;
+import com.redhat.ceylon.compiler.typechecker.model.Module;
+import com.redhat.ceylon.compiler.typechecker.model.Package;
+import com.redhat.ceylon.compiler.typechecker.model.ProducedType;
+import com.redhat.ceylon.compiler.typechecker.model.Unit;
+
+/**
+ * Measures {@link TypeParser#decodeType(String, com.redhat.ceylon.compiler.typechecker.model.Scope, Module, Unit)}
+ * on the kind of type strings we find in the annotations of compiled Ceylon
+ * classes.
+ */
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class TypeParserBenchmark {
+
+    @Param({
+        "ceylon.language::Integer",
+        "ceylon.language::Sequential<ceylon.language::String>",
+        "ceylon.language::Iterable<ceylon.language::Entry<ceylon.language::String,ceylon.language::Integer|ceylon.language::Null>,ceylon.language::Nothing>",
+        "ceylon.language::Callable<ceylon.language::Anything,ceylon.language::Tuple<ceylon.language::Integer,ceylon.language::Integer,ceylon.language::Tuple<ceylon.language::Float,ceylon.language::Float,ceylon.language::Empty>>>",
+    })
+    public String type;
+
+    private CompilerFixture fixture;
+    private TypeParser parser;
+    private Package pkg;
+    private Module module;
+    private Unit unit;
+
+    @Setup
+    public void setup() throws IOException {
+        fixture = new CompilerFixture(new SyntheticModule(1, 1, 1));
+        fixture.enter();
+        parser = new TypeParser(fixture.getModelLoader());
+        PhasedUnit phasedUnit = fixture.getPhasedUnits().get(0);
+        pkg = phasedUnit.getPackage();
+        module = pkg.getModule();
+        unit = phasedUnit.getUnit();
+    }
+
+    @TearDown
+    public void tearDown() {
+        fixture.delete();
+    }
+
+    @Benchmark
+    public ProducedType decodeType() {
+        return parser.decodeType(type, pkg, module, unit);
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.java.codegen;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.redhat.ceylon.compiler.typechecker.context.PhasedUnit;
+
+/**
+ * Measures a {@link CompilerBoxingVisitor} pass over every typechecked
+ * compilation unit. The visitor only sets flags on the tree, so running
+ * it again gives the same results.
+ */
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BoxingVisitorBenchmark {
+
+    @State(Scope.Thread)
+    public static class Transformer {
+        CeylonTransformer gen;
+
+        @Setup(Level.Trial)
+        public void setup(EnteredModule module) {
+            gen = module.transformer(module.phasedUnits.get(0));
+        }
+    }
+
+    @Benchmark
+    public void visit(EnteredModule module, Transformer transformer) {
+        CompilerBoxingVisitor visitor = new CompilerBoxingVisitor(transformer.gen);
+        for (PhasedUnit phasedUnit : module.phasedUnits)
+            phasedUnit.getCompilationUnit().visit(visitor);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.java.codegen;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.redhat.ceylon.compiler.java.benchmark.CompilerFixture;
+import com.redhat.ceylon.compiler.java.benchmark.SyntheticModule;
+import com.redhat.ceylon.compiler.java.tools.CeylonPhasedUnit;
+import com.redhat.ceylon.compiler.typechecker.context.PhasedUnit;
+
+/**
+ * A typechecked {@link SyntheticModule}, shared by the benchmarks of the
+ * code generation phases, which live in this package because they use
+ * package-private parts of the transformers.
+ */
+@State(Scope.Benchmark)
+public class EnteredModule {
+
+    @Param({"10"})
+    public int units;
+
+    @Param({"10"})
+    public int declarationsPerUnit;
+
+    @Param({"10", "100"})
+    public int expressionSize;
+
+    CompilerFixture fixture;
+    List<PhasedUnit> phasedUnits;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        fixture = new CompilerFixture(new SyntheticModule(units, declarationsPerUnit, expressionSize));
+        fixture.enter();
+        phasedUnits = fixture.getPhasedUnits();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixture.delete();
+    }
+
+    /**
+     * Makes a transformer for the given unit, the way parallel code
+     * generation does.
+     */
+    CeylonTransformer transformer(PhasedUnit phasedUnit) {
+        CeylonTransformer gen = CeylonTransformer.fork(fixture.getContext());
+        if (phasedUnit instanceof CeylonPhasedUnit) {
+            gen.setMap(((CeylonPhasedUnit)phasedUnit).getLineMap());
+            gen.setFileObject(((CeylonPhasedUnit)phasedUnit).getFileObject());
+        }
+        return gen;
+    }
+}
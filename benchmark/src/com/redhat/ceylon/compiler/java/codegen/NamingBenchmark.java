@@ -0,0 +1,104 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.java.codegen;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.redhat.ceylon.compiler.typechecker.context.PhasedUnit;
+import com.redhat.ceylon.compiler.typechecker.model.Class;
+import com.redhat.ceylon.compiler.typechecker.model.Declaration;
+import com.redhat.ceylon.compiler.typechecker.model.Method;
+import com.redhat.ceylon.compiler.typechecker.model.Value;
+
+/**
+ * Measures the {@link Naming} methods which build the Java names of the
+ * declarations of the synthetic module.
+ */
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class NamingBenchmark {
+
+    @State(Scope.Thread)
+    public static class Declarations {
+        CeylonTransformer gen;
+        String packageName;
+        final List<Declaration> toplevels = new ArrayList<Declaration>();
+        final List<Method> functions = new ArrayList<Method>();
+        final List<Value> attributes = new ArrayList<Value>();
+
+        @Setup(Level.Trial)
+        public void setup(EnteredModule module) {
+            gen = module.transformer(module.phasedUnits.get(0));
+            for (PhasedUnit phasedUnit : module.phasedUnits) {
+                packageName = phasedUnit.getPackage().getNameAsString();
+                for (Declaration declaration : phasedUnit.getUnit().getDeclarations()) {
+                    if (!declaration.isToplevel())
+                        continue;
+                    toplevels.add(declaration);
+                    if (declaration instanceof Method) {
+                        functions.add((Method)declaration);
+                    } else if (declaration instanceof Class) {
+                        for (Declaration member : ((Class)declaration).getMembers()) {
+                            if (member instanceof Value)
+                                attributes.add((Value)member);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void toplevelClassName(Declarations declarations, Blackhole blackhole) {
+        for (Declaration declaration : declarations.toplevels)
+            blackhole.consume(Naming.toplevelClassName(declarations.packageName, declaration));
+    }
+
+    @Benchmark
+    public void getterName(Declarations declarations, Blackhole blackhole) {
+        for (Value attribute : declarations.attributes)
+            blackhole.consume(Naming.getGetterName(attribute));
+    }
+
+    @Benchmark
+    public void makeName(Declarations declarations, Blackhole blackhole) {
+        Naming naming = declarations.gen.naming;
+        for (Method function : declarations.functions)
+            blackhole.consume(naming.makeName(function, Naming.NA_FQ | Naming.NA_WRAPPER));
+    }
+}
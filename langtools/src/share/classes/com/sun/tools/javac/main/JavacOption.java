@@ -269,6 +269,9 @@ public interface JavacOption {
         COption(OptionName name, String descrKey) {
             this(name, null, descrKey);
         }
+        COption(OptionName name, String descrKey, ChoiceKind kind, String... choices) {
+            super(name, descrKey, kind, choices);
+        }
         public void help(PrintWriter out) { }
         public void chelp(PrintWriter out) { super.help(out); }
         public void xhelp(PrintWriter out) { }
@@ -61,13 +61,17 @@ public enum OptionName {
     CEYLONNOOSGI("-noosgi"),
     CEYLONNOPOM("-nopom"),
     CEYLONPACK200("-pack200"),
+    CEYLONNOCOMPRESS("-nocompress"),
+    CEYLONINCREMENTAL("-incremental"),
     SOURCEPATH("-sourcepath"),
     CEYLONSOURCEPATH("-src"),
     CEYLONRESOURCEPATH("-res"),
     CEYLONRESOURCEROOT("-resroot"),
     CEYLONDISABLEOPT("-disableOptimization"),
-    CEYLONDISABLEOPT_CUSTOM("-disableOptimization:{"+optimizations()+"}"),
+    CEYLONDISABLEOPT_CUSTOM("-disableOptimization:"),
     CEYLONSUPPRESSWARNINGS("-suppress-warnings"),
+    CEYLONCODEGENTHREADS("-codegen-threads"),
+    CEYLONPROFILE("-profile"),
     BOOTCLASSPATH("-bootclasspath"),
     XBOOTCLASSPATH_PREPEND("-Xbootclasspath/p:"),
     XBOOTCLASSPATH_APPEND("-Xbootclasspath/a:"),
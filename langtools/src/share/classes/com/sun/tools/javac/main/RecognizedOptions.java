@@ -28,6 +28,7 @@ package com.sun.tools.javac.main;
 import com.redhat.ceylon.common.Constants;
 import com.redhat.ceylon.common.FileUtil;
 import com.redhat.ceylon.common.config.DefaultToolOptions;
+import com.redhat.ceylon.compiler.java.codegen.Optimization;
 import com.redhat.ceylon.compiler.typechecker.model.Module;
 import com.sun.tools.javac.code.Lint;
 import com.sun.tools.javac.code.Source;
@@ -149,6 +150,8 @@ public class RecognizedOptions {
         CEYLONNOOSGI,
         CEYLONNOPOM,
         CEYLONPACK200,
+        CEYLONNOCOMPRESS,
+        CEYLONINCREMENTAL,
         SOURCEPATH,
         CEYLONSOURCEPATH,
         CEYLONRESOURCEPATH,
@@ -205,7 +208,9 @@ public class RecognizedOptions {
         BOOTSTRAPCEYLON,
         CEYLONDISABLEOPT,
         CEYLONDISABLEOPT_CUSTOM,
-        CEYLONSUPPRESSWARNINGS);
+        CEYLONSUPPRESSWARNINGS,
+        CEYLONCODEGENTHREADS,
+        CEYLONPROFILE);
 
     static Set<OptionName> javacFileManagerOptions = EnumSet.of(
         CLASSPATH,
@@ -220,6 +225,8 @@ public class RecognizedOptions {
         CEYLONNOOSGI,
         CEYLONNOPOM,
         CEYLONPACK200,
+        CEYLONNOCOMPRESS,
+        CEYLONINCREMENTAL,
         SOURCEPATH,
         CEYLONSOURCEPATH,
         CEYLONRESOURCEPATH,
@@ -285,7 +292,9 @@ public class RecognizedOptions {
         BOOTSTRAPCEYLON,
         CEYLONDISABLEOPT,
         CEYLONDISABLEOPT_CUSTOM,
-        CEYLONSUPPRESSWARNINGS);
+        CEYLONSUPPRESSWARNINGS,
+        CEYLONCODEGENTHREADS,
+        CEYLONPROFILE);
 
     public static Option[] getJavaCompilerOptions(OptionHelper helper) {
         return getOptions(helper, javacOptions);
@@ -393,10 +402,15 @@ public class RecognizedOptions {
         new COption(CEYLONNOOSGI,                                "opt.ceylonnoosgi"),
         new COption(CEYLONNOPOM,                                 "opt.ceylonnopom"),
         new COption(CEYLONPACK200,                               "opt.ceylonpack200"),
+        new COption(CEYLONNOCOMPRESS,                            "opt.ceylonnocompress"),
+        new COption(CEYLONINCREMENTAL,                           "opt.ceylonincremental"),
         new COption(CEYLONRESOURCEROOT,     "opt.arg.path",      "opt.ceylonresourceroot"),
         new COption(CEYLONDISABLEOPT,                            "opt.ceylondisableopt"),
-        new COption(CEYLONDISABLEOPT_CUSTOM,                     "opt.ceylondisableopt.suboptlist"),
+        new COption(CEYLONDISABLEOPT_CUSTOM,                     "opt.ceylondisableopt.suboptlist",
+                Option.ChoiceKind.ANYOF, getOptimizationChoices()),
         new COption(CEYLONSUPPRESSWARNINGS, "opt.arg.value",     "opt.ceylonsuppresswarnings"),
+        new COption(CEYLONCODEGENTHREADS,   "opt.arg.number",    "opt.ceyloncodegenthreads"),
+        new COption(CEYLONPROFILE,          "opt.arg.file",      "opt.ceylonprofile"),
         new Option(SOURCEPATH,              "opt.arg.path",      "opt.sourcepath"){
             @Override
             public boolean process(Options options, String option, String arg) {
@@ -856,6 +870,14 @@ public class RecognizedOptions {
         }
     }
 
+    private static String[] getOptimizationChoices() {
+        Optimization[] optimizations = Optimization.values();
+        String[] choices = new String[optimizations.length];
+        for (int i = 0; i < optimizations.length; i++)
+            choices[i] = optimizations[i].name();
+        return choices;
+    }
+
     private static Map<String,Boolean> getXLintChoices() {
         Map<String,Boolean> choices = new LinkedHashMap<String,Boolean>();
         choices.put("all", false);
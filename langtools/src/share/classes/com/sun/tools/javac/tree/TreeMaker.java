@@ -58,6 +58,13 @@ public class TreeMaker implements JCTree.Factory {
         return instance;
     }
 
+    /** Create a new TreeMaker in the given context, even if it
+     *  inherits one from its parent context.
+     */
+    public static TreeMaker newInstance(Context context) {
+        return new TreeMaker(context);
+    }
+
     /** The position at which subsequent trees will be created.
      */
     public int pos = Position.NOPOS;
@@ -142,6 +142,8 @@ public class Context {
     public <T> T get(Key<T> key) {
         checkState(ht);
         Object o = ht.get(key);
+        if (o == null && parent != null)
+            return parent.get(key);
         if (o instanceof Factory<?>) {
             Factory<?> fac = (Factory<?>)o;
             o = fac.make(this);
@@ -171,6 +173,28 @@ public class Context {
         ht.putAll(prev.ft);     // init main table with factories
     }
 
+    /**
+     * The context we get the values we don't have from, if any.
+     */
+    private Context parent;
+
+    /**
+     * Creates a context which inherits the values of the given parent
+     * context, except for those of the given classes and those put in
+     * the new context before they are looked up. This lets a thread use
+     * its own instances of some components while sharing the others with
+     * the parent context. The parent context must not be modified while
+     * it has children.
+     */
+    public static Context inherit(Context parent, Class<?>... localClasses) {
+        Context child = new Context();
+        child.kt.putAll(parent.kt); // share the implicit keys
+        for (Class<?> clss : localClasses)
+            child.kt.remove(clss); // so we make a new key unknown to the parent
+        child.parent = parent;
+        return child;
+    }
+
     /*
      * The key table, providing a unique Key<T> for each Class<T>.
      */
@@ -212,6 +236,7 @@ public class Context {
     }
 
     public void clear() {
+        parent = null;
         ht = null;
         kt = null;
         ft = null;
@@ -90,8 +90,9 @@ public class SharedNameTable extends Name.Table {
         this(names, 0x8000, 0x20000);
     }
 
+    // synchronized because the Ceylon code generation can run in several threads
     @Override
-    public Name fromChars(char[] cs, int start, int len) {
+    public synchronized Name fromChars(char[] cs, int start, int len) {
         int nc = this.nc;
         byte[] bytes = this.bytes;
         while (nc + len * 3 >= bytes.length) {
@@ -123,7 +124,7 @@ public class SharedNameTable extends Name.Table {
     }
 
     @Override
-    public Name fromUtf(byte[] cs, int start, int len) {
+    public synchronized Name fromUtf(byte[] cs, int start, int len) {
         int h = hashValue(cs, start, len) & hashMask;
         NameImpl n = hashes[h];
         byte[] names = this.bytes;
@@ -90,6 +90,7 @@ public class CeylonCompileAntTask extends LazyCeylonAntTask  {
     private Boolean noPom;
     private Boolean pack200;
     private String suppressWarnings;
+    private Integer daemon;
 
     private List<File> compileList = new ArrayList<File>(2);
     private Set<Module> modules = null;
@@ -139,6 +140,23 @@ public class CeylonCompileAntTask extends LazyCeylonAntTask  {
         this.suppressWarnings = suppressWarnings;
     }
 
+    public Integer getDaemon() {
+        return daemon;
+    }
+
+    /**
+     * Set to the local port of a running compiler daemon (started with
+     * {@code ceylon compile --serve-daemon=<port>}) to compile in that
+     * daemon instead of in a new process. Nested {@code <define>}s of
+     * {@code ceylon.} properties are forwarded to the daemon for that
+     * compilation, but the modules it
+     * depends on are loaded again for every compilation: only the
+     * repository setup is shared.
+     */
+    public void setDaemon(Integer daemon) {
+        this.daemon = daemon;
+    }
+
     /**
      * Set the resource directories to find the resource files.
      * @param res the resource directories as a path
@@ -450,6 +468,9 @@ public class CeylonCompileAntTask extends LazyCeylonAntTask  {
         if (pack200!= null && pack200.booleanValue())
             appendOption(cmd, "--pack200");
         
+        if (daemon != null)
+            appendOptionArgument(cmd, "--daemon", daemon.toString());
+        
         if (suppressWarnings != null) {
             if (suppressWarnings.isEmpty()) {
                 appendOption(cmd, "--suppress-warnings");
@@ -49,6 +49,14 @@ public class CeylonDocModelLoader extends ReflectionModelLoader {
         super(moduleManager, modules, new LoaderJULLogger());
     }
 
+    /**
+     * Releases the jars we read classes from, which are read again if we
+     * need them later
+     */
+    public void close() {
+        classLoader.close();
+    }
+
     @Override
     protected boolean needsLocalDeclarations() {
         return false;
@@ -65,6 +73,11 @@ public class CeylonDocModelLoader extends ReflectionModelLoader {
         return klass;
     }
 
+    @Override
+    protected byte[] loadClassBytes(String name) {
+        return classLoader.getClassBytes(name);
+    }
+
     @Override
     public void addModuleToClassPath(final Module module, ArtifactResult artifact) {
         // don't add the same module more than once
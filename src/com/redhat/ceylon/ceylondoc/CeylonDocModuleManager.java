@@ -31,6 +31,7 @@ import com.redhat.ceylon.common.config.DefaultToolOptions;
 import com.redhat.ceylon.common.tools.ModuleSpec;
 import com.redhat.ceylon.compiler.java.util.Util;
 import com.redhat.ceylon.compiler.loader.AbstractModelLoader;
+import com.redhat.ceylon.compiler.loader.impl.reflect.ReflectionModelLoader;
 import com.redhat.ceylon.compiler.loader.impl.reflect.model.ReflectionModule;
 import com.redhat.ceylon.compiler.loader.impl.reflect.model.ReflectionModuleManager;
 import com.redhat.ceylon.compiler.loader.mirror.ClassMirror;
@@ -66,7 +67,7 @@ public class CeylonDocModuleManager extends ReflectionModuleManager {
     
     @Override
     protected AbstractModelLoader createModelLoader(Modules modules) {
-        return new CeylonDocModelLoader(this, modules){
+        CeylonDocModelLoader modelLoader = new CeylonDocModelLoader(this, modules){
             @Override
             protected boolean isLoadedFromSource(String className) {
                 return tool.getCompiledClasses().contains(className);
@@ -94,6 +95,19 @@ public class CeylonDocModuleManager extends ReflectionModuleManager {
                 log.warning(message);
             }
         };
+        // prefetching only works with class file mirrors
+        if(tool.getPrefetchThreads() > 1){
+            modelLoader.setClassFileMirrors(true);
+            modelLoader.setPrefetchThreads(tool.getPrefetchThreads());
+        }
+        return modelLoader;
+    }
+
+    /**
+     * Releases the jars our model loader keeps mapped
+     */
+    void close() {
+        ((CeylonDocModelLoader) getModelLoader()).close();
     }
 
     @Override
@@ -139,6 +153,14 @@ public class CeylonDocModuleManager extends ReflectionModuleManager {
                 addOutputModuleToClassPath(module);
             }
         }
+        // now that every module is on the class path, decode what the documented modules import
+        if(tool.getPrefetchThreads() > 1){
+            ReflectionModelLoader modelLoader = (ReflectionModelLoader) getModelLoader();
+            for(Module module : getContext().getModules().getListOfModules()){
+                if(isModuleLoadedFromSource(module.getNameAsString()))
+                    modelLoader.prefetchImportedPackages(module);
+            }
+        }
     }
 
     private void addOutputModuleToClassPath(Module module) {
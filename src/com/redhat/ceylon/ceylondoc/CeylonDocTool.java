@@ -154,12 +154,14 @@ public class CeylonDocTool extends OutputRepoUsingTool {
     private boolean ignoreMissingThrows;
     private boolean ignoreBrokenLink;
     private boolean haltOnError = true;
+    private int prefetchThreads;
     private List<File> sourceFolders = DefaultToolOptions.getCompilerSourceDirs();
     private List<File> docFolders = DefaultToolOptions.getCompilerDocDirs();
     private List<String> moduleSpecs = Arrays.asList("*");
     private List<String> links = new LinkedList<String>();
     
     private TypeChecker typeChecker;
+    private CeylonDocModuleManager moduleManager;
     private Module currentModule;
     private File tempDestDir;
     private final List<PhasedUnit> phasedUnits = new LinkedList<PhasedUnit>();
@@ -264,6 +266,18 @@ public class CeylonDocTool extends OutputRepoUsingTool {
         this.ignoreBrokenLink = ignoreBrokenLink;
     }
 
+    @OptionArgument(longName="prefetch-threads", argumentName="threads")
+    @Description("Reads the classes of the imported modules from their class files, " +
+            "decoding them on the given number of threads before documenting (default: `0`, " +
+            "which reads them one at a time as they are needed)")
+    public void setPrefetchThreads(int prefetchThreads) {
+        this.prefetchThreads = prefetchThreads;
+    }
+
+    public int getPrefetchThreads() {
+        return prefetchThreads;
+    }
+
     public void setHaltOnError(boolean haltOnError) {
         this.haltOnError = haltOnError;
     }
@@ -380,7 +394,8 @@ public class CeylonDocTool extends OutputRepoUsingTool {
         builder.moduleManagerFactory(new ModuleManagerFactory(){
             @Override
             public ModuleManager createModuleManager(Context context) {
-                return new CeylonDocModuleManager(CeylonDocTool.this, context, modules, outputRepositoryManager, log);
+                moduleManager = new CeylonDocModuleManager(CeylonDocTool.this, context, modules, outputRepositoryManager, log);
+                return moduleManager;
             }
         });
         
@@ -547,6 +562,10 @@ public class CeylonDocTool extends OutputRepoUsingTool {
             makeDoc();
         } finally {
             FileUtil.deleteQuietly(tempDestDir);
+            // don't keep the jars we documented or depend on mapped
+            if (moduleManager != null) {
+                moduleManager.close();
+            }
         }
     }
     
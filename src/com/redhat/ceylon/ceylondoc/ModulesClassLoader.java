@@ -19,10 +19,12 @@
  */
 package com.redhat.ceylon.ceylondoc;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
@@ -54,10 +56,50 @@ class ModulesClassLoader extends ClassLoader {
         return super.findClass(name);
     }
 
+    /**
+     * Returns the bytes of the given class file for class file mirrors, or null if
+     * we can't find it. We look in our parent first like {@link #loadClass(String)}
+     * does, then in our jars, unless we have a mirror cache: then we look in all our
+     * jars first, including those whose classes come from our parent, since they
+     * serve stripped class files from that cache.
+     */
+    public byte[] getClassBytes(String name) {
+        String path = name.replace('.', '/').concat(".class");
+        if(jars.hasMirrorCache()){
+            byte[] contents = jars.getMirrorContents(path);
+            if(contents != null)
+                return contents;
+        }
+        InputStream is = getParent().getResourceAsStream(path);
+        if(is == null)
+            return jars.getContents(path);
+        try{
+            try{
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                int read;
+                while((read = is.read(buffer)) != -1)
+                    out.write(buffer, 0, read);
+                return out.toByteArray();
+            }finally{
+                is.close();
+            }
+        }catch(IOException e){
+            throw new RuntimeException("Failed to read class file "+path, e);
+        }
+    }
+
     public void addJar(ArtifactResult artifact, Module module, boolean skipContents) {
         jars.addJar(artifact, module, skipContents);
     }
 
+    /**
+     * Releases the jars we keep mapped, so that they can be replaced
+     */
+    public void close() {
+        jars.close();
+    }
+
     public boolean packageExists(Module module, String name) {
         String moduleName = module.getNameAsString();
         if(JDKUtils.isJDKModule(moduleName)){
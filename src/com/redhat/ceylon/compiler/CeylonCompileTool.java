@@ -26,7 +26,10 @@ import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 
 import com.redhat.ceylon.cmr.ceylon.OutputRepoUsingTool;
 import com.redhat.ceylon.common.Constants;
@@ -44,6 +47,7 @@ import com.redhat.ceylon.common.tool.ToolUsageError;
 import com.redhat.ceylon.common.tools.CeylonTool;
 import com.redhat.ceylon.common.tools.ModuleWildcardsHelper;
 import com.redhat.ceylon.common.tools.SourceArgumentsResolver;
+import com.redhat.ceylon.compiler.java.launcher.CompilerDaemon;
 import com.redhat.ceylon.compiler.java.launcher.Main;
 import com.redhat.ceylon.compiler.java.launcher.Main.ExitState.CeylonState;
 import com.redhat.ceylon.compiler.typechecker.analyzer.Warning;
@@ -169,7 +173,14 @@ public class CeylonCompileTool extends OutputRepoUsingTool {
     private boolean noOsgi = DefaultToolOptions.getCompilerNoOsgi();
     private boolean noPom = DefaultToolOptions.getCompilerNoPom();
     private boolean pack200 = DefaultToolOptions.getCompilerPack200();
+    private boolean noCompress;
     private String suppressWarnings = DefaultToolOptions.getCompilerSuppressWarnings();
+    private Integer daemon;
+    private Integer serveDaemon;
+    private Map<String, String> daemonSystemProperties;
+    private boolean incremental;
+    private Integer codegenThreads;
+    private File profile;
 
     public CeylonCompileTool() {
         super(CeylonCompileMessages.RESOURCE_BUNDLE);
@@ -193,6 +204,13 @@ public class CeylonCompileTool extends OutputRepoUsingTool {
         this.pack200 = pack200;
     }
 
+    @Option(longName="no-compress")
+    @Description("Store the new entries of the generated car file without compressing them, " +
+            "which is faster for local builds but makes it larger.")
+    public void setNoCompress(boolean noCompress) {
+        this.noCompress = noCompress;
+    }
+
     @OptionArgument(shortName='s', longName="src", argumentName="dirs")
     @ParsedBy(StandardArgumentParsers.PathArgumentParser.class)
     @Description("Path to directory containing source files. " +
@@ -228,6 +246,28 @@ public class CeylonCompileTool extends OutputRepoUsingTool {
         this.resourceRoot = resourceRoot;
     }
     
+    @Option
+    @Description("Only compile the source files which changed since the previous compilation, " +
+            "and those which depend on declarations whose signature changed. " +
+            "Only applies when compiling modules, not individual files.")
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+    
+    @OptionArgument(argumentName="threads")
+    @Description("The number of threads used to generate the code of the " +
+            "Ceylon source files, or 0 for one per processor (default: 1).")
+    public void setCodegenThreads(Integer codegenThreads) {
+        this.codegenThreads = codegenThreads;
+    }
+    
+    @OptionArgument(argumentName="file")
+    @Description("Writes the time, CPU time, allocations and counters of every " +
+            "compiler phase to the given file, in the Chrome trace JSON format.")
+    public void setProfile(File profile) {
+        this.profile = profile;
+    }
+    
     @Hidden
     @Option(longName="continue-on-errors")
     @Description("Set to continue compiling even when errors are found.")
@@ -242,6 +282,28 @@ public class CeylonCompileTool extends OutputRepoUsingTool {
         this.encoding = encoding;
     }
 
+    @Hidden
+    @OptionArgument(argumentName="port")
+    @Description("Runs the compilation in the compiler daemon listening on the given local port " +
+            "(see `--serve-daemon`) instead of in this process. Only the system properties " +
+            "starting with `ceylon.` are passed on to the daemon.")
+    public void setDaemon(Integer daemon) {
+        this.daemon = daemon;
+    }
+
+    @Hidden
+    @OptionArgument(longName="serve-daemon", argumentName="port")
+    @Description("Starts a compiler daemon listening on the given local port, which " +
+            "runs the compilations it is sent with `--daemon` until it is stopped. " +
+            "Only the repository setup is kept between compilations: the modules " +
+            "they depend on are loaded again every time. The daemon only accepts " +
+            "clients of the same user, who can read the token it writes in the " +
+            "user's Ceylon folder. " +
+            "Source and module arguments are ignored.")
+    public void setServeDaemon(Integer serveDaemon) {
+        this.serveDaemon = serveDaemon;
+    }
+
     @Argument(argumentName="moduleOrFile", multiplicity="*")
     public void setModule(List<String> moduleOrFile) {
         this.modulesOrFiles = moduleOrFile;
@@ -296,6 +358,12 @@ public class CeylonCompileTool extends OutputRepoUsingTool {
 
     private List<String> arguments;
     
+    /** The arguments without the modules or files to compile */
+    private List<String> baseArguments;
+    
+    /** The modules to compile incrementally, if we can */
+    private List<String> incrementalModules;
+    
     private Main compiler;
     
     private static void validateWithJavac(Options options, JavacOption encodingOpt, String option, String argument, String key) {
@@ -318,7 +386,27 @@ public class CeylonCompileTool extends OutputRepoUsingTool {
     
     @Override
     public void initialize(CeylonTool mainTool) throws IOException {
+        Properties oldSystemProperties = (Properties) System.getProperties().clone();
         setSystemProperties();
+        if (serveDaemon != null) {
+            return;
+        }
+        if (daemon != null) {
+            // the daemon does not share our working directory
+            if (cwd == null) {
+                cwd = new File(".").getAbsoluteFile();
+            }
+            // nor the system properties we were given with -D, of which it only
+            // accepts the compiler's own
+            daemonSystemProperties = new HashMap<String, String>();
+            for (String key : System.getProperties().stringPropertyNames()) {
+                String value = System.getProperty(key);
+                if (key.startsWith(CompilerDaemon.SYSTEM_PROPERTY_PREFIX)
+                        && !value.equals(oldSystemProperties.getProperty(key))) {
+                    daemonSystemProperties.put(key, value);
+                }
+            }
+        }
         compiler = new Main("ceylon compile");
         Options options = Options.instance(new Context());
         
@@ -381,6 +469,10 @@ public class CeylonCompileTool extends OutputRepoUsingTool {
         if (pack200) {
             arguments.add("-pack200");
         }
+
+        if (noCompress) {
+            arguments.add("-nocompress");
+        }
         
         if (verbose != null) {
             if (verbose.isEmpty()) {
@@ -441,6 +533,20 @@ public class CeylonCompileTool extends OutputRepoUsingTool {
             arguments.add(suppressWarnings);
         }
         
+        if (incremental) {
+            arguments.add("-incremental");
+        }
+        
+        if (codegenThreads != null) {
+            arguments.add("-codegen-threads");
+            arguments.add(codegenThreads.toString());
+        }
+        
+        if (profile != null) {
+            arguments.add("-profile");
+            arguments.add(applyCwd(profile).getPath());
+        }
+        
         addJavacArguments(arguments);
         
         List<File> srcs = applyCwd(this.sources);
@@ -458,7 +564,26 @@ public class CeylonCompileTool extends OutputRepoUsingTool {
         
         validateSourceArguments(expandedModulesOrFiles);
         
-        arguments.addAll(expandedModulesOrFiles);
+        baseArguments = new ArrayList<>(arguments);
+        if (incremental) {
+            incrementalModules = new ArrayList<>(expandedModulesOrFiles);
+            for (String moduleOrFile : expandedModulesOrFiles) {
+                if (applyCwd(new File(moduleOrFile)).exists()) {
+                    // we only know how to compile whole modules incrementally
+                    incrementalModules = null;
+                    break;
+                }
+            }
+        }
+        
+        if (daemon != null) {
+            for (String moduleOrFile : expandedModulesOrFiles) {
+                File file = applyCwd(new File(moduleOrFile));
+                arguments.add(file.exists() ? file.getAbsolutePath() : moduleOrFile);
+            }
+        } else {
+            arguments.addAll(expandedModulesOrFiles);
+        }
         
         if (verbose != null) {
             System.out.println(arguments);
@@ -489,7 +614,35 @@ public class CeylonCompileTool extends OutputRepoUsingTool {
      */
     @Override
     public void run() throws IOException {
-        int result = compiler.compile(arguments.toArray(new String[arguments.size()]));
+        if (serveDaemon != null) {
+            new CompilerDaemon(serveDaemon, new PrintWriter(System.err, true)).serve();
+            return;
+        }
+        if (incrementalModules != null) {
+            IncrementalCompilation incrementalCompilation = new IncrementalCompilation(
+                    applyCwd(this.sources), applyCwd(this.resources), cwd, 
+                    getOutputRepositoryManager(), verbose != null ? System.out : null);
+            incrementalCompilation.run(incrementalModules, new IncrementalCompilation.Compiler() {
+                @Override
+                public void compile(List<String> modulesOrFiles) throws IOException {
+                    List<String> args = new ArrayList<>(baseArguments);
+                    args.addAll(modulesOrFiles);
+                    CeylonCompileTool.this.compile(args);
+                }
+            });
+            return;
+        }
+        compile(arguments);
+    }
+    
+    private void compile(List<String> arguments) throws IOException {
+        String[] args = arguments.toArray(new String[arguments.size()]);
+        if (daemon != null) {
+            Main.ExitState exitState = CompilerDaemon.compile(daemon, daemonSystemProperties, args, new PrintWriter(System.err, true));
+            handleExitCode(exitState.javacExitCode, exitState);
+            return;
+        }
+        int result = compiler.compile(args);
         handleExitCode(result, compiler.exitState);
     }
 
@@ -0,0 +1,289 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.redhat.ceylon.cmr.api.ArtifactContext;
+import com.redhat.ceylon.cmr.api.RepositoryManager;
+import com.redhat.ceylon.cmr.util.JarUtils;
+import com.redhat.ceylon.common.Constants;
+import com.redhat.ceylon.common.FileUtil;
+import com.redhat.ceylon.common.ModuleDescriptorReader.NoSuchModuleException;
+import com.redhat.ceylon.common.tools.SourceArgumentsResolver;
+import com.redhat.ceylon.compiler.java.tools.DependencyIndex;
+import com.redhat.ceylon.compiler.java.tools.DependencyIndex.UnitDependencies;
+import com.redhat.ceylon.compiler.typechecker.model.Module;
+
+/**
+ * Drives an incremental build of a set of modules, using the
+ * {@link DependencyIndex} stored in their previous module archives.
+ *
+ * We first compile the compilation units which changed since the previous
+ * build, then compare the signatures of the declarations they export with
+ * those of the previous build, and compile the units which use declarations
+ * whose signature changed. We repeat that until no signature changes.
+ *
+ * Anything we cannot track (a missing archive, a missing or unreadable
+ * index, a removed unit, a changed module or package descriptor, or a
+ * changed Java source file) makes us fall back to compiling the whole
+ * module, after which the units of the other modules which use its changed
+ * declarations are compiled too.
+ */
+class IncrementalCompilation {
+
+    interface Compiler {
+        /**
+         * Runs a single compilation of the given modules and files,
+         * throwing if it fails.
+         */
+        void compile(List<String> modulesOrFiles) throws IOException;
+    }
+
+    private static final String PACKAGE_DESCRIPTOR = "package.ceylon";
+
+    /** After that many rounds we give up and compile everything */
+    private static final int MAX_ROUNDS = 8;
+
+    private static class ModuleState {
+        final String name;
+        final File carFile;
+        DependencyIndex index;
+        final Map<String,File> sources = new LinkedHashMap<String,File>();
+        final List<File> modifiedResources = new ArrayList<File>();
+        Set<String> toCompile = new TreeSet<String>();
+
+        ModuleState(String name, File carFile, DependencyIndex index) {
+            this.name = name;
+            this.carFile = carFile;
+            this.index = index;
+        }
+    }
+
+    private final List<File> sourceDirs;
+    private final List<File> resourceDirs;
+    private final File cwd;
+    private final RepositoryManager outputRepositoryManager;
+    private final PrintStream log;
+
+    IncrementalCompilation(List<File> sourceDirs, List<File> resourceDirs, File cwd,
+            RepositoryManager outputRepositoryManager, PrintStream log) {
+        this.sourceDirs = absolute(sourceDirs);
+        this.resourceDirs = absolute(resourceDirs);
+        this.cwd = cwd;
+        this.outputRepositoryManager = outputRepositoryManager;
+        this.log = log;
+    }
+
+    private static List<File> absolute(List<File> dirs) {
+        List<File> ret = new ArrayList<File>(dirs.size());
+        for (File dir : dirs) {
+            ret.add(FileUtil.absoluteFile(dir));
+        }
+        return ret;
+    }
+
+    void run(List<String> moduleNames, Compiler compiler) throws IOException {
+        List<String> fullModules = new ArrayList<String>();
+        List<ModuleState> modules = new ArrayList<ModuleState>();
+        for (String moduleName : moduleNames) {
+            ModuleState state = analyse(moduleName);
+            if (state == null) {
+                fullModules.add(moduleName);
+            } else {
+                modules.add(state);
+            }
+        }
+        
+        Set<String> changedExports = new HashSet<String>();
+        if (!fullModules.isEmpty()) {
+            Map<String,DependencyIndex> previousIndexes = new LinkedHashMap<String,DependencyIndex>();
+            for (String moduleName : fullModules) {
+                previousIndexes.put(moduleName, readIndex(moduleName));
+            }
+            log("Compiling modules "+fullModules);
+            compiler.compile(fullModules);
+            // the other modules may use what they export
+            for (Map.Entry<String,DependencyIndex> entry : previousIndexes.entrySet()) {
+                DependencyIndex before = entry.getValue() != null ? entry.getValue() : new DependencyIndex();
+                DependencyIndex after = readIndex(entry.getKey());
+                if (after != null) {
+                    Set<String> units = new HashSet<String>(before.getUnits());
+                    units.addAll(after.getUnits());
+                    changedExports.addAll(before.getChangedExports(after, units));
+                }
+            }
+        }
+        
+        int round = 0;
+        while (true) {
+            List<String> files = new ArrayList<String>();
+            for (ModuleState state : modules) {
+                state.toCompile.addAll(retainSources(state, state.index.getUnitsUsing(changedExports)));
+                for (String unit : state.toCompile) {
+                    files.add(state.sources.get(unit).getPath());
+                }
+                for (File resource : state.modifiedResources) {
+                    files.add(resource.getPath());
+                }
+                state.modifiedResources.clear();
+            }
+            if (files.isEmpty()) {
+                if (round == 0 && fullModules.isEmpty())
+                    log("Everything is up to date");
+                return;
+            }
+            if (++round > MAX_ROUNDS) {
+                List<String> names = new ArrayList<String>();
+                for (ModuleState state : modules) {
+                    names.add(state.name);
+                }
+                log("Too many incremental rounds, compiling modules "+names);
+                compiler.compile(names);
+                return;
+            }
+            log("Incremental round "+round+": compiling "+files.size()+" file(s)");
+            compiler.compile(files);
+
+            // now see what changed in what we just compiled
+            changedExports.clear();
+            for (ModuleState state : modules) {
+                if (state.toCompile.isEmpty())
+                    continue;
+                DependencyIndex newIndex = DependencyIndex.read(state.carFile);
+                if (newIndex == null) {
+                    // should not happen, but let's be safe
+                    throw new IOException("Missing dependency index after compiling module "+state.name);
+                }
+                changedExports.addAll(state.index.getChangedExports(newIndex, state.toCompile));
+                state.index = newIndex;
+                state.toCompile.clear();
+            }
+        }
+    }
+
+    private static Set<String> retainSources(ModuleState state, Set<String> units) {
+        units.retainAll(state.sources.keySet());
+        return units;
+    }
+
+    private DependencyIndex readIndex(String moduleName) {
+        return readIndex(moduleName, getCarFile(moduleName));
+    }
+
+    /**
+     * Reads the index of the given module archive, or returns null if it is
+     * missing or cannot be read, in which case the module has to be compiled
+     * from scratch.
+     */
+    private DependencyIndex readIndex(String moduleName, File carFile) {
+        if (carFile == null)
+            return null;
+        try {
+            return DependencyIndex.read(carFile);
+        } catch (IOException e) {
+            log("Ignoring unreadable dependency index of module "+moduleName+": "+e.getMessage());
+            return null;
+        }
+    }
+
+    private File getCarFile(String moduleName) {
+        String version = getModuleVersion(moduleName);
+        if (version == null && !Module.DEFAULT_MODULE_NAME.equals(moduleName))
+            return null;
+        return outputRepositoryManager.getArtifact(new ArtifactContext(moduleName, version, ArtifactContext.CAR));
+    }
+
+    /**
+     * Works out which units of the given module need to be compiled, or
+     * returns null if the whole module needs to be compiled.
+     */
+    private ModuleState analyse(String moduleName) throws IOException {
+        File carFile = getCarFile(moduleName);
+        DependencyIndex index = readIndex(moduleName, carFile);
+        if (index == null)
+            return null;
+        ModuleState state = new ModuleState(moduleName, carFile, index);
+
+        SourceArgumentsResolver resolver = new SourceArgumentsResolver(sourceDirs, resourceDirs, Constants.CEYLON_SUFFIX, Constants.JAVA_SUFFIX);
+        resolver.cwd(cwd).parse(Collections.singletonList(moduleName));
+        for (File file : resolver.getSourceFiles()) {
+            file = FileUtil.absoluteFile(file);
+            String unit = JarUtils.toPlatformIndependentPath(sourceDirs, file.getPath());
+            state.sources.put(unit, file);
+            UnitDependencies dependencies = index.get(unit);
+            if (dependencies == null
+                    || dependencies.getSourceHash() == null
+                    || !dependencies.getSourceHash().equals(DependencyIndex.hashFile(file))) {
+                if (isDescriptor(unit) || unit.endsWith(Constants.JAVA_SUFFIX)) {
+                    // we don't know who depends on those
+                    return null;
+                }
+                state.toCompile.add(unit);
+            }
+        }
+        for (String unit : index.getUnits()) {
+            if (!state.sources.containsKey(unit)) {
+                // removed unit: its classes would stay in the archive
+                return null;
+            }
+        }
+        long carTime = carFile.lastModified();
+        for (File resource : resolver.getResourceFiles()) {
+            if (resource.lastModified() > carTime)
+                state.modifiedResources.add(FileUtil.absoluteFile(resource));
+        }
+        return state;
+    }
+
+    private static boolean isDescriptor(String unit) {
+        String name = unit.substring(unit.lastIndexOf('/') + 1);
+        return name.equals(Constants.MODULE_DESCRIPTOR)
+                || name.equals(PACKAGE_DESCRIPTOR);
+    }
+
+    private String getModuleVersion(String moduleName) {
+        if (Module.DEFAULT_MODULE_NAME.equals(moduleName))
+            return null;
+        for (File sourceDir : sourceDirs) {
+            try {
+                return new ModuleDescriptorReader(moduleName, sourceDir).getModuleVersion();
+            } catch (NoSuchModuleException e) {
+                // try the next one
+            }
+        }
+        return null;
+    }
+
+    private void log(String message) {
+        if (log != null)
+            log.println(message);
+    }
+}
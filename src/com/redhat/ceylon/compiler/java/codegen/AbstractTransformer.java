@@ -29,6 +29,7 @@ import static com.sun.tools.javac.code.Flags.PROTECTED;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -53,6 +54,8 @@ import com.redhat.ceylon.compiler.java.loader.CeylonModelLoader;
 import com.redhat.ceylon.compiler.java.loader.TypeFactory;
 import com.redhat.ceylon.compiler.java.tools.CeylonLog;
 import com.redhat.ceylon.compiler.loader.AbstractModelLoader;
+import com.redhat.ceylon.compiler.loader.mirror.MethodMirror;
+import com.redhat.ceylon.compiler.loader.model.LazyClass;
 import com.redhat.ceylon.compiler.typechecker.model.Annotation;
 import com.redhat.ceylon.compiler.typechecker.model.Class;
 import com.redhat.ceylon.compiler.typechecker.model.ClassOrInterface;
@@ -92,6 +95,7 @@ import com.sun.tools.javac.code.Symbol.TypeSymbol;
 import com.sun.tools.javac.code.Symtab;
 import com.sun.tools.javac.code.Type;
 import com.sun.tools.javac.code.TypeTags;
+import com.sun.tools.javac.main.OptionName;
 import com.sun.tools.javac.tree.JCTree;
 import com.sun.tools.javac.tree.JCTree.Factory;
 import com.sun.tools.javac.tree.JCTree.JCAnnotation;
@@ -112,11 +116,13 @@ import com.sun.tools.javac.tree.JCTree.JCVariableDecl;
 import com.sun.tools.javac.tree.JCTree.LetExpr;
 import com.sun.tools.javac.tree.TreeMaker;
 import com.sun.tools.javac.util.Context;
+import com.sun.tools.javac.util.JCDiagnostic;
 import com.sun.tools.javac.util.List;
 import com.sun.tools.javac.util.ListBuffer;
 import com.sun.tools.javac.util.Log;
 import com.sun.tools.javac.util.Name;
 import com.sun.tools.javac.util.Names;
+import com.sun.tools.javac.util.Options;
 import com.sun.tools.javac.util.Position;
 import com.sun.tools.javac.util.Position.LineMap;
 
@@ -141,9 +147,18 @@ public abstract class AbstractTransformer implements Transformation {
     private AbstractModelLoader loader;
     private TypeFactory typeFact;
     protected Log log;
+    private JCDiagnostic.Factory diags;
     final Naming naming;
     private Errors errors;
+    private final CodegenAnalysis analysis;
     private Stack<java.util.List<TypeParameter>> typeParameterSubstitutions = new Stack<java.util.List<TypeParameter>>();
+    private final boolean cacheTypeDescriptors;
+    /** True while we build a type descriptor which will be cached in a static field */
+    private boolean inCachedTypeDescriptor = false;
+    private final boolean enumeratedObjectOrdinals;
+    private final boolean primitiveCallables;
+    private final boolean devirtualization;
+    private final boolean unboxedArrayAccess;
 
     public AbstractTransformer(Context context) {
         this.context = context;
@@ -153,13 +168,43 @@ public abstract class AbstractTransformer implements Transformation {
         loader = CeylonModelLoader.instance(context);
         typeFact = TypeFactory.instance(context);
         log = CeylonLog.instance(context);
+        diags = JCDiagnostic.Factory.instance(context);
         naming = Naming.instance(context);
+        analysis = CodegenAnalysis.instance(context);
+        Set<Optimization> disabledOptimizations = getDisabledOptimizations(context);
+        cacheTypeDescriptors = !disabledOptimizations.contains(Optimization.TypeDescriptorCaching);
+        enumeratedObjectOrdinals = !disabledOptimizations.contains(Optimization.EnumeratedObjectSwitch);
+        primitiveCallables = !disabledOptimizations.contains(Optimization.PrimitiveCallable);
+        devirtualization = !disabledOptimizations.contains(Optimization.Devirtualization);
+        unboxedArrayAccess = !disabledOptimizations.contains(Optimization.UnboxedArrayAccess);
+    }
+
+    /**
+     * Returns the optimizations disabled by the compiler options.
+     */
+    static Set<Optimization> getDisabledOptimizations(Context context) {
+        Options options = Options.instance(context);
+        if (options.isSet(OptionName.CEYLONDISABLEOPT)) {
+            return EnumSet.allOf(Optimization.class);
+        } else if (options.isSet(OptionName.CEYLONDISABLEOPT_CUSTOM)) {
+            Set<Optimization> disabledOptimizations = new HashSet<Optimization>();
+            for (String name : options.get(OptionName.CEYLONDISABLEOPT_CUSTOM).split(",")) {
+                disabledOptimizations.add(Optimization.valueOf(name));
+            }
+            return disabledOptimizations;
+        } else {
+            return EnumSet.noneOf(Optimization.class);
+        }
     }
 
     Context getContext() {
         return context;
     }
     
+    CodegenAnalysis analysis() {
+        return analysis;
+    }
+    
     Errors errors() {
         if (this.errors == null) {
             this.errors = Errors.instance(context);
@@ -1498,6 +1543,68 @@ public abstract class AbstractTransformer implements Transformation {
         return type != null && type.isExactly(typeFact.getCharacterDeclaration().getType());
     }
 
+    /**
+     * Determines whether the given type can be taken or returned by the 
+     * {@code $callprimitive$()} entry point of a callable: 
+     * {@code Integer}, {@code Float}, {@code Boolean} or {@code Character}.
+     */
+    boolean isPrimitiveCallableType(ProducedType type) {
+        return isCeylonInteger(type)
+                || isCeylonFloat(type)
+                || isCeylonCharacter(type)
+                || (type != null && type.isExactly(typeFact.getBooleanDeclaration().getType()));
+    }
+    
+    /**
+     * Whether callables of anonymous functions get a {@code $callprimitive$()} 
+     * entry point, which is only disabled by the compiler options, since 
+     * the boxing of invocations depends on it.
+     */
+    boolean hasPrimitiveCallables() {
+        return primitiveCallables;
+    }
+    
+    /**
+     * Whether we access the elements of {@code Array}s of primitives 
+     * through the Java array they hold, which is only disabled by the 
+     * compiler options, since the boxing of {@code else} expressions 
+     * depends on it.
+     */
+    boolean hasUnboxedArrayAccess() {
+        return unboxedArrayAccess;
+    }
+    
+    /**
+     * Determines whether the given {@code default} member can still never 
+     * be refined, because it belongs to a {@code final} class or to an 
+     * anonymous class, so that we can make it {@code final} too.
+     */
+    boolean isNeverRefined(Declaration member) {
+        if (!devirtualization
+                || !member.isDefault()
+                || member.getContainer() instanceof Class == false) {
+            return false;
+        }
+        Class container = (Class)member.getContainer();
+        return container.isFinal() || container.isAnonymous();
+    }
+    
+    /**
+     * Determines whether the given interface member can never be refined, 
+     * because it's concrete and not {@code default}, so that its 
+     * companion class can call its own implementation instead of going 
+     * through {@code $this}.
+     */
+    boolean isCompanionImplementationKnown(Declaration member) {
+        return devirtualization
+                && member.isShared()
+                && !member.isDefault()
+                && !member.isFormal()
+                && member.getContainer() instanceof Interface
+                // not the members of Object such as string and hash
+                && member.getRefinedDeclaration().getContainer() instanceof Interface;
+    }
+
     boolean isCeylonByte(ProducedType type) {
         return type != null && type.isExactly(typeFact.getByteDeclaration().getType());
     }
@@ -2012,6 +2119,76 @@ public abstract class AbstractTransformer implements Transformation {
         }
         return type.isSubtypeOf(enumDecl.getProducedType(null, Collections.singletonList(type)));
     }
+    
+    /**
+     * Determines whether the given class is enumerated with toplevel 
+     * {@code object}s only, in which case it has a {@code $ordinal$()} 
+     * method returning -1, which each of its cases overrides by returning 
+     * its index in the {@code of} clause. This only depends on the 
+     * declarations, not on what we happen to be compiling along with them,
+     * so that separately compiled classes and objects agree.
+     */
+    boolean hasEnumeratedObjectOrdinals(TypeDeclaration decl) {
+        if (!(decl instanceof Class)
+                || decl.getCaseTypes() == null
+                || decl.getCaseTypes().isEmpty()) {
+            return false;
+        }
+        for (ProducedType caseType : decl.getCaseTypes()) {
+            TypeDeclaration caseDecl = caseType.getDeclaration();
+            if (!(caseDecl instanceof Class)
+                    || !caseDecl.isAnonymous()
+                    || !caseDecl.isToplevel()) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Determines whether we can switch on the {@code $ordinal$()} of the 
+     * given class: it must have 
+     * {@linkplain #hasEnumeratedObjectOrdinals(TypeDeclaration) enumerated object ordinals},
+     * and if it comes from a binary it must have been compiled with its 
+     * {@code $ordinal$()} method.
+     */
+    boolean canSwitchOnEnumeratedObjectOrdinals(TypeDeclaration decl) {
+        if (!enumeratedObjectOrdinals
+                || !hasEnumeratedObjectOrdinals(decl)) {
+            return false;
+        }
+        if (decl instanceof LazyClass) {
+            for (MethodMirror method : ((LazyClass)decl).classMirror.getDirectMethods()) {
+                if (method.getName().equals(naming.getOrdinalMethodName())
+                        && method.getParameters().isEmpty()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Returns the {@code $ordinal$()} of the given anonymous class, or -1 
+     * if it's not a case of a class with 
+     * {@linkplain #hasEnumeratedObjectOrdinals(TypeDeclaration) enumerated object ordinals}.
+     */
+    int getEnumeratedObjectOrdinal(TypeDeclaration objectDecl) {
+        ProducedType extendedType = objectDecl.getExtendedType();
+        if (!objectDecl.isAnonymous()
+                || extendedType == null
+                || !hasEnumeratedObjectOrdinals(extendedType.getDeclaration())) {
+            return -1;
+        }
+        java.util.List<ProducedType> caseTypes = extendedType.getDeclaration().getCaseTypes();
+        for (int ii = 0; ii < caseTypes.size(); ii++) {
+            if (Decl.equal(caseTypes.get(ii).getDeclaration(), objectDecl)) {
+                return ii;
+            }
+        }
+        return -1;
+    }
 
     public JCExpression makeParameterisedType(ProducedType type, ProducedType generalType, final int flags, 
             JCExpression qualifyingExpression, java.util.List<ProducedType> qualifyingTypes, 
@@ -2516,7 +2693,7 @@ public abstract class AbstractTransformer implements Transformation {
             // type of param must be Iterable<T>
             ProducedType elementType = typeFact.getIteratedType(type);
             if(elementType == null){
-                log.error("ceylon", "Invalid type for Java variadic parameter: "+type.getProducedTypeQualifiedName());
+                logError(Position.NOPOS, "ceylon", "Invalid type for Java variadic parameter: "+type.getProducedTypeQualifiedName());
                 return type;
             }
             return elementType;
@@ -4230,7 +4407,7 @@ public abstract class AbstractTransformer implements Transformation {
             if (node != null) {
                 node.addError(new CodeGenError(node, message, null));
             } else {
-                log.error(key, message);
+                logError(Position.NOPOS, key, message);
             }
         }
         return make().Erroneous(errs);
@@ -4438,7 +4615,7 @@ public abstract class AbstractTransformer implements Transformation {
                 // find the param index
                 int index = method.getTypeParameters().indexOf(declarationModel);
                 if(index == -1){
-                    log.error("Failed to find type parameter index: "+declarationModel.getName());
+                    logError(Position.NOPOS, "Failed to find type parameter index: "+declarationModel.getName());
                 }else if(refinedMethod.getTypeParameters().size() > index){
                     // ignore smaller index than size since the typechecker would have found the error
                     TypeParameter refinedTP = refinedMethod.getTypeParameters().get(index);
@@ -4514,9 +4691,19 @@ public abstract class AbstractTransformer implements Transformation {
     protected int getPosition(Node node) {
         int pos = getMap().getStartPosition(node.getToken().getLine())
                 + node.getToken().getCharPositionInLine();
-                log.useSource(gen().getFileObject());
         return pos;
     }
+    
+    /**
+     * Reports an error at the given position of the unit we transform.
+     * We don't use the current source of the log, because it's shared by 
+     * all the code generation threads.
+     */
+    void logError(int pos, String key, Object... args) {
+        log.report(diags.error(gen().getDiagnosticSource(), 
+                pos == Position.NOPOS ? null : new JCDiagnostic.SimpleDiagnosticPosition(pos), 
+                key, args));
+    }
 
     public JCExpression makeClassLiteral(ProducedType type) {
         return makeSelect(makeJavaType(type, JT_NO_PRIMITIVES | JT_RAW | JT_CLASS_LITERAL), "class");
@@ -4611,7 +4798,7 @@ public abstract class AbstractTransformer implements Transformation {
         // same as makeReifiedTypeArgumentsResolved(typeArguments, false) but resolve each element
         List<JCExpression> ret = List.nil();
         for(int i=typeArguments.size()-1;i>=0;i--){
-            ret = ret.prepend(makeReifiedTypeArgumentResolved(typeArguments.get(i).resolveAliases(), false));
+            ret = ret.prepend(makeReifiedTypeArgument(typeArguments.get(i)));
         }
         return ret;
     }
@@ -4626,7 +4813,91 @@ public abstract class AbstractTransformer implements Transformation {
     }
 
     public JCExpression makeReifiedTypeArgument(ProducedType pt) {
-        return makeReifiedTypeArgumentResolved(pt.resolveAliases(), false);
+        pt = pt.resolveAliases();
+        if(cacheTypeDescriptors
+                && !inCachedTypeDescriptor
+                && current() != null
+                && isConstantReifiedType(pt, true)){
+            // build it once, in a static field of the outermost class
+            ClassDefinitionBuilder cacheBuilder = current().getTypeDescriptorCacheBuilder();
+            if(cacheBuilder != null){
+                JCExpression descriptor;
+                inCachedTypeDescriptor = true;
+                try{
+                    descriptor = makeReifiedTypeArgumentResolved(pt, false);
+                }finally{
+                    inCachedTypeDescriptor = false;
+                }
+                return cacheBuilder.cachedTypeDescriptor(descriptor);
+            }
+        }
+        return makeReifiedTypeArgumentResolved(pt, false);
+    }
+    
+    /**
+     * Returns true if the type descriptor of the given (resolved) type does 
+     * not depend on any type parameter or local declaration, so that it can 
+     * be built in a static initialiser.
+     * @param worthCaching if true, return false for types whose descriptor 
+     * is already a constant, such as a <tt>$TypeDescriptor$</tt> alias 
+     */
+    private boolean isConstantReifiedType(ProducedType pt, boolean worthCaching) {
+        TypeDeclaration declaration = pt.getDeclaration();
+        if(declaration instanceof Constructor){
+            pt = pt.getExtendedType();
+            declaration = pt.getDeclaration();
+        }
+        if(declaration instanceof ClassOrInterface){
+            if(declaration.isJavaEnum()){
+                pt = pt.getExtendedType();
+                declaration = pt.getDeclaration();
+            }
+            if(worthCaching && supportsReifiedAlias((ClassOrInterface) declaration))
+                return false;
+            if(Decl.isObjectExpressionType(declaration))
+                return false;
+            // its class literal must be usable from the static initialiser
+            Scope container = declaration.getContainer();
+            while(container instanceof Package == false){
+                if(container instanceof ClassOrInterface == false)
+                    return false;
+                container = container.getContainer();
+            }
+            for(ProducedType typeArgument : pt.getTypeArgumentList()){
+                if(!isConstantReifiedType(typeArgument, false))
+                    return false;
+            }
+            ProducedType qualifyingType = pt.getQualifyingType();
+            if(qualifyingType == null
+                    && (Decl.isCeylon(declaration)
+                            || !declaration.isStaticallyImportable())){
+                Declaration enclosingDeclaration = getDeclarationContainer(declaration);
+                if(enclosingDeclaration instanceof TypeDeclaration)
+                    qualifyingType = ((TypeDeclaration) enclosingDeclaration).getType();
+            }
+            if (qualifyingType != null && 
+                    qualifyingType.getDeclaration() instanceof Constructor) {
+                qualifyingType = qualifyingType.getQualifyingType();
+            }
+            return qualifyingType == null 
+                    || isConstantReifiedType(qualifyingType, false);
+        } else if(declaration instanceof UnionType){
+            for(ProducedType caseType : ((UnionType)declaration).getCaseTypes()){
+                if(!isConstantReifiedType(caseType.resolveAliases(), false))
+                    return false;
+            }
+            return true;
+        } else if(declaration instanceof IntersectionType){
+            for(ProducedType satisfiedType : ((IntersectionType)declaration).getSatisfiedTypes()){
+                if(!isConstantReifiedType(satisfiedType.resolveAliases(), false))
+                    return false;
+            }
+            return true;
+        } else if(declaration instanceof NothingType){
+            return !worthCaching;
+        }
+        // type parameters, or something we don't know
+        return false;
     }
     
     private JCExpression makeReifiedTypeArgumentResolved(ProducedType pt, boolean qualified) {
@@ -4640,8 +4911,10 @@ public abstract class AbstractTransformer implements Transformation {
                 pt = pt.getExtendedType();
                 declaration = pt.getDeclaration();
             }
-            // see if we have an alias for it
-            if(supportsReifiedAlias((ClassOrInterface) declaration)){
+            // see if we have an alias for it, but don't make cached descriptors
+            // depend on the initialisation of other classes
+            if(supportsReifiedAlias((ClassOrInterface) declaration)
+                    && !inCachedTypeDescriptor){
                 JCExpression qualifier = naming.makeDeclarationName(declaration, DeclNameFlag.QUALIFIED);
                 return makeSelect(qualifier, naming.getTypeDescriptorAliasName());
             }
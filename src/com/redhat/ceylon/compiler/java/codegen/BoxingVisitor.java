@@ -86,9 +86,24 @@ public abstract class BoxingVisitor extends Visitor {
     protected abstract boolean isTypeParameter(ProducedType type);
     protected abstract boolean isRaw(ProducedType type);
     protected abstract boolean needsRawCastForMixinSuperCall(TypeDeclaration declaration, ProducedType type);
+    protected abstract boolean isPrimitiveCallableInvocation(InvocationExpression that);
+    /**
+     * @param statement The statement the given operator is in, whose 
+     * {@code @disableOptimization} annotations apply to it, or null
+     */
+    protected abstract boolean isUnboxedArrayElementDefault(Tree.DefaultOp that, Tree.Statement statement);
 
     private Stack<Boolean> nextPreferredExpressionBoxings = null;
     private Boolean preferredExpressionBoxing = null;
+    private Tree.Statement currentStatement = null;
+    
+    @Override
+    public void visit(Tree.Statement that) {
+        Tree.Statement prevStatement = currentStatement;
+        currentStatement = that;
+        super.visit(that);
+        currentStatement = prevStatement;
+    }
     
     @Override
     public void visit(BaseMemberExpression that) {
@@ -213,7 +228,9 @@ public abstract class BoxingVisitor extends Visitor {
                     && isRaw(that.getPrimary().getTypeModel()))
                 CodegenUtil.markTypeErased(that);
             
-            // These are always boxed
+            // These are always boxed, unless we call a primitive entry point
+            if(isPrimitiveCallableInvocation(that))
+                CodegenUtil.markUnBoxed(that);
             return;
         }
         if(isByteLiteral(that))
@@ -665,6 +682,9 @@ public abstract class BoxingVisitor extends Visitor {
                     && !willEraseToObject(that.getUnit().denotableType(that.getTypeModel()))) {
                         CodegenUtil.markUnBoxed(that);
             }
+        } else if (CodegenUtil.isUnBoxed(that.getRightTerm())
+                && isUnboxedArrayElementDefault(that, currentStatement)) {
+            CodegenUtil.markUnBoxed(that);
         }
     }
     
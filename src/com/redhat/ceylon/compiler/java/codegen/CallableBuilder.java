@@ -95,6 +95,16 @@ import com.sun.tools.javac.util.Name;
  *     <li>the {@code $call()} methods delegate to {@code $call$variadic()} methods,
  *         downcasting and obtaining default arguments if required,</li>
  *     <ul>
+ * <li>If the Callable is for an anonymous function which 
+ *     {@linkplain #hasPrimitiveEntryPoint(AbstractTransformer, Tree.FunctionArgument) 
+ *     only takes and returns primitives} then:</li>
+ *     <ul>
+ *     <li>a {@code public $callprimitive$()} method is generated which 
+ *         encodes the actual method code, with unboxed parameters and 
+ *         result, and</li>
+ *     <li>the {@code $call()} method unboxes its arguments, delegates to
+ *         {@code $callprimitive$()} and boxes its result.</li>
+ *     <ul>
  * </ul>
  * 
  */
@@ -535,6 +545,65 @@ public class CallableBuilder {
         return methodArgument(gen, model, callableTypeModel, parameterListTree, stmts, delegateDefaultedCalls);
     }
 
+    /**
+     * Determines whether the callable for the given anonymous function 
+     * gets a {@code $callprimitive$()} entry point: it must have a single 
+     * parameter list of one to {@value #CALLABLE_MAX_FIZED_ARITY} unboxed 
+     * parameters, none of them defaulted or variadic, and an expression 
+     * body, and it must only take and return 
+     * {@linkplain AbstractTransformer#isPrimitiveCallableType(ProducedType) primitives}.
+     */
+    static boolean hasPrimitiveEntryPoint(AbstractTransformer gen, Tree.FunctionArgument functionArg) {
+        if (!gen.hasPrimitiveCallables()
+                || functionArg.getExpression() == null
+                || functionArg.getParameterLists().size() != 1
+                || !gen.isPrimitiveCallableType(functionArg.getDeclarationModel().getType())) {
+            return false;
+        }
+        java.util.List<Parameter> parameters = functionArg.getParameterLists().get(0).getModel().getParameters();
+        if (parameters.isEmpty() 
+                || parameters.size() > CALLABLE_MAX_FIZED_ARITY) {
+            return false;
+        }
+        for (Parameter param : parameters) {
+            if (param.isDefaulted()
+                    || param.isSequenced()
+                    || !(param.getModel() instanceof Value)
+                    || !CodegenUtil.isUnBoxed(param.getModel())
+                    || !gen.isPrimitiveCallableType(param.getType())) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Constructs an {@code AbstractCallable} for an anonymous function which
+     * {@linkplain #hasPrimitiveEntryPoint(AbstractTransformer, Tree.FunctionArgument) 
+     * has a primitive entry point}.
+     */
+    public static CallableBuilder primitive(
+            CeylonTransformer gen,
+            Tree.FunctionArgument functionArg) {
+        Method model = functionArg.getDeclarationModel();
+        boolean prevSyntheticClassBody = gen.expressionGen().withinSyntheticClassBody(true);
+        JCExpression transformedExpr;
+        try {
+            transformedExpr = gen.expressionGen().transformExpression(functionArg.getExpression(), 
+                    BoxingStrategy.UNBOXED, model.getType());
+        } finally {
+            gen.expressionGen().withinSyntheticClassBody(prevSyntheticClassBody);
+        }
+        CallableBuilder cb = new CallableBuilder(gen, model.getTypedReference().getFullType(), 
+                functionArg.getParameterLists().get(0).getModel());
+        cb.parameterTypes = cb.getParameterTypesFromParameterModels();
+        cb.useTransformation(cb.new FixedArityCallableTransformation(
+                cb.new CallMethodForPrimitive(), 
+                cb.new CallPrimitiveMethod(transformedExpr)));
+        cb.annotations = gen.makeAtMethod().prependList(gen.makeAtName(model.getName())).prependList(gen.makeAtLocalDeclaration(model.getQualifier(), false));
+        return cb;
+    }
+
     public static CallableBuilder methodArgument(
             CeylonTransformer gen,
             Method model,
@@ -1502,26 +1571,12 @@ public class CallableBuilder {
     
     public JCNewClass build() {
         // Generate a subclass of Callable
-        ListBuffer<JCTree> classBody = new ListBuffer<JCTree>();
-        
-        if (parameterDefaultValueMethods != null) {
-            for (MethodDefinitionBuilder mdb : parameterDefaultValueMethods) {
-                classBody.append(mdb.build());
-            }
-        }
-        
-        transformation.appendMethods(classBody);
-        
-        JCClassDecl classDef = gen.make().AnonymousClassDef(gen.make().Modifiers(0, annotations != null ? annotations : List.<JCAnnotation>nil()), classBody.toList());
+        JCClassDecl classDef = gen.make().AnonymousClassDef(gen.make().Modifiers(0, annotations != null ? annotations : List.<JCAnnotation>nil()), makeClassBody().toList());
         
-        int variadicIndex = isVariadic ? numParams - 1 : -1;
         JCNewClass instance = gen.make().NewClass(null, 
                 null, 
                 gen.makeJavaType(typeModel, JT_EXTENDS | JT_CLASS_NEW), 
-                List.<JCExpression>of(gen.makeReifiedTypeArgument(typeModel.getTypeArgumentList().get(0)),
-                                      gen.makeReifiedTypeArgument(typeModel.getTypeArgumentList().get(1)),
-                                      gen.make().Literal(typeModel.getProducedTypeName(true)),
-                                      gen.make().TypeCast(gen.syms().shortType, gen.makeInteger(variadicIndex))),
+                makeSuperArguments(),
                 classDef);
         
         if (instanceSubstitution != null) {
@@ -1529,6 +1584,59 @@ public class CallableBuilder {
         }
         return instance;
     }
+    
+    /**
+     * Generates the subclass of Callable as a local class with the given 
+     * name, rather than an anonymous class, so that its 
+     * {@code $callprimitive$()} can be invoked on instances of it.
+     */
+    public JCClassDecl buildLocalClass(Name className) {
+        ListBuffer<JCTree> classBody = makeClassBody();
+        // it's constructed without arguments
+        JCMethodDecl constructor = gen.make().MethodDef(gen.make().Modifiers(0), 
+                gen.names().init, 
+                null, 
+                List.<JCTree.JCTypeParameter>nil(), 
+                List.<JCVariableDecl>nil(), 
+                List.<JCExpression>nil(), 
+                gen.make().Block(0, List.<JCStatement>of(gen.make().Exec(
+                        gen.make().Apply(null, gen.make().Ident(gen.names()._super), makeSuperArguments())))), 
+                null);
+        classBody.prepend(constructor);
+        JCClassDecl classDef = gen.make().ClassDef(
+                gen.make().Modifiers(Flags.FINAL, annotations != null ? annotations : List.<JCAnnotation>nil()), 
+                className, 
+                List.<JCTree.JCTypeParameter>nil(), 
+                gen.makeJavaType(typeModel, JT_EXTENDS | JT_CLASS_NEW), 
+                List.<JCExpression>nil(), 
+                classBody.toList());
+        
+        if (instanceSubstitution != null) {
+            instanceSubstitution.close();
+        }
+        return classDef;
+    }
+    
+    private ListBuffer<JCTree> makeClassBody() {
+        ListBuffer<JCTree> classBody = new ListBuffer<JCTree>();
+        
+        if (parameterDefaultValueMethods != null) {
+            for (MethodDefinitionBuilder mdb : parameterDefaultValueMethods) {
+                classBody.append(mdb.build());
+            }
+        }
+        
+        transformation.appendMethods(classBody);
+        return classBody;
+    }
+    
+    private List<JCExpression> makeSuperArguments() {
+        int variadicIndex = isVariadic ? numParams - 1 : -1;
+        return List.<JCExpression>of(gen.makeReifiedTypeArgument(typeModel.getTypeArgumentList().get(0)),
+                gen.makeReifiedTypeArgument(typeModel.getTypeArgumentList().get(1)),
+                gen.make().Literal(typeModel.getProducedTypeName(true)),
+                gen.make().TypeCast(gen.syms().shortType, gen.makeInteger(variadicIndex)));
+    }
 
     private java.util.List<ProducedType> getParameterTypesFromCallableModel() {
         java.util.List<ProducedType> parameterTypes = new ArrayList<ProducedType>(numParams);
@@ -1572,6 +1680,63 @@ public class CallableBuilder {
         
     }
     
+    /**
+     * The {@code $call()} method of a callable with a primitive entry point,
+     * which unboxes its arguments, delegates to {@code $callprimitive$()}
+     * and boxes its result.
+     */
+    class CallMethodForPrimitive extends MethodWithArity {
+        
+        @Override
+        MethodDefinitionBuilder makeMethod(int arity) {
+            if (arity != numParams) {
+                return null;
+            }
+            ListBuffer<JCExpression> args = ListBuffer.<JCExpression>lb();
+            int a = 0;
+            for (Parameter param : paramLists.getParameters()) {
+                args.append(makeParameterExpr(param, a, parameterTypes.get(a), false, false));
+                a++;
+            }
+            JCExpression call = gen.make().Apply(null, 
+                    gen.naming.makeUnquotedIdent(Naming.getCallablePrimitiveMethodName()), 
+                    args.toList());
+            ProducedType returnType = gen.getReturnTypeOfCallable(typeModel);
+            return makeCallMethod(List.<JCStatement>of(gen.make().Return(gen.boxType(call, returnType))), arity);
+        }
+    }
+    
+    /**
+     * The {@code $callprimitive$()} method, which returns the given 
+     * unboxed expression.
+     */
+    class CallPrimitiveMethod extends MethodWithArity {
+        
+        private final JCExpression expr;
+        
+        CallPrimitiveMethod(JCExpression expr) {
+            this.expr = expr;
+        }
+        
+        @Override
+        MethodDefinitionBuilder makeMethod(int arity) {
+            MethodDefinitionBuilder methodBuilder = MethodDefinitionBuilder.systemMethod(gen, Naming.getCallablePrimitiveMethodName());
+            methodBuilder.noAnnotations();
+            methodBuilder.modifiers(Flags.PUBLIC | Flags.FINAL);
+            methodBuilder.resultType(gen.makeJavaType(gen.getReturnTypeOfCallable(typeModel)), null);
+            int i = 0;
+            for (Parameter param : paramLists.getParameters()) {
+                ParameterDefinitionBuilder parameterBuilder = ParameterDefinitionBuilder.systemParameter(gen, Naming.getAliasedParameterName(param));
+                parameterBuilder.modifiers(Flags.FINAL);
+                parameterBuilder.type(gen.makeJavaType(parameterTypes.get(i)), null);
+                methodBuilder.parameter(parameterBuilder);
+                i++;
+            }
+            methodBuilder.body(List.<JCStatement>of(gen.make().Return(expr)));
+            return methodBuilder;
+        }
+    }
+    
     /**
      * Makes the {@code call$typed()} method, using the given body.
      */
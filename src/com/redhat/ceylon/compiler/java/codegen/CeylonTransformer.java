@@ -24,7 +24,9 @@ import java.util.Iterator;
 
 import javax.tools.JavaFileObject;
 
+import com.redhat.ceylon.compiler.java.codegen.recovery.Errors;
 import com.redhat.ceylon.compiler.java.codegen.recovery.HasErrorException;
+import com.redhat.ceylon.compiler.java.util.Timer;
 import com.redhat.ceylon.compiler.loader.SourceDeclarationVisitor;
 import com.redhat.ceylon.compiler.loader.model.AnnotationTarget;
 import com.redhat.ceylon.compiler.loader.model.OutputElement;
@@ -50,7 +52,9 @@ import com.sun.tools.javac.tree.JCTree.JCImport;
 import com.sun.tools.javac.tree.JCTree.JCModifiers;
 import com.sun.tools.javac.tree.JCTree.JCNewClass;
 import com.sun.tools.javac.tree.JCTree.JCStatement;
+import com.sun.tools.javac.tree.TreeMaker;
 import com.sun.tools.javac.util.Context;
+import com.sun.tools.javac.util.DiagnosticSource;
 import com.sun.tools.javac.util.List;
 import com.sun.tools.javac.util.ListBuffer;
 import com.sun.tools.javac.util.Name;
@@ -62,8 +66,10 @@ import com.sun.tools.javac.util.Position.LineMap;
  */
 public class CeylonTransformer extends AbstractTransformer {
     private Options options;
+    Timer timer;
     private LineMap map;
     private JavaFileObject fileObject;
+    private DiagnosticSource diagnosticSource;
     public int disableAnnotations = 0;
     static final int DISABLE_MODEL_ANNOS = 1<<0;
     static final int DISABLE_USER_ANNOS = 1<<1;
@@ -78,6 +84,21 @@ public class CeylonTransformer extends AbstractTransformer {
         return trans;
     }
 
+    /**
+     * Makes a transformer which can run in another thread than the one of
+     * the given context: it has its own tree maker, naming and transformers
+     * but shares everything else with the given context.
+     */
+    public static CeylonTransformer fork(Context context) {
+        Context forked = Context.inherit(context, 
+                CeylonTransformer.class, ExpressionTransformer.class,
+                StatementTransformer.class, ClassTransformer.class,
+                Naming.class, Naming.UniqueId.class, Naming.VarMapper.class,
+                Errors.class);
+        TreeMaker.newInstance(forked);
+        return getInstance(forked);
+    }
+
     public CeylonTransformer(Context context) {
         super(context);
         setup(context);
@@ -85,6 +106,7 @@ public class CeylonTransformer extends AbstractTransformer {
 
     private void setup(Context context) {
         options = Options.instance(context);
+        timer = Timer.instance(context);
         // It's a bit weird to see "invokedynamic" set here,
         // but it has to be done before Resolve.instance().
         options.put("invokedynamic", "invokedynamic");
@@ -102,11 +124,21 @@ public class CeylonTransformer extends AbstractTransformer {
 
     public void setFileObject(JavaFileObject fileObject) {
         this.fileObject = fileObject;
+        this.diagnosticSource = fileObject != null ? new DiagnosticSource(fileObject, log) : DiagnosticSource.NO_SOURCE;
     }
     
     public JavaFileObject getFileObject() {
         return fileObject;
     }
+    
+    /**
+     * The source of the diagnostics we report about the unit we transform,
+     * which we use instead of the current source of the log, because 
+     * that one is shared by all the code generation threads.
+     */
+    DiagnosticSource getDiagnosticSource() {
+        return diagnosticSource;
+    }
 
     /**
      * In this pass we only make an empty placeholder which we'll fill in the
@@ -181,6 +213,7 @@ public class CeylonTransformer extends AbstractTransformer {
     @SuppressWarnings("unchecked")
     public ListBuffer<JCTree> transformAfterTypeChecking(Tree.CompilationUnit t) {
         disableAnnotations = 0;
+        naming.resetUniqueIds();
         
         GetterSetterPairingVisitor gspv = new GetterSetterPairingVisitor();
         t.visit(gspv);
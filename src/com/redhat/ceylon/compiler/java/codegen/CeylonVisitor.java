@@ -23,6 +23,7 @@ package com.redhat.ceylon.compiler.java.codegen;
 import com.redhat.ceylon.compiler.java.codegen.recovery.Drop;
 import com.redhat.ceylon.compiler.java.codegen.recovery.HasErrorException;
 import com.redhat.ceylon.compiler.java.codegen.recovery.TransformationPlan;
+import com.redhat.ceylon.compiler.java.util.Profile;
 import com.redhat.ceylon.compiler.typechecker.model.Class;
 import com.redhat.ceylon.compiler.typechecker.model.ClassOrInterface;
 import com.redhat.ceylon.compiler.typechecker.model.Constructor;
@@ -60,6 +61,17 @@ public class CeylonVisitor extends Visitor implements NaturalVisitor {
 
 
 
+    /**
+     * Starts a profiling span for the given declaration if it is toplevel,
+     * since those are what we want to compare in profiles
+     */
+    private Profile.Span startToplevelSpan(Tree.Declaration decl) {
+        if (!gen.timer.isProfiling() || !Decl.isToplevel(decl))
+            return Profile.Span.NONE;
+        return gen.timer.startSpan("Ceylon code generation for declaration", 
+                decl.getDeclarationModel().getQualifiedNameString());
+    }
+
     public void handleException(Exception e, Node that) {
         if (e instanceof BugException) {
             ((BugException)e).addError(that);
@@ -100,24 +112,29 @@ public class CeylonVisitor extends Visitor implements NaturalVisitor {
     }
 
     public void visit(Tree.ClassOrInterface decl) {
-        TransformationPlan plan = gen.errors().hasDeclarationAndMarkBrokenness(decl);
-        if (plan instanceof Drop) {
-            return;
-        }
-        if (Decl.isNative(decl) && Decl.isToplevel(decl))
-            return;
-        int annots = gen.checkCompilerAnnotations(decl, defs);
+        Profile.Span span = startToplevelSpan(decl);
+        try {
+            TransformationPlan plan = gen.errors().hasDeclarationAndMarkBrokenness(decl);
+            if (plan instanceof Drop) {
+                return;
+            }
+            if (Decl.isNative(decl) && Decl.isToplevel(decl))
+                return;
+            int annots = gen.checkCompilerAnnotations(decl, defs);
 
-        if (Decl.withinClassOrInterface(decl)) {
-            if (Decl.withinInterface(decl)) {
-                classBuilder.getCompanionBuilder((Interface)decl.getDeclarationModel().getContainer()).defs(gen.classGen().transform(decl));
+            if (Decl.withinClassOrInterface(decl)) {
+                if (Decl.withinInterface(decl)) {
+                    classBuilder.getCompanionBuilder((Interface)decl.getDeclarationModel().getContainer()).defs(gen.classGen().transform(decl));
+                } else {
+                    classBuilder.defs(gen.classGen().transform(decl));
+                }
             } else {
-                classBuilder.defs(gen.classGen().transform(decl));
+                appendList(gen.classGen().transform(decl));
             }
-        } else {
-            appendList(gen.classGen().transform(decl));
+            gen.resetCompilerAnnotations(annots);
+        } finally {
+            span.end();
         }
-        gen.resetCompilerAnnotations(annots);
     }
     
     public void visit(Tree.Constructor that) {
@@ -152,19 +169,24 @@ public class CeylonVisitor extends Visitor implements NaturalVisitor {
     }
 
     public void visit(Tree.ObjectDefinition decl) {
-        TransformationPlan plan = gen.errors().hasDeclarationAndMarkBrokenness(decl);
-        if (plan instanceof Drop) {
-            return;
-        }
-        if (Decl.isNative(decl) && Decl.isToplevel(decl))
-            return;
-        int annots = gen.checkCompilerAnnotations(decl, defs);
-        if (Decl.withinClass(decl)) {
-            classBuilder.defs(gen.classGen().transformObjectDefinition(decl, classBuilder));
-        } else {
-            appendList(gen.classGen().transformObjectDefinition(decl, null));
+        Profile.Span span = startToplevelSpan(decl);
+        try {
+            TransformationPlan plan = gen.errors().hasDeclarationAndMarkBrokenness(decl);
+            if (plan instanceof Drop) {
+                return;
+            }
+            if (Decl.isNative(decl) && Decl.isToplevel(decl))
+                return;
+            int annots = gen.checkCompilerAnnotations(decl, defs);
+            if (Decl.withinClass(decl)) {
+                classBuilder.defs(gen.classGen().transformObjectDefinition(decl, classBuilder));
+            } else {
+                appendList(gen.classGen().transformObjectDefinition(decl, null));
+            }
+            gen.resetCompilerAnnotations(annots);
+        } finally {
+            span.end();
         }
-        gen.resetCompilerAnnotations(annots);
     }
 
     public void visit(Tree.AttributeDeclaration decl){
@@ -250,20 +272,25 @@ public class CeylonVisitor extends Visitor implements NaturalVisitor {
     }
 
     public void visit(Tree.AnyMethod decl) {
-        TransformationPlan plan = gen.errors().hasDeclarationAndMarkBrokenness(decl);
-        if (plan instanceof Drop) {
-            return;
-        }
-        if (Decl.isNative(decl) && Decl.isToplevel(decl))
-            return;
-        int annots = gen.checkCompilerAnnotations(decl, defs);
-        if (Decl.withinClassOrInterface(decl)
-                && (!Decl.isDeferred(decl) || Decl.isCaptured(decl))) {
-            classBuilder.method(decl, plan);
-        } else {
-            appendList(gen.classGen().transformWrappedMethod(decl, plan));
+        Profile.Span span = startToplevelSpan(decl);
+        try {
+            TransformationPlan plan = gen.errors().hasDeclarationAndMarkBrokenness(decl);
+            if (plan instanceof Drop) {
+                return;
+            }
+            if (Decl.isNative(decl) && Decl.isToplevel(decl))
+                return;
+            int annots = gen.checkCompilerAnnotations(decl, defs);
+            if (Decl.withinClassOrInterface(decl)
+                    && (!Decl.isDeferred(decl) || Decl.isCaptured(decl))) {
+                classBuilder.method(decl, plan);
+            } else {
+                appendList(gen.classGen().transformWrappedMethod(decl, plan));
+            }
+            gen.resetCompilerAnnotations(annots);
+        } finally {
+            span.end();
         }
-        gen.resetCompilerAnnotations(annots);
     }
 
     /*
@@ -27,6 +27,9 @@ import static com.sun.tools.javac.code.Flags.PROTECTED;
 import static com.sun.tools.javac.code.Flags.PUBLIC;
 import static com.sun.tools.javac.code.Flags.STATIC;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import com.redhat.ceylon.compiler.java.codegen.recovery.TransformationPlan;
 import com.redhat.ceylon.compiler.typechecker.model.Annotation;
 import com.redhat.ceylon.compiler.typechecker.model.ClassOrInterface;
@@ -38,6 +41,7 @@ import com.redhat.ceylon.compiler.typechecker.model.TypeParameter;
 import com.redhat.ceylon.compiler.typechecker.tree.Tree;
 import com.redhat.ceylon.compiler.typechecker.tree.Tree.TypeParameterDeclaration;
 import com.redhat.ceylon.compiler.typechecker.tree.Tree.TypeParameterList;
+import com.sun.tools.javac.code.TypeTags;
 import com.sun.tools.javac.tree.JCTree;
 import com.sun.tools.javac.tree.JCTree.JCAnnotation;
 import com.sun.tools.javac.tree.JCTree.JCExpression;
@@ -91,6 +95,12 @@ public class ClassDefinitionBuilder {
     private ClassDefinitionBuilder concreteInterfaceMemberDefs;
     private final ListBuffer<JCTree> also = ListBuffer.lb();
     
+    /** The static {@code $TypeDescriptor$} field, which we move before the cached type descriptors */
+    private JCTree reifiedAliasDef;
+    /** The names of the static fields caching constant type descriptors, by the code building them */
+    private final Map<String, String> cachedTypeDescriptors = new HashMap<String, String>();
+    private final ListBuffer<JCTree> cachedTypeDescriptorDefs = ListBuffer.lb();
+    
 
     private boolean built = false;
     
@@ -239,6 +249,14 @@ public class ClassDefinitionBuilder {
     }
 
     private void appendDefinitionsTo(ListBuffer<JCTree> defs) {
+        // static fields are initialised in order, and the other ones may use those
+        boolean hasCachedTypeDescriptors = !cachedTypeDescriptorDefs.isEmpty();
+        if (hasCachedTypeDescriptors) {
+            if (reifiedAliasDef != null) {
+                defs.append(reifiedAliasDef);
+            }
+            defs.appendList(cachedTypeDescriptorDefs);
+        }
         if (!isInterface()) {
             
             for (MethodDefinitionBuilder builder : constructors) {
@@ -251,7 +269,11 @@ public class ClassDefinitionBuilder {
                 defs.append(initBuilder.build());
             }
         }
-        defs.appendList(this.defs);
+        for (JCTree def : this.defs) {
+            if (!hasCachedTypeDescriptors || def != reifiedAliasDef) {
+                defs.append(def);
+            }
+        }
     }
 
     private JCExpression getSuperclass(ProducedType extendedType) {
@@ -624,6 +646,22 @@ public class ClassDefinitionBuilder {
         return this;
     }
 
+    /**
+     * Adds the {@code $ordinal$()} method of an enumerated class whose cases
+     * are all objects, or of one of those objects, returning the given 
+     * ordinal, which is -1 for the class itself. The objects' method isn't 
+     * annotated {@code @Override} because the class may have been compiled 
+     * before it had one.
+     */
+    public ClassDefinitionBuilder addOrdinalMethod(int ordinal){
+        MethodDefinitionBuilder method = MethodDefinitionBuilder.systemMethod(gen, gen.naming.getOrdinalMethodName());
+        method.resultType(List.<JCAnnotation>nil(), gen.make().TypeIdent(TypeTags.INT));
+        method.modifiers(PUBLIC);
+        method.body(List.<JCStatement>of(gen.make().Return(gen.make().Literal(ordinal))));
+        defs(method.build());
+        return this;
+    }
+
     public void reifiedTypeParameters(java.util.List<TypeParameter> typeParameterList) {
         for(TypeParameter tp : typeParameterList) {
             reifiedTypeParameter(tp);
@@ -668,9 +706,50 @@ public class ClassDefinitionBuilder {
                                                   gen.names().fromString(gen.naming.getTypeDescriptorAliasName()), 
                                                   gen.makeTypeDescriptorType(), 
                                                   classDescriptor);
+        reifiedAliasDef = varDef;
         defs(varDef);
     }
     
+    /**
+     * Returns the builder of the class where the constant type descriptors 
+     * used in this class can be cached, which is the outermost class since
+     * inner classes can't have static fields, or null if we can't cache them.
+     */
+    ClassDefinitionBuilder getTypeDescriptorCacheBuilder() {
+        ClassDefinitionBuilder builder = this;
+        while (true) {
+            // interfaces are moved to the toplevel and their companions are not
+            // necessarily toplevel classes
+            if (builder.isInterface() || builder.isCompanion || builder.isAlias) {
+                return null;
+            }
+            if (builder.getContainingClassBuilder() == null) {
+                break;
+            }
+            builder = builder.getContainingClassBuilder();
+        }
+        return builder.isLocal || builder.built ? null : builder;
+    }
+    
+    /**
+     * Returns a reference to a static field initialised with the given 
+     * constant type descriptor, which is shared by every identical
+     * type descriptor of this class.
+     */
+    JCExpression cachedTypeDescriptor(JCExpression descriptor) {
+        String key = descriptor.toString();
+        String fieldName = cachedTypeDescriptors.get(key);
+        if (fieldName == null) {
+            fieldName = gen.naming.getCachedTypeDescriptorName(cachedTypeDescriptors.size());
+            cachedTypeDescriptors.put(key, fieldName);
+            cachedTypeDescriptorDefs.append(gen.make().VarDef(gen.make().Modifiers(PRIVATE | FINAL | STATIC, gen.makeAtIgnore()), 
+                    gen.names().fromString(fieldName), 
+                    gen.makeTypeDescriptorType(), 
+                    descriptor));
+        }
+        return gen.makeUnquotedIdent(fieldName);
+    }
+    
     public ClassDefinitionBuilder broken() {
         getTopLevelBuilder().isBroken = true;
         return this;
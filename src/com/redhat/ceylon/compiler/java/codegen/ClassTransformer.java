@@ -226,6 +226,9 @@ public class ClassTransformer extends AbstractTransformer {
             // only classes get a $getType method
             if(model instanceof Class)
                 classBuilder.addGetTypeMethod(model.getType());
+            // enumerated objects can be switched on by ordinal
+            if(hasEnumeratedObjectOrdinals(model))
+                classBuilder.addOrdinalMethod(-1);
             if(supportsReifiedAlias(model))
                 classBuilder.reifiedAlias(model.getType());
         }
@@ -2806,7 +2809,8 @@ public class ClassTransformer extends AbstractTransformer {
         } else {
             result |= def.isShared() ? PUBLIC : PRIVATE;
             result |= def.isFormal() && !def.isDefault() ? ABSTRACT : 0;
-            result |= !(def.isFormal() || def.isDefault() || def.getContainer() instanceof Interface) ? FINAL : 0;
+            result |= !(def.isFormal() || def.isDefault() || def.getContainer() instanceof Interface) 
+                    || isNeverRefined(def) ? FINAL : 0;
         }
 
         return result;
@@ -2848,7 +2852,8 @@ public class ClassTransformer extends AbstractTransformer {
 
         result |= tdecl.isShared() ? PUBLIC : PRIVATE;
         result |= ((tdecl.isFormal() && !tdecl.isDefault()) && !forCompanion) ? ABSTRACT : 0;
-        result |= !(tdecl.isFormal() || tdecl.isDefault() || Decl.withinInterface(tdecl)) || forCompanion ? FINAL : 0;
+        result |= !(tdecl.isFormal() || tdecl.isDefault() || Decl.withinInterface(tdecl)) || forCompanion 
+                || isNeverRefined(tdecl) ? FINAL : 0;
 
         return result;
     }
@@ -4465,6 +4470,9 @@ public class ClassTransformer extends AbstractTransformer {
             .satisfies(klass.getSatisfiedTypes())
             .defs((List)childDefs)
             .addGetTypeMethod(klass.getType());
+        int ordinal = getEnumeratedObjectOrdinal(klass);
+        if (ordinal >= 0)
+            objectClassBuilder.addOrdinalMethod(ordinal);
         
         if(model != null)
             objectClassBuilder
@@ -0,0 +1,95 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.java.codegen;
+
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.redhat.ceylon.compiler.typechecker.model.Value;
+import com.redhat.ceylon.compiler.typechecker.tree.Tree;
+import com.sun.tools.javac.util.Context;
+
+/**
+ * What the visitors run before code generation found out about the 
+ * compilation units, for the transformers to use. There's a single 
+ * instance per compilation, shared with the 
+ * {@linkplain CeylonTransformer#fork(Context) forked} transformers, so it 
+ * must be filled in before code generation starts and only read after.
+ */
+class CodegenAnalysis {
+    
+    /** 
+     * Local values bound to anonymous functions with a primitive entry 
+     * point, which are transformed to instances of a local class
+     * @see CompilerBoxingVisitor
+     */
+    private final Set<Value> primitiveCallableValues = new HashSet<Value>();
+    
+    /** 
+     * The local values bound to a tuple or entry literal which don't escape
+     * @see EscapeAnalysisVisitor
+     */
+    private final Set<Value> nonEscapingValues = new HashSet<Value>();
+    
+    /** 
+     * The constant terms, with their value
+     * @see ConstantFoldingVisitor
+     */
+    private final Map<Tree.Term, Object> constants = new IdentityHashMap<Tree.Term, Object>();
+    
+    public static CodegenAnalysis instance(Context context) {
+        CodegenAnalysis analysis = context.get(CodegenAnalysis.class);
+        if (analysis == null) {
+            analysis = new CodegenAnalysis();
+            context.put(CodegenAnalysis.class, analysis);
+        }
+        return analysis;
+    }
+    
+    void addPrimitiveCallableValue(Value value) {
+        primitiveCallableValues.add(value);
+    }
+    
+    boolean isPrimitiveCallableValue(Object decl) {
+        return primitiveCallableValues.contains(decl);
+    }
+    
+    void addNonEscapingValue(Value value) {
+        nonEscapingValues.add(value);
+    }
+    
+    boolean isNonEscapingValue(Value value) {
+        return nonEscapingValues.contains(value);
+    }
+    
+    void addConstant(Tree.Term term, Object value) {
+        constants.put(term, value);
+    }
+    
+    boolean isConstant(Tree.Term term) {
+        return constants.containsKey(term);
+    }
+    
+    Object getConstant(Tree.Term term) {
+        return constants.get(term);
+    }
+}
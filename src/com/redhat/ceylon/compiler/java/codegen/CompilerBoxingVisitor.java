@@ -23,6 +23,7 @@ import com.redhat.ceylon.compiler.typechecker.model.Declaration;
 import com.redhat.ceylon.compiler.typechecker.model.ProducedReference;
 import com.redhat.ceylon.compiler.typechecker.model.ProducedType;
 import com.redhat.ceylon.compiler.typechecker.model.TypeDeclaration;
+import com.redhat.ceylon.compiler.typechecker.tree.Tree;
 
 public class CompilerBoxingVisitor extends BoxingVisitor {
     private AbstractTransformer transformer;
@@ -70,4 +71,23 @@ public class CompilerBoxingVisitor extends BoxingVisitor {
     protected boolean willEraseToObject(ProducedType type) {
         return transformer.willEraseToObject(type);
     }
+
+    @Override
+    protected boolean isPrimitiveCallableInvocation(Tree.InvocationExpression that) {
+        return transformer.expressionGen().isPrimitiveCallableInvocation(that);
+    }
+
+    @Override
+    protected boolean isUnboxedArrayElementDefault(Tree.DefaultOp that, Tree.Statement statement) {
+        return (statement == null 
+                    || !transformer.statementGen().isOptimizationDisabled(statement, Optimization.UnboxedArrayAccess))
+                && transformer.expressionGen().isUnboxedArrayElementDefault(that);
+    }
+    
+    @Override
+    public void visit(Tree.AttributeDeclaration that) {
+        super.visit(that);
+        // before we visit its invocations
+        transformer.expressionGen().checkPrimitiveCallableValue(that);
+    }
 }
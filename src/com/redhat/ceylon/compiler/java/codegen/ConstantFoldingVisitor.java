@@ -0,0 +1,362 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+
+
+package com.redhat.ceylon.compiler.java.codegen;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.redhat.ceylon.compiler.typechecker.model.Declaration;
+import com.redhat.ceylon.compiler.typechecker.model.ProducedType;
+import com.redhat.ceylon.compiler.typechecker.model.Value;
+import com.redhat.ceylon.compiler.typechecker.tree.Node;
+import com.redhat.ceylon.compiler.typechecker.tree.Tree;
+import com.redhat.ceylon.compiler.typechecker.tree.Visitor;
+
+/**
+ * Visitor which evaluates the {@code Integer}, {@code Float}, 
+ * {@code String} and {@code Boolean} expressions which only depend on 
+ * literals and on the toplevel values of the same compilation unit 
+ * which are specified such an expression, so that 
+ * {@link ExpressionTransformer} can replace them with a Java literal.
+ * 
+ * We evaluate them like the language module would at runtime: 
+ * {@code Integer} arithmetic wraps around on overflow, and we leave 
+ * alone whatever would throw, such as a division by zero or a negative 
+ * {@code Integer} power. We don't use the toplevel values of other 
+ * units because incremental compilation wouldn't recompile our unit 
+ * when their value changes.
+ */
+public class ConstantFoldingVisitor extends Visitor {
+    
+    /** What we evaluated the terms which are not constant to */
+    private static final Object NOT_CONSTANT = new Object();
+    
+    /** 
+     * The longest string we produce, so that its UTF-8 encoding is sure 
+     * to fit in the constant pool 
+     */
+    private static final int MAX_STRING_LENGTH = 0xffff / 3;
+    
+    private final CeylonTransformer gen;
+    private final boolean disabled;
+    /** The toplevel values of the unit, with the term they're specified */
+    private final Map<Value, Tree.Term> initializers = new HashMap<Value, Tree.Term>();
+    /** The toplevel values whose term we're evaluating */
+    private final Set<Value> evaluating = new HashSet<Value>();
+    private final Map<Node, Object> values = new IdentityHashMap<Node, Object>();
+    
+    public ConstantFoldingVisitor(CeylonTransformer gen) {
+        this.gen = gen;
+        this.disabled = AbstractTransformer.getDisabledOptimizations(gen.getContext())
+                .contains(Optimization.ConstantFolding);
+    }
+    
+    public void visit(Tree.CompilationUnit that) {
+        if (disabled) {
+            return;
+        }
+        for (Tree.Declaration declaration : that.getDeclarations()) {
+            if (declaration instanceof Tree.AttributeDeclaration) {
+                Tree.AttributeDeclaration attribute = (Tree.AttributeDeclaration)declaration;
+                Value value = attribute.getDeclarationModel();
+                if (value != null
+                        && value.isToplevel()
+                        && !value.isVariable()
+                        && !value.isTransient()
+                        && !value.isLate()
+                        && attribute.getSpecifierOrInitializerExpression() instanceof Tree.SpecifierExpression
+                        && !(attribute.getSpecifierOrInitializerExpression() instanceof Tree.LazySpecifierExpression)
+                        && attribute.getSpecifierOrInitializerExpression().getExpression() != null) {
+                    initializers.put(value, attribute.getSpecifierOrInitializerExpression().getExpression());
+                }
+            }
+        }
+        super.visit(that);
+        initializers.clear();
+        evaluating.clear();
+        values.clear();
+    }
+    
+    public void visit(Tree.OperatorExpression that) {
+        if (!fold(that)) {
+            super.visit(that);
+        }
+    }
+    
+    public void visit(Tree.StringTemplate that) {
+        if (!fold(that)) {
+            super.visit(that);
+        }
+    }
+    
+    public void visit(Tree.BaseMemberExpression that) {
+        if (!fold(that)) {
+            super.visit(that);
+        }
+    }
+    
+    /**
+     * Records the value of the given term if it's constant, in which case 
+     * there's no need to visit its subterms.
+     */
+    private boolean fold(Tree.Term that) {
+        Object value = evaluate(that);
+        if (value == null) {
+            return false;
+        }
+        gen.expressionGen().addConstant(that, value);
+        return true;
+    }
+    
+    /**
+     * Returns the {@code Long}, {@code Double}, {@code String} or 
+     * {@code Boolean} value of the given term, or null if it's not 
+     * constant. We never produce infinite or NaN {@code Float}s, so 
+     * comparing them is straightforward.
+     */
+    private Object evaluate(Tree.Term term) {
+        term = ExpressionTransformer.eliminateParens(term);
+        if (term == null) {
+            return null;
+        }
+        Object value = values.get(term);
+        if (value == null) {
+            value = evaluateTerm(term);
+            if (value == null
+                    || !isOfType(value, term.getTypeModel())
+                    || (value instanceof String && ((String)value).length() > MAX_STRING_LENGTH)
+                    || (value instanceof Double && (((Double)value).isNaN() || ((Double)value).isInfinite()))) {
+                value = NOT_CONSTANT;
+            }
+            values.put(term, value);
+        }
+        return value != NOT_CONSTANT ? value : null;
+    }
+    
+    private boolean isOfType(Object value, ProducedType type) {
+        if (value instanceof Long) {
+            return gen.isCeylonInteger(type);
+        } else if (value instanceof Double) {
+            return gen.isCeylonFloat(type);
+        } else if (value instanceof String) {
+            return gen.isCeylonString(type);
+        } else if (value instanceof Boolean) {
+            return gen.isCeylonBoolean(type);
+        }
+        return false;
+    }
+    
+    private Object evaluateTerm(Tree.Term term) {
+        try {
+            if (term instanceof Tree.NaturalLiteral) {
+                return ExpressionTransformer.literalValue((Tree.NaturalLiteral)term);
+            } else if (term instanceof Tree.FloatLiteral) {
+                return ExpressionTransformer.literalValue((Tree.FloatLiteral)term);
+            } else if (term instanceof Tree.NegativeOp) {
+                Long literal = ExpressionTransformer.literalValue((Tree.NegativeOp)term);
+                if (literal != null) {
+                    return literal;
+                }
+            }
+        } catch (ErroneousException e) {
+            // reported by the UnsupportedVisitor
+            return null;
+        }
+        if (term instanceof Tree.StringLiteral) {
+            return ExpressionTransformer.literalValue((Tree.StringLiteral)term);
+        } else if (term instanceof Tree.BaseMemberExpression) {
+            return evaluateReference(((Tree.BaseMemberExpression)term).getDeclaration());
+        } else if (term instanceof Tree.StringTemplate) {
+            return evaluateTemplate((Tree.StringTemplate)term);
+        } else if (term instanceof Tree.UnaryOperatorExpression) {
+            Object operand = evaluate(((Tree.UnaryOperatorExpression)term).getTerm());
+            return operand != null ? evaluateUnary((Tree.UnaryOperatorExpression)term, operand) : null;
+        } else if (term instanceof Tree.BinaryOperatorExpression) {
+            Tree.BinaryOperatorExpression op = (Tree.BinaryOperatorExpression)term;
+            Object left = evaluate(op.getLeftTerm());
+            if (left == null) {
+                return null;
+            }
+            Object right = evaluate(op.getRightTerm());
+            return right != null ? evaluateBinary(op, left, right) : null;
+        }
+        return null;
+    }
+    
+    private Object evaluateReference(Declaration declaration) {
+        if (declaration == null) {
+            return null;
+        } else if (gen.isBooleanTrue(declaration)) {
+            return Boolean.TRUE;
+        } else if (gen.isBooleanFalse(declaration)) {
+            return Boolean.FALSE;
+        }
+        Tree.Term initializer = initializers.get(declaration);
+        if (initializer == null
+                || !evaluating.add((Value)declaration)) {
+            return null;
+        }
+        try {
+            return evaluate(initializer);
+        } finally {
+            evaluating.remove(declaration);
+        }
+    }
+    
+    private Object evaluateTemplate(Tree.StringTemplate template) {
+        StringBuilder sb = new StringBuilder();
+        java.util.List<Tree.StringLiteral> literals = template.getStringLiterals();
+        java.util.List<Tree.Expression> expressions = template.getExpressions();
+        for (int ii = 0; ii < literals.size(); ii++) {
+            sb.append(ExpressionTransformer.literalValue(literals.get(ii)));
+            if (ii == expressions.size()) {
+                break;
+            }
+            Object value = evaluate(expressions.get(ii));
+            // Float.string is not Double.toString()
+            if (value == null || value instanceof Double) {
+                return null;
+            }
+            sb.append(value);
+        }
+        return sb.toString();
+    }
+    
+    private Object evaluateUnary(Tree.UnaryOperatorExpression op, Object operand) {
+        if (op instanceof Tree.NegativeOp) {
+            if (operand instanceof Long) {
+                return -(Long)operand;
+            } else if (operand instanceof Double) {
+                return -(Double)operand;
+            }
+        } else if (op instanceof Tree.PositiveOp) {
+            if (operand instanceof Long || operand instanceof Double) {
+                return operand;
+            }
+        } else if (op instanceof Tree.NotOp) {
+            if (operand instanceof Boolean) {
+                return !(Boolean)operand;
+            }
+        }
+        return null;
+    }
+    
+    private Object evaluateBinary(Tree.BinaryOperatorExpression op, Object left, Object right) {
+        if (left.getClass() != right.getClass()) {
+            return null;
+        }
+        if (left instanceof Long) {
+            long l = (Long)left;
+            long r = (Long)right;
+            if (op instanceof Tree.SumOp) {
+                return l + r;
+            } else if (op instanceof Tree.DifferenceOp) {
+                return l - r;
+            } else if (op instanceof Tree.ProductOp) {
+                return l * r;
+            } else if (op instanceof Tree.QuotientOp) {
+                return r != 0 ? l / r : null;
+            } else if (op instanceof Tree.RemainderOp) {
+                return r != 0 ? l % r : null;
+            } else if (op instanceof Tree.PowerOp) {
+                return r >= 0 ? power(l, r) : null;
+            }
+        } else if (left instanceof Double) {
+            double l = (Double)left;
+            double r = (Double)right;
+            if (op instanceof Tree.SumOp) {
+                return l + r;
+            } else if (op instanceof Tree.DifferenceOp) {
+                return l - r;
+            } else if (op instanceof Tree.ProductOp) {
+                return l * r;
+            } else if (op instanceof Tree.QuotientOp) {
+                return l / r;
+            } else if (op instanceof Tree.PowerOp) {
+                return Math.pow(l, r);
+            }
+        } else if (left instanceof String) {
+            if (op instanceof Tree.SumOp) {
+                return (String)left + (String)right;
+            }
+        } else if (left instanceof Boolean) {
+            if (op instanceof Tree.AndOp) {
+                return (Boolean)left && (Boolean)right;
+            } else if (op instanceof Tree.OrOp) {
+                return (Boolean)left || (Boolean)right;
+            }
+        }
+        if (op instanceof Tree.EqualOp) {
+            return equal(left, right);
+        } else if (op instanceof Tree.NotEqualOp) {
+            return !equal(left, right);
+        } else if (left instanceof String || left instanceof Boolean) {
+            // Strings compare by code point rather than by char, and 
+            // Booleans are not Comparable
+            return null;
+        } else if (op instanceof Tree.SmallerOp) {
+            return compare(left, right) < 0;
+        } else if (op instanceof Tree.LargerOp) {
+            return compare(left, right) > 0;
+        } else if (op instanceof Tree.SmallAsOp) {
+            return compare(left, right) <= 0;
+        } else if (op instanceof Tree.LargeAsOp) {
+            return compare(left, right) >= 0;
+        }
+        return null;
+    }
+    
+    private static boolean equal(Object left, Object right) {
+        if (left instanceof Double) {
+            // like Float.equals(): 0.0 == -0.0 and NaN != NaN
+            return ((Double)left).doubleValue() == ((Double)right).doubleValue();
+        }
+        return left.equals(right);
+    }
+    
+    private static int compare(Object left, Object right) {
+        if (left instanceof Double) {
+            double l = (Double)left;
+            double r = (Double)right;
+            return l < r ? -1 : (l > r ? 1 : 0);
+        }
+        long l = (Long)left;
+        long r = (Long)right;
+        return l < r ? -1 : (l > r ? 1 : 0);
+    }
+    
+    /** Integer power, wrapping around on overflow like Integer.power() */
+    private static long power(long base, long exponent) {
+        long result = 1;
+        while (exponent > 0) {
+            if ((exponent & 1) != 0) {
+                result *= base;
+            }
+            base *= base;
+            exponent >>= 1;
+        }
+        return result;
+    }
+}
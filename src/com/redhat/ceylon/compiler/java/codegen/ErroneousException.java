@@ -21,6 +21,6 @@ public class ErroneousException extends Exception {
     }
     
     public void logError(AbstractTransformer gen) {
-        gen.log.error(gen.position(node), "ceylon", getMessage());
+        gen.logError(gen.position(node), "ceylon", getMessage());
     }
 }
@@ -0,0 +1,241 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+
+package com.redhat.ceylon.compiler.java.codegen;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.redhat.ceylon.compiler.typechecker.model.Declaration;
+import com.redhat.ceylon.compiler.typechecker.model.Interface;
+import com.redhat.ceylon.compiler.typechecker.model.Scope;
+import com.redhat.ceylon.compiler.typechecker.model.TypeDeclaration;
+import com.redhat.ceylon.compiler.typechecker.model.Value;
+import com.redhat.ceylon.compiler.typechecker.tree.Node;
+import com.redhat.ceylon.compiler.typechecker.tree.Tree;
+import com.redhat.ceylon.compiler.typechecker.tree.Visitor;
+
+/**
+ * Visitor which finds the local values bound to a tuple or entry literal 
+ * which never escape the method body which declares them, so that 
+ * {@link StatementTransformer} can replace them with a local for each 
+ * of their elements instead of allocating a {@code Tuple} or 
+ * {@code Entry}.
+ * 
+ * A value doesn't escape if it's only used as the specified expression 
+ * of a destructuring statement whose pattern has one non-variadic 
+ * pattern per element, or, for entries, to get their {@code key} or 
+ * {@code item}.
+ */
+public class EscapeAnalysisVisitor extends Visitor {
+    
+    private final CeylonTransformer gen;
+    private final Set<Optimization> disabledOptimizations;
+    /** The values bound to a literal, with that literal */
+    private final Map<Value, Tree.Term> candidates = new LinkedHashMap<Value, Tree.Term>();
+    private final Set<Value> escaping = new HashSet<Value>();
+    /** The variable or pattern of the exists or nonempty condition we're in */
+    private Node conditionVariable;
+    
+    public EscapeAnalysisVisitor(CeylonTransformer gen) {
+        this.gen = gen;
+        this.disabledOptimizations = AbstractTransformer.getDisabledOptimizations(gen.getContext());
+    }
+    
+    public void visit(Tree.CompilationUnit that) {
+        super.visit(that);
+        for (Value value : candidates.keySet()) {
+            if (!escaping.contains(value)) {
+                gen.statementGen().addNonEscapingValue(value);
+            }
+        }
+        candidates.clear();
+        escaping.clear();
+    }
+    
+    public void visit(Tree.AttributeDeclaration that) {
+        super.visit(that);
+        Value value = that.getDeclarationModel();
+        if (value == null
+                || !Decl.isLocalNotInitializer(that)
+                || value.isVariable()
+                || value.isTransient()
+                || value.isLate()
+                || that.getSpecifierOrInitializerExpression() == null
+                || that.getSpecifierOrInitializerExpression().getExpression() == null
+                || CodegenUtil.findParamForDecl(that) != null) {
+            return;
+        }
+        Tree.Term term = ExpressionTransformer.eliminateParens(
+                that.getSpecifierOrInitializerExpression().getExpression().getTerm());
+        Optimization optimization;
+        if (getListedElementCount(term) > 0) {
+            optimization = Optimization.TupleScalarReplacement;
+        } else if (term instanceof Tree.EntryOp) {
+            optimization = Optimization.EntryScalarReplacement;
+        } else {
+            return;
+        }
+        if (!disabledOptimizations.contains(optimization)
+                && !CodegenUtil.hasCompilerAnnotationNoArgument(that, "disableOptimization")
+                && !CodegenUtil.hasCompilerAnnotationWithArgument(that, "disableOptimization", optimization.toString())) {
+            candidates.put(value, term);
+        }
+    }
+    
+    public void visit(Tree.ExistsCondition that) {
+        Node prevConditionVariable = conditionVariable;
+        conditionVariable = that.getVariable();
+        super.visit(that);
+        conditionVariable = prevConditionVariable;
+    }
+    
+    public void visit(Tree.NonemptyCondition that) {
+        Node prevConditionVariable = conditionVariable;
+        conditionVariable = that.getVariable();
+        super.visit(that);
+        conditionVariable = prevConditionVariable;
+    }
+    
+    public void visit(Tree.Destructure that) {
+        Tree.Term term = that.getSpecifierExpression() != null
+                && that.getSpecifierExpression().getExpression() != null ? 
+                ExpressionTransformer.eliminateParens(that.getSpecifierExpression().getExpression().getTerm()) : null;
+        Value value = getCandidate(term);
+        if (value != null 
+                && that != conditionVariable
+                && isDestructuredBy(value, that.getPattern())) {
+            // that's not a use which escapes
+            Node prevConditionVariable = conditionVariable;
+            conditionVariable = null;
+            if (that.getType() != null) {
+                that.getType().visit(this);
+            }
+            that.getPattern().visit(this);
+            conditionVariable = prevConditionVariable;
+        } else {
+            super.visit(that);
+        }
+    }
+    
+    public void visit(Tree.QualifiedMemberExpression that) {
+        Value value = getCandidate(that.getPrimary());
+        if (value != null
+                && that.getMemberOperator() instanceof Tree.MemberOp
+                && isEntryKeyOrItem(that.getDeclaration())) {
+            // that's not a use which escapes
+            if (that.getTypeArguments() != null) {
+                that.getTypeArguments().visit(this);
+            }
+        } else {
+            super.visit(that);
+        }
+    }
+    
+    public void visit(Tree.InvocationExpression that) {
+        if (that.getPrimary() instanceof Tree.QualifiedMemberExpression) {
+            // we only replace the key or item when they're not invoked
+            Value value = getCandidate(((Tree.QualifiedMemberExpression)that.getPrimary()).getPrimary());
+            if (value != null) {
+                escaping.add(value);
+            }
+        }
+        super.visit(that);
+    }
+    
+    public void visit(Tree.BaseMemberExpression that) {
+        super.visit(that);
+        Declaration decl = that.getDeclaration();
+        if (decl instanceof Value && candidates.containsKey(decl)) {
+            escaping.add((Value)decl);
+        }
+    }
+    
+    /**
+     * Returns the candidate value the given term refers to, unless that 
+     * reference is from a local interface, which would capture it.
+     */
+    private Value getCandidate(Tree.Term term) {
+        if (term instanceof Tree.BaseMemberExpression == false) {
+            return null;
+        }
+        Declaration decl = ((Tree.BaseMemberExpression)term).getDeclaration();
+        if (decl instanceof Value == false || !candidates.containsKey(decl)) {
+            return null;
+        }
+        Scope container = decl.getContainer();
+        for (Scope scope = term.getScope(); scope != null && scope != container; scope = scope.getContainer()) {
+            if (scope instanceof Interface) {
+                return null;
+            }
+        }
+        return (Value)decl;
+    }
+    
+    private boolean isDestructuredBy(Value value, Tree.Pattern pattern) {
+        Tree.Term term = candidates.get(value);
+        if (pattern instanceof Tree.KeyValuePattern) {
+            return term instanceof Tree.EntryOp;
+        } else if (pattern instanceof Tree.TuplePattern) {
+            java.util.List<Tree.Pattern> patterns = ((Tree.TuplePattern)pattern).getPatterns();
+            for (Tree.Pattern p : patterns) {
+                if (isVariadicVariable(p)) {
+                    return false;
+                }
+            }
+            return patterns.size() == getListedElementCount(term);
+        }
+        return false;
+    }
+    
+    static boolean isVariadicVariable(Tree.Pattern pattern) {
+        return pattern instanceof Tree.VariablePattern
+                && ((Tree.VariablePattern)pattern).getVariable().getType() instanceof Tree.SequencedType;
+    }
+    
+    private boolean isEntryKeyOrItem(Declaration decl) {
+        if (decl == null) {
+            return false;
+        }
+        TypeDeclaration entry = gen.typeFact().getEntryDeclaration();
+        Declaration refined = decl.getRefinedDeclaration();
+        return refined.equals(entry.getDirectMember("key", null, false))
+                || refined.equals(entry.getDirectMember("item", null, false));
+    }
+    
+    /**
+     * Returns the number of elements of the given tuple literal, if it 
+     * only has listed elements, or -1.
+     */
+    static int getListedElementCount(Tree.Term term) {
+        if (term instanceof Tree.Tuple == false
+                || ((Tree.Tuple)term).getSequencedArgument() == null) {
+            return -1;
+        }
+        for (Tree.PositionalArgument arg : ((Tree.Tuple)term).getSequencedArgument().getPositionalArguments()) {
+            if (arg instanceof Tree.ListedArgument == false) {
+                return -1;
+            }
+        }
+        return ((Tree.Tuple)term).getSequencedArgument().getPositionalArguments().size();
+    }
+}
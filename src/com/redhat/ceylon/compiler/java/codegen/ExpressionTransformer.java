@@ -87,6 +87,7 @@ import com.sun.tools.javac.tree.JCTree;
 import com.sun.tools.javac.tree.JCTree.JCAnnotation;
 import com.sun.tools.javac.tree.JCTree.JCBlock;
 import com.sun.tools.javac.tree.JCTree.JCExpression;
+import com.sun.tools.javac.tree.JCTree.JCExpressionStatement;
 import com.sun.tools.javac.tree.JCTree.JCLiteral;
 import com.sun.tools.javac.tree.JCTree.JCMethodDecl;
 import com.sun.tools.javac.tree.JCTree.JCMethodInvocation;
@@ -208,6 +209,8 @@ public class ExpressionTransformer extends AbstractTransformer {
         HasErrorException error = errors().getFirstExpressionErrorAndMarkBrokenness(tree.getExpression());
         if (error != null) {
             result = this.makeThrowUnresolvedCompilationError(error);
+        } else if (isUnboxedArraySet(Util.unwrapExpressionUntilTerm(tree.getExpression()))) {
+            result = transformUnboxedArraySet((Tree.InvocationExpression)Util.unwrapExpressionUntilTerm(tree.getExpression()));
         } else {
             result = at(tree).Exec(transformExpression(tree.getExpression(), BoxingStrategy.INDIFFERENT, null));
         }
@@ -215,6 +218,85 @@ public class ExpressionTransformer extends AbstractTransformer {
         return result;
     }
     
+    /**
+     * Determines whether the given term is an {@code array.set(index, element)} 
+     * on an {@code Array} of primitives or strings, which we can store 
+     * straight into the Java array it holds, without boxing the element.
+     */
+    private boolean isUnboxedArraySet(Tree.Term term) {
+        if (!hasUnboxedArrayAccess()
+                || statementGen().isOptimizationDisabled(Optimization.UnboxedArrayAccess)
+                || !(term instanceof Tree.InvocationExpression)) {
+            return false;
+        }
+        Tree.InvocationExpression invocation = (Tree.InvocationExpression)term;
+        if (!(invocation.getPrimary() instanceof Tree.QualifiedMemberExpression)
+                || invocation.getPositionalArgumentList() == null) {
+            return false;
+        }
+        Tree.QualifiedMemberExpression qme = (Tree.QualifiedMemberExpression)invocation.getPrimary();
+        ProducedType arrayType = qme.getPrimary().getTypeModel();
+        if (!(qme.getMemberOperator() instanceof Tree.MemberOp)
+                || qme.getDeclaration() == null
+                || !"set".equals(qme.getDeclaration().getName())
+                || !typeFact().getArrayDeclaration().equals(qme.getDeclaration().getContainer())
+                || arrayType == null
+                || !statementGen().isUnboxedArrayType(arrayType)) {
+            return false;
+        }
+        java.util.List<Tree.PositionalArgument> args = invocation.getPositionalArgumentList().getPositionalArguments();
+        return args.size() == 2
+                && args.get(0) instanceof Tree.ListedArgument
+                && args.get(1) instanceof Tree.ListedArgument;
+    }
+    
+    /**
+     * Transforms {@code array.set(index, element)} into a store into the 
+     * Java array held by the {@code Array}, when it's the Java array we 
+     * expect and the index is in bounds, otherwise into the usual 
+     * {@code set()}, which boxes the element and reports bad indices.
+     */
+    private JCStatement transformUnboxedArraySet(Tree.InvocationExpression invocation) {
+        Tree.QualifiedMemberExpression qme = (Tree.QualifiedMemberExpression)invocation.getPrimary();
+        ProducedType arrayType = qme.getPrimary().getTypeModel();
+        ProducedType elementType = typeFact().getArrayElementType(arrayType);
+        java.util.List<Tree.PositionalArgument> args = invocation.getPositionalArgumentList().getPositionalArguments();
+        // Note: must evaluate the receiver, then the index, then the element
+        JCExpression arrayExpr = transformExpression(qme.getPrimary(), BoxingStrategy.BOXED, arrayType);
+        JCExpression indexExpr = transformExpression(((Tree.ListedArgument)args.get(0)).getExpression(), 
+                BoxingStrategy.UNBOXED, typeFact().getIntegerDeclaration().getType());
+        JCExpression elementExpr = transformExpression(((Tree.ListedArgument)args.get(1)).getExpression(), 
+                BoxingStrategy.UNBOXED, elementType);
+        at(invocation);
+        SyntheticName array = naming.temp("array");
+        SyntheticName index = naming.temp("index");
+        SyntheticName element = naming.temp("element");
+        SyntheticName javaArray = naming.temp("javaArray");
+        // javaArray instanceof long[] && index >= 0 && index < ((long[])javaArray).length
+        JCExpression test = make().Binary(JCTree.AND, 
+                make().Binary(JCTree.AND, 
+                        make().TypeTest(javaArray.makeIdent(), make().TypeArray(makeJavaType(elementType))), 
+                        make().Binary(JCTree.GE, index.makeIdent(), make().Literal(0L))), 
+                make().Binary(JCTree.LT, index.makeIdent(), 
+                        naming.makeQualIdent(make().TypeCast(make().TypeArray(makeJavaType(elementType)), javaArray.makeIdent()), "length")));
+        // ((long[])javaArray)[(int)index] = element
+        JCStatement store = make().Exec(make().Assign(
+                make().Indexed(make().TypeCast(make().TypeArray(makeJavaType(elementType)), javaArray.makeIdent()), 
+                        make().TypeCast(syms().intType, index.makeIdent())), 
+                element.makeIdent()));
+        // array.set(index, Integer.instance(element))
+        JCStatement set = make().Exec(make().Apply(null, 
+                naming.makeQualIdent(array.makeIdent(), "set"), 
+                List.<JCExpression>of(index.makeIdent(), boxType(element.makeIdent(), elementType))));
+        return make().Block(0, List.<JCStatement>of(
+                makeVar(Flags.FINAL, array, makeJavaType(arrayType), arrayExpr),
+                makeVar(Flags.FINAL, index, make().Type(syms().longType), indexExpr),
+                makeVar(Flags.FINAL, element, makeJavaType(elementType), elementExpr),
+                makeVar(Flags.FINAL, javaArray, make().Type(syms().objectType), 
+                        make().Apply(null, naming.makeQualIdent(array.makeIdent(), "toArray"), List.<JCExpression>nil())),
+                make().If(test, store, set)));
+    }
+    
     public JCStatement transform(Tree.SpecifierStatement op) {
         // SpecifierStatement do not return any value, therefore we don't care about the type of the expressions.
         inStatement = true;
@@ -307,6 +389,9 @@ public class ExpressionTransformer extends AbstractTransformer {
         }else if(term instanceof Tree.DefaultOp){
             // special case to be able to pass expected type to else op
             result = transform((Tree.DefaultOp)term, expectedType);
+        }else if(analysis().isConstant(term)
+                && !statementGen().isOptimizationDisabled(Optimization.ConstantFolding)){
+            result = transformConstant(term, analysis().getConstant(term));
         }else{
             CeylonVisitor v = gen().visitor;
             final ListBuffer<JCTree> prevDefs = v.defs;
@@ -346,8 +431,41 @@ public class ExpressionTransformer extends AbstractTransformer {
         return result;
     }
     
+    /**
+     * Records that the given term is constant, and evaluates to the given 
+     * value.
+     * @see ConstantFoldingVisitor
+     */
+    void addConstant(Tree.Term term, Object value) {
+        analysis().addConstant(term, value);
+    }
+    
+    /**
+     * Makes the Java literal for the value of the given constant term, 
+     * boxed if the term is.
+     */
+    private JCExpression transformConstant(Tree.Term term, Object value) {
+        at(term);
+        JCExpression result;
+        if (value instanceof Boolean) {
+            result = makeBoolean((Boolean)value);
+        } else if (value instanceof String) {
+            result = ceylonLiteral((String)value);
+        } else {
+            result = make().Literal(value);
+        }
+        if (!CodegenUtil.isUnBoxed(term)) {
+            result = boxType(result, term.getTypeModel());
+        }
+        return result;
+    }
+    
     JCExpression transform(Tree.FunctionArgument functionArg, ProducedType expectedType) {
         Method model = functionArg.getDeclarationModel();
+        if (CallableBuilder.hasPrimitiveEntryPoint(this, functionArg)) {
+            JCExpression result = CallableBuilder.primitive(gen(), functionArg).build();
+            return applyErasureAndBoxing(result, model.getTypedReference().getFullType(), true, BoxingStrategy.BOXED, expectedType);
+        }
         List<JCStatement> body;
         boolean prevNoExpressionlessReturn = statementGen().noExpressionlessReturn;
         boolean prevSyntheticClassBody = expressionGen().withinSyntheticClassBody(true);
@@ -1445,11 +1563,23 @@ public class ExpressionTransformer extends AbstractTransformer {
 
     public JCExpression transformStringExpression(Tree.StringTemplate expr) {
         at(expr);
-        JCExpression builder;
-        builder = make().NewClass(null, null, naming.makeFQIdent("java","lang","StringBuilder"), List.<JCExpression>nil(), null);
-
         java.util.List<Tree.StringLiteral> literals = expr.getStringLiterals();
         java.util.List<Tree.Expression> expressions = expr.getExpressions();
+        boolean presize = !statementGen().isOptimizationDisabled(Optimization.StringTemplatePresizing);
+        if (presize) {
+            JCExpression concatenated = transformShortStringTemplate(literals, expressions);
+            if (concatenated != null) {
+                return concatenated;
+            }
+        }
+        
+        List<JCExpression> capacity = List.<JCExpression>nil();
+        if (presize) {
+            capacity = List.<JCExpression>of(make().Literal(estimateStringTemplateLength(literals, expressions)));
+        }
+        JCExpression builder;
+        builder = make().NewClass(null, null, naming.makeFQIdent("java","lang","StringBuilder"), capacity, null);
+
         for (int ii = 0; ii < literals.size(); ii += 1) {
             Tree.StringLiteral literal = literals.get(ii);
             if (!literal.getText().isEmpty()) {// ignore empty string literals
@@ -1476,6 +1606,89 @@ public class ExpressionTransformer extends AbstractTransformer {
 
         return make().Apply(null, makeSelect(builder, "toString"), List.<JCExpression>nil());
     }
+    
+    /**
+     * Transforms a template with one or two non-empty parts without a 
+     * {@code StringBuilder}: a single part is just converted to a 
+     * {@code String}, and two parts are joined with {@code concat()}. 
+     * Returns null for longer templates.
+     */
+    private JCExpression transformShortStringTemplate(java.util.List<Tree.StringLiteral> literals, 
+            java.util.List<Tree.Expression> expressions) {
+        java.util.List<Tree.Term> parts = new ArrayList<Tree.Term>(2);
+        for (int ii = 0; ii < literals.size(); ii += 1) {
+            if (!literals.get(ii).getText().isEmpty()) {
+                parts.add(literals.get(ii));
+            }
+            if (ii < expressions.size()) {
+                parts.add(expressions.get(ii));
+            }
+            if (parts.size() > 2) {
+                return null;
+            }
+        }
+        JCExpression result = null;
+        for (Tree.Term part : parts) {
+            JCExpression string = transformStringTemplatePart(part);
+            result = result == null ? string 
+                    : make().Apply(null, makeSelect(result, "concat"), List.<JCExpression>of(string));
+        }
+        return result;
+    }
+    
+    /**
+     * Transforms a literal or expression of a string template to a 
+     * {@code java.lang.String}.
+     */
+    private JCExpression transformStringTemplatePart(Tree.Term part) {
+        at(part);
+        if (part instanceof Tree.StringLiteral) {
+            return transform((Tree.StringLiteral)part);
+        }
+        ProducedType type = part.getTypeModel();
+        if (isCeylonString(type)) {
+            return transformExpression(part, BoxingStrategy.UNBOXED, null);
+        } else if (isCeylonCharacter(type)) {
+            // String.valueOf(Character.toChars(c))
+            JCExpression chars = make().Apply(null, naming.makeFQIdent("java", "lang", "Character", "toChars"), 
+                    List.<JCExpression>of(transformExpression(part, BoxingStrategy.UNBOXED, null)));
+            return make().Apply(null, naming.makeFQIdent("java", "lang", "String", "valueOf"), List.<JCExpression>of(chars));
+        } else if (isCeylonBasicType(type)) {
+            // String.valueOf() has overloads for the primitives we erase to
+            return make().Apply(null, naming.makeFQIdent("java", "lang", "String", "valueOf"), 
+                    List.<JCExpression>of(transformExpression(part, BoxingStrategy.UNBOXED, null)));
+        } else {
+            return make().Apply(null, makeSelect(transformExpression(part), "toString"), List.<JCExpression>nil());
+        }
+    }
+    
+    /**
+     * Estimates the length of the result of a string template, so that 
+     * its {@code StringBuilder} rarely has to grow.
+     */
+    private int estimateStringTemplateLength(java.util.List<Tree.StringLiteral> literals, 
+            java.util.List<Tree.Expression> expressions) {
+        int length = 0;
+        for (Tree.StringLiteral literal : literals) {
+            length += literal.getText().length();
+        }
+        for (Tree.Expression expression : expressions) {
+            ProducedType type = expression.getTypeModel();
+            if (isCeylonCharacter(type)) {
+                length += 2;
+            } else if (isCeylonBoolean(type) || isCeylonByte(type)) {
+                length += 5;
+            } else if (isCeylonInteger(type)) {
+                // enough for Long.MIN_VALUE
+                length += 20;
+            } else if (isCeylonFloat(type)) {
+                length += 24;
+            } else {
+                length += 16;
+            }
+        }
+        return length;
+    }
 
     public JCExpression transform(Tree.SequenceEnumeration value) {
         return transform(value, null);
@@ -1560,7 +1773,10 @@ public class ExpressionTransformer extends AbstractTransformer {
     }
     
     public JCExpression comprehensionAsSequential(Tree.Comprehension comprehension, ProducedType expectedType) {
-        JCExpression sequential = iterableToSequential(transformComprehension(comprehension));
+        JCExpression sequential = new ComprehensionLoopFusion(comprehension).transform();
+        if (sequential == null) {
+            sequential = iterableToSequential(transformComprehension(comprehension));
+        }
         ProducedType elementType = comprehension.getInitialComprehensionClause().getTypeModel();
         ProducedType sequentialType = typeFact().getSequentialType(elementType);
         return sequentialEmptiness(sequential, expectedType, sequentialType);
@@ -1845,6 +2061,11 @@ public class ExpressionTransformer extends AbstractTransformer {
                     op.getTypeModel());
             return make().Conditional(cond, thenpart, elsepart);
         }
+        if (CodegenUtil.isUnBoxed(op)
+                && isUnboxedArrayElementDefault(op)) {
+            return transformUnboxedArrayElementDefault(op, 
+                    (Tree.IndexExpression)Util.unwrapExpressionUntilTerm(op.getLeftTerm()));
+        }
         JCExpression left = transformExpression(op.getLeftTerm(), BoxingStrategy.BOXED, typeFact().getOptionalType(op.getTypeModel()));
         // make sure we do not insert null checks if we're going to allow testing for null
         ProducedType rightExpectedType = getOptionalTypeForInteropIfAllowed(expectedType, op.getTypeModel(), elseTerm);
@@ -1857,6 +2078,58 @@ public class ExpressionTransformer extends AbstractTransformer {
         return makeLetExpr(varName, null, typeExpr, left, cond);
     }
 
+    /**
+     * Determines whether the given {@code array[index] else default} 
+     * reads an element of an {@code Array} of primitives or strings, 
+     * which we can get straight from the Java array it holds, without 
+     * boxing it. The boxing visitor only marks it unboxed if that's the 
+     * case and the optimization isn't disabled on its statement, which 
+     * we can't check here since it runs before we transform statements.
+     */
+    boolean isUnboxedArrayElementDefault(Tree.DefaultOp op) {
+        Tree.Term left = Util.unwrapExpressionUntilTerm(op.getLeftTerm());
+        if (!hasUnboxedArrayAccess()
+                || !(left instanceof Tree.IndexExpression)
+                || !(((Tree.IndexExpression)left).getElementOrRange() instanceof Tree.Element)) {
+            return false;
+        }
+        ProducedType arrayType = ((Tree.IndexExpression)left).getPrimary().getTypeModel();
+        return arrayType != null
+                && op.getTypeModel() != null
+                && statementGen().isUnboxedArrayType(arrayType)
+                && op.getTypeModel().isExactly(typeFact().getArrayElementType(arrayType));
+    }
+    
+    /**
+     * Transforms {@code array[index] else default} into a bounds check 
+     * and a read from the Java array held by the {@code Array}, instead 
+     * of boxing the element in {@code getFromFirst()} only to unbox it.
+     */
+    private JCExpression transformUnboxedArrayElementDefault(Tree.DefaultOp op, Tree.IndexExpression access) {
+        ProducedType arrayType = access.getPrimary().getTypeModel();
+        ProducedType elementType = typeFact().getArrayElementType(arrayType);
+        Tree.Element element = (Tree.Element)access.getElementOrRange();
+        JCExpression arrayExpr = make().Apply(null, 
+                naming.makeQualIdent(transformExpression(access.getPrimary(), BoxingStrategy.BOXED, arrayType), "toArray"), 
+                List.<JCExpression>nil());
+        JCExpression indexExpr = transformExpression(element.getExpression(), 
+                BoxingStrategy.UNBOXED, typeFact().getIntegerDeclaration().getType());
+        JCExpression elseExpr = transformExpression(op.getRightTerm(), BoxingStrategy.UNBOXED, elementType);
+        at(op);
+        SyntheticName array = naming.temp("array");
+        SyntheticName index = naming.temp("index");
+        // index >= 0 && index < Util.arrayLength(array) ? Util.getIntegerArray(array, (int)index) : default
+        JCExpression inBounds = make().Binary(JCTree.AND, 
+                make().Binary(JCTree.GE, index.makeIdent(), make().Literal(0L)), 
+                make().Binary(JCTree.LT, index.makeIdent(), utilInvocation().arrayLength(array.makeIdent())));
+        JCExpression elementGet = statementGen().makeArrayIndexedAccess(array, 
+                make().TypeCast(syms().intType, index.makeIdent()), elementType, BoxingStrategy.UNBOXED);
+        return make().LetExpr(List.<JCStatement>of(
+                    makeVar(Flags.FINAL, array, make().Type(syms().objectType), arrayExpr),
+                    makeVar(Flags.FINAL, index, make().Type(syms().longType), indexExpr)), 
+                make().Conditional(inBounds, elementGet, elseExpr));
+    }
+
     public JCTree transform(Tree.ThenOp op) {
         JCExpression left = transformExpression(op.getLeftTerm(), BoxingStrategy.UNBOXED, typeFact().getBooleanDeclaration().getType());
         JCExpression right = transformExpression(op.getRightTerm(), CodegenUtil.getBoxingStrategy(op), op.getTypeModel());
@@ -4319,7 +4592,13 @@ public class ExpressionTransformer extends AbstractTransformer {
                 qualExpr = addThisOrObjectQualifierIfRequired(qualExpr, expr, decl);
 
                 if (qualExpr == null && needDollarThis(expr)) {
-                    qualExpr = makeQualifiedDollarThis((Tree.BaseMemberExpression)expr);
+                    if (isCallableOnCompanion((Tree.BaseMemberExpression)expr)) {
+                        // I$impl.this.m() rather than $this.m() which would delegate to it
+                        Interface container = (Interface)expr.getDeclaration().getContainer();
+                        qualExpr = naming.makeQualifiedThis(makeJavaType(container.getType(), JT_COMPANION | JT_RAW));
+                    } else {
+                        qualExpr = makeQualifiedDollarThis((Tree.BaseMemberExpression)expr);
+                    }
                 }
             }
             
@@ -4594,6 +4873,39 @@ public class ExpressionTransformer extends AbstractTransformer {
         return false;
     }
     
+    /**
+     * Determines whether the given reference, from the companion class of 
+     * the interface which declares the member, can use the implementation 
+     * of that companion class because the member can never be refined.
+     */
+    private boolean isCallableOnCompanion(Tree.BaseMemberExpression expr) {
+        Declaration decl = expr.getDeclaration();
+        if (!isCompanionImplementationKnown(decl)) {
+            return false;
+        }
+        if (decl instanceof Method) {
+            // method references and default arguments still go through $this
+            Method method = (Method)decl;
+            if (!isWithinInvocation()
+                    || method.getParameterLists().size() != 1) {
+                return false;
+            }
+            for (Parameter param : method.getParameterLists().get(0).getParameters()) {
+                if (param.isDefaulted() || param.isSequenced()) {
+                    return false;
+                }
+            }
+        } else if (decl instanceof Value == false) {
+            return false;
+        }
+        // we must be in the companion class itself, rather than a member type
+        Scope scope = expr.getScope();
+        while (Decl.isLocalNotInitializerScope(scope)) {
+            scope = scope.getContainer();
+        }
+        return Decl.equalScopeDecl(scope, decl.getContainer());
+    }
+    
     private boolean needDollarThis(Scope scope) {
         while (Decl.isLocalNotInitializerScope(scope)) {
             scope = scope.getContainer();
@@ -5345,6 +5657,826 @@ public class ExpressionTransformer extends AbstractTransformer {
             return itemVar;
         }
     }
+    
+    /**
+     * Transformation of a comprehension whose elements are all collected 
+     * straight away into a sequence, such as 
+     * {@code [for (x in xs) if (x > 0) x * 2]}. Rather than instantiating 
+     * the anonymous {@code Iterable} of {@link ComprehensionTransformation}
+     * and invoking its {@code sequence()}, we fuse its clauses into nested 
+     * loops which add the elements to a list:
+     * <pre>
+     *     (let
+     *         java.util.ArrayList<java.lang.Object> $list = new java.util.ArrayList<java.lang.Object>(SIZE);
+     *         LOOP {
+     *             if (CONDITIONS) {
+     *                 $list.add(EXPR);
+     *             }
+     *         }
+     *     in (Sequential)Util.sequentialCopy($reified$Element, empty, $list.toArray()))
+     * </pre>
+     * <p>Each {@code for} clause becomes a C-style loop if it iterates a 
+     * {@code Span} of {@code Integer} or {@code Character}, or an 
+     * {@code Array}, and otherwise an {@code Iterator} loop with the dynamic 
+     * array and tuple fast paths, just like the {@code for} statements they 
+     * look like. The list is presized when there's a single {@code for} 
+     * clause whose size we know without iterating it.</p>
+     * <p>We only fuse {@code if} clauses with boolean conditions.</p>
+     */
+    class ComprehensionLoopFusion {
+        private final Tree.Comprehension comp;
+        private final ProducedType elementType;
+        private final SyntheticName listName;
+        /** The statements which come before the list */
+        private final ListBuffer<JCStatement> init = ListBuffer.<JCStatement>lb();
+        /** The size of the list, when we know it */
+        private JCExpression size = null;
+        
+        ComprehensionLoopFusion(Tree.Comprehension comp) {
+            this.comp = comp;
+            // get rid of anonymous types
+            this.elementType = typeFact().denotableType(comp.getInitialComprehensionClause().getTypeModel());
+            this.listName = naming.alias("list");
+        }
+        
+        /**
+         * Returns the sequence of the elements of the comprehension, or null 
+         * if we can't fuse it.
+         */
+        public JCExpression transform() {
+            if (statementGen().isOptimizationDisabled(Optimization.ComprehensionLoopFusion)) {
+                return statementGen().expressionOptimizationFailed(comp, Optimization.ComprehensionLoopFusion, 
+                        "optimization explicitly disabled by @disableOptimization");
+            }
+            String reason = cannotFuse();
+            if (reason != null) {
+                return statementGen().expressionOptimizationFailed(comp, Optimization.ComprehensionLoopFusion, reason);
+            }
+            at(comp);
+            List<JCStatement> loop = transformClause(comp.getInitialComprehensionClause());
+            at(comp);
+            List<JCExpression> capacity = List.<JCExpression>nil();
+            if (size != null 
+                    && !statementGen().isOptimizationDisabled(Optimization.ComprehensionPresizing)) {
+                capacity = List.of(size);
+            }
+            init.append(makeVar(Flags.FINAL, listName, makeListType(), 
+                    make().NewClass(null, null, makeListType(), capacity, null)));
+            init.appendList(loop);
+            JCExpression sequential = utilInvocation().sequentialCopy(
+                    makeReifiedTypeArgument(elementType), 
+                    makeEmptyAsSequential(false), 
+                    make().Apply(null, makeQualIdent(listName.makeIdent(), "toArray"), List.<JCExpression>nil()));
+            return make().LetExpr(init.toList(), 
+                    make().TypeCast(makeJavaType(typeFact().getSequentialType(elementType), JT_RAW), sequential));
+        }
+        
+        /**
+         * Returns the reason why we can't fuse the comprehension, or null.
+         */
+        private String cannotFuse() {
+            Tree.ComprehensionClause clause = comp.getInitialComprehensionClause();
+            while (!(clause instanceof Tree.ExpressionComprehensionClause)) {
+                if (clause instanceof Tree.ForComprehensionClause) {
+                    Tree.ForIterator forIterator = ((Tree.ForComprehensionClause)clause).getForIterator();
+                    if (!(forIterator instanceof Tree.ValueIterator)
+                            && !(forIterator instanceof Tree.PatternIterator)) {
+                        return "unsupported iterator " + forIterator.getNodeType();
+                    }
+                    clause = ((Tree.ForComprehensionClause)clause).getComprehensionClause();
+                } else if (clause instanceof Tree.IfComprehensionClause) {
+                    for (Tree.Condition condition : ((Tree.IfComprehensionClause)clause).getConditionList().getConditions()) {
+                        if (!(condition instanceof Tree.BooleanCondition)) {
+                            return "if clauses with " + condition.getNodeType() + " are not fused";
+                        }
+                    }
+                    clause = ((Tree.IfComprehensionClause)clause).getComprehensionClause();
+                } else {
+                    return "unsupported comprehension clause " + clause.getNodeType();
+                }
+            }
+            return null;
+        }
+        
+        private JCExpression makeListType() {
+            return make().TypeApply(naming.makeQuotedFQIdent("java.util.ArrayList"), 
+                    List.<JCExpression>of(make().Type(syms().objectType)));
+        }
+        
+        /**
+         * Transforms the given clause and the ones it contains into the 
+         * statements of the enclosing loop.
+         */
+        private List<JCStatement> transformClause(Tree.ComprehensionClause clause) {
+            if (clause instanceof Tree.ForComprehensionClause) {
+                Tree.ForComprehensionClause forClause = (Tree.ForComprehensionClause)clause;
+                // we know the size of a single for clause
+                boolean presize = clause == comp.getInitialComprehensionClause()
+                        && forClause.getComprehensionClause() instanceof Tree.ExpressionComprehensionClause;
+                ListBuffer<JCStatement> stmts = ListBuffer.<JCStatement>lb();
+                // the iterable then goes before the list, whose size it gives
+                ListBuffer<JCStatement> setup = presize ? init : stmts;
+                List<JCStatement> body = transformClause(forClause.getComprehensionClause());
+                JCStatement loop = transformSpanLoop(forClause, setup, body, presize);
+                if (loop == null) {
+                    loop = transformArrayLoop(forClause, setup, body, presize);
+                }
+                if (loop == null) {
+                    stmts.appendList(transformIterableLoop(forClause, setup, body, presize));
+                } else {
+                    stmts.append(loop);
+                }
+                return stmts.toList();
+            } else if (clause instanceof Tree.IfComprehensionClause) {
+                Tree.IfComprehensionClause ifClause = (Tree.IfComprehensionClause)clause;
+                ProducedType booleanType = typeFact().getBooleanDeclaration().getType();
+                JCExpression test = null;
+                for (Tree.Condition condition : ifClause.getConditionList().getConditions()) {
+                    JCExpression cond = transformExpression(((Tree.BooleanCondition)condition).getExpression(), 
+                            BoxingStrategy.UNBOXED, booleanType);
+                    test = test == null ? cond : make().Binary(JCTree.AND, test, cond);
+                }
+                List<JCStatement> body = transformClause(ifClause.getComprehensionClause());
+                at(ifClause);
+                return List.<JCStatement>of(make().If(test, make().Block(0, body), null));
+            } else {
+                Tree.ExpressionComprehensionClause exprClause = (Tree.ExpressionComprehensionClause)clause;
+                JCExpression elem = transformExpression(exprClause.getExpression(), BoxingStrategy.BOXED, elementType);
+                at(exprClause);
+                return List.<JCStatement>of(make().Exec(make().Apply(null, 
+                        makeQualIdent(listName.makeIdent(), "add"), 
+                        List.<JCExpression>of(elem))));
+            }
+        }
+        
+        /**
+         * Makes a C-style loop over a {@code Span<Integer>} or 
+         * {@code Span<Character>}, like 
+         * {@link StatementTransformer.RangeOpIterationOptimization}, or 
+         * returns null.
+         */
+        private JCStatement transformSpanLoop(Tree.ForComprehensionClause clause, 
+                ListBuffer<JCStatement> stmts, List<JCStatement> body, boolean presize) {
+            if (!(clause.getForIterator() instanceof Tree.ValueIterator)) {
+                return null;
+            }
+            Tree.ValueIterator iterator = (Tree.ValueIterator)clause.getForIterator();
+            Tree.Term term = eliminateParens(iterator.getSpecifierExpression().getExpression().getTerm());
+            if (!(term instanceof Tree.RangeOp)
+                    || statementGen().isOptimizationDisabled(Optimization.SpanOpIteration)) {
+                return null;
+            }
+            Tree.RangeOp range = (Tree.RangeOp)term;
+            ProducedType type;
+            if (statementGen().isSpanOf(range, typeFact().getIntegerDeclaration().getType())) {
+                type = typeFact().getIntegerDeclaration().getType();
+            } else if (statementGen().isSpanOf(range, typeFact().getCharacterDeclaration().getType())) {
+                type = typeFact().getCharacterDeclaration().getType();
+            } else {
+                return null;
+            }
+            boolean isLong = isCeylonInteger(type);
+            at(clause);
+            // Note: Must evaluate lhs before rhs
+            SyntheticName start = naming.temp("start");
+            stmts.append(makeVar(Flags.FINAL, start, makeJavaType(type), 
+                    transformExpression(range.getLeftTerm(), BoxingStrategy.UNBOXED, type)));
+            SyntheticName end = naming.temp("end");
+            stmts.append(makeVar(Flags.FINAL, end, makeJavaType(type), 
+                    transformExpression(range.getRightTerm(), BoxingStrategy.UNBOXED, type)));
+            SyntheticName increasing = naming.temp("increasing");
+            stmts.append(makeVar(Flags.FINAL, increasing, make().Type(syms().booleanType), 
+                    make().Binary(JCTree.LE, start.makeIdent(), end.makeIdent())));
+            SyntheticName incr = naming.temp("incr");
+            stmts.append(makeVar(Flags.FINAL, incr, makeJavaType(type), 
+                    make().Conditional(increasing.makeIdent(), 
+                            isLong ? make().Literal(1L) : make().Literal(1), 
+                            isLong ? make().Literal(-1L) : make().Literal(-1))));
+            if (presize) {
+                // (int)Math.min((increasing ? end - start : start - end) + 1, Integer.MAX_VALUE)
+                JCExpression count = make().Binary(JCTree.PLUS, 
+                        make().Conditional(increasing.makeIdent(), 
+                                make().Binary(JCTree.MINUS, end.makeIdent(), start.makeIdent()), 
+                                make().Binary(JCTree.MINUS, start.makeIdent(), end.makeIdent())),
+                        isLong ? make().Literal(1L) : make().Literal(1));
+                if (isLong) {
+                    count = make().TypeCast(syms().intType, make().Apply(null, 
+                            naming.makeQuotedFQIdent("java.lang.Math.min"), 
+                            List.<JCExpression>of(count, make().Literal((long)Integer.MAX_VALUE))));
+                }
+                size = count;
+            }
+            
+            Tree.Variable variable = iterator.getVariable();
+            SyntheticName i = naming.alias(variable.getIdentifier().getText());
+            body = body.prepend(statementGen().transformVariable(variable, i.makeIdent(), type, false).build());
+            // for (long i = start; (increasing ? i - end <= 0 : i - end >= 0); i += incr) {
+            JCExpression zero = isLong ? make().Literal(0L) : make().Literal(0);
+            JCExpression cond = make().Conditional(increasing.makeIdent(), 
+                    make().Binary(JCTree.LE, make().Binary(JCTree.MINUS, i.makeIdent(), end.makeIdent()), zero), 
+                    make().Binary(JCTree.GE, make().Binary(JCTree.MINUS, i.makeIdent(), end.makeIdent()), zero));
+            return make().ForLoop(
+                    List.<JCStatement>of(makeVar(i, makeJavaType(type), start.makeIdent())), 
+                    cond, 
+                    List.<JCExpressionStatement>of(make().Exec(make().Assignop(JCTree.PLUS_ASG, i.makeIdent(), incr.makeIdent()))), 
+                    make().Block(0, body));
+        }
+        
+        /**
+         * Makes a C-style loop over an {@code Array}, like 
+         * {@link StatementTransformer.ArrayIterationOptimization}, or 
+         * returns null.
+         */
+        private JCStatement transformArrayLoop(Tree.ForComprehensionClause clause, 
+                ListBuffer<JCStatement> stmts, List<JCStatement> body, boolean presize) {
+            if (!(clause.getForIterator() instanceof Tree.ValueIterator)) {
+                return null;
+            }
+            Tree.ValueIterator iterator = (Tree.ValueIterator)clause.getForIterator();
+            Tree.Term term = eliminateParens(iterator.getSpecifierExpression().getExpression().getTerm());
+            ProducedType arrayType = term.getTypeModel();
+            ProducedType arrayElementType = typeFact().getArrayElementType(arrayType);
+            if (arrayElementType == null
+                    || statementGen().isOptimizationDisabled(Optimization.ArrayIterationStatic)) {
+                return null;
+            }
+            boolean unboxed = statementGen().isUnboxedArrayType(arrayType);
+            at(clause);
+            SyntheticName array = naming.alias("array");
+            JCExpression arrayExpr = transformExpression(term);
+            if (unboxed) {
+                arrayExpr = make().Apply(null, makeQualIdent(arrayExpr, "toArray"), List.<JCExpression>nil());
+            }
+            stmts.append(makeVar(Flags.FINAL, array, 
+                    unboxed ? make().Type(syms().objectType) : makeJavaType(typeFact().getArrayType(arrayElementType)), 
+                    arrayExpr));
+            SyntheticName length = naming.alias("length");
+            stmts.append(makeVar(Flags.FINAL, length, make().Type(syms().intType), 
+                    unboxed ? utilInvocation().arrayLength(array.makeIdent()) 
+                            : make().TypeCast(syms().intType, 
+                                    make().Apply(null, makeQualIdent(array.makeIdent(), "getSize"), List.<JCExpression>nil()))));
+            if (presize) {
+                size = length.makeIdent();
+            }
+            
+            Tree.Variable variable = iterator.getVariable();
+            BoxingStrategy boxing = CodegenUtil.getBoxingStrategy(variable.getDeclarationModel());
+            SyntheticName i = naming.alias("i");
+            JCExpression elementGet = statementGen().makeArrayIndexedAccess(array, i, arrayElementType, boxing);
+            body = body.prepend(statementGen().transformVariable(variable, elementGet, 
+                    arrayElementType, boxing == BoxingStrategy.BOXED).build());
+            // for (int i = 0; i < length; i++) {
+            return make().ForLoop(
+                    List.<JCStatement>of(makeVar(i, make().Type(syms().intType), make().Literal(0))), 
+                    make().Binary(JCTree.LT, i.makeIdent(), length.makeIdent()), 
+                    List.<JCExpressionStatement>of(make().Exec(make().Unary(JCTree.POSTINC, i.makeIdent()))), 
+                    make().Block(0, body));
+        }
+        
+        /**
+         * Makes an {@code Iterator} loop, using 
+         * {@link StatementTransformer#transformIterableIteration}.
+         */
+        private List<JCStatement> transformIterableLoop(Tree.ForComprehensionClause clause, 
+                ListBuffer<JCStatement> stmts, List<JCStatement> body, boolean presize) {
+            at(clause);
+            Tree.ForIterator forIterator = clause.getForIterator();
+            Tree.Expression specifierExpression = forIterator.getSpecifierExpression().getExpression();
+            ProducedType iterableType = specifierExpression.getTypeModel();
+            ProducedType iteratedType = typeFact().getIteratedType(iterableType);
+            
+            JCExpression containment;
+            if (presize && iterableType.getSupertype(typeFact().getSequentialDeclaration()) != null) {
+                // Sequentials know their size
+                ProducedType sequentialType = typeFact().getSequentialType(iteratedType);
+                SyntheticName sequential = naming.alias("sequential");
+                stmts.append(makeVar(Flags.FINAL, sequential, makeJavaType(sequentialType), 
+                        transformExpression(specifierExpression, BoxingStrategy.BOXED, sequentialType)));
+                size = make().TypeCast(syms().intType, 
+                        make().Apply(null, makeQualIdent(sequential.makeIdent(), "getSize"), List.<JCExpression>nil()));
+                containment = sequential.makeIdent();
+            } else {
+                ProducedType sequenceType = iterableType.getSupertype(typeFact().getIterableDeclaration());
+                ProducedType expectedIterableType = typeFact().isNonemptyIterableType(sequenceType)
+                        ? typeFact().getNonemptyIterableType(iteratedType)
+                        : typeFact().getIterableType(iteratedType);
+                containment = transformExpression(specifierExpression, BoxingStrategy.BOXED, expectedIterableType);
+            }
+            
+            SyntheticName elemName = naming.alias("elem");
+            List<JCStatement> itemDecls = List.nil();
+            SyntheticName iteratorVarName;
+            if (forIterator instanceof Tree.ValueIterator) {
+                Tree.Variable variable = ((Tree.ValueIterator) forIterator).getVariable();
+                itemDecls = itemDecls.append(statementGen().transformVariable(variable, elemName.makeIdent()).build());
+                iteratorVarName = naming.synthetic(variable.getDeclarationModel()).suffixedBy(Suffix.$iterator$).alias();
+            } else {
+                Tree.Pattern pat = ((Tree.PatternIterator)forIterator).getPattern();
+                for (VarDefBuilder vdb : statementGen().transformPattern(pat, elemName.makeIdent())) {
+                    itemDecls = itemDecls.append(vdb.build());
+                }
+                iteratorVarName = elemName.suffixedBy(Suffix.$iterator$);
+            }
+            return statementGen().transformIterableIteration(clause, 
+                    null, 
+                    elemName, 
+                    iteratorVarName, 
+                    iterableType, 
+                    iteratedType, 
+                    containment, 
+                    itemDecls, 
+                    body, 
+                    !statementGen().isOptimizationDisabled(Optimization.ArrayIterationDynamic), 
+                    !statementGen().isOptimizationDisabled(Optimization.TupleIterationDynamic));
+        }
+    }
+    
+    /**
+     * Receives the elements produced by a fused {@link IterableChainFusion}.
+     */
+    interface ElementSink {
+        /**
+         * Returns the statements consuming the given element, which is a 
+         * local of the given type, boxed or not.
+         */
+        List<JCStatement> transform(SyntheticName elem, ProducedType type, boolean boxed);
+    }
+    
+    /**
+     * Returns the {@link IterableChainFusion} of the given term if it's a 
+     * chain of {@code map()} and {@code filter()} invocations, otherwise null.
+     */
+    IterableChainFusion iterableChainFusion(Tree.Term term) {
+        IterableChainFusion chain = new IterableChainFusion(term);
+        return chain.stages.isEmpty() ? null : chain;
+    }
+    
+    /**
+     * Fuses a chain of {@code Iterable.map()} and {@code Iterable.filter()} 
+     * invocations on an {@code Array}, a span, a {@code Tuple} or a 
+     * {@code Range}, none of which can be refined by user code, with the 
+     * {@code fold()} or {@code for} consuming it into a single loop, rather than making a 
+     * lazy {@code Iterable} per stage and boxing each element through all 
+     * of them. Function arguments which are anonymous functions with an 
+     * expression get inlined, the others are evaluated once before the loop
+     * and invoked directly.
+     * <pre>
+     *     xs.map((Integer x) => x*2).filter((Integer y) => y > 2).fold(0)(plus<Integer>)
+     * </pre>
+     * becomes
+     * <pre>
+     *     final Array array = xs;
+     *     final int length = (int)array.getSize();
+     *     long result = 0L;
+     *     final Callable callable = ...;
+     *     for (int i = 0; i < length; i++) {
+     *         final long elem = Util.getIntegerArray(array, i);
+     *         final long x = elem;
+     *         final long mapped = x * 2L;
+     *         final long y = mapped;
+     *         if (y > 2L) {
+     *             result = ((Integer)callable.$call$(Integer.instance(result), Integer.instance(mapped))).longValue();
+     *         }
+     *     }
+     * </pre>
+     */
+    class IterableChainFusion {
+        
+        /**
+         * A stage of the chain
+         */
+        private class Stage {
+            final Tree.InvocationExpression invocation;
+            final boolean filter;
+            final Tree.Term function;
+            /** The type of the elements this stage produces */
+            final ProducedType type;
+            /** The evaluated function, when we don't inline it */
+            SyntheticName callable;
+            
+            Stage(Tree.InvocationExpression invocation, boolean filter, Tree.Term function, ProducedType type) {
+                this.invocation = invocation;
+                this.filter = filter;
+                this.function = function;
+                this.type = type;
+            }
+        }
+        
+        /**
+         * A local holding an element, or an argument of a function
+         */
+        private class Element {
+            final SyntheticName name;
+            final ProducedType type;
+            final boolean boxed;
+            
+            Element(SyntheticName name, ProducedType type, boolean boxed) {
+                this.name = name;
+                this.type = type;
+                this.boxed = boxed;
+            }
+            
+            JCExpression make(BoxingStrategy boxingStrategy, ProducedType expectedType) {
+                return applyErasureAndBoxing(name.makeIdent(), type, false, boxed, 
+                        boxingStrategy, expectedType, EXPR_DOWN_CAST);
+            }
+        }
+        
+        /** The stages, from the receiver outwards */
+        private final java.util.List<Stage> stages = new ArrayList<Stage>();
+        private final Tree.Term receiver;
+        private ProducedType spanType;
+        private ProducedType arrayElementType;
+        private ProducedType iteratedType;
+        private SyntheticName start;
+        private SyntheticName end;
+        private SyntheticName increasing;
+        private SyntheticName incr;
+        private SyntheticName array;
+        private SyntheticName length;
+        private SyntheticName sequential;
+        
+        private IterableChainFusion(Tree.Term chain) {
+            Tree.Term term = eliminateParens(chain);
+            Stage stage;
+            while ((stage = stage(term)) != null) {
+                stages.add(0, stage);
+                term = eliminateParens(((Tree.QualifiedMemberExpression)stage.invocation.getPrimary()).getPrimary());
+            }
+            this.receiver = term;
+        }
+        
+        private Stage stage(Tree.Term term) {
+            if (!(term instanceof Tree.InvocationExpression)) {
+                return null;
+            }
+            Tree.InvocationExpression invocation = (Tree.InvocationExpression)term;
+            if (!(invocation.getPrimary() instanceof Tree.QualifiedMemberExpression)) {
+                return null;
+            }
+            Tree.QualifiedMemberExpression qme = (Tree.QualifiedMemberExpression)invocation.getPrimary();
+            String name = qme.getIdentifier().getText();
+            if (!("map".equals(name) || "filter".equals(name))
+                    || !isIterableMember(qme)) {
+                return null;
+            }
+            Tree.Term function = getSingleArgument(invocation);
+            if (function == null) {
+                return null;
+            }
+            return new Stage(invocation, "filter".equals(name), function, 
+                    typeFact().denotableType(typeFact().getIteratedType(invocation.getTypeModel())));
+        }
+        
+        /**
+         * Returns the reason why we can't fuse the chain, or null.
+         */
+        String cannotFuse() {
+            ProducedType receiverType = receiver.getTypeModel();
+            if (receiver instanceof Tree.RangeOp
+                    && !statementGen().isOptimizationDisabled(Optimization.SpanOpIteration)
+                    && (statementGen().isSpanOf((Tree.RangeOp)receiver, typeFact().getIntegerDeclaration().getType())
+                            || statementGen().isSpanOf((Tree.RangeOp)receiver, typeFact().getCharacterDeclaration().getType()))) {
+                spanType = typeFact().getIteratedType(receiverType);
+            } else if (typeFact().getArrayElementType(receiverType) != null) {
+                arrayElementType = typeFact().getArrayElementType(receiverType);
+            } else if (isFusableSequentialClass(receiverType.getDeclaration())) {
+                iteratedType = typeFact().getIteratedType(receiverType);
+            } else {
+                return "receiver is not an Array, a span, a Tuple or a Range";
+            }
+            for (Stage stage : stages) {
+                if (!canInvoke(stage.function, 1)) {
+                    return "function argument of " 
+                            + ((Tree.QualifiedMemberExpression)stage.invocation.getPrimary()).getIdentifier().getText() 
+                            + "() is variadic";
+                }
+            }
+            return null;
+        }
+        
+        /**
+         * Whether we can either inline the given function or invoke it 
+         * with the given number of arguments.
+         */
+        boolean canInvoke(Tree.Term function, int arity) {
+            return inlinable(function, arity) != null
+                    || (!isVariadicCallable(function.getTypeModel())
+                            && !isUnknownArgumentsCallable(function.getTypeModel()));
+        }
+        
+        /**
+         * Returns the given function if it's an anonymous function with an 
+         * expression and the given number of value parameters, which we 
+         * can inline, otherwise null.
+         */
+        private Tree.FunctionArgument inlinable(Tree.Term function, int arity) {
+            function = eliminateParens(function);
+            if (!(function instanceof Tree.FunctionArgument)) {
+                return null;
+            }
+            Tree.FunctionArgument functionArg = (Tree.FunctionArgument)function;
+            if (functionArg.getExpression() == null
+                    || functionArg.getParameterLists().size() != 1
+                    || functionArg.getParameterLists().get(0).getParameters().size() != arity) {
+                return null;
+            }
+            for (Tree.Parameter parameter : functionArg.getParameterLists().get(0).getParameters()) {
+                Parameter param = parameter.getParameterModel();
+                if (!(param.getModel() instanceof Value)
+                        || param.isDefaulted()
+                        || param.isSequenced()) {
+                    return null;
+                }
+            }
+            return functionArg;
+        }
+        
+        /**
+         * Evaluates the receiver and the functions which we don't inline, 
+         * in order.
+         */
+        private void prepare(ListBuffer<JCStatement> stmts) {
+            at(receiver);
+            if (spanType != null) {
+                Tree.RangeOp range = (Tree.RangeOp)receiver;
+                boolean isLong = isCeylonInteger(spanType);
+                // Note: Must evaluate lhs before rhs
+                start = naming.temp("start");
+                stmts.append(makeVar(Flags.FINAL, start, makeJavaType(spanType), 
+                        transformExpression(range.getLeftTerm(), BoxingStrategy.UNBOXED, spanType)));
+                end = naming.temp("end");
+                stmts.append(makeVar(Flags.FINAL, end, makeJavaType(spanType), 
+                        transformExpression(range.getRightTerm(), BoxingStrategy.UNBOXED, spanType)));
+                increasing = naming.temp("increasing");
+                stmts.append(makeVar(Flags.FINAL, increasing, make().Type(syms().booleanType), 
+                        make().Binary(JCTree.LE, start.makeIdent(), end.makeIdent())));
+                incr = naming.temp("incr");
+                stmts.append(makeVar(Flags.FINAL, incr, makeJavaType(spanType), 
+                        make().Conditional(increasing.makeIdent(), 
+                                isLong ? make().Literal(1L) : make().Literal(1), 
+                                isLong ? make().Literal(-1L) : make().Literal(-1))));
+            } else if (arrayElementType != null) {
+                boolean unboxed = statementGen().isUnboxedArrayType(receiver.getTypeModel());
+                array = naming.alias("array");
+                JCExpression arrayExpr = transformExpression(receiver);
+                if (unboxed) {
+                    arrayExpr = make().Apply(null, makeQualIdent(arrayExpr, "toArray"), List.<JCExpression>nil());
+                }
+                stmts.append(makeVar(Flags.FINAL, array, 
+                        unboxed ? make().Type(syms().objectType) : makeJavaType(typeFact().getArrayType(arrayElementType)), 
+                        arrayExpr));
+                length = naming.alias("length");
+                stmts.append(makeVar(Flags.FINAL, length, make().Type(syms().intType), 
+                        unboxed ? utilInvocation().arrayLength(array.makeIdent()) 
+                                : make().TypeCast(syms().intType, 
+                                        make().Apply(null, makeQualIdent(array.makeIdent(), "getSize"), List.<JCExpression>nil()))));
+            } else {
+                ProducedType sequentialType = typeFact().getSequentialType(iteratedType);
+                sequential = naming.alias("sequential");
+                stmts.append(makeVar(Flags.FINAL, sequential, makeJavaType(sequentialType), 
+                        transformExpression(receiver, BoxingStrategy.BOXED, sequentialType)));
+            }
+            for (Stage stage : stages) {
+                stage.callable = makeCallable(stmts, stage.function, 1);
+            }
+        }
+        
+        /**
+         * Evaluates the given function into a local, unless we inline it.
+         */
+        private SyntheticName makeCallable(ListBuffer<JCStatement> stmts, Tree.Term function, int arity) {
+            if (inlinable(function, arity) != null) {
+                return null;
+            }
+            at(function);
+            SyntheticName callable = naming.alias("callable");
+            stmts.append(makeVar(Flags.FINAL, callable, 
+                    makeJavaType(typeFact().getCallableDeclaration().getType(), JT_RAW), 
+                    transformExpression(function, BoxingStrategy.BOXED, function.getTypeModel())));
+            return callable;
+        }
+        
+        /**
+         * Applies the given function to the given arguments, adding the 
+         * declarations of the parameters of an inlined function to the given 
+         * statements.
+         */
+        private JCExpression apply(ListBuffer<JCStatement> stmts, Tree.Term function, SyntheticName callable, 
+                ProducedType resultType, BoxingStrategy boxingStrategy, Element... args) {
+            if (callable != null) {
+                ListBuffer<JCExpression> boxedArgs = ListBuffer.<JCExpression>lb();
+                for (Element arg : args) {
+                    boxedArgs.append(arg.make(BoxingStrategy.BOXED, arg.type));
+                }
+                JCExpression call = make().Apply(null, 
+                        makeQualIdent(callable.makeIdent(), Naming.getCallableMethodName()), 
+                        boxedArgs.toList());
+                return applyErasureAndBoxing(call, resultType, true, true, 
+                        boxingStrategy, resultType, EXPR_DOWN_CAST);
+            }
+            Tree.FunctionArgument functionArg = inlinable(function, args.length);
+            java.util.List<Tree.Parameter> parameters = functionArg.getParameterLists().get(0).getParameters();
+            java.util.List<Substitution> substitutions = new ArrayList<Substitution>(args.length);
+            try {
+                for (int ii = 0; ii < args.length; ii++) {
+                    Value param = (Value)parameters.get(ii).getParameterModel().getModel();
+                    BoxingStrategy paramBoxing = CodegenUtil.getBoxingStrategy(param);
+                    Substitution substitution = naming.substituteAlias(param);
+                    substitutions.add(substitution);
+                    at(parameters.get(ii));
+                    stmts.append(makeVar(Flags.FINAL, substitution.substituted, 
+                            makeJavaType(param.getType(), paramBoxing == BoxingStrategy.BOXED ? JT_NO_PRIMITIVES : 0), 
+                            args[ii].make(paramBoxing, param.getType())));
+                }
+                return transformExpression(functionArg.getExpression(), boxingStrategy, resultType);
+            } finally {
+                for (Substitution substitution : substitutions) {
+                    substitution.close();
+                }
+            }
+        }
+        
+        private BoxingStrategy getElementBoxing(ProducedType type) {
+            return isCeylonBasicType(type) ? BoxingStrategy.UNBOXED : BoxingStrategy.BOXED;
+        }
+        
+        private JCExpression makeElementType(ProducedType type) {
+            return makeJavaType(type, getElementBoxing(type) == BoxingStrategy.BOXED ? JT_NO_PRIMITIVES : 0);
+        }
+        
+        /**
+         * Transforms the stages from the given one, for the given element.
+         */
+        private List<JCStatement> transformStages(int index, Element elem, ElementSink sink) {
+            if (index == stages.size()) {
+                return sink.transform(elem.name, elem.type, elem.boxed);
+            }
+            Stage stage = stages.get(index);
+            ListBuffer<JCStatement> stmts = ListBuffer.<JCStatement>lb();
+            if (stage.filter) {
+                JCExpression test = apply(stmts, stage.function, stage.callable, 
+                        typeFact().getBooleanDeclaration().getType(), BoxingStrategy.UNBOXED, elem);
+                at(stage.invocation);
+                stmts.append(make().If(test, make().Block(0, transformStages(index + 1, elem, sink)), null));
+            } else {
+                BoxingStrategy boxing = getElementBoxing(stage.type);
+                JCExpression value = apply(stmts, stage.function, stage.callable, stage.type, boxing, elem);
+                at(stage.invocation);
+                SyntheticName mapped = naming.alias("mapped");
+                stmts.append(makeVar(Flags.FINAL, mapped, makeElementType(stage.type), value));
+                stmts.appendList(transformStages(index + 1, 
+                        new Element(mapped, stage.type, boxing == BoxingStrategy.BOXED), sink));
+            }
+            return stmts.toList();
+        }
+        
+        /**
+         * Makes the loop over the receiver, passing the elements through the 
+         * stages to the given sink.
+         */
+        private List<JCStatement> makeLoop(Name label, ElementSink sink) {
+            at(receiver);
+            if (spanType != null) {
+                boolean isLong = isCeylonInteger(spanType);
+                SyntheticName i = naming.alias("i");
+                List<JCStatement> body = transformStages(0, new Element(i, spanType, false), sink);
+                at(receiver);
+                // for (long i = start; (increasing ? i - end <= 0 : i - end >= 0); i += incr) {
+                JCExpression zero = isLong ? make().Literal(0L) : make().Literal(0);
+                JCExpression cond = make().Conditional(increasing.makeIdent(), 
+                        make().Binary(JCTree.LE, make().Binary(JCTree.MINUS, i.makeIdent(), end.makeIdent()), zero), 
+                        make().Binary(JCTree.GE, make().Binary(JCTree.MINUS, i.makeIdent(), end.makeIdent()), zero));
+                return List.<JCStatement>of(makeLabelled(label, make().ForLoop(
+                        List.<JCStatement>of(makeVar(i, makeJavaType(spanType), start.makeIdent())), 
+                        cond, 
+                        List.<JCExpressionStatement>of(make().Exec(make().Assignop(JCTree.PLUS_ASG, i.makeIdent(), incr.makeIdent()))), 
+                        make().Block(0, body))));
+            } else if (arrayElementType != null) {
+                SyntheticName i = naming.alias("i");
+                SyntheticName elem = naming.alias("elem");
+                BoxingStrategy boxing = getElementBoxing(arrayElementType);
+                JCStatement elemDecl = makeVar(Flags.FINAL, elem, makeElementType(arrayElementType), 
+                        statementGen().makeArrayIndexedAccess(array, i, arrayElementType, boxing));
+                List<JCStatement> body = transformStages(0, 
+                        new Element(elem, arrayElementType, boxing == BoxingStrategy.BOXED), sink);
+                at(receiver);
+                // for (int i = 0; i < length; i++) {
+                return List.<JCStatement>of(makeLabelled(label, make().ForLoop(
+                        List.<JCStatement>of(makeVar(i, make().Type(syms().intType), make().Literal(0))), 
+                        make().Binary(JCTree.LT, i.makeIdent(), length.makeIdent()), 
+                        List.<JCExpressionStatement>of(make().Exec(make().Unary(JCTree.POSTINC, i.makeIdent()))), 
+                        make().Block(0, body.prepend(elemDecl)))));
+            } else {
+                SyntheticName iterationElem = naming.alias("elem");
+                SyntheticName elem = naming.alias("elem");
+                JCStatement elemDecl = makeVar(Flags.FINAL, elem, makeJavaType(iteratedType, JT_NO_PRIMITIVES), 
+                        applyErasureAndBoxing(iterationElem.makeIdent(), typeFact().getObjectDeclaration().getType(), false, true, 
+                                BoxingStrategy.BOXED, iteratedType, EXPR_DOWN_CAST));
+                List<JCStatement> body = transformStages(0, new Element(elem, iteratedType, true), sink);
+                at(receiver);
+                return statementGen().transformIterableIteration(receiver, 
+                        label, 
+                        iterationElem, 
+                        iterationElem.suffixedBy(Suffix.$iterator$), 
+                        typeFact().getSequentialType(iteratedType), 
+                        iteratedType, 
+                        sequential.makeIdent(), 
+                        List.<JCStatement>of(elemDecl), 
+                        body, 
+                        !statementGen().isOptimizationDisabled(Optimization.ArrayIterationDynamic), 
+                        !statementGen().isOptimizationDisabled(Optimization.TupleIterationDynamic));
+            }
+        }
+        
+        private JCStatement makeLabelled(Name label, JCStatement loop) {
+            return label != null ? make().Labelled(label, loop) : loop;
+        }
+        
+        /**
+         * Returns the statements of a {@code for} loop over the chain, with 
+         * the given label, passing its elements to the given sink.
+         */
+        List<JCStatement> transformLoop(Name label, ElementSink sink) {
+            ListBuffer<JCStatement> stmts = ListBuffer.<JCStatement>lb();
+            prepare(stmts);
+            stmts.appendList(makeLoop(label, sink));
+            return stmts.toList();
+        }
+        
+        /**
+         * Returns the fused {@code chain.fold(initial)(accumulating)}.
+         */
+        JCExpression transformFold(Tree.InvocationExpression invocation, 
+                Tree.Term initial, final Tree.Term accumulating) {
+            final ProducedType resultType = typeFact().denotableType(invocation.getTypeModel());
+            final BoxingStrategy resultBoxing = getElementBoxing(resultType);
+            ListBuffer<JCStatement> stmts = ListBuffer.<JCStatement>lb();
+            prepare(stmts);
+            at(initial);
+            final SyntheticName result = naming.alias("result");
+            stmts.append(makeVar(result, makeElementType(resultType), 
+                    transformExpression(initial, resultBoxing, resultType)));
+            final SyntheticName callable = makeCallable(stmts, accumulating, 2);
+            stmts.appendList(makeLoop(null, new ElementSink() {
+                @Override
+                public List<JCStatement> transform(SyntheticName elem, ProducedType type, boolean boxed) {
+                    ListBuffer<JCStatement> body = ListBuffer.<JCStatement>lb();
+                    JCExpression value = apply(body, accumulating, callable, resultType, resultBoxing, 
+                            new Element(result, resultType, resultBoxing == BoxingStrategy.BOXED),
+                            new Element(elem, type, boxed));
+                    at(accumulating);
+                    body.append(make().Exec(make().Assign(result.makeIdent(), value)));
+                    return body.toList();
+                }
+            }));
+            at(invocation);
+            return make().LetExpr(stmts.toList(), 
+                    applyErasureAndBoxing(result.makeIdent(), resultType, false, resultBoxing == BoxingStrategy.BOXED, 
+                            CodegenUtil.getBoxingStrategy(invocation), resultType, 0));
+        }
+    }
+    
+    /**
+     * Whether the given member expression is a plain invocation of the 
+     * given member of {@code Iterable} itself: a refinement of it could do 
+     * anything.
+     */
+    private boolean isIterableMember(Tree.QualifiedMemberExpression qme) {
+        Declaration decl = qme.getDeclaration();
+        return qme.getMemberOperator() instanceof Tree.MemberOp
+                && decl != null
+                && Decl.equal(decl, 
+                        typeFact().getIterableDeclaration().getDirectMember(qme.getIdentifier().getText(), null, false));
+    }
+    
+    /**
+     * Whether the given declaration is one of the {@code Sequential} classes 
+     * of the language module whose instances we can iterate by index in a 
+     * fused {@link IterableChainFusion}: user code can't extend them, so 
+     * their {@code map()}, {@code filter()} and {@code fold()} are 
+     * {@code Iterable}'s.
+     */
+    private boolean isFusableSequentialClass(TypeDeclaration decl) {
+        return Decl.equal(decl, typeFact().getTupleDeclaration())
+                || Decl.equal(decl, typeFact().getLanguageModuleDeclaration("Range"));
+    }
+    
+    /**
+     * Returns the term of the single listed positional argument of the given
+     * invocation, or null.
+     */
+    private Tree.Term getSingleArgument(Tree.InvocationExpression invocation) {
+        if (invocation.getPositionalArgumentList() == null) {
+            return null;
+        }
+        java.util.List<Tree.PositionalArgument> args = invocation.getPositionalArgumentList().getPositionalArguments();
+        if (args.size() != 1 
+                || !(args.get(0) instanceof Tree.ListedArgument)) {
+            return null;
+        }
+        return ((Tree.ListedArgument)args.get(0)).getExpression().getTerm();
+    }
 
     //
     // Type helper functions
@@ -5456,11 +6588,38 @@ public class ExpressionTransformer extends AbstractTransformer {
         if(ret != null)
             return ret;
         ret = checkForByteLiterals(expr);
+        if(ret != null)
+            return ret;
+        ret = checkForScalarReplacedEntry(expr);
         if(ret != null)
             return ret;
         return null;
     }
 
+    /**
+     * Gets the key or item of an entry which we didn't allocate from the 
+     * local holding it.
+     * @see EscapeAnalysisVisitor
+     */
+    private JCExpression checkForScalarReplacedEntry(Tree.QualifiedMemberExpression expr) {
+        if(expr.getPrimary() instanceof Tree.BaseMemberExpression == false
+                || expr.getMemberOperator() instanceof Tree.MemberOp == false
+                || expr.getDeclaration() == null)
+            return null;
+        Declaration member = expr.getDeclaration().getRefinedDeclaration();
+        TypeDeclaration entry = typeFact().getEntryDeclaration();
+        int index;
+        if(member.equals(entry.getDirectMember("key", null, false)))
+            index = 0;
+        else if(member.equals(entry.getDirectMember("item", null, false)))
+            index = 1;
+        else
+            return null;
+        StatementTransformer.ScalarElement element = statementGen().getScalarElement(
+                ((Tree.BaseMemberExpression)expr.getPrimary()).getDeclaration(), index);
+        return element != null ? element.name.makeIdent() : null;
+    }
+
     /*private JCExpression checkForArrayOnJavaArray(Tree.QualifiedMemberExpression expr) {
         if ("array".equals(expr.getIdentifier().getText())) {
             if (expr.getPrimary() instanceof Tree.BaseMemberExpression) {
@@ -5489,10 +6648,122 @@ public class ExpressionTransformer extends AbstractTransformer {
             return ret;
         // FIXME: temporary hack for bitwise operators literals
         ret = checkForBitwiseOperators(ce);
+        if(ret != null)
+            return ret;
+        ret = checkForIterableChainFold(ce);
+        if(ret != null)
+            return ret;
+        ret = checkForPrimitiveCallableInvocation(ce);
         if(ret != null)
             return ret;
         return null;
     }
+    
+    /**
+     * Records the given local value if it's bound to an anonymous function 
+     * with a primitive entry point, so that we can declare it as an 
+     * instance of a local class and invoke that entry point directly. 
+     * This is called by the boxing visitor, because those invocations are 
+     * unboxed.
+     */
+    void checkPrimitiveCallableValue(Tree.AttributeDeclaration decl) {
+        Value value = decl.getDeclarationModel();
+        if(value == null
+                || !Decl.isLocalNotInitializer(decl)
+                || value.isVariable()
+                || value.isTransient()
+                || value.isSpecifiedInForElse()
+                || decl.getSpecifierOrInitializerExpression() == null
+                || decl.getSpecifierOrInitializerExpression().getExpression() == null
+                || CodegenUtil.findParamForDecl(decl) != null)
+            return;
+        Tree.Term term = eliminateParens(decl.getSpecifierOrInitializerExpression().getExpression().getTerm());
+        if(term instanceof Tree.FunctionArgument
+                && CallableBuilder.hasPrimitiveEntryPoint(this, (Tree.FunctionArgument)term))
+            analysis().addPrimitiveCallableValue(value);
+    }
+    
+    boolean isPrimitiveCallableValue(Value value) {
+        return analysis().isPrimitiveCallableValue(value);
+    }
+    
+    /**
+     * Determines whether the given invocation is of a 
+     * {@linkplain #isPrimitiveCallableValue(Value) local value with a 
+     * primitive entry point}, with listed arguments.
+     */
+    boolean isPrimitiveCallableInvocation(Tree.InvocationExpression ce) {
+        Tree.Term primary = Decl.unwrapExpressionsUntilTerm(ce.getPrimary());
+        if(primary instanceof Tree.BaseMemberExpression == false
+                || !analysis().isPrimitiveCallableValue(((Tree.BaseMemberExpression)primary).getDeclaration())
+                || ce.getPositionalArgumentList() == null)
+            return false;
+        Value value = (Value)((Tree.BaseMemberExpression)primary).getDeclaration();
+        java.util.List<Tree.PositionalArgument> arguments = ce.getPositionalArgumentList().getPositionalArguments();
+        if(arguments.size() != getNumParametersOfCallable(value.getType()))
+            return false;
+        for(Tree.PositionalArgument argument : arguments){
+            if(argument instanceof Tree.ListedArgument == false)
+                return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Invokes the {@code $callprimitive$()} entry point of a local value 
+     * bound to an anonymous function directly, with unboxed arguments.
+     */
+    private JCExpression checkForPrimitiveCallableInvocation(Tree.InvocationExpression ce) {
+        if(!isPrimitiveCallableInvocation(ce))
+            return null;
+        Value value = (Value)((Tree.BaseMemberExpression)Decl.unwrapExpressionsUntilTerm(ce.getPrimary())).getDeclaration();
+        ListBuffer<JCExpression> args = ListBuffer.lb();
+        int ii = 0;
+        for(Tree.PositionalArgument argument : ce.getPositionalArgumentList().getPositionalArguments()){
+            args.append(transformExpression(((Tree.ListedArgument)argument).getExpression(), 
+                    BoxingStrategy.UNBOXED, getParameterTypeOfCallable(value.getType(), ii)));
+            ii++;
+        }
+        at(ce);
+        return make().Apply(null, 
+                naming.makeQualIdent(make().Ident(names().fromString(naming.substitute(value))), 
+                        Naming.getCallablePrimitiveMethodName()), 
+                args.toList());
+    }
+
+    /**
+     * Fuses {@code chain.fold(initial)(accumulating)} into a single loop, 
+     * when {@code chain} is an {@link IterableChainFusion}.
+     */
+    private JCExpression checkForIterableChainFold(Tree.InvocationExpression ce) {
+        // must be fold(initial)(accumulating)
+        if(ce.getPrimary() instanceof Tree.InvocationExpression == false)
+            return null;
+        Tree.InvocationExpression foldInvocation = (Tree.InvocationExpression)ce.getPrimary();
+        if(foldInvocation.getPrimary() instanceof Tree.QualifiedMemberExpression == false)
+            return null;
+        Tree.QualifiedMemberExpression qme = (Tree.QualifiedMemberExpression)foldInvocation.getPrimary();
+        if(!qme.getIdentifier().getText().equals("fold")
+                || !isIterableMember(qme))
+            return null;
+        Tree.Term initial = getSingleArgument(foldInvocation);
+        Tree.Term accumulating = getSingleArgument(ce);
+        if(initial == null || accumulating == null)
+            return null;
+        // on a chain of map() and filter()
+        IterableChainFusion chain = iterableChainFusion(qme.getPrimary());
+        if(chain == null)
+            return null;
+        if(statementGen().isOptimizationDisabled(Optimization.IterableChainFusion))
+            return statementGen().expressionOptimizationFailed(ce, Optimization.IterableChainFusion, 
+                    "optimization explicitly disabled by @disableOptimization");
+        String reason = chain.cannotFuse();
+        if(reason == null && !chain.canInvoke(accumulating, 2))
+            reason = "function argument of fold() is variadic";
+        if(reason != null)
+            return statementGen().expressionOptimizationFailed(ce, Optimization.IterableChainFusion, reason);
+        return chain.transformFold(ce, initial, accumulating);
+    }
 
     private JCExpression checkForByteLiterals(Tree.QualifiedMemberExpression expr) {
         // must be a call on Integer
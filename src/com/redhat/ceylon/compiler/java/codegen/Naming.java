@@ -96,6 +96,7 @@ public class Naming implements LocalId {
         $call$,
         $callvariadic$,
         $calltyped$,
+        $callprimitive$,
         $element$,
         $evaluate$,
         $getArray$,
@@ -108,6 +109,7 @@ public class Naming implements LocalId {
         $instance$,
         $invoke$,
         $lookup$,
+        $ordinal$,
         $refine$,
         $sb$,
         $spreadVarargs$,
@@ -1568,6 +1570,18 @@ public class Naming implements LocalId {
         return id.nextId();
     }
     
+    /**
+     * Makes the unique ids start from zero again, so that the names in a 
+     * compilation unit don't depend on the units transformed before it, 
+     * and are the same whether we transform the units in parallel or not.
+     */
+    void resetUniqueIds() {
+        UniqueId id = context.get(UniqueId.class);
+        if (id != null) {
+            id.id = 0;
+        }
+    }
+    
     String newTemp() {
         String result = prefixName(Prefix.$ceylontmp$, Long.toString(nextUniqueId()));
         return result;
@@ -2183,6 +2197,10 @@ public class Naming implements LocalId {
         return name(Unfix.$calltyped$);
     }
     
+    public static String getCallablePrimitiveMethodName() {
+        return name(Unfix.$callprimitive$);
+    }
+    
     public static String getCallableVariadicMethodName() {
         return name(Unfix.$callvariadic$);
     }
@@ -2230,6 +2248,10 @@ public class Naming implements LocalId {
         return name(Unfix.$getType$);
     }
 
+    public String getOrdinalMethodName() {
+        return name(Unfix.$ordinal$);
+    }
+
     public String getRefineTypeParametersMethodName() {
         return name(Unfix.$refine$);
     }
@@ -2237,6 +2259,14 @@ public class Naming implements LocalId {
     public String getTypeDescriptorAliasName() {
         return name(Unfix.$TypeDescriptor$);
     }
+
+    /**
+     * Returns the name of the static field caching the given constant
+     * type descriptor of a class, counting from zero.
+     */
+    public String getCachedTypeDescriptorName(int index) {
+        return name(Unfix.$TypeDescriptor$) + index;
+    }
     
     /**
      * Computes the name of the constant field on the class for an 
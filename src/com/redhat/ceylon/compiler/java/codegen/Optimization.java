@@ -14,5 +14,28 @@ public enum Optimization {
     ArrayIterationDynamic,
     TupleIterationDynamic,
     
-    PowerUnroll
+    PowerUnroll,
+    
+    TypeDescriptorCaching,
+    
+    ComprehensionLoopFusion,
+    ComprehensionPresizing,
+    
+    IterableChainFusion,
+    
+    IntegerSwitch,
+    EnumeratedObjectSwitch,
+    
+    PrimitiveCallable,
+    
+    TupleScalarReplacement,
+    EntryScalarReplacement,
+    
+    StringTemplatePresizing,
+    
+    Devirtualization,
+    
+    UnboxedArrayAccess,
+    
+    ConstantFolding
 }
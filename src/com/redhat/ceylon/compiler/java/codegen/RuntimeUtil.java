@@ -126,6 +126,13 @@ class RuntimeUtil {
                 List.<JCExpression>of(reifiedTypeArgument, rest, array));
     }
 
+    public JCExpression sequentialCopy(JCExpression reifiedTypeArgument,
+            JCExpression /*Sequential*/ rest, 
+            JCExpression /*Object[]*/array) {
+        return makeUtilInvocation(null, "sequentialCopy", 
+                List.<JCExpression>of(reifiedTypeArgument, rest, array));
+    }
+
     public JCExpression throwableMessage(JCExpression qualExpr) {
         return makeUtilInvocation(null, "throwableMessage", List.of(qualExpr));
     }
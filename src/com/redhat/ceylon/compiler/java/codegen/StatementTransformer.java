@@ -23,8 +23,8 @@ package com.redhat.ceylon.compiler.java.codegen;
 import static com.sun.tools.javac.code.Flags.FINAL;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
@@ -64,7 +64,6 @@ import com.redhat.ceylon.compiler.typechecker.tree.Visitor;
 import com.sun.tools.javac.code.Flags;
 import com.sun.tools.javac.code.Type;
 import com.sun.tools.javac.code.TypeTags;
-import com.sun.tools.javac.main.OptionName;
 import com.sun.tools.javac.tree.JCTree;
 import com.sun.tools.javac.tree.JCTree.JCAnnotation;
 import com.sun.tools.javac.tree.JCTree.JCAssign;
@@ -72,6 +71,7 @@ import com.sun.tools.javac.tree.JCTree.JCBinary;
 import com.sun.tools.javac.tree.JCTree.JCBlock;
 import com.sun.tools.javac.tree.JCTree.JCCase;
 import com.sun.tools.javac.tree.JCTree.JCCatch;
+import com.sun.tools.javac.tree.JCTree.JCClassDecl;
 import com.sun.tools.javac.tree.JCTree.JCConditional;
 import com.sun.tools.javac.tree.JCTree.JCExpression;
 import com.sun.tools.javac.tree.JCTree.JCExpressionStatement;
@@ -89,7 +89,6 @@ import com.sun.tools.javac.util.List;
 import com.sun.tools.javac.util.ListBuffer;
 import com.sun.tools.javac.util.Log;
 import com.sun.tools.javac.util.Name;
-import com.sun.tools.javac.util.Options;
 
 /**
  * This transformer deals with statements only
@@ -109,6 +108,13 @@ public class StatementTransformer extends AbstractTransformer {
 
     private final Set<Optimization> disabledOptimizations;
     
+    /** 
+     * The statement of the block we're transforming, whose compiler 
+     * annotations can disable or require the optimizations of the 
+     * expressions it contains.
+     */
+    private Tree.Statement currentStatement = null;
+    
     public static StatementTransformer getInstance(Context context) {
         StatementTransformer trans = context.get(StatementTransformer.class);
         if (trans == null) {
@@ -120,18 +126,7 @@ public class StatementTransformer extends AbstractTransformer {
 
     private StatementTransformer(Context context) {
         super(context);
-        Options options = context.get(Options.optionsKey);
-        if (options.isSet(OptionName.CEYLONDISABLEOPT)) {
-            disabledOptimizations = EnumSet.allOf(Optimization.class);
-        } else if (options.isSet(OptionName.CEYLONDISABLEOPT_CUSTOM)) {
-            disabledOptimizations = new HashSet<Optimization>();
-            for (String name : options.get(OptionName.CEYLONDISABLEOPT_CUSTOM).split(",")) {
-                disabledOptimizations.add(Optimization.valueOf(name));
-            }
-        } else {
-            disabledOptimizations = EnumSet.noneOf(Optimization.class);
-        }
-        
+        disabledOptimizations = getDisabledOptimizations(context);
     }
 
     public JCBlock transform(Tree.Block block) {
@@ -147,12 +142,14 @@ public class StatementTransformer extends AbstractTransformer {
         final ListBuffer<JCTree> prevDefs = v.defs;
         final boolean prevInInitializer = v.inInitializer;
         final ClassDefinitionBuilder prevClassBuilder = v.classBuilder;
+        final Tree.Statement prevStatement = currentStatement;
         List<JCStatement> result;
         try {
             v.defs = new ListBuffer<JCTree>();
             v.inInitializer = false;
             v.classBuilder = current();
             for (Tree.Statement stmt : block.getStatements()) {
+                currentStatement = stmt;
                 HasErrorException error = errors().getFirstErrorBlock(stmt);
                 if (error == null) {
                     stmt.visit(v);
@@ -163,6 +160,7 @@ public class StatementTransformer extends AbstractTransformer {
             }
             result = (List<JCStatement>)v.getResult().toList();
         } finally {
+            currentStatement = prevStatement;
             v.classBuilder = prevClassBuilder;
             v.inInitializer = prevInInitializer;
             v.defs = prevDefs;
@@ -1523,7 +1521,10 @@ public class StatementTransformer extends AbstractTransformer {
         
         ForStatementTransformation transformation;
         
-        transformation = stringIteration(stmt, baseIterable, step);
+        transformation = iterableChainIteration(stmt);
+        if (transformation == null) {
+            transformation = stringIteration(stmt, baseIterable, step);
+        }
         if (transformation == null) {
             transformation = arrayIteration(stmt, baseIterable, step);
         }
@@ -1619,6 +1620,60 @@ public class StatementTransformer extends AbstractTransformer {
         }
     }
     
+    /**
+     * Loop transformation when the iterated expression is a chain of 
+     * {@code map()} and {@code filter()} which can be fused into the loop 
+     * (see {@link ExpressionTransformer.IterableChainFusion}).
+     */
+    class IterableChainIterationOptimization extends ForStatementTransformation {
+        
+        private final ExpressionTransformer.IterableChainFusion chain;
+        
+        IterableChainIterationOptimization(Tree.ForStatement stmt, ExpressionTransformer.IterableChainFusion chain) {
+            super(stmt);
+            this.chain = chain;
+        }
+        
+        protected ListBuffer<JCStatement> transformForClause() {
+            return ListBuffer.<JCStatement>lb().appendList(chain.transformLoop(this.label, 
+                    new ExpressionTransformer.ElementSink() {
+                @Override
+                public List<JCStatement> transform(SyntheticName elem, ProducedType type, boolean boxed) {
+                    Tree.ControlClause prevControlClause = currentForClause;
+                    currentForClause = stmt.getForClause();
+                    List<JCStatement> stmts = transformBlock(getBlock());
+                    currentForClause = prevControlClause;
+                    return stmts.prepend(transformVariable(getElementOrKeyVariable(), 
+                            elem.makeIdent(), type, boxed).build());
+                }
+            }));
+        }
+    }
+    
+    /**
+     * Returns a {@link IterableChainIterationOptimization} if that 
+     * optimization applies to the given {@code for} statement, otherwise 
+     * null.
+     */
+    private ForStatementTransformation iterableChainIteration(Tree.ForStatement stmt) {
+        if (!(stmt.getForClause().getForIterator() instanceof Tree.ValueIterator)) {
+            return null;
+        }
+        ExpressionTransformer.IterableChainFusion chain = expressionGen().iterableChainFusion(
+                stmt.getForClause().getForIterator().getSpecifierExpression().getExpression().getTerm());
+        if (chain == null) {
+            return null;
+        }
+        if (isOptimizationDisabled(stmt, Optimization.IterableChainFusion)) {
+            return optimizationDisabled(stmt, Optimization.IterableChainFusion);
+        }
+        String reason = chain.cannotFuse();
+        if (reason != null) {
+            return optimizationFailed(stmt, Optimization.IterableChainFusion, reason);
+        }
+        return new IterableChainIterationOptimization(stmt, chain);
+    }
+    
     private ForStatementTransformation stringIteration(Tree.ForStatement stmt,
             Tree.Term baseIterable, Tree.Term step) {
         if (step == null &&
@@ -1830,12 +1885,7 @@ public class StatementTransformer extends AbstractTransformer {
                 Tree.Term baseIterable, Tree.Term step,
                 ProducedType arrayType) {
             super(stmt, baseIterable, step, typeFact().getArrayElementType(arrayType), "array");
-            unboxed = typeFact().getArrayType(typeFact().getBooleanDeclaration().getType()).isExactly(arrayType)
-                    || typeFact().getArrayType(typeFact().getByteDeclaration().getType()).isExactly(arrayType)
-                    || typeFact().getArrayType(typeFact().getIntegerDeclaration().getType()).isExactly(arrayType)
-                    || typeFact().getArrayType(typeFact().getCharacterDeclaration().getType()).isExactly(arrayType)
-                    || typeFact().getArrayType(typeFact().getFloatDeclaration().getType()).isExactly(arrayType)
-                    || typeFact().getArrayType(typeFact().getStringDeclaration().getType()).isExactly(arrayType);;
+            unboxed = isUnboxedArrayType(arrayType);
         }
         
         @Override
@@ -1872,49 +1922,8 @@ public class StatementTransformer extends AbstractTransformer {
         
         @Override
         protected JCExpression makeIndexedAccess() {
-            ProducedType gotType = null;
-            JCExpression elementGet = null;
-            boolean typeErased = false;
-            boolean exprBoxed = false;
-            if (isCeylonBoolean(elementType)) {
-                elementGet = utilInvocation().getBooleanArray(
-                        indexableName.makeIdent(), indexName.makeIdent());
-                gotType = elementType;
-            } else if (isCeylonFloat(elementType)) {
-                elementGet = utilInvocation().getFloatArray(
-                        indexableName.makeIdent(), indexName.makeIdent());
-                gotType = elementType;
-            } else if (isCeylonInteger(elementType)) {
-                elementGet = utilInvocation().getIntegerArray(
-                        indexableName.makeIdent(), indexName.makeIdent());
-                gotType = elementType;
-            } else if (isCeylonCharacter(elementType)) {
-                elementGet = utilInvocation().getCharacterArray( 
-                        indexableName.makeIdent(), indexName.makeIdent());
-                gotType = elementType;
-            } else if (isCeylonByte(elementType)) {
-                elementGet = utilInvocation().getByteArray( 
-                        indexableName.makeIdent(), indexName.makeIdent());
-                gotType = elementType;
-            } else if (isCeylonString(elementType)) {
-                elementGet = utilInvocation().getStringArray( 
-                        indexableName.makeIdent(), indexName.makeIdent());
-                gotType = elementType;
-            }
-            
-            if(elementGet == null){
-                elementGet = make().Apply(null, 
-                                          naming.makeQualIdent(indexableName.makeIdent(), "unsafeItem"),
-                                          List.<JCExpression>of(indexName.makeIdent()));
-                gotType = typeFact().getObjectDeclaration().getType();
-                typeErased = true;
-                exprBoxed = true;
-            }
-            elementGet = expressionGen().applyErasureAndBoxing(
-                    elementGet, gotType, typeErased, exprBoxed, 
-                    CodegenUtil.getBoxingStrategy(getElementOrKeyVariable().getDeclarationModel()), 
-                    elementType, 0);
-            return elementGet;
+            return makeArrayIndexedAccess(indexableName, indexName, elementType, 
+                    CodegenUtil.getBoxingStrategy(getElementOrKeyVariable().getDeclarationModel()));
         }
         
         @Override
@@ -1923,6 +1932,76 @@ public class StatementTransformer extends AbstractTransformer {
         }
     }
     
+    /**
+     * Determines whether the given {@code Array} type holds a Java array of 
+     * primitives or of {@code java.lang.String}, which we access through 
+     * its {@code toArray()} and the {@code Util} array accessors.
+     */
+    boolean isUnboxedArrayType(ProducedType arrayType) {
+        return typeFact().getArrayType(typeFact().getBooleanDeclaration().getType()).isExactly(arrayType)
+                || typeFact().getArrayType(typeFact().getByteDeclaration().getType()).isExactly(arrayType)
+                || typeFact().getArrayType(typeFact().getIntegerDeclaration().getType()).isExactly(arrayType)
+                || typeFact().getArrayType(typeFact().getCharacterDeclaration().getType()).isExactly(arrayType)
+                || typeFact().getArrayType(typeFact().getFloatDeclaration().getType()).isExactly(arrayType)
+                || typeFact().getArrayType(typeFact().getStringDeclaration().getType()).isExactly(arrayType);
+    }
+    
+    /**
+     * Makes the expression for accessing the element at the given index 
+     * of an {@code Array}, which is the {@code toArray()} of the 
+     * {@code Array} if {@link #isUnboxedArrayType(ProducedType)}, or the 
+     * {@code Array} itself.
+     */
+    JCExpression makeArrayIndexedAccess(SyntheticName indexableName, SyntheticName indexName, 
+            ProducedType elementType, BoxingStrategy boxingStrategy) {
+        return makeArrayIndexedAccess(indexableName, indexName.makeIdent(), elementType, boxingStrategy);
+    }
+    
+    JCExpression makeArrayIndexedAccess(SyntheticName indexableName, JCExpression index, 
+            ProducedType elementType, BoxingStrategy boxingStrategy) {
+        ProducedType gotType = null;
+        JCExpression elementGet = null;
+        boolean typeErased = false;
+        boolean exprBoxed = false;
+        if (isCeylonBoolean(elementType)) {
+            elementGet = utilInvocation().getBooleanArray(
+                    indexableName.makeIdent(), index);
+            gotType = elementType;
+        } else if (isCeylonFloat(elementType)) {
+            elementGet = utilInvocation().getFloatArray(
+                    indexableName.makeIdent(), index);
+            gotType = elementType;
+        } else if (isCeylonInteger(elementType)) {
+            elementGet = utilInvocation().getIntegerArray(
+                    indexableName.makeIdent(), index);
+            gotType = elementType;
+        } else if (isCeylonCharacter(elementType)) {
+            elementGet = utilInvocation().getCharacterArray( 
+                    indexableName.makeIdent(), index);
+            gotType = elementType;
+        } else if (isCeylonByte(elementType)) {
+            elementGet = utilInvocation().getByteArray( 
+                    indexableName.makeIdent(), index);
+            gotType = elementType;
+        } else if (isCeylonString(elementType)) {
+            elementGet = utilInvocation().getStringArray( 
+                    indexableName.makeIdent(), index);
+            gotType = elementType;
+        }
+        
+        if(elementGet == null){
+            elementGet = make().Apply(null, 
+                                      naming.makeQualIdent(indexableName.makeIdent(), "unsafeItem"),
+                                      List.<JCExpression>of(index));
+            gotType = typeFact().getObjectDeclaration().getType();
+            typeErased = true;
+            exprBoxed = true;
+        }
+        return expressionGen().applyErasureAndBoxing(
+                elementGet, gotType, typeErased, exprBoxed, 
+                boxingStrategy, elementType, 0);
+    }
+    
     /**
      * Optimized transformation for a {@code for} loop where the iterable is 
      * statically known to be a Java array (int[], long[] Object[] etc)
@@ -2015,7 +2094,7 @@ public class StatementTransformer extends AbstractTransformer {
         return null;
     }
 
-    private boolean isSpanOf(Tree.RangeOp range, ProducedType ofType) {
+    boolean isSpanOf(Tree.RangeOp range, ProducedType ofType) {
         ProducedType rangeType = range.getTypeModel();
         return typeFact().getSpanType(ofType).isExactly(rangeType);
     }
@@ -2039,7 +2118,7 @@ public class StatementTransformer extends AbstractTransformer {
         for (Optimization optName : optNames) {
             if (CodegenUtil.hasCompilerAnnotationWithArgument(stmt, 
                             "requireOptimization", optName.toString())) {
-                log.error(getPosition(stmt), "ceylon.optim.failed", optName, reason);
+                logError(getPosition(stmt), "ceylon.optim.failed", optName, reason);
             }
         }
         return null;
@@ -2061,7 +2140,7 @@ public class StatementTransformer extends AbstractTransformer {
      * @param optName The name of the optimization
      * @return
      */
-    private boolean isOptimizationDisabled(Tree.StatementOrArgument stmt, Optimization optName) {
+    boolean isOptimizationDisabled(Tree.StatementOrArgument stmt, Optimization optName) {
         return this.disabledOptimizations.contains(optName)
                 || CodegenUtil.hasCompilerAnnotationNoArgument(stmt, "disableOptimization")
                 || CodegenUtil.hasCompilerAnnotationWithArgument(stmt, 
@@ -2074,6 +2153,30 @@ public class StatementTransformer extends AbstractTransformer {
                         "requireOptimization", optName.toString());
     }
     
+    /**
+     * Determines whether the given optimization of an expression has been 
+     * disabled, either by the compiler options or on the statement we're 
+     * transforming.
+     */
+    boolean isOptimizationDisabled(Optimization optName) {
+        return currentStatement != null ? isOptimizationDisabled(currentStatement, optName)
+                : this.disabledOptimizations.contains(optName);
+    }
+    
+    /**
+     * Returns null but logs an error at the given expression if the 
+     * statement we're transforming requires the given optimization, which 
+     * couldn't be performed for the given reason. 
+     */
+    <T> T expressionOptimizationFailed(Node expr, Optimization optName, String reason) {
+        if (currentStatement != null 
+                && CodegenUtil.hasCompilerAnnotationWithArgument(currentStatement, 
+                        "requireOptimization", optName.toString())) {
+            logError(getPosition(expr), "ceylon.optim.failed", optName, reason);
+        }
+        return null;
+    }
+    
     /**
      * Returns a {@link RangeOpIterationOptimization} if that optimization applies
      * to the given {@code for} statement, otherwise null.
@@ -3025,6 +3128,12 @@ public class StatementTransformer extends AbstractTransformer {
                 if (error != null) {
                     return List.<JCStatement>of(this.makeThrowUnresolvedCompilationError(error));
                 }
+                if (expressionGen().isPrimitiveCallableValue(decl.getDeclarationModel())) {
+                    return transformPrimitiveCallableValue(decl, attrName);
+                }
+                if (analysis().isNonEscapingValue(decl.getDeclarationModel())) {
+                    return transformScalarReplacedValue(decl);
+                }
                 initialValue = expressionGen().transformExpression(initOrSpec.getExpression(), 
                         CodegenUtil.getBoxingStrategy(decl.getDeclarationModel()), 
                         decl.getDeclarationModel().getType());
@@ -3053,6 +3162,94 @@ public class StatementTransformer extends AbstractTransformer {
         return result.toList();
     }
 
+    /**
+     * Declares a local value bound to an anonymous function with a 
+     * primitive entry point as an instance of a local class, so that 
+     * we can invoke that entry point directly.
+     */
+    private List<JCStatement> transformPrimitiveCallableValue(Tree.AttributeDeclaration decl, Name attrName) {
+        Tree.FunctionArgument fn = (Tree.FunctionArgument)ExpressionTransformer.eliminateParens(
+                decl.getSpecifierOrInitializerExpression().getExpression().getTerm());
+        SyntheticName className = naming.alias("callable");
+        JCClassDecl classDecl = CallableBuilder.primitive(gen(), fn).buildLocalClass(className.asName());
+        JCVariableDecl varDecl = at(decl).VarDef(at(decl).Modifiers(transformLocalFieldDeclFlags(decl)), 
+                attrName, className.makeIdent(), 
+                make().NewClass(null, List.<JCExpression>nil(), className.makeIdent(), List.<JCExpression>nil(), null));
+        return List.<JCStatement>of(classDecl, varDecl);
+    }
+
+    /** The locals holding the elements of the non-escaping values we declared */
+    private final HashMap<Value, List<ScalarElement>> scalarReplacements = new HashMap<Value, List<ScalarElement>>();
+    
+    /**
+     * A local holding an element of a tuple or entry which we don't allocate.
+     */
+    static class ScalarElement {
+        final SyntheticName name;
+        final ProducedType type;
+        
+        ScalarElement(SyntheticName name, ProducedType type) {
+            this.name = name;
+            this.type = type;
+        }
+    }
+    
+    /**
+     * Records that the given local value doesn't escape, so that we replace 
+     * the tuple or entry it's bound to with a local for each element.
+     * @see EscapeAnalysisVisitor
+     */
+    void addNonEscapingValue(Value value) {
+        analysis().addNonEscapingValue(value);
+    }
+    
+    /**
+     * Returns the local holding the given element of the given value, or 
+     * null if that value isn't replaced by its elements.
+     */
+    ScalarElement getScalarElement(Declaration value, int index) {
+        List<ScalarElement> elements = scalarReplacements.get(value);
+        return elements != null ? elements.get(index) : null;
+    }
+    
+    /**
+     * Declares a local for each element of the tuple or entry literal 
+     * the given non-escaping value is bound to, instead of the value.
+     */
+    private List<JCStatement> transformScalarReplacedValue(Tree.AttributeDeclaration decl) {
+        Value value = decl.getDeclarationModel();
+        Tree.Term term = ExpressionTransformer.eliminateParens(
+                decl.getSpecifierOrInitializerExpression().getExpression().getTerm());
+        ListBuffer<JCStatement> result = ListBuffer.<JCStatement> lb();
+        List<ScalarElement> elements = List.nil();
+        for (Tree.Term element : getLiteralElements(term)) {
+            ScalarElement scalar = new ScalarElement(naming.alias(value.getName()), element.getTypeModel());
+            JCExpression init = expressionGen().transformExpression(element, BoxingStrategy.BOXED, scalar.type);
+            result.append(at(element).VarDef(make().Modifiers(FINAL), scalar.name.asName(), 
+                    makeJavaType(scalar.type, JT_NO_PRIMITIVES), init));
+            elements = elements.append(scalar);
+        }
+        scalarReplacements.put(value, elements);
+        return result.toList();
+    }
+    
+    /**
+     * Returns the elements of the given tuple literal with listed 
+     * elements, or the key and item of the given entry literal.
+     */
+    private java.util.List<Tree.Term> getLiteralElements(Tree.Term term) {
+        java.util.List<Tree.Term> result = new ArrayList<Tree.Term>();
+        if (term instanceof Tree.EntryOp) {
+            result.add(((Tree.EntryOp)term).getLeftTerm());
+            result.add(((Tree.EntryOp)term).getRightTerm());
+        } else {
+            for (Tree.PositionalArgument arg : ((Tree.Tuple)term).getSequencedArgument().getPositionalArguments()) {
+                result.add(((Tree.ListedArgument)arg).getExpression());
+            }
+        }
+        return result;
+    }
+
     JCStatement openOuterSubstitutionIfNeeded(
             Value value, ProducedType t,
             List<JCAnnotation> annots, int modifiers) {
@@ -3646,7 +3843,7 @@ public class StatementTransformer extends AbstractTransformer {
             last = make().Labelled(label, last);
             return last;
         }
-        private JCExpression transformCaseExpr(Tree.Term term) {
+        protected JCExpression transformCaseExpr(Tree.Term term) {
             if (term instanceof Tree.BaseMemberExpression
                     && ((Tree.BaseMemberExpression)term).getDeclaration() instanceof Value
                     && ((Value)((Tree.BaseMemberExpression)term).getDeclaration()).isEnumValue()) {
@@ -3657,6 +3854,125 @@ public class StatementTransformer extends AbstractTransformer {
                     BoxingStrategy.UNBOXED, term.getTypeModel());
         }
     }
+    /**
+     * Switch transformation which produces a Java {@code switch} on an 
+     * {@code int}, suitable for a switch on an {@code Integer} whose cases 
+     * are all distinct literals which fit in an {@code int}. 
+     * Selectors which don't fit in an {@code int} are mapped to a value 
+     * which isn't a case, so they reach the {@code default}.
+     */
+    class IntegerSwitch extends Switch {
+        private final int outside;
+        public IntegerSwitch(int outside) {
+            this.outside = outside;
+        }
+        @Override
+        JCStatement transformSwitch(Tree.SwitchClause switchClause, Tree.SwitchCaseList caseList,
+                String tmpVar, Tree.Term outerExpression,
+                JCExpression switchExpr) {
+            Naming.SyntheticName selectorAlias = naming.alias("sel");
+            JCExpression intSelector = make().Conditional(
+                    make().Binary(JCTree.EQ, 
+                            make().TypeCast(syms().intType, selectorAlias.makeIdent()), 
+                            selectorAlias.makeIdent()),
+                    make().TypeCast(syms().intType, selectorAlias.makeIdent()),
+                    make().Literal(outside));
+            return make().Block(0, List.of(
+                    makeVar(selectorAlias, make().Type(syms().longType), switchExpr),
+                    super.transformSwitch(switchClause, caseList, tmpVar, outerExpression, intSelector)));
+        }
+        @Override
+        protected JCExpression transformCaseExpr(Tree.Term term) {
+            return make().Literal((int)integerCaseValue(term).longValue());
+        }
+    }
+    
+    /**
+     * Switch transformation which produces a Java {@code switch} on the 
+     * {@code $ordinal$()} of the selector, suitable for a switch on a class 
+     * {@linkplain AbstractTransformer#hasEnumeratedObjectOrdinals(TypeDeclaration) enumerated with toplevel objects}
+     * whose cases are all those objects.
+     * Objects compiled before they had an {@code $ordinal$()} inherit the 
+     * one returning -1, so in that case we work out the ordinal by 
+     * comparing the selector with each case.
+     */
+    class EnumeratedObjectSwitch extends Switch {
+        @Override
+        JCStatement transformSwitch(Tree.SwitchClause switchClause, Tree.SwitchCaseList caseList,
+                String tmpVar, Tree.Term outerExpression,
+                JCExpression switchExpr) {
+            Naming.SyntheticName selectorAlias = naming.alias("sel");
+            Naming.SyntheticName ordinalAlias = naming.alias("ord");
+            java.util.List<Tree.Term> terms = new java.util.ArrayList<Tree.Term>();
+            for (Tree.CaseClause caseClause : getCaseClauses(switchClause, caseList)) {
+                if (getSingletonNullCase(caseClause) != null) {
+                    continue;
+                }
+                for (Tree.Expression expr : ((Tree.MatchCase)caseClause.getCaseItem()).getExpressionList().getExpressions()) {
+                    terms.add(ExpressionTransformer.eliminateParens(expr.getTerm()));
+                }
+            }
+            JCExpression byIdentity = make().Literal(-1);
+            for (int ii = terms.size() - 1; ii >= 0; ii--) {
+                Tree.Term term = terms.get(ii);
+                byIdentity = make().Conditional(
+                        make().Binary(JCTree.EQ, 
+                                selectorAlias.makeIdent(), 
+                                expressionGen().transformExpression(term, BoxingStrategy.BOXED, term.getTypeModel())), 
+                        make().Literal(enumeratedObjectCaseOrdinal(term)), 
+                        byIdentity);
+            }
+            return make().Block(0, List.of(
+                    makeVar(selectorAlias, makeJavaType(getSwitchExpressionType(switchClause)), switchExpr),
+                    makeVar(ordinalAlias, make().Type(syms().intType), 
+                            make().Apply(null, 
+                                    naming.makeQualIdent(selectorAlias.makeIdent(), naming.getOrdinalMethodName()), 
+                                    List.<JCExpression>nil())),
+                    make().If(make().Binary(JCTree.LT, ordinalAlias.makeIdent(), make().Literal(0)), 
+                            make().Exec(make().Assign(ordinalAlias.makeIdent(), byIdentity)), 
+                            null),
+                    super.transformSwitch(switchClause, caseList, tmpVar, outerExpression, ordinalAlias.makeIdent())));
+        }
+        @Override
+        protected JCExpression transformCaseExpr(Tree.Term term) {
+            return make().Literal(enumeratedObjectCaseOrdinal(term));
+        }
+    }
+    
+    /**
+     * Returns the value of the given {@code Integer} literal case, 
+     * or null if it's not one. 
+     */
+    private Long integerCaseValue(Tree.Term term) {
+        term = ExpressionTransformer.eliminateParens(term);
+        try {
+            if (term instanceof Tree.NaturalLiteral) {
+                return ExpressionTransformer.literalValue((Tree.NaturalLiteral)term);
+            } else if (term instanceof Tree.NegativeOp) {
+                return ExpressionTransformer.literalValue((Tree.NegativeOp)term);
+            }
+        } catch (ErroneousException e) {
+            // it will be reported elsewhere
+        }
+        return null;
+    }
+    
+    /**
+     * Returns the {@code $ordinal$()} of the object referred to by the 
+     * given case, or -1 if it's not an enumerated object. 
+     */
+    private int enumeratedObjectCaseOrdinal(Tree.Term term) {
+        term = ExpressionTransformer.eliminateParens(term);
+        if (term instanceof Tree.BaseMemberExpression
+                && ((Tree.BaseMemberExpression)term).getDeclaration() instanceof Value) {
+            Value value = (Value)((Tree.BaseMemberExpression)term).getDeclaration();
+            if (value.getTypeDeclaration() != null) {
+                return getEnumeratedObjectOrdinal(value.getTypeDeclaration());
+            }
+        }
+        return -1;
+    }
+    
     Tree.Term getSingletonNullCase(Tree.CaseClause caseClause) {
         Tree.CaseItem caseItem = caseClause.getCaseItem();
         if (caseItem instanceof Tree.MatchCase) {
@@ -3679,10 +3995,17 @@ public class StatementTransformer extends AbstractTransformer {
      * suitable for a switch whose cases include a singleton case for null
      * (i.e. <code>case (null) {}</code>, but not <code>case("foo", null) {}</code>) 
      * with the remaining cases are all String literals
-     * or all Character literals.
+     * or all Character literals, or suitable for an {@link IntegerSwitch} 
+     * or an {@link EnumeratedObjectSwitch}.
      */
     class IfNullElseSwitch extends SwitchTransformation {
         
+        private final Switch nonNullSwitch;
+        
+        public IfNullElseSwitch(Switch nonNullSwitch) {
+            this.nonNullSwitch = nonNullSwitch;
+        }
+        
         @Override
         public JCStatement transformSwitch(Node node, Tree.SwitchClause switchClause, Tree.SwitchCaseList caseList,
                 String tmpVar, Tree.Term outerExpression) {
@@ -3701,7 +4024,7 @@ public class StatementTransformer extends AbstractTransformer {
                 ident = selectorAlias.makeIdent();
             }
             // Make a switch out of the non-null cases
-            JCStatement switch_ = new Switch().transformSwitch(switchClause, caseList, tmpVar, outerExpression,
+            JCStatement switch_ = nonNullSwitch.transformSwitch(switchClause, caseList, tmpVar, outerExpression,
                     expressionGen().applyErasureAndBoxing(ident, 
                             switchDefiniteExpressionType,
                             true,
@@ -3913,16 +4236,102 @@ public class StatementTransformer extends AbstractTransformer {
                 canUseIfElseSwitch &= hasSingletonNullCase;
                 if (canUseIfElseSwitch) {
                  // yes, so use a If
-                    transformation = new IfNullElseSwitch();
+                    transformation = new IfNullElseSwitch(new Switch());
                 }
             }
         }
+        if (transformation == null
+                && BooleanUtil.isNotFalse(switchUnboxed)) {
+            // Are we switching on an Integer with int literal cases, or on 
+            // an enumerated class with its object cases, possibly plus a 
+            // singleton null case?
+            Switch switch_ = integerOrEnumeratedObjectSwitch(node, exprType, caseList);
+            if (switch_ != null) {
+                transformation = isOptional(exprType) ? new IfNullElseSwitch(switch_) : switch_;
+            }
+        }
         // The default transformation
         if (transformation == null) {
             transformation = new IfElseChain();
         }
         return transformation.transformSwitch(node, switchClause, caseList, tmpVar, outerExpression);
     }
+    
+    /**
+     * Returns an {@link IntegerSwitch} or an {@link EnumeratedObjectSwitch}
+     * if either applies to a switch on the given type with the given cases,
+     * which may include a singleton case for null if the type is optional, 
+     * otherwise null.
+     */
+    private Switch integerOrEnumeratedObjectSwitch(Node node, ProducedType exprType, Tree.SwitchCaseList caseList) {
+        ProducedType definiteType = typeFact().getDefiniteType(exprType);
+        TypeDeclaration definiteDecl = definiteType.getDeclaration();
+        final Optimization optimization;
+        if (definiteType.isExactly(typeFact().getIntegerDeclaration().getType())) {
+            optimization = Optimization.IntegerSwitch;
+        } else if (definiteDecl instanceof com.redhat.ceylon.compiler.typechecker.model.Class
+                && definiteDecl.getCaseTypes() != null
+                && !definiteDecl.getCaseTypes().isEmpty()) {
+            optimization = Optimization.EnumeratedObjectSwitch;
+        } else {
+            return null;
+        }
+        if (isOptimizationDisabled(optimization)) {
+            return expressionOptimizationFailed(node, optimization, 
+                    "optimization explicitly disabled by @disableOptimization");
+        }
+        if (optimization == Optimization.EnumeratedObjectSwitch
+                && !canSwitchOnEnumeratedObjectOrdinals(definiteDecl)) {
+            return expressionOptimizationFailed(node, optimization, 
+                    "switch is not over a class enumerated with toplevel objects which has an $ordinal$()");
+        }
+        boolean hasSingletonNullCase = false;
+        Set<Long> values = new HashSet<Long>();
+        for (Tree.CaseClause clause : caseList.getCaseClauses()) {
+            if (!(clause.getCaseItem() instanceof Tree.MatchCase)) {
+                return expressionOptimizationFailed(clause.getCaseItem(), optimization, 
+                        "case is not a value");
+            }
+            if (getSingletonNullCase(clause) != null) {
+                hasSingletonNullCase = true;
+                continue;
+            }
+            for (Tree.Expression expr : ((Tree.MatchCase)clause.getCaseItem()).getExpressionList().getExpressions()) {
+                Long value;
+                if (optimization == Optimization.IntegerSwitch) {
+                    value = integerCaseValue(expr.getTerm());
+                    if (value == null || value.longValue() != (int)value.longValue()) {
+                        return expressionOptimizationFailed(expr, optimization, 
+                                "case is not an Integer literal which fits in an int");
+                    }
+                } else {
+                    value = (long)enumeratedObjectCaseOrdinal(expr.getTerm());
+                    if (value < 0) {
+                        return expressionOptimizationFailed(expr, optimization, 
+                                "case is not one of the enumerated objects");
+                    }
+                }
+                if (!values.add(value)) {
+                    return expressionOptimizationFailed(expr, optimization, 
+                            "duplicate case");
+                }
+            }
+        }
+        if (hasSingletonNullCase != isOptional(exprType)) {
+            return expressionOptimizationFailed(node, optimization, 
+                    "switch on an optional type without a singleton case for null");
+        }
+        if (optimization == Optimization.IntegerSwitch) {
+            // the int we use for selectors which don't fit in an int
+            int outside = Integer.MIN_VALUE;
+            while (values.contains((long)outside)) {
+                outside++;
+            }
+            return new IntegerSwitch(outside);
+        } else {
+            return new EnumeratedObjectSwitch();
+        }
+    }
 
     private boolean isSwitchAllMatchCases(Tree.SwitchCaseList caseList) {
         for (Tree.CaseClause caseClause : caseList.getCaseClauses()) {
@@ -4116,10 +4525,16 @@ public class StatementTransformer extends AbstractTransformer {
     List<JCVariableDecl> transform(Tree.Destructure stmt) {
         List<JCVariableDecl> result = List.nil();
         
-        // Create temp var to hold result of expression
         Tree.Pattern pat = stmt.getPattern();
-        Naming.SyntheticName tmpVarName = naming.synthetic(pat);
         Expression destExpr = stmt.getSpecifierExpression().getExpression();
+        Tree.Term term = ExpressionTransformer.eliminateParens(destExpr.getTerm());
+        if (isScalarReplaced(term)
+                || isDestructuredLiteral(stmt, pat, term)) {
+            return transformScalarPattern(stmt, pat, term);
+        }
+        
+        // Create temp var to hold result of expression
+        Naming.SyntheticName tmpVarName = naming.synthetic(pat);
         JCExpression typeExpr = makeJavaType(destExpr.getTypeModel());
         JCExpression expr = expressionGen().transformExpression(destExpr);
         at(stmt);
@@ -4133,6 +4548,85 @@ public class StatementTransformer extends AbstractTransformer {
         return result;
     }
 
+    private boolean isScalarReplaced(Tree.Term term) {
+        return term instanceof Tree.BaseMemberExpression
+                && scalarReplacements.containsKey(((Tree.BaseMemberExpression)term).getDeclaration());
+    }
+    
+    /**
+     * Determines whether the given pattern destructures the given tuple 
+     * or entry literal element by element, in which case we don't need 
+     * to allocate it.
+     */
+    private boolean isDestructuredLiteral(Tree.Destructure stmt, Tree.Pattern pat, Tree.Term term) {
+        if (pat instanceof Tree.KeyValuePattern) {
+            return term instanceof Tree.EntryOp
+                    && !isOptimizationDisabled(stmt, Optimization.EntryScalarReplacement);
+        } else if (pat instanceof Tree.TuplePattern) {
+            java.util.List<Tree.Pattern> patterns = ((Tree.TuplePattern)pat).getPatterns();
+            for (Tree.Pattern p : patterns) {
+                if (isVariadicVariable(p)) {
+                    return false;
+                }
+            }
+            return patterns.size() == EscapeAnalysisVisitor.getListedElementCount(term)
+                    && !isOptimizationDisabled(stmt, Optimization.TupleScalarReplacement);
+        }
+        return false;
+    }
+    
+    /**
+     * Transforms the given pattern destructuring a tuple or entry which 
+     * we don't allocate: either a literal, or a value replaced by its 
+     * elements.
+     */
+    private List<JCVariableDecl> transformScalarPattern(Tree.Destructure stmt, Tree.Pattern pat, Tree.Term term) {
+        java.util.List<Tree.Pattern> patterns;
+        if (pat instanceof Tree.KeyValuePattern) {
+            patterns = Arrays.asList(((Tree.KeyValuePattern)pat).getKey(), ((Tree.KeyValuePattern)pat).getValue());
+        } else {
+            patterns = ((Tree.TuplePattern)pat).getPatterns();
+        }
+        List<JCVariableDecl> result = List.nil();
+        if (isScalarReplaced(term)) {
+            Declaration value = ((Tree.BaseMemberExpression)term).getDeclaration();
+            for (int ii = 0; ii < patterns.size(); ii++) {
+                ScalarElement element = getScalarElement(value, ii);
+                result = result.appendList(transformScalarElement(patterns.get(ii), 
+                        element.name.makeIdent(), element.type));
+            }
+        } else {
+            java.util.List<Tree.Term> elements = getLiteralElements(term);
+            for (int ii = 0; ii < patterns.size(); ii++) {
+                Tree.Pattern p = patterns.get(ii);
+                Tree.Term element = ExpressionTransformer.eliminateParens(elements.get(ii));
+                if (isDestructuredLiteral(stmt, p, element)) {
+                    result = result.appendList(transformScalarPattern(stmt, p, element));
+                } else if (p instanceof Tree.VariablePattern) {
+                    ProducedType type = element.getTypeModel();
+                    result = result.appendList(transformScalarElement(p, 
+                            expressionGen().transformExpression(element, BoxingStrategy.BOXED, type), type));
+                } else {
+                    // a nested pattern destructuring something else
+                    Naming.SyntheticName tmpVarName = naming.synthetic(p);
+                    ProducedType type = element.getTypeModel();
+                    JCExpression init = expressionGen().transformExpression(element, BoxingStrategy.BOXED, type);
+                    result = result.append(at(stmt).VarDef(make().Modifiers(FINAL), tmpVarName.asName(), 
+                            makeJavaType(type, JT_NO_PRIMITIVES), init));
+                    result = result.appendList(transformScalarElement(p, tmpVarName.makeIdent(), type));
+                }
+            }
+        }
+        return result;
+    }
+    
+    private List<JCVariableDecl> transformScalarElement(Tree.Pattern pat, JCExpression expr, ProducedType type) {
+        if (pat instanceof Tree.VariablePattern) {
+            return List.of(transformVariable(((Tree.VariablePattern)pat).getVariable(), expr, type, true).build());
+        }
+        return VarDefBuilder.buildAll(transformPattern(pat, expr));
+    }
+    
     static class VarDefBuilder {
         private final ExpressionTransformer gen;
         public final Variable var;
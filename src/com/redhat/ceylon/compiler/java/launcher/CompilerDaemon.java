@@ -0,0 +1,482 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.java.launcher;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.tools.JavaFileManager;
+
+import com.redhat.ceylon.common.FileUtil;
+import com.redhat.ceylon.compiler.java.launcher.Main.ExitState;
+import com.redhat.ceylon.compiler.java.launcher.Main.ExitState.CeylonState;
+import com.redhat.ceylon.compiler.java.tools.CeylonLog;
+import com.redhat.ceylon.compiler.java.tools.CeyloncFileManager;
+import com.redhat.ceylon.compiler.java.tools.RepositoryManagerCache;
+import com.sun.tools.javac.file.JavacFileManager;
+import com.sun.tools.javac.util.Context;
+
+/**
+ * A long-lived compiler process which runs compilations on behalf of
+ * clients connecting over a local socket.
+ *
+ * <p>Keeping the compiler in a single JVM saves the class loading and JIT
+ * warm-up of every build, and lets us keep state which does not depend on
+ * the sources being compiled, such as the input repository managers.
+ * Everything else (the javac {@link Context}, the model loader, the
+ * typechecker state) is recreated for every compilation, exactly like
+ * {@link Main#compile(String[])} does, so that two compilations never see
+ * each other's models. In particular the declarations of the modules we
+ * depend on are loaded again for every compilation, since they are bound to
+ * the javac symbol table of their context.</p>
+ *
+ * <p>The system properties a client was given with {@code -D} are set for
+ * the duration of its compilation, and restored afterwards. Only the
+ * compiler's own properties, those starting with
+ * {@link #SYSTEM_PROPERTY_PREFIX}, are accepted: the others belong to the
+ * JVM and would outlive the compilation.</p>
+ *
+ * <p>Anyone on the machine can connect to a loopback port, so the daemon
+ * only serves clients which send it the random token it writes to its
+ * token file when it starts (see {@link #getTokenFile(int)}). That file is
+ * only readable by the user running the daemon.</p>
+ *
+ * <p>Compilations are run one at a time, in the order the clients connect.</p>
+ *
+ * <p>The protocol is a simple framed one over {@link DataOutputStream}:
+ * the client sends {@link #PROTOCOL}, the token, a command ({@link #COMMAND_COMPILE}
+ * followed by the system properties and the arguments, or
+ * {@link #COMMAND_STOP}), and the daemon
+ * answers with any number of {@link #FRAME_OUTPUT} frames followed by a
+ * single {@link #FRAME_EXIT} frame.</p>
+ */
+public class CompilerDaemon {
+
+    static final String PROTOCOL = "ceylon-compiler-daemon/3";
+
+    /** The prefix of the system properties a client may set */
+    public static final String SYSTEM_PROPERTY_PREFIX = "ceylon.";
+
+    static final byte COMMAND_COMPILE = 'C';
+    static final byte COMMAND_STOP = 'S';
+
+    static final byte FRAME_OUTPUT = 'O';
+    static final byte FRAME_EXIT = 'X';
+
+    /** writeUTF() is limited to 64K bytes, and a char can take 3 */
+    private static final int MAX_CHUNK = 16 * 1024;
+
+    private final int port;
+    private final File tokenFile;
+    private String token;
+    private final RepositoryManagerCache repositoryManagers = new RepositoryManagerCache();
+    private final PrintWriter log;
+    private volatile boolean stopped;
+    private int compilations;
+
+    public CompilerDaemon(int port, PrintWriter log) {
+        this(port, getTokenFile(port), log);
+    }
+
+    /**
+     * @param tokenFile where we write the token clients must send us
+     */
+    public CompilerDaemon(int port, File tokenFile, PrintWriter log) {
+        this.port = port;
+        this.tokenFile = tokenFile;
+        this.log = log;
+    }
+
+    /**
+     * Returns the file where the daemon listening on the given port writes
+     * its token, in the user's Ceylon folder.
+     */
+    public static File getTokenFile(int port) {
+        return new File(new File(FileUtil.getDefaultUserDir(), "daemon"), "compiler-"+port+".token");
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: CompilerDaemon <port>");
+            System.exit(Main.EXIT_CMDERR);
+        }
+        new CompilerDaemon(Integer.parseInt(args[0]), new PrintWriter(System.err, true)).serve();
+    }
+
+    /**
+     * Accepts and runs compilations until a client asks us to stop.
+     */
+    public void serve() throws IOException {
+        ServerSocket server = new ServerSocket(port, 50, InetAddress.getByName(null));
+        try {
+            // only once we own the port, so we never replace the token of another daemon
+            token = writeToken(tokenFile);
+            log.println("Ceylon compiler daemon listening on port "+server.getLocalPort());
+            while (!stopped) {
+                Socket socket = server.accept();
+                try {
+                    handle(socket);
+                } catch (IOException e) {
+                    // the client went away, that's no reason to stop
+                    log.println("Ceylon compiler daemon: "+e);
+                } finally {
+                    socket.close();
+                }
+            }
+        } finally {
+            server.close();
+            if (token != null) {
+                tokenFile.delete();
+            }
+            repositoryManagers.clear();
+        }
+    }
+
+    /**
+     * Writes a new random token to the given file, which only its owner
+     * can read.
+     */
+    private static String writeToken(File tokenFile) throws IOException {
+        byte[] bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder token = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            token.append(Character.forDigit((b >> 4) & 0xf, 16));
+            token.append(Character.forDigit(b & 0xf, 16));
+        }
+        File dir = tokenFile.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create folder "+dir);
+        }
+        Path path = tokenFile.toPath();
+        // create it anew with the right permissions before writing the token
+        Files.deleteIfExists(path);
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } else {
+            Files.createFile(path);
+            if (!tokenFile.setReadable(false, false) || !tokenFile.setReadable(true, true)
+                    || !tokenFile.setWritable(false, false) || !tokenFile.setWritable(true, true)) {
+                tokenFile.delete();
+                throw new IOException("Cannot restrict the permissions of "+tokenFile);
+            }
+        }
+        Files.write(path, token.toString().getBytes("UTF-8"));
+        return token.toString();
+    }
+
+    private static String readToken(File tokenFile) throws IOException {
+        if (!tokenFile.isFile()) {
+            throw new IOException("Missing compiler daemon token file "+tokenFile+": is the daemon running?");
+        }
+        return new String(Files.readAllBytes(tokenFile.toPath()), "UTF-8").trim();
+    }
+
+    private void handle(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        String protocol = in.readUTF();
+        if (!PROTOCOL.equals(protocol)) {
+            throw new IOException("Unsupported protocol: "+protocol);
+        }
+        String clientToken = in.readUTF();
+        if (!MessageDigest.isEqual(token.getBytes("UTF-8"), clientToken.getBytes("UTF-8"))) {
+            throw new IOException("Refused a client with an invalid token");
+        }
+        byte command = in.readByte();
+        if (command == COMMAND_STOP) {
+            stopped = true;
+            writeExit(out, ExitState.ok());
+            return;
+        }
+        if (command != COMMAND_COMPILE) {
+            throw new IOException("Unknown command: "+command);
+        }
+        Map<String, String> systemProperties = new HashMap<String, String>();
+        for (int i = in.readInt(); i > 0; i--) {
+            String key = in.readUTF();
+            systemProperties.put(key, in.readUTF());
+        }
+        String[] args = new String[in.readInt()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = in.readUTF();
+        }
+        PrintWriter compilerOut = new PrintWriter(new FrameWriter(out), true);
+        for (String key : systemProperties.keySet()) {
+            if (!key.startsWith(SYSTEM_PROPERTY_PREFIX)) {
+                compilerOut.println("ceylon compile: the compiler daemon only accepts system properties starting with "
+                        +SYSTEM_PROPERTY_PREFIX+": "+key);
+                compilerOut.flush();
+                writeExit(out, ExitState.cmderror());
+                return;
+            }
+        }
+        ExitState exitState = compile(systemProperties, args, compilerOut);
+        compilerOut.flush();
+        writeExit(out, exitState);
+    }
+
+    /**
+     * Runs a single compilation in a fresh {@link Context} which only
+     * shares the state we keep across compilations, with the given system
+     * properties set.
+     */
+    ExitState compile(Map<String, String> systemProperties, String[] args, PrintWriter out) {
+        Map<String, String> oldSystemProperties = new HashMap<String, String>();
+        for (Map.Entry<String, String> property : systemProperties.entrySet()) {
+            oldSystemProperties.put(property.getKey(), System.setProperty(property.getKey(), property.getValue()));
+        }
+        try {
+            return compile(args, out);
+        } finally {
+            for (Map.Entry<String, String> property : oldSystemProperties.entrySet()) {
+                if (property.getValue() != null)
+                    System.setProperty(property.getKey(), property.getValue());
+                else
+                    System.clearProperty(property.getKey());
+            }
+        }
+    }
+
+    /**
+     * Runs a single compilation in a fresh {@link Context} which only
+     * shares the state we keep across compilations.
+     */
+    ExitState compile(String[] args, PrintWriter out) {
+        compilations++;
+        Context context = new Context();
+        repositoryManagers.preRegister(context);
+        CeyloncFileManager.preRegister(context);
+        CeylonLog.preRegister(context);
+        Main compiler = new Main("ceylon compile", out);
+        try {
+            compiler.compile(args, context);
+        } finally {
+            JavaFileManager fileManager = context.get(JavaFileManager.class);
+            if (fileManager instanceof JavacFileManager) {
+                try {
+                    ((JavacFileManager) fileManager).close();
+                } catch (IOException e) {
+                    // we did our best
+                }
+            }
+        }
+        return compiler.exitState != null ? compiler.exitState : ExitState.cmderror();
+    }
+
+    /**
+     * The number of compilations this daemon has run so far.
+     */
+    public int getCompilations() {
+        return compilations;
+    }
+
+    /**
+     * The repository managers we keep across compilations.
+     */
+    RepositoryManagerCache getRepositoryManagers() {
+        return repositoryManagers;
+    }
+
+    private static void writeExit(DataOutputStream out, ExitState exitState) throws IOException {
+        out.writeByte(FRAME_EXIT);
+        out.writeInt(exitState.javacExitCode);
+        out.writeUTF(exitState.ceylonState.name());
+        out.writeInt(exitState.errorCount);
+        out.writeInt(exitState.ceylonCodegenExceptionCount);
+        out.writeInt(exitState.ceylonCodegenErroneousCount);
+        out.writeInt(exitState.ceylonCodegenGarbageCount);
+        out.writeInt(exitState.nonCeylonErrorCount);
+        Throwable ex = exitState.abortingException;
+        out.writeBoolean(ex != null);
+        if (ex != null) {
+            out.writeUTF(truncate(String.valueOf(ex)));
+        }
+        out.flush();
+    }
+
+    private static String truncate(String s) {
+        return s.length() > MAX_CHUNK ? s.substring(0, MAX_CHUNK) : s;
+    }
+
+    /**
+     * Forwards the compiler output to the client as {@link #FRAME_OUTPUT}
+     * frames.
+     */
+    private static class FrameWriter extends Writer {
+        private final DataOutputStream out;
+
+        FrameWriter(DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            while (len > 0) {
+                int chunk = Math.min(len, MAX_CHUNK);
+                out.writeByte(FRAME_OUTPUT);
+                out.writeUTF(new String(cbuf, off, chunk));
+                off += chunk;
+                len -= chunk;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    /**
+     * Runs a compilation in the daemon listening on the given local port,
+     * copying its output to the given writer.
+     * @return The exit state of the remote compilation
+     * @throws IOException if we can't talk to the daemon
+     */
+    public static ExitState compile(int port, String[] args, PrintWriter out) throws IOException {
+        return compile(port, Collections.<String, String>emptyMap(), args, out);
+    }
+
+    /**
+     * Runs a compilation in the daemon listening on the given local port,
+     * with the given system properties set, copying its output to the given
+     * writer.
+     * @return The exit state of the remote compilation
+     * @throws IOException if we can't talk to the daemon
+     */
+    public static ExitState compile(int port, Map<String, String> systemProperties, String[] args, PrintWriter out) throws IOException {
+        return compile(port, getTokenFile(port), systemProperties, args, out);
+    }
+
+    /**
+     * Runs a compilation in the daemon listening on the given local port,
+     * which wrote its token to the given file, with the given system
+     * properties set, copying its output to the given writer.
+     * @return The exit state of the remote compilation
+     * @throws IOException if we can't talk to the daemon
+     */
+    public static ExitState compile(int port, File tokenFile, Map<String, String> systemProperties, String[] args, PrintWriter out) throws IOException {
+        String token = readToken(tokenFile);
+        Socket socket = new Socket(InetAddress.getByName(null), port);
+        try {
+            DataOutputStream request = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            request.writeUTF(PROTOCOL);
+            request.writeUTF(token);
+            request.writeByte(COMMAND_COMPILE);
+            request.writeInt(systemProperties.size());
+            for (Map.Entry<String, String> property : systemProperties.entrySet()) {
+                request.writeUTF(property.getKey());
+                request.writeUTF(property.getValue());
+            }
+            request.writeInt(args.length);
+            for (String arg : args) {
+                request.writeUTF(arg);
+            }
+            request.flush();
+            return readResponse(socket, out);
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Asks the daemon listening on the given local port to stop once it
+     * is done with the compilations already queued.
+     * @throws IOException if we can't talk to the daemon
+     */
+    public static void stop(int port) throws IOException {
+        stop(port, getTokenFile(port));
+    }
+
+    /**
+     * Asks the daemon listening on the given local port, which wrote its
+     * token to the given file, to stop once it is done with the
+     * compilations already queued.
+     * @throws IOException if we can't talk to the daemon
+     */
+    public static void stop(int port, File tokenFile) throws IOException {
+        String token = readToken(tokenFile);
+        Socket socket = new Socket(InetAddress.getByName(null), port);
+        try {
+            DataOutputStream request = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            request.writeUTF(PROTOCOL);
+            request.writeUTF(token);
+            request.writeByte(COMMAND_STOP);
+            request.flush();
+            readResponse(socket, null);
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static ExitState readResponse(Socket socket, PrintWriter out) throws IOException {
+        DataInputStream response = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        while (true) {
+            byte frame = response.readByte();
+            if (frame == FRAME_OUTPUT) {
+                String text = response.readUTF();
+                if (out != null) {
+                    out.print(text);
+                    out.flush();
+                }
+            } else if (frame == FRAME_EXIT) {
+                int javacExitCode = response.readInt();
+                CeylonState ceylonState = CeylonState.valueOf(response.readUTF());
+                int errorCount = response.readInt();
+                int codegenExceptionCount = response.readInt();
+                int codegenErroneousCount = response.readInt();
+                int codegenGarbageCount = response.readInt();
+                int nonCeylonErrorCount = response.readInt();
+                Throwable ex = null;
+                if (response.readBoolean()) {
+                    ex = new RuntimeException(response.readUTF());
+                }
+                return ExitState.remote(javacExitCode, ceylonState, errorCount, ex,
+                        codegenExceptionCount, codegenErroneousCount,
+                        codegenGarbageCount, nonCeylonErrorCount);
+            } else {
+                throw new IOException("Unexpected frame from compiler daemon: "+frame);
+            }
+        }
+    }
+}
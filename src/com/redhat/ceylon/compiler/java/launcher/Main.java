@@ -263,6 +263,20 @@ public class Main extends com.sun.tools.javac.main.Main {
             this(javacExitCode, ceylonState, errorCount, abortingException, null); 
         }
         
+        private ExitState(int javacExitCode, CeylonState ceylonState, int errorCount,
+                Throwable abortingException,
+                int ceylonCodegenExceptionCount, int ceylonCodegenErroneousCount,
+                int ceylonCodegenGarbageCount, int nonCeylonErrorCount) {
+            this.javacExitCode = javacExitCode;
+            this.ceylonState = ceylonState;
+            this.errorCount = errorCount;
+            this.ceylonCodegenExceptionCount = ceylonCodegenExceptionCount;
+            this.ceylonCodegenErroneousCount = ceylonCodegenErroneousCount;
+            this.ceylonCodegenGarbageCount = ceylonCodegenGarbageCount;
+            this.nonCeylonErrorCount = nonCeylonErrorCount;
+            this.abortingException = abortingException;
+        }
+        
         /**
          * javac had errors logged. Causes:
          * <ul>
@@ -379,6 +393,19 @@ public class Main extends com.sun.tools.javac.main.Main {
             return new ExitState(EXIT_SYSERR, CeylonState.SYS, 0, ex, null);
         }
 
+        /**
+         * The state of a compilation which was run by a {@link CompilerDaemon}
+         * on our behalf.
+         */
+        public static ExitState remote(int javacExitCode, CeylonState ceylonState, int errorCount,
+                Throwable abortingException,
+                int ceylonCodegenExceptionCount, int ceylonCodegenErroneousCount,
+                int ceylonCodegenGarbageCount, int nonCeylonErrorCount) {
+            return new ExitState(javacExitCode, ceylonState, errorCount, abortingException,
+                    ceylonCodegenExceptionCount, ceylonCodegenErroneousCount,
+                    ceylonCodegenGarbageCount, nonCeylonErrorCount);
+        }
+
         public static ExitState cmderror() {
             // icky: We'd prefer this to be handled at the tool API level 
             return new ExitState(EXIT_CMDERR, CeylonState.BUG, 0, null, null);
@@ -23,8 +23,14 @@ package com.redhat.ceylon.compiler.java.loader;
 import java.io.File;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.tools.JavaFileManager;
 import javax.tools.JavaFileObject.Kind;
@@ -42,8 +48,10 @@ import com.redhat.ceylon.compiler.java.codegen.CeylonTransformer;
 import com.redhat.ceylon.compiler.java.codegen.CodeGenError;
 import com.redhat.ceylon.compiler.java.codegen.CompilerBoxingDeclarationVisitor;
 import com.redhat.ceylon.compiler.java.codegen.CompilerBoxingVisitor;
+import com.redhat.ceylon.compiler.java.codegen.ConstantFoldingVisitor;
 import com.redhat.ceylon.compiler.java.codegen.DeferredVisitor;
 import com.redhat.ceylon.compiler.java.codegen.DefiniteAssignmentVisitor;
+import com.redhat.ceylon.compiler.java.codegen.EscapeAnalysisVisitor;
 import com.redhat.ceylon.compiler.java.codegen.MissingNativeVisitor;
 import com.redhat.ceylon.compiler.java.codegen.UnsupportedVisitor;
 import com.redhat.ceylon.compiler.java.codegen.InterfaceVisitor;
@@ -51,8 +59,10 @@ import com.redhat.ceylon.compiler.java.codegen.TypeParameterCaptureVisitor;
 import com.redhat.ceylon.compiler.java.tools.CeylonLog;
 import com.redhat.ceylon.compiler.java.tools.CeylonPhasedUnit;
 import com.redhat.ceylon.compiler.java.tools.CeyloncFileManager;
+import com.redhat.ceylon.compiler.java.tools.DependencyIndex;
 import com.redhat.ceylon.compiler.java.tools.LanguageCompiler;
 import com.redhat.ceylon.compiler.java.tools.LanguageCompiler.CompilerDelegate;
+import com.redhat.ceylon.compiler.java.util.Profile;
 import com.redhat.ceylon.compiler.java.util.Timer;
 import com.redhat.ceylon.compiler.java.util.Util;
 import com.redhat.ceylon.compiler.loader.AbstractModelLoader;
@@ -66,6 +76,7 @@ import com.redhat.ceylon.compiler.typechecker.context.PhasedUnits;
 import com.redhat.ceylon.compiler.typechecker.model.Declaration;
 import com.redhat.ceylon.compiler.typechecker.model.Module;
 import com.redhat.ceylon.compiler.typechecker.model.ProducedType;
+import com.redhat.ceylon.compiler.typechecker.model.ProducedTypeCache;
 import com.redhat.ceylon.compiler.typechecker.model.Setter;
 import com.redhat.ceylon.compiler.typechecker.model.TypedDeclaration;
 import com.redhat.ceylon.compiler.typechecker.model.Unit;
@@ -100,6 +111,7 @@ import com.sun.tools.javac.tree.JCTree.JCCompilationUnit;
 import com.sun.tools.javac.util.Abort;
 import com.sun.tools.javac.util.Context;
 import com.sun.tools.javac.util.List;
+import com.sun.tools.javac.util.ListBuffer;
 import com.sun.tools.javac.util.Log;
 import com.sun.tools.javac.util.Options;
 import com.sun.tools.javac.util.SourceLanguage;
@@ -136,10 +148,14 @@ public class CeylonEnter extends Enter {
     private Set<Module> modulesAddedToClassPath = new HashSet<Module>();
     private TaskListener taskListener;
     private SourceLanguage sourceLanguage;
+    private boolean recordDependencies;
+    private int codegenThreads;
+    private Context context;
 
     
     protected CeylonEnter(Context context) {
         super(context);
+        this.context = context;
         // make sure it's loaded first
         CeylonClassReader.instance(context);
         try {
@@ -158,6 +174,8 @@ public class CeylonEnter extends Enter {
         fileManager = (CeyloncFileManager) context.get(JavaFileManager.class);
         verbose = options.get(OptionName.VERBOSE) != null;
         isBootstrap = options.get(OptionName.BOOTSTRAPCEYLON) != null;
+        recordDependencies = options.get(OptionName.CEYLONINCREMENTAL) != null;
+        codegenThreads = getCodegenThreads(options);
         chk = Check.instance(context);
         types = Types.instance(context);
         symtab = Symtab.instance(context);
@@ -339,6 +357,32 @@ public class CeylonEnter extends Enter {
         /*
          * Here we convert the ceylon tree to its javac AST, after the typechecker has run
          */
+        if (codegenThreads > 1 && !isBootstrap) {
+            transformInParallel(trees);
+        } else {
+            transform(trees);
+        }
+        timer.startTask("Ceylon error generation");
+        printGeneratorErrors();
+        timer.endTask();
+        // write some stats
+        if(verbose)
+            modelLoader.printStats();
+    }
+
+    private static int getCodegenThreads(Options options) {
+        String threads = options.get(OptionName.CEYLONCODEGENTHREADS);
+        if (threads == null)
+            return 1;
+        try {
+            int ret = Integer.parseInt(threads);
+            return ret > 0 ? ret : Runtime.getRuntime().availableProcessors();
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    private void transform(List<JCCompilationUnit> trees) {
         Timer nested = timer.nestedTimer();
         for (JCCompilationUnit tree : trees) {
             if (tree instanceof CeylonCompilationUnit) {
@@ -356,22 +400,106 @@ public class CeylonEnter extends Enter {
                     taskListener.finished(event);
                 }
                 nested.endTask();
-                if(isVerbose("ast")){
-                    log.errWriter.println("Model tree for "+tree.getSourceFile());
-                    log.errWriter.println(ceylonTree.ceylonTree);
+                generated(ceylonTree);
+            }
+        }
+    }
+
+    /**
+     * Generates the code of every compilation unit in a thread pool. Each
+     * unit gets its own transformer (see {@link CeylonTransformer#fork(Context)}),
+     * so the generated code does not depend on how the units are scheduled,
+     * and we record the results in the original order of the units.
+     * Errors are reported with the source of their unit rather than the
+     * current source of the shared log, and the threads don't use the 
+     * produced type caches of the model, which aren't thread-safe.
+     */
+    private void transformInParallel(List<JCCompilationUnit> trees) {
+        final java.util.List<CeylonCompilationUnit> ceylonTrees = new ArrayList<CeylonCompilationUnit>();
+        for (JCCompilationUnit tree : trees) {
+            if (tree instanceof CeylonCompilationUnit) {
+                ceylonTrees.add((CeylonCompilationUnit) tree);
+            }
+        }
+        // the transformers must be created on this thread because they register themselves in the context
+        java.util.List<Callable<List<JCTree>>> tasks = new ArrayList<Callable<List<JCTree>>>(ceylonTrees.size());
+        for (final CeylonCompilationUnit ceylonTree : ceylonTrees) {
+            final CeylonTransformer unitGen = CeylonTransformer.fork(context);
+            unitGen.setMap(ceylonTree.lineMap);
+            unitGen.setFileObject(((CeylonPhasedUnit)ceylonTree.phasedUnit).getFileObject());
+            tasks.add(new Callable<List<JCTree>>() {
+                @Override
+                public List<JCTree> call() {
+                    Profile.Span span = timer.startSpan("Ceylon code generation", 
+                            ((CeylonPhasedUnit)ceylonTree.phasedUnit).getUnitFile().getName());
+                    try {
+                        // the produced type caches of the model are shared 
+                        // by the threads but not thread-safe
+                        final ListBuffer<JCTree> defs = ListBuffer.lb();
+                        ProducedTypeCache.doWithoutCaching(new Runnable() {
+                            @Override
+                            public void run() {
+                                defs.appendList(unitGen.transformAfterTypeChecking(ceylonTree.ceylonTree));
+                            }
+                        });
+                        return defs.toList();
+                    } finally {
+                        span.end();
+                    }
+                }
+            });
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(codegenThreads, Math.max(1, tasks.size())));
+        try {
+            java.util.List<Future<List<JCTree>>> results = executor.invokeAll(tasks);
+            for (int i = 0; i < ceylonTrees.size(); i++) {
+                CeylonCompilationUnit ceylonTree = ceylonTrees.get(i);
+                TaskEvent event = new TaskEvent(TaskEvent.Kind.PARSE, ceylonTree);
+                if (taskListener != null) {
+                    taskListener.started(event);
                 }
-                if(isVerbose("code")){
-                    log.errWriter.println("Java code generated for "+tree.getSourceFile());
-                    log.errWriter.println(ceylonTree);
+                ceylonTree.defs = getResult(results.get(i));
+                if (taskListener != null) {
+                    taskListener.finished(event);
                 }
+                generated(ceylonTree);
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new Abort(e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static List<JCTree> getResult(Future<List<JCTree>> result) throws InterruptedException {
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            // rethrow what the sequential code generation would have thrown
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private void generated(CeylonCompilationUnit ceylonTree) {
+        if (recordDependencies) {
+            CeylonPhasedUnit phasedUnit = (CeylonPhasedUnit)ceylonTree.phasedUnit;
+            fileManager.recordDependencies(phasedUnit.getFileObject(), 
+                    DependencyIndex.collect(ceylonTree.ceylonTree, phasedUnit.getUnit()));
+        }
+        if(isVerbose("ast")){
+            log.errWriter.println("Model tree for "+ceylonTree.getSourceFile());
+            log.errWriter.println(ceylonTree.ceylonTree);
+        }
+        if(isVerbose("code")){
+            log.errWriter.println("Java code generated for "+ceylonTree.getSourceFile());
+            log.errWriter.println(ceylonTree);
         }
-        timer.startTask("Ceylon error generation");
-        printGeneratorErrors();
-        timer.endTask();
-        // write some stats
-        if(verbose)
-            modelLoader.printStats();
     }
 
     private boolean isVerbose(String key) {
@@ -463,6 +591,8 @@ public class CeylonEnter extends Enter {
         DeferredVisitor deferredVisitor = new DeferredVisitor();
         AnnotationModelVisitor amv = new AnnotationModelVisitor(gen);
         DefiniteAssignmentVisitor dav = new DefiniteAssignmentVisitor();
+        EscapeAnalysisVisitor eav = new EscapeAnalysisVisitor(gen);
+        ConstantFoldingVisitor cfv = new ConstantFoldingVisitor(gen);
         TypeParameterCaptureVisitor tpCaptureVisitor = new TypeParameterCaptureVisitor();
         InterfaceVisitor localInterfaceVisitor = new InterfaceVisitor();
         // Extra phases for the compiler
@@ -482,6 +612,8 @@ public class CeylonEnter extends Enter {
             compilationUnit.visit(deferredVisitor);
             compilationUnit.visit(amv);
             compilationUnit.visit(dav);
+            compilationUnit.visit(eav);
+            compilationUnit.visit(cfv);
             compilationUnit.visit(tpCaptureVisitor);
             compilationUnit.visit(localInterfaceVisitor);
         }
@@ -77,7 +77,7 @@ public class CeylonLog extends Log {
     }
 
     @Override
-    public void report(JCDiagnostic diagnostic) {
+    public synchronized void report(JCDiagnostic diagnostic) {
         String messageKey = diagnostic.getCode();
         if (messageKey != null) {
             if (messageKey.startsWith("compiler.err.ceylon.codegen.exception")) {
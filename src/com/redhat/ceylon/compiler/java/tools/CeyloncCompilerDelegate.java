@@ -3,6 +3,8 @@ package com.redhat.ceylon.compiler.java.tools;
 import com.redhat.ceylon.compiler.java.loader.UnknownTypeCollector;
 import com.redhat.ceylon.compiler.java.loader.model.CompilerModuleManager;
 import com.redhat.ceylon.compiler.java.tools.LanguageCompiler.CompilerDelegate;
+import com.redhat.ceylon.compiler.java.util.Profile;
+import com.redhat.ceylon.compiler.java.util.Timer;
 import com.redhat.ceylon.compiler.loader.AbstractModelLoader;
 import com.redhat.ceylon.compiler.typechecker.TypeChecker;
 import com.redhat.ceylon.compiler.typechecker.analyzer.ModuleManager;
@@ -41,28 +43,53 @@ public final class CeyloncCompilerDelegate implements
 
     @Override
     public void typeCheck(java.util.List<PhasedUnit> listOfUnits) {
+        Timer timer = Timer.instance(context);
+        Profile.Span phase = timer.startSpan("scanDeclarations", null);
         for (PhasedUnit pu : listOfUnits) {
+            Profile.Span span = startUnitSpan(timer, "scanDeclarations", pu);
             pu.validateTree();
             pu.scanDeclarations();
+            span.end();
         }
+        phase.end();
+        phase = timer.startSpan("scanTypeDeclarations", null);
         for (PhasedUnit pu : listOfUnits) { 
+            Profile.Span span = startUnitSpan(timer, "scanTypeDeclarations", pu);
             pu.scanTypeDeclarations(); 
+            span.end();
         } 
+        phase.end();
+        phase = timer.startSpan("validateRefinement", null);
         for (PhasedUnit pu: listOfUnits) { 
+            Profile.Span span = startUnitSpan(timer, "validateRefinement", pu);
             pu.validateRefinement();
+            span.end();
         }
+        phase.end();
         
+        phase = timer.startSpan("analyseTypes", null);
         for (PhasedUnit pu : listOfUnits) { 
+            Profile.Span span = startUnitSpan(timer, "analyseTypes", pu);
             pu.analyseTypes(); 
+            span.end();
         }
+        phase.end();
         
+        phase = timer.startSpan("analyseFlow", null);
         for (PhasedUnit pu : listOfUnits) { 
+            Profile.Span span = startUnitSpan(timer, "analyseFlow", pu);
             pu.analyseFlow();
+            span.end();
         }
+        phase.end();
 
+        phase = timer.startSpan("analyseUsage", null);
         for (PhasedUnit pu : listOfUnits) { 
+            Profile.Span span = startUnitSpan(timer, "analyseUsage", pu);
             pu.analyseUsage();
+            span.end();
         }
+        phase.end();
         
         UnknownTypeCollector utc = new UnknownTypeCollector();
         for (PhasedUnit pu : listOfUnits) { 
@@ -70,6 +97,12 @@ public final class CeyloncCompilerDelegate implements
         }
     }
 
+    private static Profile.Span startUnitSpan(Timer timer, String phase, PhasedUnit pu) {
+        if (!timer.isProfiling())
+            return Profile.Span.NONE;
+        return timer.startSpan(phase, pu.getUnitFile().getPath());
+    }
+
     @Override
     public void visitModules(PhasedUnits phasedUnits) {
         phasedUnits.visitModules();
@@ -53,6 +53,7 @@ import com.redhat.ceylon.cmr.impl.CachingRepositoryManager;
 import com.redhat.ceylon.common.FileUtil;
 import com.redhat.ceylon.common.config.Repositories;
 import com.redhat.ceylon.compiler.java.codegen.CeylonFileObject;
+import com.redhat.ceylon.compiler.java.util.Timer;
 import com.redhat.ceylon.compiler.java.util.Util;
 import com.redhat.ceylon.compiler.typechecker.model.Module;
 import com.sun.source.util.TaskListener;
@@ -87,7 +88,7 @@ public class CeyloncFileManager extends JavacFileManager implements StandardJava
     
     private JarOutputRepositoryManager getJarRepository(){
         if(jarRepository == null)
-            jarRepository = new JarOutputRepositoryManager(CeylonLog.instance(context), options, this, context.get(TaskListener.class));
+            jarRepository = new JarOutputRepositoryManager(CeylonLog.instance(context), options, this, context.get(TaskListener.class), Timer.instance(context));
         return jarRepository;
     }
     
@@ -237,6 +238,14 @@ public class CeyloncFileManager extends JavacFileManager implements StandardJava
         currentModule = module;
     }
     
+    /**
+     * Records the dependencies of a compiled source file, to be stored in
+     * the module archive along with its classes.
+     */
+    public void recordDependencies(JavaFileObject sourceFile, DependencyIndex.UnitDependencies dependencies) {
+        getJarRepository().recordDependencies(new File(sourceFile.toUri().getPath()), dependencies);
+    }
+    
     public RepositoryManager getRepositoryManager() {
         // caching
         if(repoManager != null)
@@ -251,6 +260,17 @@ public class CeyloncFileManager extends JavacFileManager implements StandardJava
         String outRepo = getOutputRepoOption();
         String mavenOverrides = options.get(OptionName.CEYLONMAVENOVERRIDES);
         
+        // reuse the one from a previous compilation if we can
+        RepositoryManagerCache cache = RepositoryManagerCache.instance(context);
+        String cacheKey = null;
+        if(cache != null){
+            cacheKey = userRepos + "|" + systemRepo + "|" + cacheRepo + "|" + outRepo + "|" + mavenOverrides
+                    + "|" + getNoDefaultRepos() + "|" + getOfflineOption() + "|" + getCurrentWorkingDir();
+            repoManager = cache.get(cacheKey, options, Log.instance(context));
+            if(repoManager != null)
+                return repoManager;
+        }
+        
         repoManager = CeylonUtils.repoManager()
                 .config(CompilerConfig.instance(context))
                 .cwd(getCurrentWorkingDir())
@@ -264,6 +284,9 @@ public class CeyloncFileManager extends JavacFileManager implements StandardJava
                 .logger(getLogger())
                 .buildManager();
         
+        if(cache != null && getLogger() instanceof JavacLogger)
+            cache.put(cacheKey, repoManager, (JavacLogger)getLogger());
+        
         return repoManager;
     }
 
@@ -0,0 +1,546 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.java.tools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import com.redhat.ceylon.cmr.api.JDKUtils;
+import com.redhat.ceylon.compiler.java.util.Util;
+import com.redhat.ceylon.compiler.typechecker.model.Annotation;
+import com.redhat.ceylon.compiler.typechecker.model.Class;
+import com.redhat.ceylon.compiler.typechecker.model.ClassOrInterface;
+import com.redhat.ceylon.compiler.typechecker.model.Declaration;
+import com.redhat.ceylon.compiler.typechecker.model.Functional;
+import com.redhat.ceylon.compiler.typechecker.model.Method;
+import com.redhat.ceylon.compiler.typechecker.model.Module;
+import com.redhat.ceylon.compiler.typechecker.model.Parameter;
+import com.redhat.ceylon.compiler.typechecker.model.ParameterList;
+import com.redhat.ceylon.compiler.typechecker.model.ProducedType;
+import com.redhat.ceylon.compiler.typechecker.model.Scope;
+import com.redhat.ceylon.compiler.typechecker.model.TypeDeclaration;
+import com.redhat.ceylon.compiler.typechecker.model.TypeParameter;
+import com.redhat.ceylon.compiler.typechecker.model.TypedDeclaration;
+import com.redhat.ceylon.compiler.typechecker.model.Unit;
+import com.redhat.ceylon.compiler.typechecker.model.MethodOrValue;
+import com.redhat.ceylon.compiler.typechecker.tree.Tree;
+import com.redhat.ceylon.compiler.typechecker.tree.Visitor;
+
+/**
+ * Records, for every compilation unit of a module, which declarations of
+ * other units it uses, and a hash of the signature of every toplevel
+ * declaration it exports. It is stored in the module archive
+ * next to the {@code META-INF/mapping.txt} file, and lets an incremental
+ * build work out which units have to be recompiled after some have changed.
+ *
+ * Units are identified by their source path relative to their source
+ * folder, just like in the mapping file.
+ */
+public class DependencyIndex {
+
+    public static final String INDEX_FILE = "META-INF/dependencies.txt";
+
+    private static final String SOURCE_SUFFIX = "#source";
+    private static final String EXPORTS_SUFFIX = "#exports";
+    private static final String USES_SUFFIX = "#uses";
+
+    /**
+     * What we know about a single compilation unit
+     */
+    public static class UnitDependencies {
+        private String sourceHash;
+        private final Map<String,String> exports = new TreeMap<String,String>();
+        private final Set<String> uses = new TreeSet<String>();
+
+        public String getSourceHash() {
+            return sourceHash;
+        }
+
+        public void setSourceHash(String sourceHash) {
+            this.sourceHash = sourceHash;
+        }
+
+        /**
+         * The signature hashes of the toplevel declarations of this unit,
+         * by qualified name
+         */
+        public Map<String,String> getExports() {
+            return exports;
+        }
+
+        /**
+         * The qualified names of the toplevel declarations of other units
+         * which this unit uses, except those of the language module and
+         * of the JDK
+         */
+        public Set<String> getUses() {
+            return uses;
+        }
+    }
+
+    private final Map<String,UnitDependencies> units = new TreeMap<String,UnitDependencies>();
+
+    public UnitDependencies get(String unit) {
+        return units.get(unit);
+    }
+
+    public void put(String unit, UnitDependencies dependencies) {
+        units.put(unit, dependencies);
+    }
+
+    public void remove(String unit) {
+        units.remove(unit);
+    }
+
+    public Set<String> getUnits() {
+        return Collections.unmodifiableSet(units.keySet());
+    }
+
+    /**
+     * Returns the qualified names of the toplevel declarations exported by
+     * the given units which are different in the given newer index: added,
+     * removed, or with a different signature.
+     */
+    public Set<String> getChangedExports(DependencyIndex newer, Collection<String> changedUnits) {
+        Set<String> ret = new HashSet<String>();
+        for (String unit : changedUnits) {
+            UnitDependencies before = get(unit);
+            UnitDependencies after = newer.get(unit);
+            Map<String,String> beforeExports = before != null ? before.exports : Collections.<String,String>emptyMap();
+            Map<String,String> afterExports = after != null ? after.exports : Collections.<String,String>emptyMap();
+            for (Map.Entry<String,String> entry : beforeExports.entrySet()) {
+                if (!entry.getValue().equals(afterExports.get(entry.getKey())))
+                    ret.add(entry.getKey());
+            }
+            for (String name : afterExports.keySet()) {
+                if (!beforeExports.containsKey(name))
+                    ret.add(name);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the units which use any of the given declarations.
+     */
+    public Set<String> getUnitsUsing(Set<String> declarations) {
+        Set<String> ret = new TreeSet<String>();
+        if (declarations.isEmpty())
+            return ret;
+        for (Map.Entry<String,UnitDependencies> entry : units.entrySet()) {
+            for (String use : entry.getValue().uses) {
+                if (declarations.contains(use)) {
+                    ret.add(entry.getKey());
+                    break;
+                }
+            }
+        }
+        return ret;
+    }
+
+    //
+    // Persistence
+
+    /**
+     * Reads the index stored in the given module archive, or returns null if
+     * there is no such archive or if it has no index. Throws if the archive
+     * or its index cannot be read.
+     */
+    public static DependencyIndex read(File carFile) throws IOException {
+        if (carFile == null || !carFile.isFile())
+            return null;
+        JarFile jarFile = new JarFile(carFile);
+        try {
+            JarEntry entry = jarFile.getJarEntry(INDEX_FILE);
+            if (entry == null)
+                return null;
+            InputStream inputStream = jarFile.getInputStream(entry);
+            try {
+                return load(inputStream);
+            } finally {
+                inputStream.close();
+            }
+        } finally {
+            jarFile.close();
+        }
+    }
+
+    public static DependencyIndex load(InputStream inputStream) throws IOException {
+        Properties properties = new Properties();
+        try {
+            properties.load(inputStream);
+        } catch (IllegalArgumentException e) {
+            // malformed escape
+            throw new IOException("Corrupt dependency index", e);
+        }
+        DependencyIndex index = new DependencyIndex();
+        for (String key : properties.stringPropertyNames()) {
+            String value = properties.getProperty(key);
+            if (key.endsWith(SOURCE_SUFFIX)) {
+                index.getOrCreate(key.substring(0, key.length() - SOURCE_SUFFIX.length())).sourceHash = value;
+            } else if (key.endsWith(EXPORTS_SUFFIX)) {
+                UnitDependencies unit = index.getOrCreate(key.substring(0, key.length() - EXPORTS_SUFFIX.length()));
+                for (String export : split(value)) {
+                    int sep = export.lastIndexOf(' ');
+                    if (sep == -1)
+                        throw new IOException("Corrupt dependency index entry: "+key);
+                    unit.exports.put(export.substring(0, sep), export.substring(sep + 1));
+                }
+            } else if (key.endsWith(USES_SUFFIX)) {
+                UnitDependencies unit = index.getOrCreate(key.substring(0, key.length() - USES_SUFFIX.length()));
+                unit.uses.addAll(split(value));
+            } else {
+                throw new IOException("Corrupt dependency index entry: "+key);
+            }
+        }
+        return index;
+    }
+
+    public void store(OutputStream outputStream) throws IOException {
+        Properties properties = new Properties();
+        for (Map.Entry<String,UnitDependencies> entry : units.entrySet()) {
+            String unit = entry.getKey();
+            UnitDependencies dependencies = entry.getValue();
+            if (dependencies.sourceHash != null)
+                properties.setProperty(unit + SOURCE_SUFFIX, dependencies.sourceHash);
+            StringBuilder exports = new StringBuilder();
+            for (Map.Entry<String,String> export : dependencies.exports.entrySet()) {
+                if (exports.length() > 0)
+                    exports.append(',');
+                exports.append(export.getKey()).append(' ').append(export.getValue());
+            }
+            properties.setProperty(unit + EXPORTS_SUFFIX, exports.toString());
+            StringBuilder uses = new StringBuilder();
+            for (String use : dependencies.uses) {
+                if (uses.length() > 0)
+                    uses.append(',');
+                uses.append(use);
+            }
+            properties.setProperty(unit + USES_SUFFIX, uses.toString());
+        }
+        Util.storeProperties(properties, null, outputStream);
+    }
+
+    private UnitDependencies getOrCreate(String unit) {
+        UnitDependencies ret = units.get(unit);
+        if (ret == null) {
+            ret = new UnitDependencies();
+            units.put(unit, ret);
+        }
+        return ret;
+    }
+
+    private static List<String> split(String value) {
+        List<String> ret = new ArrayList<String>();
+        for (String part : value.split(",")) {
+            if (!part.isEmpty())
+                ret.add(part);
+        }
+        return ret;
+    }
+
+    //
+    // Collecting
+
+    /**
+     * Collects the uses and exports of a typechecked compilation unit
+     */
+    public static UnitDependencies collect(Tree.CompilationUnit tree, Unit unit) {
+        UnitDependencies ret = new UnitDependencies();
+        tree.visit(new UsesVisitor(unit, ret.uses));
+        for (Declaration decl : unit.getDeclarations()) {
+            if (decl.isToplevel()) {
+                ret.exports.put(decl.getQualifiedNameString(), hash(signature(decl)));
+            }
+        }
+        return ret;
+    }
+
+    private static class UsesVisitor extends Visitor {
+        private final Unit unit;
+        private final Set<String> uses;
+
+        UsesVisitor(Unit unit, Set<String> uses) {
+            this.unit = unit;
+            this.uses = uses;
+        }
+
+        public void visit(Tree.MemberOrTypeExpression expr) {
+            use(expr.getDeclaration());
+            super.visit(expr);
+        }
+
+        public void visit(Tree.SimpleType type) {
+            ProducedType model = type.getTypeModel();
+            if (model != null)
+                use(model.getDeclaration());
+            super.visit(type);
+        }
+
+        private void use(Declaration decl) {
+            Declaration toplevel = getToplevel(decl);
+            if (toplevel == null
+                    || toplevel.getUnit() == null
+                    || toplevel.getUnit() == unit
+                    || toplevel.getUnit().getPackage() == null)
+                return;
+            // those never change under our feet
+            String moduleName = toplevel.getUnit().getPackage().getModule().getNameAsString();
+            if (moduleName.equals(Module.LANGUAGE_MODULE_NAME)
+                    || JDKUtils.isJDKModule(moduleName)
+                    || JDKUtils.isOracleJDKModule(moduleName))
+                return;
+            uses.add(toplevel.getQualifiedNameString());
+        }
+
+        private static Declaration getToplevel(Declaration decl) {
+            while (decl != null && !decl.isToplevel()) {
+                Scope container = decl.getContainer();
+                decl = container instanceof Declaration ? (Declaration) container : null;
+            }
+            return decl;
+        }
+    }
+
+    /**
+     * A description of everything about a declaration which other units
+     * may depend on, that is everything but its implementation, its
+     * documentation and its non-shared members. The invocation made by
+     * an annotation constructor is part of it, since it is inlined at
+     * every use.
+     */
+    static String signature(Declaration decl) {
+        StringBuilder sb = new StringBuilder();
+        appendSignature(sb, decl);
+        return sb.toString();
+    }
+
+    private static void appendSignature(StringBuilder sb, Declaration decl) {
+        sb.append(decl.getClass().getSimpleName()).append(' ').append(decl.getName());
+        if (decl.isShared())
+            sb.append(" shared");
+        if (decl.isDefault())
+            sb.append(" default");
+        if (decl.isFormal())
+            sb.append(" formal");
+        if (decl.isActual())
+            sb.append(" actual");
+        if (decl instanceof MethodOrValue && ((MethodOrValue) decl).isVariable())
+            sb.append(" variable");
+        if (decl instanceof Class) {
+            Class klass = (Class) decl;
+            if (klass.isAbstract())
+                sb.append(" abstract");
+            if (klass.isFinal())
+                sb.append(" final");
+            if (klass.isSealed())
+                sb.append(" sealed");
+        }
+        if (decl.isAnnotation())
+            sb.append(" annotation");
+        appendAnnotations(sb, decl.getAnnotations());
+        if (decl instanceof Method && ((Method) decl).getAnnotationConstructor() != null) {
+            // its annotation invocation is inlined wherever it is used
+            sb.append(" => ").append(((Method) decl).getAnnotationConstructor());
+        }
+        if (decl instanceof Functional) {
+            Functional f = (Functional) decl;
+            appendTypeParameters(sb, f.getTypeParameters());
+            List<ParameterList> parameterLists = f.getParameterLists();
+            if (parameterLists != null) {
+                for (ParameterList parameterList : parameterLists) {
+                    sb.append('(');
+                    for (Parameter parameter : parameterList.getParameters()) {
+                        appendType(sb, parameter.getType());
+                        sb.append(' ').append(parameter.getName());
+                        if (parameter.isDefaulted())
+                            sb.append('=');
+                        if (parameter.isSequenced())
+                            sb.append('*');
+                        sb.append(',');
+                    }
+                    sb.append(')');
+                }
+            }
+        }
+        if (decl instanceof TypedDeclaration) {
+            sb.append(':');
+            appendType(sb, ((TypedDeclaration) decl).getType());
+        }
+        if (decl instanceof TypeDeclaration) {
+            TypeDeclaration type = (TypeDeclaration) decl;
+            if (!(decl instanceof Functional))
+                appendTypeParameters(sb, type.getTypeParameters());
+            sb.append(" extends ");
+            appendType(sb, type.getExtendedType());
+            sb.append(" satisfies ");
+            appendTypes(sb, type.getSatisfiedTypes());
+            sb.append(" of ");
+            appendTypes(sb, type.getCaseTypes());
+        }
+        if (decl instanceof ClassOrInterface) {
+            // members are sorted so that moving them around is not a change
+            TreeSet<String> members = new TreeSet<String>();
+            for (Declaration member : ((ClassOrInterface) decl).getMembers()) {
+                if (member.isShared()) {
+                    StringBuilder memberSignature = new StringBuilder();
+                    appendSignature(memberSignature, member);
+                    members.add(memberSignature.toString());
+                }
+            }
+            sb.append('{');
+            for (String member : members) {
+                sb.append(member).append(';');
+            }
+            sb.append('}');
+        }
+    }
+
+    /**
+     * Annotations which only matter to the documentation of a declaration
+     */
+    private static final Set<String> DOCUMENTATION_ANNOTATIONS = new HashSet<String>(
+            Arrays.asList("doc", "by", "see", "tagged", "license", "throws"));
+
+    private static void appendAnnotations(StringBuilder sb, List<Annotation> annotations) {
+        if (annotations == null)
+            return;
+        // sorted so that reordering them is not a change
+        TreeSet<String> sorted = new TreeSet<String>();
+        for (Annotation annotation : annotations) {
+            if (DOCUMENTATION_ANNOTATIONS.contains(annotation.getName()))
+                continue;
+            StringBuilder annotationSignature = new StringBuilder(annotation.getName());
+            annotationSignature.append('(');
+            for (String argument : annotation.getPositionalArguments()) {
+                annotationSignature.append(argument).append(',');
+            }
+            for (Map.Entry<String,String> argument : new TreeMap<String,String>(annotation.getNamedArguments()).entrySet()) {
+                annotationSignature.append(argument.getKey()).append('=').append(argument.getValue()).append(',');
+            }
+            annotationSignature.append(')');
+            sorted.add(annotationSignature.toString());
+        }
+        for (String annotation : sorted) {
+            sb.append(" @").append(annotation);
+        }
+    }
+
+    private static void appendTypeParameters(StringBuilder sb, List<TypeParameter> typeParameters) {
+        if (typeParameters == null || typeParameters.isEmpty())
+            return;
+        sb.append('<');
+        for (TypeParameter tp : typeParameters) {
+            sb.append(tp.getName());
+            if (tp.isCovariant())
+                sb.append(" out");
+            if (tp.isContravariant())
+                sb.append(" in");
+            sb.append(" satisfies ");
+            appendTypes(sb, tp.getSatisfiedTypes());
+            sb.append(',');
+        }
+        sb.append('>');
+    }
+
+    private static void appendTypes(StringBuilder sb, List<ProducedType> types) {
+        if (types == null)
+            return;
+        for (ProducedType type : types) {
+            appendType(sb, type);
+            sb.append('&');
+        }
+    }
+
+    private static void appendType(StringBuilder sb, ProducedType type) {
+        if (type != null)
+            sb.append(type.getProducedTypeQualifiedName());
+    }
+
+    //
+    // Hashing
+
+    static String hash(String signature) {
+        try {
+            return hash(signature.getBytes("UTF-8"));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String hash(byte[] bytes) {
+        MessageDigest digest = newDigest();
+        digest.update(bytes);
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Returns the hash of the contents of the given source file
+     */
+    public static String hashFile(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            inputStream.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
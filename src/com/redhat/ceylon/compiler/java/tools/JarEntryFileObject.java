@@ -56,6 +56,12 @@ public class JarEntryFileObject implements JavaFileObject {
         // we start to write at a new entry
         jarFile.putNextEntry(new ZipEntry(fileName));
         return new FilterOutputStream(jarFile){
+            // FilterOutputStream would write one byte at a time
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
             // we override the close() method to automagically close the current entry
             @Override
             public void close() throws IOException {
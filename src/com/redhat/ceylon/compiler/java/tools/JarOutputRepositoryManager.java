@@ -21,7 +21,6 @@
 package com.redhat.ceylon.compiler.java.tools;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.HashMap;
@@ -29,9 +28,14 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
 import java.util.zip.ZipEntry;
 
@@ -46,7 +50,11 @@ import com.redhat.ceylon.cmr.util.JarUtils;
 import com.redhat.ceylon.common.Constants;
 import com.redhat.ceylon.common.FileUtil;
 import com.redhat.ceylon.common.log.Logger;
+import com.redhat.ceylon.compiler.java.tools.DependencyIndex.UnitDependencies;
 import com.redhat.ceylon.compiler.java.tools.JarEntryManifestFileObject.OsgiManifest;
+import com.redhat.ceylon.compiler.java.util.Profile;
+import com.redhat.ceylon.compiler.java.util.Timer;
+import com.redhat.ceylon.compiler.java.util.Util;
 import com.redhat.ceylon.compiler.typechecker.model.Module;
 import com.sun.source.util.TaskListener;
 import com.sun.tools.javac.main.OptionName;
@@ -56,16 +64,21 @@ import com.sun.tools.javac.util.Options;
 public class JarOutputRepositoryManager {
     
     private Map<Module,ProgressiveJar> openJars = new HashMap<Module, ProgressiveJar>();
+    private Map<String,UnitDependencies> dependencies = new HashMap<String,UnitDependencies>();
     private Log log;
     private Options options;
     private CeyloncFileManager ceyloncFileManager;
     private TaskListener taskListener;
+    private Timer timer;
+    private final int compressionThreads = Runtime.getRuntime().availableProcessors();
+    private ExecutorService compressor;
     
-    JarOutputRepositoryManager(Log log, Options options, CeyloncFileManager ceyloncFileManager, TaskListener taskListener){
+    JarOutputRepositoryManager(Log log, Options options, CeyloncFileManager ceyloncFileManager, TaskListener taskListener, Timer timer){
         this.log = log;
         this.options = options;
         this.ceyloncFileManager = ceyloncFileManager;
         this.taskListener = taskListener;
+        this.timer = timer;
     }
     
     public JavaFileObject getFileObject(RepositoryManager repositoryManager, Module module, String fileName, File sourceFile) throws IOException{
@@ -76,25 +89,64 @@ public class JarOutputRepositoryManager {
     private ProgressiveJar getProgressiveJar(RepositoryManager repositoryManager, Module module) throws IOException {
         ProgressiveJar jarFile = openJars.get(module);
         if(jarFile == null){
-            jarFile = new ProgressiveJar(repositoryManager, module, log, options, ceyloncFileManager, taskListener);
+            jarFile = new ProgressiveJar(repositoryManager, module, log, options, ceyloncFileManager, taskListener, dependencies, 
+                    getCompressor(), compressionThreads);
             openJars.put(module, jarFile);
         }
         return jarFile;
     }
 
+    /**
+     * Returns the executor which compresses the entries of every module
+     * archive, or null if we only have one processor.
+     */
+    private ExecutorService getCompressor() {
+        if(compressor == null && compressionThreads > 1){
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(compressionThreads, compressionThreads, 
+                    10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), 
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "ceylon-car-compressor");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            compressor = executor;
+        }
+        return compressor;
+    }
+
+    void recordDependencies(File sourceFile, UnitDependencies unitDependencies) {
+        dependencies.put(FileUtil.absoluteFile(sourceFile).getPath(), unitDependencies);
+    }
+
     public void flush() throws IOException {
         Exception ex = null;
+        Profile.Span span = timer.startSpan("write module archives", null);
         try{
-            for(ProgressiveJar jarFile : openJars.values()){
+            for(Map.Entry<Module,ProgressiveJar> entry : openJars.entrySet()){
+                Profile.Span jarSpan = timer.isProfiling() 
+                        ? timer.startSpan("write module archive", entry.getKey().getNameAsString()) 
+                        : Profile.Span.NONE;
                 try {
-                    jarFile.close();
+                    entry.getValue().close();
                 } catch (Exception e) {
                     ex = e;
+                } finally {
+                    jarSpan.end();
                 }
             }
         }finally{
             // make sure we clear on return and throw, so we don't try to flush again on throw
             openJars.clear();
+            dependencies.clear();
+            if(compressor != null){
+                compressor.shutdown();
+                compressor = null;
+            }
+            span.end();
         }
         if (ex instanceof IOException) {
             throw (IOException)ex;
@@ -106,7 +158,7 @@ public class JarOutputRepositoryManager {
         private static final String MAPPING_FILE = META_INF+"/mapping.txt";
         private File originalJarFile;
         private File outputJarFile;
-        private JarOutputStream jarOutputStream;
+        private ParallelJarOutputStream jarOutputStream;
         final private Set<String> modifiedSourceFiles = new HashSet<String>();
         final private Set<String> modifiedResourceFilesRel = new HashSet<String>();
         final private Set<String> modifiedResourceFilesFull = new HashSet<String>();
@@ -124,8 +176,12 @@ public class JarOutputRepositoryManager {
         private final String resourceRootPath;
         private boolean writeMavenManifest;
         private TaskListener taskListener;
+        private final boolean writeDependencyIndex;
+        private final Map<String,UnitDependencies> dependencies;
+        private boolean rewriteDependencyIndex;
 
-        public ProgressiveJar(RepositoryManager repoManager, Module module, Log log, Options options, CeyloncFileManager ceyloncFileManager, TaskListener taskListener) throws IOException{
+        public ProgressiveJar(RepositoryManager repoManager, Module module, Log log, Options options, CeyloncFileManager ceyloncFileManager, TaskListener taskListener, Map<String,UnitDependencies> dependencies,
+                ExecutorService compressor, int compressionThreads) throws IOException{
             this.options = options;
             this.repoManager = repoManager;
             this.carContext = new ArtifactContext(module.getNameAsString(), module.getVersion(), ArtifactContext.CAR);
@@ -145,6 +201,8 @@ public class JarOutputRepositoryManager {
             this.module = module;
             this.writeOsgiManifest = !options.isSet(OptionName.CEYLONNOOSGI);
             this.writeMavenManifest = !options.isSet(OptionName.CEYLONNOPOM);
+            this.writeDependencyIndex = options.isSet(OptionName.CEYLONINCREMENTAL);
+            this.dependencies = dependencies;
             
             // Determine the special path that signals that the files it contains
             // should be moved to the root of the output JAR/CAR
@@ -161,7 +219,8 @@ public class JarOutputRepositoryManager {
             
             this.originalJarFile = repoManager.getArtifact(carContext);
             this.outputJarFile = File.createTempFile("ceylon-compiler-", ".car");
-            this.jarOutputStream = new JarOutputStream(new FileOutputStream(outputJarFile));
+            this.jarOutputStream = new ParallelJarOutputStream(outputJarFile, originalJarFile, compressor, compressionThreads, 
+                    options.isSet(OptionName.CEYLONNOCOMPRESS));
         }
 
         private Properties getPreviousMapping() throws IOException {
@@ -187,6 +246,15 @@ public class JarOutputRepositoryManager {
             return null;
         }
 
+        private DependencyIndex getPreviousDependencyIndex() {
+            try {
+                return DependencyIndex.read(originalJarFile);
+            } catch (IOException e) {
+                // a corrupt index is just rebuilt from what we compile now
+                return null;
+            }
+        }
+
         private Manifest getPreviousManifest() throws IOException {
             if (originalJarFile != null) {
                 JarFile jarFile = null;
@@ -205,10 +273,6 @@ public class JarOutputRepositoryManager {
                 Set<String> copiedSourceFiles = srcCreator.copy(modifiedSourceFiles);
                 resourceCreator.copy(modifiedResourceFilesFull);
     
-                if (writeOsgiManifest && !manifestWritten && !module.isDefault()) {
-                    Manifest manifest = new OsgiManifest(module, getPreviousManifest()).build();
-                    writeManifestJarEntry(manifest);
-                }
                 if (writeMavenManifest) {
                     writeMavenManifest(module);
                 }
@@ -216,10 +280,31 @@ public class JarOutputRepositoryManager {
                 Properties previousMapping = getPreviousMapping();
                 writeMappingJarEntry(previousMapping, getJarFilter(previousMapping, copiedSourceFiles));
                 
-                JarUtils.finishUpdatingJar(
-                        originalJarFile, outputJarFile, carContext, jarOutputStream,
-                        getJarFilter(previousMapping, copiedSourceFiles),
-                        repoManager, options.get(OptionName.VERBOSE) != null, cmrLog, folders, options.isSet(OptionName.CEYLONPACK200));
+                DependencyIndex previousIndex = getPreviousDependencyIndex();
+                // keep an existing index up to date even if we were not asked to record dependencies
+                rewriteDependencyIndex = writeDependencyIndex || previousIndex != null;
+                if (rewriteDependencyIndex) {
+                    writeDependencyIndexJarEntry(previousIndex, copiedSourceFiles);
+                }
+                
+                JarUtils.JarEntryFilter filter = getJarFilter(previousMapping, copiedSourceFiles);
+                // copy the unchanged entries without recompressing them, unless we can't read that archive
+                boolean copied = jarOutputStream.copyEntries(filter, folders);
+                writeFolderJarEntries();
+                // the manifest goes last so we know if anything else changed
+                if (writeOsgiManifest && !manifestWritten && !module.isDefault()) {
+                    writeManifestJarEntry(buildOsgiManifest());
+                }
+                
+                if (jarOutputStream.isUnchanged()) {
+                    // leave the previous archive and its checksum untouched
+                    jarOutputStream.close();
+                } else {
+                    JarUtils.finishUpdatingJar(
+                            copied ? null : originalJarFile, outputJarFile, carContext, jarOutputStream,
+                            filter,
+                            repoManager, options.get(OptionName.VERBOSE) != null, cmrLog, folders, options.isSet(OptionName.CEYLONPACK200));
+                }
                 
                 String info;
                 if(module.isDefault())
@@ -235,6 +320,28 @@ public class JarOutputRepositoryManager {
             }
         }
 
+        private Manifest buildOsgiManifest() throws IOException {
+            Manifest previousManifest = getPreviousManifest();
+            Manifest manifest = new OsgiManifest(module, previousManifest).build();
+            if (previousManifest != null 
+                    && jarOutputStream.isUnchanged(OsgiManifest.MANIFEST_FILE_NAME)) {
+                // the bundle version has a build time qualifier, which should
+                // only change if the module does
+                String previousVersion = previousManifest.getMainAttributes().getValue(OsgiManifest.Bundle_Version);
+                if (previousVersion != null) {
+                    manifest.getMainAttributes().put(OsgiManifest.Bundle_Version, previousVersion);
+                }
+            }
+            return manifest;
+        }
+
+        private void writeFolderJarEntries() throws IOException {
+            for (String folder : new TreeSet<String>(folders)) {
+                jarOutputStream.putNextEntry(new ZipEntry(folder));
+                jarOutputStream.closeEntry();
+            }
+        }
+
         private JarUtils.JarEntryFilter getJarFilter(final Properties previousMapping, final Set<String> copiedSourceFiles) {
             return new JarUtils.JarEntryFilter() {
                 @Override
@@ -249,6 +356,7 @@ public class JarOutputRepositoryManager {
                     } else {
                         return modifiedResourceFilesRel.contains(entryFullName)
                                 || entryFullName.equals(MAPPING_FILE)
+                                || (rewriteDependencyIndex && entryFullName.equals(DependencyIndex.INDEX_FILE))
                                 || (writeOsgiManifest && OsgiManifest.isManifestFileName(entryFullName))
                                 || (writeMavenManifest && MavenPomUtil.isMavenDescriptor(entryFullName, module));
                     }
@@ -294,7 +402,46 @@ public class JarOutputRepositoryManager {
             try {
                 folders.add(META_INF+"/");
                 jarOutputStream.putNextEntry(new ZipEntry(MAPPING_FILE));
-                newMapping.store(jarOutputStream, "");
+                Util.storeProperties(newMapping, null, jarOutputStream);
+            }
+            catch(IOException e) {
+                // TODO : log to the right place
+            }
+            finally {
+                try {
+                    jarOutputStream.closeEntry();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        private void writeDependencyIndexJarEntry(DependencyIndex previousIndex, Set<String> copiedSourceFiles) {
+            DependencyIndex index = previousIndex != null ? previousIndex : new DependencyIndex();
+            // forget what we knew about the units we just recompiled
+            for (String unit : copiedSourceFiles) {
+                index.remove(unit);
+            }
+            for (String sourceFile : modifiedSourceFiles) {
+                File file = new File(sourceFile);
+                UnitDependencies unitDependencies = dependencies.get(FileUtil.absoluteFile(file).getPath());
+                if (unitDependencies == null) {
+                    if (!writeDependencyIndex)
+                        continue;
+                    // Java source: all we can record is its contents
+                    unitDependencies = new UnitDependencies();
+                }
+                try {
+                    unitDependencies.setSourceHash(DependencyIndex.hashFile(file));
+                } catch (IOException e) {
+                    // leave it out, it will just be considered modified
+                    continue;
+                }
+                index.put(JarUtils.toPlatformIndependentPath(srcCreator.getPaths(), sourceFile), unitDependencies);
+            }
+            try {
+                folders.add(META_INF+"/");
+                jarOutputStream.putNextEntry(new ZipEntry(DependencyIndex.INDEX_FILE));
+                index.store(jarOutputStream);
             }
             catch(IOException e) {
                 // TODO : log to the right place
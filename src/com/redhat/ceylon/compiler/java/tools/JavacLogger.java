@@ -30,6 +30,14 @@ public class JavacLogger implements Logger {
     private Log log;
 
     public JavacLogger(Options options, Log log) {
+        retarget(options, log);
+    }
+
+    /**
+     * Redirects this logger to another compilation's log, for loggers
+     * which outlive their compilation.
+     */
+    void retarget(Options options, Log log) {
         this.debugEnabled = options.get(OptionName.VERBOSE) != null || options.get(OptionName.VERBOSE + ":cmr") != null;
         this.log = log;
     }
@@ -62,6 +62,7 @@ import com.redhat.ceylon.compiler.java.codegen.CeylonFileObject;
 import com.redhat.ceylon.compiler.java.codegen.CeylonTransformer;
 import com.redhat.ceylon.compiler.java.loader.CeylonEnter;
 import com.redhat.ceylon.compiler.java.loader.CeylonModelLoader;
+import com.redhat.ceylon.compiler.java.util.Profile;
 import com.redhat.ceylon.compiler.java.util.Timer;
 import com.redhat.ceylon.compiler.java.util.Util;
 import com.redhat.ceylon.compiler.loader.AbstractModelLoader;
@@ -285,7 +286,12 @@ public class LanguageCompiler extends JavaCompiler {
             addResources();
             resourceFileObjects = null;
         }
-        super.close(disposeNames);
+        try {
+            super.close(disposeNames);
+        } finally {
+            // this is after the module archives are written
+            timer.writeProfile();
+        }
     }
 
     private void addResources() throws Abort {
@@ -704,29 +710,48 @@ public class LanguageCompiler extends JavaCompiler {
     }
 
     public Env<AttrContext> attribute(Env<AttrContext> env) {
-        if (env.toplevel.sourcefile instanceof CeylonFileObject || isBootstrap) {
-            try {
-                sourceLanguage.push(Language.CEYLON);
-                return super.attribute(env);
-            } finally {
-                sourceLanguage.pop();
+        Profile.Span span = startSpan("attribute", env);
+        try {
+            if (env.toplevel.sourcefile instanceof CeylonFileObject || isBootstrap) {
+                try {
+                    sourceLanguage.push(Language.CEYLON);
+                    return super.attribute(env);
+                } finally {
+                    sourceLanguage.pop();
+                }
             }
+            return super.attribute(env);
+        } finally {
+            span.end();
         }
-        return super.attribute(env);
+    }
+
+    private Profile.Span startSpan(String phase, Env<AttrContext> env) {
+        if (!timer.isProfiling())
+            return Profile.Span.NONE;
+        String detail = env.enclClass != null && env.enclClass.sym != null 
+                ? env.enclClass.sym.flatName().toString() 
+                : env.toplevel.sourcefile.getName();
+        return timer.startSpan(phase, detail);
     }
 
     @Override
     protected JavaFileObject genCode(Env<AttrContext> env, JCClassDecl cdef) throws IOException {
-        if (env.toplevel.sourcefile instanceof CeylonFileObject) {
-            try {
-                sourceLanguage.push(Language.CEYLON);
-                // call our own genCode
-                return genCodeUnlessError(env, cdef);
-            } finally {
-                sourceLanguage.pop();
+        Profile.Span span = timer.isProfiling() ? timer.startSpan("generate", cdef.sym.flatName().toString()) : Profile.Span.NONE;
+        try {
+            if (env.toplevel.sourcefile instanceof CeylonFileObject) {
+                try {
+                    sourceLanguage.push(Language.CEYLON);
+                    // call our own genCode
+                    return genCodeUnlessError(env, cdef);
+                } finally {
+                    sourceLanguage.pop();
+                }
             }
+            return super.genCode(env, cdef);
+        } finally {
+            span.end();
         }
-        return super.genCode(env, cdef);
     }
 
     @Override
@@ -787,29 +812,39 @@ public class LanguageCompiler extends JavaCompiler {
     }
 
     protected void desugar(final Env<AttrContext> env, Queue<Pair<Env<AttrContext>, JCClassDecl>> results) {
-        if (env.toplevel.sourcefile instanceof CeylonFileObject) {
-            try {
-                sourceLanguage.push(Language.CEYLON);
-                super.desugar(env, results);
-                return;
-            } finally {
-                sourceLanguage.pop();
+        Profile.Span span = startSpan("desugar", env);
+        try {
+            if (env.toplevel.sourcefile instanceof CeylonFileObject) {
+                try {
+                    sourceLanguage.push(Language.CEYLON);
+                    super.desugar(env, results);
+                    return;
+                } finally {
+                    sourceLanguage.pop();
+                }
             }
+            super.desugar(env, results);
+        } finally {
+            span.end();
         }
-        super.desugar(env, results);
     }
     
     protected void flow(Env<AttrContext> env, Queue<Env<AttrContext>> results) {
-        if (env.toplevel.sourcefile instanceof CeylonFileObject) {
-            try {
-                sourceLanguage.push(Language.CEYLON);
-                super.flow(env, results);
-                return;
-            } finally {
-                sourceLanguage.pop();
+        Profile.Span span = startSpan("flow", env);
+        try {
+            if (env.toplevel.sourcefile instanceof CeylonFileObject) {
+                try {
+                    sourceLanguage.push(Language.CEYLON);
+                    super.flow(env, results);
+                    return;
+                } finally {
+                    sourceLanguage.pop();
+                }
             }
+            super.flow(env, results);   
+        } finally {
+            span.end();
         }
-        super.flow(env, results);   
     }
 
     @Override
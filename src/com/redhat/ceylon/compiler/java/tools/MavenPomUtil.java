@@ -33,6 +33,7 @@ import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
 
 import com.redhat.ceylon.cmr.api.JDKUtils;
+import com.redhat.ceylon.compiler.java.util.Util;
 import com.redhat.ceylon.compiler.typechecker.model.Module;
 import com.redhat.ceylon.compiler.typechecker.model.ModuleImport;
 
@@ -195,7 +196,7 @@ public class MavenPomUtil {
             properties.put("version", version);
             properties.put("groupId", groupId);
             properties.put("artifactId", artifactId);
-            properties.store(jarOutputStream, "Generated by Ceylon");
+            Util.storeProperties(properties, "Generated by Ceylon", jarOutputStream);
         }
         catch (IOException e) {
             throw new RuntimeException(e);
@@ -0,0 +1,705 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ * 
+ * This particular file is subject to the "Classpath" exception as provided in the 
+ * LICENSE file that accompanied this code.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+
+package com.redhat.ceylon.compiler.java.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.jar.JarOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+import com.redhat.ceylon.cmr.util.JarUtils;
+
+/**
+ * A {@link JarOutputStream} which compresses its entries on the threads of an
+ * {@link ExecutorService}, while they are still written to the file in the
+ * order they were added, so the archive does not depend on scheduling.
+ *
+ * When given the previous version of the archive, it indexes its entries by
+ * name, and an entry whose contents have the same size and CRC as the
+ * previous entry of that name, and turn out to be the same bytes, is copied
+ * from the previous archive as it is, with its time. It can also copy the
+ * other entries of the previous archive without inflating and deflating them
+ * again (see {@link #copyEntries(JarUtils.JarEntryFilter, Set)}), and tell
+ * whether the new archive has the same entries as the previous one (see
+ * {@link #isUnchanged(String...)}).
+ *
+ * We write the zip format ourselves, so we don't support ZIP64 archives,
+ * which would need more than 65535 entries or 4GB. None of the methods of
+ * the superclass are used.
+ */
+class ParallelJarOutputStream extends JarOutputStream {
+
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int LOCAL_SIZE = 30;
+    private static final int CENTRAL_SIZE = 46;
+    private static final int END_SIZE = 22;
+    private static final int VERSION = 20;
+    private static final int FLAG_ENCRYPTED = 1;
+    private static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+    private static final int FLAG_UTF8 = 1 << 11;
+    private static final int MAX_ENTRIES = 0xffff;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** An entry whose data may still be compressed by another thread */
+    private static class Entry {
+        final byte[] name;
+        final byte[] comment;
+        final int flags;
+        final int method;
+        final int dosTime;
+        final int size;
+        final Future<Compressed> future;
+        Compressed compressed;
+        long offset;
+
+        Entry(byte[] name, byte[] comment, int flags, int method, int dosTime, int size, Compressed compressed, Future<Compressed> future) {
+            this.name = name;
+            this.comment = comment;
+            this.flags = flags;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.size = size;
+            this.compressed = compressed;
+            this.future = future;
+        }
+
+        boolean isDone() {
+            return compressed != null || future.isDone();
+        }
+
+        Compressed get() throws IOException {
+            if (compressed == null) {
+                try {
+                    compressed = future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while compressing "+new String(name, UTF8));
+                } catch (ExecutionException e) {
+                    throw new IOException("Failed to compress "+new String(name, UTF8), e.getCause());
+                }
+            }
+            return compressed;
+        }
+    }
+
+    private static class Compressed {
+        final byte[] data;
+        final int length;
+        final int crc;
+
+        Compressed(byte[] data, int length, int crc) {
+            this.data = data;
+            this.length = length;
+            this.crc = crc;
+        }
+    }
+
+    private static class DeflateTask implements Callable<Compressed> {
+        private final byte[] data;
+        private final int length;
+        private final int crc;
+        private final int level;
+
+        DeflateTask(byte[] data, int length, int crc, int level) {
+            this.data = data;
+            this.length = length;
+            this.crc = crc;
+            this.level = level;
+        }
+
+        @Override
+        public Compressed call() {
+            return deflate(data, length, crc, level);
+        }
+    }
+
+    /** An entry of the previous archive, as found in its central directory */
+    private static class PreviousEntry {
+        final String name;
+        final byte[] nameBytes;
+        final byte[] comment;
+        final int flags;
+        final int method;
+        final int dosTime;
+        final int crc;
+        final int compressedSize;
+        final int size;
+        final long localOffset;
+
+        PreviousEntry(byte[] directory, int pos) {
+            int nameLength = getShort(directory, pos + 28);
+            int extraLength = getShort(directory, pos + 30);
+            int commentLength = getShort(directory, pos + 32);
+            nameBytes = Arrays.copyOfRange(directory, pos + CENTRAL_SIZE, pos + CENTRAL_SIZE + nameLength);
+            name = new String(nameBytes, UTF8);
+            int commentStart = pos + CENTRAL_SIZE + nameLength + extraLength;
+            comment = Arrays.copyOfRange(directory, commentStart, commentStart + commentLength);
+            flags = getShort(directory, pos + 8);
+            method = getShort(directory, pos + 10);
+            dosTime = getInt(directory, pos + 12);
+            crc = getInt(directory, pos + 16);
+            compressedSize = getInt(directory, pos + 20);
+            size = getInt(directory, pos + 24);
+            localOffset = getInt(directory, pos + 42) & 0xffffffffL;
+        }
+
+        boolean isSupported() {
+            return (flags & FLAG_ENCRYPTED) == 0
+                    && (method == STORED || method == DEFLATED)
+                    && compressedSize != 0xffffffff
+                    && size != 0xffffffff
+                    && localOffset != 0xffffffffL;
+        }
+    }
+
+    private final OutputStream out;
+    private final ExecutorService executor;
+    private final int maxPending;
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    private int method = DEFLATED;
+    private final ArrayDeque<Entry> pending = new ArrayDeque<Entry>();
+    private final ByteArrayOutputStream central = new ByteArrayOutputStream();
+    private final Set<String> names = new HashSet<String>();
+    private final Calendar calendar = Calendar.getInstance();
+    private long written;
+    private int entries;
+    private ZipEntry current;
+    private Buffer buffer;
+    private boolean closed;
+
+    private final File previous;
+    private RandomAccessFile previousFile;
+    private List<PreviousEntry> previousEntries;
+    private Map<String, PreviousEntry> previousByName;
+    /** True when an entry is not one of the previous archive */
+    private boolean changed;
+
+    /** Gives access to the array of the data of the current entry */
+    private static class Buffer extends ByteArrayOutputStream {
+        Buffer(int size) {
+            super(size);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+
+    /**
+     * @param previous the previous version of this archive, if any
+     * @param executor the executor compressing the entries, or null to
+     * compress them on the writing thread
+     * @param threads the number of threads of the executor, to bound how
+     * many entries we keep in memory while they are compressed
+     * @param stored true to store the new entries without compressing them
+     */
+    ParallelJarOutputStream(File file, File previous, ExecutorService executor, int threads, boolean stored) throws IOException {
+        super(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new UnsupportedOperationException();
+            }
+        });
+        // we don't use the deflater of our superclass
+        def.end();
+        this.out = new FileOutputStream(file);
+        this.previous = previous;
+        this.executor = executor;
+        this.maxPending = Math.max(1, threads) * 4;
+        if (stored)
+            method = STORED;
+    }
+
+    @Override
+    public void setLevel(int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+            throw new IllegalArgumentException("invalid compression level");
+        this.level = level;
+    }
+
+    @Override
+    public void setMethod(int method) {
+        if (method != DEFLATED && method != STORED)
+            throw new IllegalArgumentException("invalid compression method");
+        this.method = method;
+    }
+
+    @Override
+    public void setComment(String comment) {
+        // we don't write archive comments
+    }
+
+    @Override
+    public void putNextEntry(ZipEntry entry) throws IOException {
+        ensureOpen();
+        if (current != null)
+            closeEntry();
+        current = entry;
+        buffer = new Buffer(entry.getSize() > 0 && entry.getSize() < Integer.MAX_VALUE ? (int)entry.getSize() : 512);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkEntry();
+        buffer.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkEntry();
+        buffer.write(b, off, len);
+    }
+
+    private void checkEntry() throws ZipException {
+        if (current == null)
+            throw new ZipException("no current ZIP entry");
+    }
+
+    @Override
+    public void closeEntry() throws IOException {
+        ensureOpen();
+        if (current == null)
+            return;
+        ZipEntry entry = current;
+        Buffer data = buffer;
+        current = null;
+        buffer = null;
+        String name = entry.getName();
+        boolean directory = entry.isDirectory();
+        if (!addName(name, directory))
+            return;
+        CRC32 checksum = new CRC32();
+        checksum.update(data.array(), 0, data.size());
+        int crc = (int)checksum.getValue();
+        PreviousEntry previousEntry = getPreviousEntry(name);
+        if (previousEntry != null 
+                && previousEntry.size == data.size()
+                && previousEntry.crc == crc
+                && Arrays.equals(inflate(previousEntry), Arrays.copyOf(data.array(), data.size()))) {
+            add(copy(previousEntry));
+            return;
+        }
+        changed = true;
+        int entryMethod = entry.getMethod() != -1 ? entry.getMethod() : method;
+        if (directory || data.size() == 0)
+            entryMethod = STORED;
+        long time = entry.getTime() != -1 ? entry.getTime() : System.currentTimeMillis();
+        Compressed compressed = null;
+        Future<Compressed> future = null;
+        if (entryMethod == STORED) {
+            compressed = new Compressed(data.array(), data.size(), crc);
+        } else if (executor != null) {
+            future = executor.submit(new DeflateTask(data.array(), data.size(), crc, level));
+        } else {
+            compressed = deflate(data.array(), data.size(), crc, level);
+        }
+        add(new Entry(encode(name), encode(entry.getComment()), flags(name), entryMethod, 
+                dosTime(time), data.size(), compressed, future));
+    }
+
+    /**
+     * Returns false if we must skip the given entry because we already have it.
+     */
+    private boolean addName(String name, boolean directory) throws ZipException {
+        if (names.add(name))
+            return true;
+        // directories may come from several places
+        if (directory)
+            return false;
+        throw new ZipException("duplicate entry: "+name);
+    }
+
+    private void add(Entry entry) throws IOException {
+        if (++entries > MAX_ENTRIES)
+            throw new ZipException("Too many entries for a non-ZIP64 archive");
+        pending.add(entry);
+        // write what's ready, and wait if too many entries are still being compressed
+        while (!pending.isEmpty()
+                && (pending.peek().isDone() || pending.size() > maxPending)) {
+            write(pending.poll());
+        }
+    }
+
+    /**
+     * Copies the entries of the previous archive which the filter does not
+     * avoid, without inflating them, except the folders we already have.
+     * Returns false without copying anything if there is no previous archive
+     * or we don't support its format, in which case the caller should copy
+     * its entries itself.
+     */
+    boolean copyEntries(JarUtils.JarEntryFilter filter, Set<String> folders) throws IOException {
+        ensureOpen();
+        if (current != null)
+            closeEntry();
+        if (!readPrevious())
+            return false;
+        int count = 0;
+        for (PreviousEntry previousEntry : previousEntries) {
+            if (!names.contains(previousEntry.name))
+                count++;
+        }
+        if (entries + count > MAX_ENTRIES)
+            return false;
+        for (PreviousEntry previousEntry : previousEntries) {
+            String name = previousEntry.name;
+            if (filter.avoid(name))
+                continue;
+            boolean isDirectory = name.endsWith("/");
+            if (isDirectory && folders.contains(name))
+                continue;
+            if (!addName(name, isDirectory))
+                continue;
+            add(copy(previousEntry));
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the entries written so far are exactly those of the
+     * previous archive, except for the given entries which we have yet to
+     * write, in which case the previous archive can be kept instead of this
+     * one if those entries turn out to be unchanged too.
+     */
+    boolean isUnchanged(String... remaining) throws IOException {
+        if (changed || !readPrevious())
+            return false;
+        int expected = names.size();
+        for (String name : remaining) {
+            if (!previousByName.containsKey(name))
+                return false;
+            if (!names.contains(name))
+                expected++;
+        }
+        return expected == previousEntries.size();
+    }
+
+    private PreviousEntry getPreviousEntry(String name) throws IOException {
+        return readPrevious() ? previousByName.get(name) : null;
+    }
+
+    /**
+     * Reads the central directory of the previous archive, if we have one
+     * and support its format.
+     */
+    private boolean readPrevious() throws IOException {
+        if (previousEntries == null) {
+            previousEntries = new ArrayList<PreviousEntry>();
+            previousByName = new HashMap<String, PreviousEntry>();
+            if (previous == null || !previous.isFile())
+                return false;
+            previousFile = new RandomAccessFile(previous, "r");
+            byte[] directory = readCentralDirectory(previousFile);
+            if (directory == null)
+                return false;
+            List<PreviousEntry> entries = new ArrayList<PreviousEntry>();
+            for (int pos = 0; pos < directory.length; pos = nextCentral(directory, pos)) {
+                PreviousEntry entry = new PreviousEntry(directory, pos);
+                if (!entry.isSupported())
+                    return false;
+                entries.add(entry);
+            }
+            for (PreviousEntry entry : entries) {
+                // we can't tell which one would win
+                if (previousByName.put(entry.name, entry) != null) {
+                    previousByName.clear();
+                    return false;
+                }
+            }
+            previousEntries = entries;
+        }
+        return !previousEntries.isEmpty();
+    }
+
+    private byte[] readRaw(PreviousEntry entry) throws IOException {
+        byte[] local = new byte[LOCAL_SIZE];
+        previousFile.seek(entry.localOffset);
+        previousFile.readFully(local);
+        if (getInt(local, 0) != LOCAL_SIGNATURE)
+            throw new ZipException("Invalid local header for "+entry.name+" in "+previous);
+        previousFile.seek(entry.localOffset + LOCAL_SIZE + getShort(local, 26) + getShort(local, 28));
+        byte[] data = new byte[entry.compressedSize];
+        previousFile.readFully(data);
+        return data;
+    }
+
+    private byte[] inflate(PreviousEntry entry) throws IOException {
+        byte[] raw = readRaw(entry);
+        if (entry.method == STORED)
+            return raw;
+        Inflater inflater = new Inflater(true);
+        try {
+            // the extra byte is required by Inflater in nowrap mode
+            inflater.setInput(Arrays.copyOf(raw, raw.length + 1));
+            byte[] ret = new byte[entry.size];
+            int read = 0;
+            while (read < ret.length) {
+                int n = inflater.inflate(ret, read, ret.length - read);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                read += n;
+            }
+            if (read != ret.length)
+                throw new ZipException("Truncated entry "+entry.name+" in "+previous);
+            return ret;
+        } catch (DataFormatException e) {
+            throw new ZipException("Invalid entry "+entry.name+" in "+previous+": "+e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private Entry copy(PreviousEntry entry) throws IOException {
+        byte[] data = readRaw(entry);
+        return new Entry(entry.nameBytes, entry.comment, entry.flags & FLAG_UTF8,
+                entry.method, entry.dosTime, entry.size,
+                new Compressed(data, data.length, entry.crc), null);
+    }
+
+    /**
+     * Returns the central directory of the given archive, or null if we
+     * don't support it.
+     */
+    private static byte[] readCentralDirectory(RandomAccessFile raf) throws IOException {
+        long length = raf.length();
+        if (length < END_SIZE)
+            return null;
+        // the end record is at the end, followed by a comment of at most 64K
+        int tail = (int)Math.min(length, END_SIZE + 0xffff);
+        byte[] bytes = new byte[tail];
+        raf.seek(length - tail);
+        raf.readFully(bytes);
+        for (int end = tail - END_SIZE; end >= 0; end--) {
+            if (getInt(bytes, end) != END_SIGNATURE)
+                continue;
+            int count = getShort(bytes, end + 10);
+            long size = getInt(bytes, end + 12) & 0xffffffffL;
+            long start = getInt(bytes, end + 16) & 0xffffffffL;
+            if (count == 0xffff || start == 0xffffffffL 
+                    || start + size > length - tail + end)
+                return null;
+            byte[] directory = new byte[(int)size];
+            raf.seek(start);
+            raf.readFully(directory);
+            // make sure it is consistent before we walk it
+            int pos = 0;
+            for (int i = 0; i < count; i++) {
+                if (pos + CENTRAL_SIZE > directory.length 
+                        || getInt(directory, pos) != CENTRAL_SIGNATURE)
+                    return null;
+                pos = nextCentral(directory, pos);
+            }
+            return pos == directory.length ? directory : null;
+        }
+        return null;
+    }
+
+    private static int nextCentral(byte[] directory, int pos) {
+        return pos + CENTRAL_SIZE 
+                + getShort(directory, pos + 28) 
+                + getShort(directory, pos + 30) 
+                + getShort(directory, pos + 32);
+    }
+
+    private void write(Entry entry) throws IOException {
+        Compressed compressed = entry.get();
+        entry.offset = written;
+        if (written > 0xffffffffL)
+            throw new ZipException("Archive too large for a non-ZIP64 archive");
+        // we never write data descriptors, so the sizes are in the headers
+        int flags = entry.flags & ~FLAG_DATA_DESCRIPTOR;
+        byte[] header = new byte[LOCAL_SIZE];
+        putInt(header, 0, LOCAL_SIGNATURE);
+        putShort(header, 4, VERSION);
+        putShort(header, 6, flags);
+        putShort(header, 8, entry.method);
+        putInt(header, 10, entry.dosTime);
+        putInt(header, 14, compressed.crc);
+        putInt(header, 18, compressed.length);
+        putInt(header, 22, entry.size);
+        putShort(header, 26, entry.name.length);
+        putShort(header, 28, 0);
+        out.write(header);
+        out.write(entry.name);
+        out.write(compressed.data, 0, compressed.length);
+        written += LOCAL_SIZE + entry.name.length + compressed.length;
+
+        byte[] record = new byte[CENTRAL_SIZE];
+        putInt(record, 0, CENTRAL_SIGNATURE);
+        putShort(record, 4, VERSION);
+        putShort(record, 6, VERSION);
+        putShort(record, 8, flags);
+        putShort(record, 10, entry.method);
+        putInt(record, 12, entry.dosTime);
+        putInt(record, 16, compressed.crc);
+        putInt(record, 20, compressed.length);
+        putInt(record, 24, entry.size);
+        putShort(record, 28, entry.name.length);
+        putShort(record, 30, 0);
+        putShort(record, 32, entry.comment.length);
+        putInt(record, 42, (int)entry.offset);
+        central.write(record);
+        central.write(entry.name);
+        central.write(entry.comment);
+        // let the data be collected as soon as possible
+        entry.compressed = null;
+    }
+
+    @Override
+    public void finish() throws IOException {
+        ensureOpen();
+        if (current != null)
+            closeEntry();
+        while (!pending.isEmpty())
+            write(pending.poll());
+        if (written > 0xffffffffL)
+            throw new ZipException("Archive too large for a non-ZIP64 archive");
+        byte[] end = new byte[END_SIZE];
+        putInt(end, 0, END_SIGNATURE);
+        putShort(end, 8, entries);
+        putShort(end, 10, entries);
+        putInt(end, 12, central.size());
+        putInt(end, 16, (int)written);
+        central.writeTo(out);
+        out.write(end);
+        closed = true;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (!closed)
+                finish();
+        } finally {
+            closed = true;
+            out.close();
+            if (previousFile != null) {
+                previousFile.close();
+                previousFile = null;
+            }
+            // don't compress what we will never write
+            for (Entry entry : pending) {
+                if (entry.future != null)
+                    entry.future.cancel(false);
+            }
+            pending.clear();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed)
+            throw new IOException("Stream closed");
+    }
+
+    private static Compressed deflate(byte[] data, int length, int crc, int level) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            byte[] out = new byte[Math.max(64, length / 2)];
+            int size = 0;
+            while (!deflater.finished()) {
+                if (size == out.length)
+                    out = Arrays.copyOf(out, out.length * 2);
+                size += deflater.deflate(out, size, out.length - size);
+            }
+            return new Compressed(out, size, crc);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static int flags(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) >= 0x80)
+                return FLAG_UTF8;
+        }
+        return 0;
+    }
+
+    private static byte[] encode(String string) {
+        return string != null ? string.getBytes(UTF8) : new byte[0];
+    }
+
+    /**
+     * Converts a Java time to a MS-DOS date and time, as {@link java.util.zip.ZipOutputStream} does.
+     */
+    private int dosTime(long time) {
+        calendar.setTimeInMillis(time);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980)
+            return (1 << 21) | (1 << 16);
+        return (year - 1980) << 25
+                | (calendar.get(Calendar.MONTH) + 1) << 21
+                | calendar.get(Calendar.DAY_OF_MONTH) << 16
+                | calendar.get(Calendar.HOUR_OF_DAY) << 11
+                | calendar.get(Calendar.MINUTE) << 5
+                | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    private static int getShort(byte[] b, int pos) {
+        return (b[pos] & 0xff) | (b[pos + 1] & 0xff) << 8;
+    }
+
+    private static int getInt(byte[] b, int pos) {
+        return getShort(b, pos) | getShort(b, pos + 2) << 16;
+    }
+
+    private static void putShort(byte[] b, int pos, int value) {
+        b[pos] = (byte)value;
+        b[pos + 1] = (byte)(value >>> 8);
+    }
+
+    private static void putInt(byte[] b, int pos, int value) {
+        putShort(b, pos, value);
+        putShort(b, pos + 2, value >>> 16);
+    }
+}
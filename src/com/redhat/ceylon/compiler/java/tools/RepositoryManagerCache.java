@@ -0,0 +1,91 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.java.tools;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.redhat.ceylon.cmr.api.RepositoryManager;
+import com.sun.tools.javac.util.Context;
+import com.sun.tools.javac.util.Log;
+import com.sun.tools.javac.util.Options;
+
+/**
+ * Holds input {@link RepositoryManager}s across several compilations, keyed
+ * by their repository configuration, so that a long-lived compiler (see
+ * {@link com.redhat.ceylon.compiler.java.launcher.CompilerDaemon}) does not
+ * have to rebuild them for every compilation.
+ *
+ * When an instance is registered in a javac {@link Context},
+ * {@link CeyloncFileManager#getRepositoryManager()} will use it.
+ */
+public class RepositoryManagerCache {
+
+    private static class Entry {
+        final RepositoryManager repositoryManager;
+        final JavacLogger logger;
+
+        Entry(RepositoryManager repositoryManager, JavacLogger logger) {
+            this.repositoryManager = repositoryManager;
+            this.logger = logger;
+        }
+    }
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * Registers this cache in the given context
+     */
+    public void preRegister(Context context) {
+        context.put(RepositoryManagerCache.class, this);
+    }
+
+    /**
+     * Returns the cache registered in the given context, or null.
+     */
+    public static RepositoryManagerCache instance(Context context) {
+        return context.get(RepositoryManagerCache.class);
+    }
+
+    /**
+     * Returns the repository manager cached for the given key, or null.
+     * The logger of a cached repository manager is redirected to the given
+     * compilation's log.
+     */
+    public synchronized RepositoryManager get(String key, Options options, Log log) {
+        Entry entry = entries.get(key);
+        if(entry == null)
+            return null;
+        entry.logger.retarget(options, log);
+        return entry.repositoryManager;
+    }
+
+    public synchronized void put(String key, RepositoryManager repositoryManager, JavacLogger logger) {
+        entries.put(key, new Entry(repositoryManager, logger));
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.java.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Records hierarchical spans of the compiler phases, with their wall time,
+ * CPU time, allocated bytes and counters, and writes them to a file in the
+ * Chrome trace event format, which is plain JSON and can be loaded in
+ * <tt>chrome://tracing</tt> or similar viewers.
+ *
+ * Spans are nested per thread: a span started while another one is open on
+ * the same thread is its child, and the counters of a child are added to its
+ * parent when it ends. Time spent in categories, such as the model loader,
+ * is not recorded as spans, since they are entered far too often, but added
+ * up in counters of the current span. Use it through {@link Timer}.
+ */
+public class Profile {
+
+    /**
+     * An open span, which must be {@linkplain #end() ended} on the thread
+     * which started it.
+     */
+    public static class Span {
+        /** A span which does nothing, when we're not profiling */
+        public static final Span NONE = new Span(null, null, null, null);
+
+        private final Profile profile;
+        private final Span parent;
+        private final String name;
+        private final String detail;
+        private long startNanos;
+        private long startCpu;
+        private long startAllocated;
+        private Map<String, Long> counters;
+        private boolean ended;
+
+        private Span(Profile profile, Span parent, String name, String detail) {
+            this.profile = profile;
+            this.parent = parent;
+            this.name = name;
+            this.detail = detail;
+        }
+
+        private void count(String counter, long delta) {
+            if(counters == null)
+                counters = new HashMap<String, Long>();
+            Long value = counters.get(counter);
+            counters.put(counter, value != null ? value + delta : delta);
+        }
+
+        /**
+         * Ends this span, and any of its children which were left open.
+         */
+        public void end() {
+            if(profile != null)
+                profile.end(this);
+        }
+    }
+
+    private static class Category {
+        int depth;
+        long startNanos;
+    }
+
+    private static class Event {
+        final String name;
+        final String detail;
+        final long thread;
+        final long start;
+        final long duration;
+        final long cpu;
+        final long allocated;
+        final Map<String, Long> counters;
+
+        Event(String name, String detail, long thread, long start, long duration, long cpu, long allocated, Map<String, Long> counters) {
+            this.name = name;
+            this.detail = detail;
+            this.thread = thread;
+            this.start = start;
+            this.duration = duration;
+            this.cpu = cpu;
+            this.allocated = allocated;
+            this.counters = counters;
+        }
+    }
+
+    private final File file;
+    private final long start = System.nanoTime();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final boolean cpuTime;
+    private final ThreadLocal<Span> current = new ThreadLocal<Span>();
+    // com.sun.management.ThreadMXBean.getThreadAllocatedBytes(long), if this JVM has it
+    private final Method threadAllocatedBytes;
+    private final ThreadLocal<Map<String, Category>> categories = new ThreadLocal<Map<String, Category>>();
+    private final List<Event> events = new ArrayList<Event>();
+    private final Map<String, Long> totals = new TreeMap<String, Long>();
+
+    public Profile(File file) {
+        this.file = file;
+        boolean cpuTime = false;
+        try {
+            cpuTime = threads.isCurrentThreadCpuTimeSupported();
+            if(cpuTime && !threads.isThreadCpuTimeEnabled())
+                threads.setThreadCpuTimeEnabled(true);
+        } catch (UnsupportedOperationException e) {
+            cpuTime = false;
+        }
+        this.cpuTime = cpuTime;
+        this.threadAllocatedBytes = getThreadAllocatedBytesMethod(threads);
+    }
+
+    /**
+     * Looks up the HotSpot extension by name, so that we still run on JVMs
+     * which don't have it.
+     */
+    private static Method getThreadAllocatedBytesMethod(ThreadMXBean threads) {
+        try {
+            Class<?> hotSpotThreads = Class.forName("com.sun.management.ThreadMXBean");
+            if(!hotSpotThreads.isInstance(threads)
+                    || !Boolean.TRUE.equals(hotSpotThreads.getMethod("isThreadAllocatedMemorySupported").invoke(threads)))
+                return null;
+            return hotSpotThreads.getMethod("getThreadAllocatedBytes", long.class);
+        } catch (Exception e) {
+            return null;
+        } catch (LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * Starts a span, as a child of the current span of this thread.
+     * @param detail An optional detail, such as a file name, shown with the span
+     */
+    public Span start(String name, String detail) {
+        Span span = new Span(this, current.get(), name, detail);
+        span.startCpu = cpuTime();
+        span.startAllocated = allocatedBytes();
+        span.startNanos = System.nanoTime();
+        current.set(span);
+        return span;
+    }
+
+    private void end(Span span) {
+        if(span.ended)
+            return;
+        // end the children which are still open
+        Span open = current.get();
+        if(isAncestor(span, open)){
+            while(open != span){
+                end(open);
+                open = current.get();
+            }
+        }
+        long now = System.nanoTime();
+        long cpu = span.startCpu >= 0 ? cpuTime() - span.startCpu : -1;
+        long allocated = -1;
+        if(span.startAllocated >= 0){
+            long endAllocated = allocatedBytes();
+            if(endAllocated >= 0)
+                allocated = endAllocated - span.startAllocated;
+        }
+        span.ended = true;
+        if(open == span)
+            current.set(span.parent);
+        if(span.parent != null && span.counters != null){
+            for(Map.Entry<String, Long> counter : span.counters.entrySet())
+                span.parent.count(counter.getKey(), counter.getValue());
+        }
+        Event event = new Event(span.name, span.detail, Thread.currentThread().getId(),
+                span.startNanos - start, now - span.startNanos, cpu, allocated, span.counters);
+        synchronized(events){
+            events.add(event);
+        }
+    }
+
+    private static boolean isAncestor(Span ancestor, Span span) {
+        while(span != null){
+            if(span == ancestor)
+                return true;
+            span = span.parent;
+        }
+        return false;
+    }
+
+    /**
+     * Adds the given delta to a counter of the current span of this thread,
+     * and to its total.
+     */
+    public void count(String counter, long delta) {
+        Span span = current.get();
+        if(span != null)
+            span.count(counter, delta);
+        synchronized(totals){
+            Long value = totals.get(counter);
+            totals.put(counter, value != null ? value + delta : delta);
+        }
+    }
+
+    /**
+     * Enters the given category on this thread. Reentrant calls are ignored,
+     * and the time until we {@linkplain #exitCategory(String) exit} it is added
+     * to the <tt>"&lt;category&gt; micros"</tt> counter of the current span,
+     * while <tt>"&lt;category&gt; entries"</tt> counts how many times we entered it.
+     */
+    public void enterCategory(String category) {
+        Map<String, Category> map = categories.get();
+        if(map == null){
+            map = new HashMap<String, Category>();
+            categories.set(map);
+        }
+        Category entry = map.get(category);
+        if(entry == null){
+            entry = new Category();
+            map.put(category, entry);
+        }
+        if(entry.depth++ == 0)
+            entry.startNanos = System.nanoTime();
+    }
+
+    public void exitCategory(String category) {
+        Map<String, Category> map = categories.get();
+        Category entry = map != null ? map.get(category) : null;
+        if(entry == null || entry.depth == 0)
+            return;
+        if(--entry.depth == 0){
+            count(category + " micros", (System.nanoTime() - entry.startNanos) / 1000);
+            count(category + " entries", 1);
+        }
+    }
+
+    private long cpuTime() {
+        return cpuTime ? threads.getCurrentThreadCpuTime() : -1;
+    }
+
+    private long allocatedBytes() {
+        if(threadAllocatedBytes == null)
+            return -1;
+        try {
+            return (Long)threadAllocatedBytes.invoke(threads, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Writes every ended span to our file
+     */
+    public void write() throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try{
+            write(out);
+        }finally{
+            out.close();
+        }
+    }
+
+    void write(Writer out) throws IOException {
+        out.write("{\"traceEvents\":[\n");
+        boolean first = true;
+        synchronized(events){
+            for(Event event : events){
+                if(!first)
+                    out.write(",\n");
+                first = false;
+                out.write("{\"ph\":\"X\",\"pid\":1,\"tid\":");
+                out.write(Long.toString(event.thread));
+                out.write(",\"name\":");
+                writeString(out, event.name);
+                out.write(",\"ts\":");
+                writeMicros(out, event.start);
+                out.write(",\"dur\":");
+                writeMicros(out, event.duration);
+                out.write(",\"args\":{");
+                boolean firstArg = true;
+                if(event.detail != null){
+                    out.write("\"detail\":");
+                    writeString(out, event.detail);
+                    firstArg = false;
+                }
+                if(event.cpu >= 0){
+                    out.write(firstArg ? "\"cpuMicros\":" : ",\"cpuMicros\":");
+                    writeMicros(out, event.cpu);
+                    firstArg = false;
+                }
+                if(event.allocated >= 0){
+                    out.write(firstArg ? "\"allocatedBytes\":" : ",\"allocatedBytes\":");
+                    out.write(Long.toString(event.allocated));
+                    firstArg = false;
+                }
+                if(event.counters != null){
+                    for(Map.Entry<String, Long> counter : new TreeMap<String, Long>(event.counters).entrySet()){
+                        if(!firstArg)
+                            out.write(",");
+                        writeString(out, counter.getKey());
+                        out.write(":");
+                        out.write(Long.toString(counter.getValue()));
+                        firstArg = false;
+                    }
+                }
+                out.write("}}");
+            }
+        }
+        out.write("\n],\"displayTimeUnit\":\"ms\",\"otherData\":{\"counters\":{");
+        synchronized(totals){
+            first = true;
+            for(Map.Entry<String, Long> counter : totals.entrySet()){
+                if(!first)
+                    out.write(",");
+                writeString(out, counter.getKey());
+                out.write(":");
+                out.write(Long.toString(counter.getValue()));
+                first = false;
+            }
+        }
+        out.write("}}}\n");
+    }
+
+    private static void writeMicros(Writer out, long nanos) throws IOException {
+        out.write(Long.toString(nanos / 1000));
+        out.write('.');
+        String fraction = Long.toString(nanos % 1000);
+        for(int i = fraction.length(); i < 3; i++)
+            out.write('0');
+        out.write(fraction);
+    }
+
+    private static void writeString(Writer out, String string) throws IOException {
+        out.write('"');
+        for(int i = 0; i < string.length(); i++){
+            char c = string.charAt(i);
+            switch(c){
+            case '"': out.write("\\\""); break;
+            case '\\': out.write("\\\\"); break;
+            case '\n': out.write("\\n"); break;
+            case '\r': out.write("\\r"); break;
+            case '\t': out.write("\\t"); break;
+            default:
+                if(c < 0x20){
+                    String hex = Integer.toHexString(c);
+                    out.write("\\u");
+                    for(int j = hex.length(); j < 4; j++)
+                        out.write('0');
+                    out.write(hex);
+                }else{
+                    out.write(c);
+                }
+            }
+        }
+        out.write('"');
+    }
+}
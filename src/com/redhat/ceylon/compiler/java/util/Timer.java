@@ -19,6 +19,8 @@
  */
 package com.redhat.ceylon.compiler.java.util;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.HashMap;
 import java.util.Map;
@@ -28,21 +30,30 @@ import com.sun.tools.javac.util.Context;
 import com.sun.tools.javac.util.Log;
 import com.sun.tools.javac.util.Options;
 
+/**
+ * Times the compiler tasks, printing them when the <tt>-verbose:benchmark</tt>
+ * option is set, and recording them as hierarchical spans with counters in a
+ * {@link Profile} when the <tt>-profile</tt> option is set.
+ */
 public class Timer {
     private long programStart;
     private String currentTask;
     private long currentTaskStart;
+    private Profile.Span currentSpan;
     private boolean verbose;
     private final Map<String,IgnoredCategory> ignoredCategories;
     private PrintWriter out;
+    private Profile profile;
+    private boolean profileWritten;
 
     private static final Context.Key<Timer> timerKey = new Context.Key<Timer>();
     
-    private Timer(PrintWriter out, long programStart, boolean verbose, Map<String,IgnoredCategory> ignoredCategories) {
+    private Timer(PrintWriter out, long programStart, boolean verbose, Map<String,IgnoredCategory> ignoredCategories, Profile profile) {
         this.programStart = programStart;
         this.verbose = verbose;
         this.ignoredCategories = ignoredCategories;
         this.out = out;
+        this.profile = profile;
     }
     
     public static Timer instance(Context context) {
@@ -65,6 +76,9 @@ public class Timer {
         verbose = options.get(OptionName.VERBOSE) != null 
                 || options.get(OptionName.VERBOSE + ":benchmark" ) != null;
         out = context.get(Log.outKey);
+        String profileFile = options.get(OptionName.CEYLONPROFILE);
+        if(profileFile != null)
+            profile = new Profile(new File(profileFile));
     }
     
     private void setup(boolean verbose) {
@@ -88,6 +102,59 @@ public class Timer {
         log("Program end");
     }
 
+    /**
+     * Ends the current task and writes the {@link Profile}, if we're 
+     * recording one and did not write it yet.
+     */
+    public void writeProfile() {
+        if(profile == null || profileWritten)
+            return;
+        if(currentSpan != null){
+            currentSpan.end();
+            currentSpan = null;
+        }
+        profileWritten = true;
+        try {
+            profile.write();
+        } catch (IOException e) {
+            String msg = "Failed to write profile to "+profile.getFile()+": "+e.getMessage();
+            if(out != null)
+                out.println(msg);
+            else
+                System.err.println(msg);
+        }
+    }
+
+    /**
+     * Returns true if we're recording a {@link Profile}, so callers can
+     * avoid computing span details for nothing.
+     */
+    public boolean isProfiling() {
+        return profile != null;
+    }
+
+    /**
+     * Starts a profiling span nested in the current one of this thread,
+     * which must be {@linkplain Profile.Span#end() ended}. Unlike 
+     * {@link #startTask(String)} it does not end the current task.
+     * 
+     * @param name The name of the span
+     * @param detail An optional detail, such as the file being processed
+     */
+    public Profile.Span startSpan(String name, String detail) {
+        if(profile == null)
+            return Profile.Span.NONE;
+        return profile.start(name, detail);
+    }
+
+    /**
+     * Adds the given delta to a profiling counter of the current span of this thread
+     */
+    public void count(String counter, long delta) {
+        if(profile != null)
+            profile.count(counter, delta);
+    }
+
     /**
      * {@linkplain #endTask() Ends} the current task (if any) and starts a 
      * timed task with the given name, 
@@ -98,13 +165,16 @@ public class Timer {
      * @see #nestedTimer()
      */
     public void startTask(String name){
-        if(!verbose)
+        if(!verbose && profile == null)
             return;
         if(currentTask != null)
             endTask();
         currentTask = name;
         currentTaskStart = System.nanoTime();
-        log("Task "+currentTask+" start");
+        if(profile != null)
+            currentSpan = profile.start(name, null);
+        if(verbose)
+            log("Task "+currentTask+" start");
     }
     
     /**
@@ -146,8 +216,14 @@ public class Timer {
      * @see #startTask(String)
      */
     public void endTask() {
-        if(!verbose)
+        if(currentSpan != null){
+            currentSpan.end();
+            currentSpan = null;
+        }
+        if(!verbose){
+            currentTask = null;
             return;
+        }
         long time = System.nanoTime();
         long delta = (time - currentTaskStart)/1_000_000L;
         log("Task "+currentTask+" end: "+delta+"ms");
@@ -156,6 +232,8 @@ public class Timer {
     }
 
     public void startIgnore(String category) {
+        if(profile != null)
+            profile.enterCategory(category);
         if(!verbose)
             return;
         IgnoredCategory ignoredCategory = ignoredCategories.get(category);
@@ -167,6 +245,8 @@ public class Timer {
     }
 
     public void stopIgnore(String category) {
+        if(profile != null)
+            profile.exitCategory(category);
         if(!verbose)
             return;
         IgnoredCategory ignoredCategory = ignoredCategories.get(category);
@@ -220,6 +300,6 @@ public class Timer {
      * @return The new timer
      */
     public Timer nestedTimer() {
-        return new Timer(out, programStart, verbose, ignoredCategories);
+        return new Timer(out, programStart, verbose, ignoredCategories, profile);
     }
 }
@@ -20,11 +20,18 @@
 
 package com.redhat.ceylon.compiler.java.util;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
 
 import javax.tools.JavaFileObject.Kind;
 
@@ -149,6 +156,36 @@ public class Util {
         outputStream.flush();
     }
 
+    /**
+     * Stores the given properties like {@link Properties#store(OutputStream, String)},
+     * but sorted by key and without the date comment, so that the same
+     * properties always give the same bytes.
+     * @param comment An optional single line of ASCII comment
+     */
+    public static void storeProperties(final Properties properties, String comment, OutputStream outputStream) throws IOException {
+        Properties sorted = new Properties(){
+            private static final long serialVersionUID = 1L;
+            @Override
+            public synchronized Enumeration<Object> keys() {
+                return Collections.enumeration(new TreeMap<Object,Object>(properties).keySet());
+            }
+            @Override
+            public Set<Map.Entry<Object,Object>> entrySet() {
+                return new TreeMap<Object,Object>(properties).entrySet();
+            }
+        };
+        sorted.putAll(properties);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        sorted.store(bytes, null);
+        byte[] data = bytes.toByteArray();
+        // skip the date comment, which is the first line
+        int start = 0;
+        while(start < data.length && data[start++] != '\n'){}
+        if(comment != null)
+            outputStream.write(("#" + comment + "\n").getBytes("ISO-8859-1"));
+        outputStream.write(data, start, data.length - start);
+    }
+
     public static boolean isSubPackage(String moduleName, String pkgName) {
         return pkgName.equals(moduleName)
                 || pkgName.startsWith(moduleName+".");
@@ -32,6 +32,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.lang.model.type.TypeKind;
 
@@ -135,6 +136,9 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
     public static final String CEYLON_LANGUAGE_SERIALIZATION = "ceylon.language.serialization";
     
     private static final String TIMER_MODEL_LOADER_CATEGORY = "model loader";
+    private static final String TIMER_DECLARATIONS_LOADED_COUNTER = "declarations loaded";
+    private static final String TIMER_CLASS_MIRRORS_COMPLETED_COUNTER = "class mirrors completed";
+    private static final String TIMER_CLASS_MIRRORS_LOOKED_UP_COUNTER = "class mirrors looked up";
     
     public static final String CEYLON_CEYLON_ANNOTATION = "com.redhat.ceylon.compiler.java.metadata.Ceylon";
     private static final String CEYLON_MODULE_ANNOTATION = "com.redhat.ceylon.compiler.java.metadata.Module";
@@ -285,6 +289,15 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
     protected Unit typeFactory;
     protected final Set<String> loadedPackages = new HashSet<String>();
     protected final Map<String,LazyPackage> packagesByName = new HashMap<String,LazyPackage>();
+    /*
+     * The following caches are only filled with results which are complete, under the
+     * lock, so that we can look them up without taking the lock. Everything which
+     * creates or completes model objects still happens under getLock().
+     */
+    private final Map<String,LazyPackage> completedPackagesByName = new ConcurrentHashMap<String,LazyPackage>();
+    private final Map<String,ClassMirror> foundClassMirrors = new ConcurrentHashMap<String,ClassMirror>();
+    private final Map<String,Declaration> resolvedTypeDeclarations = new ConcurrentHashMap<String,Declaration>();
+    private final Map<String,Declaration> resolvedValueDeclarations = new ConcurrentHashMap<String,Declaration>();
     protected boolean packageDescriptorsNeedLoading = false;
     protected boolean isBootstrap;
     protected ModuleManager moduleManager;
@@ -333,24 +346,28 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
      * @return a ClassMirror for the specified class, or null if not found.
      */
     public final ClassMirror lookupClassMirror(Module module, String name) {
+        // Java array classes are not where we expect them
+        if (JAVA_LANG_OBJECT_ARRAY.equals(name)
+                || JAVA_LANG_BOOLEAN_ARRAY.equals(name)
+                || JAVA_LANG_BYTE_ARRAY.equals(name)
+                || JAVA_LANG_SHORT_ARRAY.equals(name)
+                || JAVA_LANG_INT_ARRAY.equals(name)
+                || JAVA_LANG_LONG_ARRAY.equals(name)
+                || JAVA_LANG_FLOAT_ARRAY.equals(name)
+                || JAVA_LANG_DOUBLE_ARRAY.equals(name)
+                || JAVA_LANG_CHAR_ARRAY.equals(name)) {
+            // turn them into their real class location (get rid of the "java.lang" prefix)
+            name = "com.redhat.ceylon.compiler.java.language" + name.substring(9);
+            module = getLanguageModule();
+        }
+        String cacheKey = cacheKeyByModule(module, name);
+        // no need to lock for mirrors we already found
+        ClassMirror foundMirror = foundClassMirrors.get(cacheKey);
+        if(foundMirror != null)
+            return foundMirror;
         synchronized(getLock()){
             timer.startIgnore(TIMER_MODEL_LOADER_CATEGORY);
             try{
-                // Java array classes are not where we expect them
-                if (JAVA_LANG_OBJECT_ARRAY.equals(name)
-                        || JAVA_LANG_BOOLEAN_ARRAY.equals(name)
-                        || JAVA_LANG_BYTE_ARRAY.equals(name)
-                        || JAVA_LANG_SHORT_ARRAY.equals(name)
-                        || JAVA_LANG_INT_ARRAY.equals(name)
-                        || JAVA_LANG_LONG_ARRAY.equals(name)
-                        || JAVA_LANG_FLOAT_ARRAY.equals(name)
-                        || JAVA_LANG_DOUBLE_ARRAY.equals(name)
-                        || JAVA_LANG_CHAR_ARRAY.equals(name)) {
-                    // turn them into their real class location (get rid of the "java.lang" prefix)
-                    name = "com.redhat.ceylon.compiler.java.language" + name.substring(9);
-                    module = getLanguageModule();
-                }
-                String cacheKey = cacheKeyByModule(module, name);
                 // we use containsKey to be able to cache null results
                 if(classMirrorCache.containsKey(cacheKey)) {
                     ClassMirror cachedMirror = classMirrorCache.get(cacheKey);
@@ -358,9 +375,12 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
                         return cachedMirror;
                     }
                 }
+                timer.count(TIMER_CLASS_MIRRORS_LOOKED_UP_COUNTER, 1);
                 ClassMirror mirror = lookupNewClassMirror(module, name);
                 // we even cache null results
                 classMirrorCache.put(cacheKey, mirror);
+                if(mirror != null)
+                    foundClassMirrors.put(cacheKey, mirror);
                 return mirror;
             }finally{
                 timer.stopIgnore(TIMER_MODEL_LOADER_CATEGORY);
@@ -593,6 +613,7 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
         if (alreadyExists[0]) {
             return decl;
         }
+        timer.count(TIMER_DECLARATIONS_LOADED_COUNTER, decls.size());
 
         LazyPackage pkg = findOrCreatePackage(module, pkgName);
 
@@ -1379,49 +1400,70 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
     }
 
     public Declaration convertToDeclaration(Module module, String typeName, DeclarationType declarationType)  {
+        // no need to lock for declarations we already resolved
+        Map<String,Declaration> resolvedDeclarations = null;
+        String resolvedKey = null;
+        if(module != null && !isBootstrap){
+            resolvedDeclarations = declarationType == DeclarationType.VALUE ? resolvedValueDeclarations : resolvedTypeDeclarations;
+            resolvedKey = cacheKeyByModule(module, typeName);
+            Declaration resolved = resolvedDeclarations.get(resolvedKey);
+            if(resolved != null)
+                return resolved;
+        }
+        // if we're called while loading something else, what we return may not be
+        // complete yet (not added to its container for example), so we only publish
+        // it when we're not nested
+        boolean nested = Thread.holdsLock(getLock());
         synchronized(getLock()){
-            // FIXME: this needs to move to the type parser and report warnings
-            //This should be done where the TypeInfo annotation is parsed
-            //to avoid retarded errors because of a space after a comma
-            typeName = typeName.trim();
-            timer.startIgnore(TIMER_MODEL_LOADER_CATEGORY);
+            Declaration ret = convertToDeclarationLocked(module, typeName, declarationType);
+            if(ret != null && resolvedDeclarations != null && !nested)
+                resolvedDeclarations.put(resolvedKey, ret);
+            return ret;
+        }
+    }
+
+    private Declaration convertToDeclarationLocked(Module module, String typeName, DeclarationType declarationType)  {
+        // FIXME: this needs to move to the type parser and report warnings
+        //This should be done where the TypeInfo annotation is parsed
+        //to avoid retarded errors because of a space after a comma
+        typeName = typeName.trim();
+        timer.startIgnore(TIMER_MODEL_LOADER_CATEGORY);
+        try{
+            if ("ceylon.language.Nothing".equals(typeName)) {
+                return typeFactory.getNothingDeclaration();
+            } else if ("java.lang.Throwable".equals(typeName)) {
+                // FIXME: this being here is highly dubious
+                return convertToDeclaration(modules.getLanguageModule(), "ceylon.language.Throwable", declarationType);
+            } else if ("java.lang.Exception".equals(typeName)) {
+                // FIXME: this being here is highly dubious
+                return convertToDeclaration(modules.getLanguageModule(), "ceylon.language.Exception", declarationType);
+            }
+            ClassMirror classMirror;
             try{
-                if ("ceylon.language.Nothing".equals(typeName)) {
-                    return typeFactory.getNothingDeclaration();
-                } else if ("java.lang.Throwable".equals(typeName)) {
-                    // FIXME: this being here is highly dubious
-                    return convertToDeclaration(modules.getLanguageModule(), "ceylon.language.Throwable", declarationType);
-                } else if ("java.lang.Exception".equals(typeName)) {
-                    // FIXME: this being here is highly dubious
-                    return convertToDeclaration(modules.getLanguageModule(), "ceylon.language.Exception", declarationType);
-                }
-                ClassMirror classMirror;
-                try{
-                    classMirror = lookupClassMirror(module, typeName);
-                }catch(NoClassDefFoundError x){
-                    // FIXME: this may not be the best thing to do. If the class is not there we don't know what type of declaration
-                    // to return, but perhaps if we use annotation scanner rather than reflection we can figure it out, at least
-                    // in cases where the supertype is missing, which throws in reflection at class load.
-                    return logModelResolutionException(x.getMessage(), null, "Unable to load type "+typeName).getDeclaration();
+                classMirror = lookupClassMirror(module, typeName);
+            }catch(NoClassDefFoundError x){
+                // FIXME: this may not be the best thing to do. If the class is not there we don't know what type of declaration
+                // to return, but perhaps if we use annotation scanner rather than reflection we can figure it out, at least
+                // in cases where the supertype is missing, which throws in reflection at class load.
+                return logModelResolutionException(x.getMessage(), null, "Unable to load type "+typeName).getDeclaration();
+            }
+            if (classMirror == null) {
+                // special case when bootstrapping because we may need to pull the decl from the typechecked model
+                if(isBootstrap && typeName.startsWith(CEYLON_LANGUAGE+".")){
+                    Declaration languageDeclaration = findLanguageModuleDeclarationForBootstrap(typeName);
+                    if(languageDeclaration != null)
+                        return languageDeclaration;
                 }
-                if (classMirror == null) {
-                    // special case when bootstrapping because we may need to pull the decl from the typechecked model
-                    if(isBootstrap && typeName.startsWith(CEYLON_LANGUAGE+".")){
-                        Declaration languageDeclaration = findLanguageModuleDeclarationForBootstrap(typeName);
-                        if(languageDeclaration != null)
-                            return languageDeclaration;
-                    }
 
-                    throw new ModelResolutionException("Failed to resolve "+typeName);
-                }
-                // we only allow source loading when it's java code we're compiling in the same go
-                // (well, technically before the ceylon code)
-                if(classMirror.isLoadedFromSource() && !classMirror.isJavaSource())
-                    return null;
-                return convertToDeclaration(module, classMirror, declarationType);
-            }finally{
-                timer.stopIgnore(TIMER_MODEL_LOADER_CATEGORY);
+                throw new ModelResolutionException("Failed to resolve "+typeName);
             }
+            // we only allow source loading when it's java code we're compiling in the same go
+            // (well, technically before the ceylon code)
+            if(classMirror.isLoadedFromSource() && !classMirror.isJavaSource())
+                return null;
+            return convertToDeclaration(module, classMirror, declarationType);
+        }finally{
+            timer.stopIgnore(TIMER_MODEL_LOADER_CATEGORY);
         }
     }
 
@@ -1484,8 +1526,11 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
     // Packages
     
     public LazyPackage findExistingPackage(Module module, String pkgName) {
+        String quotedPkgName = Util.quoteJavaKeywords(pkgName);
+        LazyPackage completedPackage = findCompletedPackage(module, quotedPkgName);
+        if(completedPackage != null)
+            return completedPackage;
         synchronized(getLock()){
-            String quotedPkgName = Util.quoteJavaKeywords(pkgName);
             LazyPackage pkg = findCachedPackage(module, quotedPkgName);
             if(pkg != null)
                 return pkg;
@@ -1505,6 +1550,16 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
         }
     }
     
+    private LazyPackage findCompletedPackage(Module module, String quotedPkgName) {
+        if(module == null)
+            return null;
+        LazyPackage pkg = completedPackagesByName.get(cacheKeyByModule(module, quotedPkgName));
+        // same check as findCachedPackage
+        if(pkg != null && pkg.getModule() != null && !module.equals(pkg.getModule()))
+            return null;
+        return pkg;
+    }
+
     private LazyPackage findCachedPackage(Module module, String quotedPkgName) {
         LazyPackage pkg = packagesByName.get(cacheKeyByModule(module, quotedPkgName));
         if(pkg != null){
@@ -1518,8 +1573,11 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
     }
 
     public LazyPackage findOrCreatePackage(Module module, final String pkgName)  {
+        String quotedPkgName = Util.quoteJavaKeywords(pkgName);
+        LazyPackage completedPackage = findCompletedPackage(module, quotedPkgName);
+        if(completedPackage != null)
+            return completedPackage;
         synchronized(getLock()){
-            String quotedPkgName = Util.quoteJavaKeywords(pkgName);
             LazyPackage pkg = findCachedPackage(module, quotedPkgName);
             if(pkg != null)
                 return pkg;
@@ -1550,6 +1608,9 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
             if(packageDescriptorsNeedLoading)
                 loadPackageDescriptor(pkg);
 
+            // now it's complete enough to be found without the lock
+            if(module != null && pkg.getModule() != null)
+                completedPackagesByName.put(cacheKeyByModule(module, quotedPkgName), pkg);
             return pkg;
         }
     }
@@ -2004,6 +2065,7 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
     }
 
     private void complete(ClassOrInterface klass, ClassMirror classMirror) {
+        timer.count(TIMER_CLASS_MIRRORS_COMPLETED_COUNTER, 1);
         Map<MethodMirror, List<MethodMirror>> variables = new HashMap<MethodMirror, List<MethodMirror>>();
         boolean isFromJDK = isFromJDK(classMirror);
         boolean isCeylon = (classMirror.getAnnotation(CEYLON_CEYLON_ANNOTATION) != null);
@@ -4480,7 +4542,12 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
 
                 classMirrorCache.remove(key);
                 classMirrorCache.remove(key + "_");
+                foundClassMirrors.remove(key);
+                foundClassMirrors.remove(key + "_");
             }
+            // we don't know under which names they were resolved
+            resolvedTypeDeclarations.clear();
+            resolvedValueDeclarations.clear();
         }
     }
 
@@ -4522,6 +4589,12 @@ public abstract class AbstractModelLoader implements ModelCompleter, ModelLoader
                 logVerbose("[ Package "+packageEntry.getKey().getNameAsString()+": "
                         +packageEntry.getValue().loaded+"(loaded)/"+packageEntry.getValue().total+"(total) declarations]");
             }
+            if(typeParser != null){
+                int hits = typeParser.getCacheHits();
+                int lookups = hits + typeParser.getCacheMisses();
+                logVerbose("[Type parser: "+hits+"(cached)/"+lookups+"(total) type strings"
+                        +(lookups > 0 ? ", "+(100 * hits / lookups)+"% hit rate" : "")+"]");
+            }
         }
     }
 
@@ -19,9 +19,12 @@
  */
 package com.redhat.ceylon.compiler.loader;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import com.redhat.ceylon.compiler.loader.model.FunctionOrValueInterface;
 import com.redhat.ceylon.compiler.typechecker.model.Declaration;
@@ -37,6 +40,12 @@ import com.redhat.ceylon.compiler.typechecker.model.TypedDeclaration;
 import com.redhat.ceylon.compiler.typechecker.model.UnionType;
 import com.redhat.ceylon.compiler.typechecker.model.Unit;
 
+/**
+ * Decodes the type strings of <tt>@TypeInfo</tt> annotations. We parse each string
+ * once into a tree of names, which we keep in a bounded cache, and resolve that
+ * tree against the scope of each use, since resolution depends on it through
+ * type parameters and relative names.
+ */
 public class TypeParser {
     public class Part {
         String name;
@@ -50,71 +59,138 @@ public class TypeParser {
         }
     }
 
+    /**
+     * A parsed type, before resolution
+     */
+    static abstract class ParsedType {}
+
+    static class ParsedUnionType extends ParsedType {
+        final List<ParsedType> caseTypes = new ArrayList<ParsedType>(2);
+    }
+
+    static class ParsedIntersectionType extends ParsedType {
+        final List<ParsedType> satisfiedTypes = new ArrayList<ParsedType>(2);
+    }
+
+    static class ParsedQualifiedType extends ParsedType {
+        // the qualifying type of a compound qualified type, or null
+        ParsedType qualifyingType;
+        // empty for compound qualified types and the default package
+        String pkg = "";
+        final List<ParsedPart> parts = new ArrayList<ParsedPart>(1);
+    }
+
+    static class ParsedPart {
+        String name;
+        List<ParsedType> parameters;
+        List<SiteVariance> variance;
+    }
+
+    /** The default number of parsed type strings we keep */
+    public static final int DEFAULT_CACHE_SIZE = 4096;
+
     private ModelLoader loader;
     private Unit unit;
     private TypeLexer lexer = new TypeLexer();
     private Scope scope;
     private Module moduleScope;
+    private final Map<String, ParsedType> parsedTypes;
+    private int cacheHits;
+    private int cacheMisses;
 
     public TypeParser(ModelLoader loader){
+        this(loader, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param cacheSize the maximum number of parsed type strings we keep, evicting
+     * the least recently used ones
+     */
+    public TypeParser(ModelLoader loader, final int cacheSize){
         this.loader = loader;
+        this.parsedTypes = new LinkedHashMap<String, ParsedType>(16, 0.75f, true){
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ParsedType> eldest) {
+                return size() > cacheSize;
+            }
+        };
     }
     
-    /*
-     * type: unionType EOT
-     */
     public ProducedType decodeType(String type, Scope scope, Module moduleScope, Unit unit){
-        // save the previous state (this method is reentrant)
-        char[] oldType = lexer.type;
-        int oldIndex = lexer.index;
-        int oldMark = lexer.mark;
+        ParsedType parsedType = parse(type);
+        // save the previous state (this method is reentrant, since resolving may load declarations)
         Scope oldScope = this.scope;
         Module oldModuleScope = this.moduleScope;
         Unit oldUnit = this.unit;
         try{
             // setup the new state
-            lexer.setup(type);
             this.scope = scope;
             this.moduleScope = moduleScope;
             this.unit = unit;
-            // do the parsing
-            ProducedType ret = parseType();
-            if(!lexer.lookingAt(TypeLexer.EOT))
-                throw new TypeParserException("Junk lexemes remaining: "+lexer.eatTokenString());
-            return ret;
+            return resolve(parsedType);
         }finally{
             // restore the previous state
-            lexer.type = oldType;
-            lexer.index = oldIndex;
-            lexer.mark = oldMark;
             this.scope = oldScope;
             this.moduleScope = oldModuleScope;
             this.unit = oldUnit;
         }
     }
 
+    /**
+     * Returns the number of type strings we did not have to parse again
+     */
+    public int getCacheHits() {
+        return cacheHits;
+    }
+
+    /**
+     * Returns the number of type strings we had to parse
+     */
+    public int getCacheMisses() {
+        return cacheMisses;
+    }
+
     /*
      * type: unionType EOT
      */
-    private ProducedType parseType(){
+    private ParsedType parse(String type){
+        ParsedType ret = parsedTypes.get(type);
+        if(ret != null){
+            cacheHits++;
+            return ret;
+        }
+        cacheMisses++;
+        // parsing never calls back into the loader, so we don't need to save the lexer state
+        lexer.setup(type);
+        ret = parseType();
+        if(!lexer.lookingAt(TypeLexer.EOT))
+            throw new TypeParserException("Junk lexemes remaining: "+lexer.eatTokenString());
+        parsedTypes.put(type, ret);
+        return ret;
+    }
+
+    /*
+     * type: unionType EOT
+     */
+    private ParsedType parseType(){
         return parseUnionType();
     }
 
     /*
      * unionType: intersectionType (| intersectionType)*
      */
-    private ProducedType parseUnionType() {
-        ProducedType firstType = parseIntersectionType();
+    private ParsedType parseUnionType() {
+        ParsedType firstType = parseIntersectionType();
         if(lexer.lookingAt(TypeLexer.OR)){
-            UnionType type = new UnionType(unit);
-            List<ProducedType> caseTypes = new LinkedList<ProducedType>();
-            type.setCaseTypes(caseTypes);
-            caseTypes.add(firstType);
+            ParsedUnionType type = new ParsedUnionType();
+            type.caseTypes.add(firstType);
             while(lexer.lookingAt(TypeLexer.OR)){
                 lexer.eat();
-                caseTypes.add(parseIntersectionType());
+                type.caseTypes.add(parseIntersectionType());
             }
-            return type.getType();
+            return type;
         }else{
             return firstType;
         }
@@ -123,18 +199,16 @@ public class TypeParser {
     /*
      * intersectionType: qualifiedType (& qualifiedType)*
      */
-    private ProducedType parseIntersectionType() {
-        ProducedType firstType = parseQualifiedType();
+    private ParsedType parseIntersectionType() {
+        ParsedType firstType = parseQualifiedType();
         if(lexer.lookingAt(TypeLexer.AND)){
-            IntersectionType type = new IntersectionType(unit);
-            List<ProducedType> satisfiedTypes = new LinkedList<ProducedType>();
-            type.setSatisfiedTypes(satisfiedTypes);
-            satisfiedTypes.add(firstType);
+            ParsedIntersectionType type = new ParsedIntersectionType();
+            type.satisfiedTypes.add(firstType);
             while(lexer.lookingAt(TypeLexer.AND)){
                 lexer.eat();
-                satisfiedTypes.add(parseQualifiedType());
+                type.satisfiedTypes.add(parseQualifiedType());
             }
-            return type.getType();
+            return type;
         }else{
             return firstType;
         }
@@ -143,7 +217,7 @@ public class TypeParser {
     /*
      * qualifiedType: compoundQualifiedType | simpleQualifiedType
      */
-    private ProducedType parseQualifiedType() {
+    private ParsedType parseQualifiedType() {
         if (lexer.lookingAt(TypeLexer.LT)) {
             return parseCompoundQualifiedType();
         } else {
@@ -154,34 +228,25 @@ public class TypeParser {
     /*
      * qualifiedType: < unionType > . typeNameWithArguments (. typeNameWithArguments)*
      */
-    private ProducedType parseCompoundQualifiedType() {
+    private ParsedType parseCompoundQualifiedType() {
+        ParsedQualifiedType type = new ParsedQualifiedType();
         lexer.eat(TypeLexer.LT);
-        ProducedType unionType = parseUnionType();
+        type.qualifyingType = parseUnionType();
         lexer.eat(TypeLexer.GT);
         lexer.eat(TypeLexer.DOT);
-        Part part = parseTypeNameWithArguments();
-        String fullName = part.name;
-        ProducedType qualifyingType = loadType("", fullName, part, unionType);
+        type.parts.add(parseTypeNameWithArguments());
         while(lexer.lookingAt(TypeLexer.DOT)){
             lexer.eat();
-            part = parseTypeNameWithArguments();
-            fullName = fullName + '.' + part.name;
-            qualifyingType = loadType("", fullName, part, qualifyingType);
+            type.parts.add(parseTypeNameWithArguments());
         }
-        if(qualifyingType == null){
-            throw new ModelResolutionException("Could not find type '"+fullName+"'");
-        }
-        if(qualifyingType instanceof ProducedType == false){
-            throw new ModelResolutionException("Type is a declaration (should be a ProducedType): '"+fullName+"'");
-        }
-        return (ProducedType) qualifyingType;
+        return type;
     }
 
     /*
      * qualifiedType: [packageName (. packageName)* ::] typeNameWithArguments (. typeNameWithArguments)*
      */
-    private ProducedType parseSimpleQualifiedType() {
-        String pkg;
+    private ParsedType parseSimpleQualifiedType() {
+        ParsedQualifiedType type = new ParsedQualifiedType();
         
         if (hasPackage()) {
             // handle the package name
@@ -191,29 +256,17 @@ public class TypeParser {
                 pkgstr = pkgstr.append('.').append(lexer.eatWord());
             }
             lexer.eat(TypeLexer.DBLCOLON);
-            pkg = pkgstr.toString();
-        } else {
-            // type is in default package
-            pkg = "";
+            type.pkg = pkgstr.toString();
         }
+        // else type is in default package
         
         // then the type itself
-        Part part = parseTypeNameWithArguments();
-        String fullName = (pkg.isEmpty()) ? part.name : pkg + "." + part.name;
-        ProducedType qualifyingType = loadType(pkg, fullName, part, null);
+        type.parts.add(parseTypeNameWithArguments());
         while(lexer.lookingAt(TypeLexer.DOT)){
             lexer.eat();
-            part = parseTypeNameWithArguments();
-            fullName = fullName + '.' + part.name;
-            qualifyingType = loadType(pkg, fullName, part, qualifyingType);
-        }
-        if(qualifyingType == null){
-            throw new ModelResolutionException("Could not find type '"+fullName+"'");
+            type.parts.add(parseTypeNameWithArguments());
         }
-        if(qualifyingType instanceof ProducedType == false){
-            throw new ModelResolutionException("Type is a declaration (should be a ProducedType): '"+fullName+"'");
-        }
-        return (ProducedType) qualifyingType;
+        return type;
     }
 
     private boolean hasPackage() {
@@ -226,6 +279,104 @@ public class TypeParser {
         lexer.reset();
         return result;
     }
+
+    /*
+     * typeNameWithArguments: WORD (< variance type (, variance type)* >)?
+     */
+    private ParsedPart parseTypeNameWithArguments() {
+        ParsedPart type = new ParsedPart();
+        type.name = lexer.eatWord();
+        if(lexer.lookingAt(TypeLexer.LT)){
+            lexer.eat();
+            type.parameters = new ArrayList<ParsedType>(2);
+            parseTypeArgumentVariance(type);
+            type.parameters.add(parseType());
+            while(lexer.lookingAt(TypeLexer.COMMA)){
+                lexer.eat();
+                parseTypeArgumentVariance(type);
+                type.parameters.add(parseType());
+            }
+            lexer.eat(TypeLexer.GT);
+        }
+        return type;
+    }
+
+    /*
+     * variance: [in |out ]?
+     */
+    private void parseTypeArgumentVariance(ParsedPart type) {
+        SiteVariance variance = null;
+        if(lexer.lookingAt(TypeLexer.OUT)){
+            variance = SiteVariance.OUT;
+            lexer.eat();
+        }else if(lexer.lookingAt(TypeLexer.IN)){
+            variance = SiteVariance.IN;
+            lexer.eat();
+        }
+        // lazy allocation
+        if(variance != null && type.variance == null){
+            type.variance = new ArrayList<SiteVariance>(type.parameters.size() + 1);
+            for(int i=0,l=type.parameters.size();i<l;i++){
+                // patch it up for the previous type params which did not have variance
+                type.variance.add(null);
+            }
+        }
+        // only add the variance if we have to
+        if(type.variance != null){
+            // we add it even if it's null, as long as we're recording variance
+            type.variance.add(variance);
+        }
+    }
+
+    private ProducedType resolve(ParsedType type) {
+        if(type instanceof ParsedUnionType){
+            UnionType union = new UnionType(unit);
+            List<ProducedType> caseTypes = new LinkedList<ProducedType>();
+            union.setCaseTypes(caseTypes);
+            for(ParsedType caseType : ((ParsedUnionType) type).caseTypes)
+                caseTypes.add(resolve(caseType));
+            return union.getType();
+        }
+        if(type instanceof ParsedIntersectionType){
+            IntersectionType intersection = new IntersectionType(unit);
+            List<ProducedType> satisfiedTypes = new LinkedList<ProducedType>();
+            intersection.setSatisfiedTypes(satisfiedTypes);
+            for(ParsedType satisfiedType : ((ParsedIntersectionType) type).satisfiedTypes)
+                satisfiedTypes.add(resolve(satisfiedType));
+            return intersection.getType();
+        }
+        return resolveQualifiedType((ParsedQualifiedType) type);
+    }
+
+    private ProducedType resolveQualifiedType(ParsedQualifiedType type) {
+        ProducedType qualifyingType = type.qualifyingType != null ? resolve(type.qualifyingType) : null;
+        String pkg = type.pkg;
+        String fullName = null;
+        for(ParsedPart parsedPart : type.parts){
+            Part part = resolvePart(parsedPart);
+            if(fullName == null)
+                fullName = pkg.isEmpty() ? part.name : pkg + "." + part.name;
+            else
+                fullName = fullName + '.' + part.name;
+            qualifyingType = loadType(pkg, fullName, part, qualifyingType);
+        }
+        if(qualifyingType == null){
+            throw new ModelResolutionException("Could not find type '"+fullName+"'");
+        }
+        return qualifyingType;
+    }
+
+    private Part resolvePart(ParsedPart parsedPart) {
+        Part part = new Part();
+        part.name = parsedPart.name;
+        if(parsedPart.parameters != null){
+            part.parameters = new LinkedList<ProducedType>();
+            for(ParsedType parameter : parsedPart.parameters)
+                part.parameters.add(resolve(parameter));
+        }
+        part.variance = parsedPart.variance;
+        return part;
+    }
     
     private ProducedType loadType(String pkg, String fullName, Part part, ProducedType qualifyingType) {
         // try to find a qualified type
@@ -286,52 +437,4 @@ public class TypeParser {
             return null;
         }
     }
-
-    /*
-     * typeNameWithArguments: WORD (< variance type (, variance type)* >)?
-     */
-    private Part parseTypeNameWithArguments() {
-        Part type = new Part();
-        type.name = lexer.eatWord();
-        if(lexer.lookingAt(TypeLexer.LT)){
-            lexer.eat();
-            parseTypeArgumentVariance(type);
-            type.parameters = new LinkedList<ProducedType>();
-            type.parameters.add(parseType());
-            while(lexer.lookingAt(TypeLexer.COMMA)){
-                lexer.eat();
-                parseTypeArgumentVariance(type);
-                type.parameters.add(parseType());
-            }
-            lexer.eat(TypeLexer.GT);
-        }
-        return type;
-    }
-
-    /*
-     * variance: [in |out ]?
-     */
-    private void parseTypeArgumentVariance(Part type) {
-        SiteVariance variance = null;
-        if(lexer.lookingAt(TypeLexer.OUT)){
-            variance = SiteVariance.OUT;
-            lexer.eat();
-        }else if(lexer.lookingAt(TypeLexer.IN)){
-            variance = SiteVariance.IN;
-            lexer.eat();
-        }
-        // lazy allocation
-        if(variance != null && type.variance == null){
-            type.variance = new LinkedList<SiteVariance>();
-            for(int i=0,l=type.getParameters().size();i<l;i++){
-                // patch it up for the previous type params which did not have variance
-                type.variance.add(null);
-            }
-        }
-        // only add the variance if we have to
-        if(type.variance != null){
-            // we add it even if it's null, as long as we're recording variance
-            type.variance.add(variance);
-        }
-    }
 }
@@ -19,7 +19,13 @@
  */
 package com.redhat.ceylon.compiler.loader.impl.reflect;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
@@ -29,27 +35,107 @@ import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 
 import com.redhat.ceylon.cmr.api.ArtifactResult;
 import com.redhat.ceylon.compiler.loader.ContentAwareArtifactResult;
+import com.redhat.ceylon.compiler.loader.impl.reflect.classfile.ClassFileCache;
 import com.redhat.ceylon.compiler.typechecker.model.Module;
 
 public class CachedTOCJars {
 
+    /** The system property giving the folder where we cache the TOC of jars, if any */
+    public static final String TOC_CACHE_DIR_PROPERTY = "ceylon.toc.cache.dir";
+
+    /** The system property giving the folder where we cache the class files of jars for class file mirrors, if any */
+    public static final String MIRROR_CACHE_DIR_PROPERTY = "ceylon.mirror.cache.dir";
+
+    private static final String TOC_CACHE_SUFFIX = ".toc";
+    // "CTOC" followed by the format version
+    private static final int TOC_CACHE_MAGIC = 0x43544f01;
+
+    /**
+     * The default number of jars we keep mapped at the same time: none on Windows,
+     * where a mapped file can't be replaced, so that we never prevent repositories
+     * from being updated.
+     */
+    public static final int DEFAULT_MAX_MAPPED_JARS = 
+            System.getProperty("os.name", "").toLowerCase().startsWith("windows") ? 0 : 64;
+
+    /**
+     * A bounded pool of {@link MappedJar}, which closes the least recently used
+     * ones, and those whose file was replaced since we mapped it.
+     */
+    static class MappedJarPool {
+        private final int maxMappedJars;
+        private final LinkedHashMap<File, MappedJar> jars;
+        // jars we could not map, which we read with ZipFile instead
+        private final Set<File> unsupported = new HashSet<File>();
+
+        MappedJarPool(final int maxMappedJars) {
+            this.maxMappedJars = maxMappedJars;
+            this.jars = new LinkedHashMap<File, MappedJar>(16, 0.75f, true){
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<File, MappedJar> eldest) {
+                    if(size() > maxMappedJars){
+                        eldest.getValue().close();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        /**
+         * Returns the mapped jar for the given file, or null if it can't be mapped.
+         */
+        synchronized MappedJar get(File file) throws IOException {
+            if(maxMappedJars <= 0)
+                return null;
+            MappedJar jar = jars.get(file);
+            if(jar != null && jar.isStale()){
+                jars.remove(file);
+                jar.close();
+                jar = null;
+            }
+            if(jar == null && !unsupported.contains(file)){
+                try{
+                    jar = new MappedJar(file);
+                    jars.put(file, jar);
+                }catch(ZipException x){
+                    unsupported.add(file);
+                }
+            }
+            return jar;
+        }
+
+        /**
+         * Closes all our mapped jars. We map them again if they are used later.
+         */
+        synchronized void close() {
+            for(MappedJar jar : jars.values())
+                jar.close();
+            jars.clear();
+        }
+    }
+
     /**
      * Jar file where we cache the TOC
      */
-    static class CachedTOCJar {
+    class CachedTOCJar {
         ArtifactResult artifact;
         // stores class file names with slashes
-        Set<String> contents = new HashSet<String>();
+        JarTOC contents;
         // stores package paths with slashes but not last one
-        Set<String> packages = new HashSet<String>();
+        JarTOC packages;
         // not not attempt to load contents from this jar, just its TOC
         boolean skipContents;
         
@@ -57,29 +143,123 @@ public class CachedTOCJars {
             this.artifact = artifact;
             this.skipContents = skipContents;
             if (artifact instanceof ContentAwareArtifactResult) {
-                packages.addAll(((ContentAwareArtifactResult) artifact).getPackages());
-                contents.addAll(((ContentAwareArtifactResult) artifact).getEntries());
+                packages = JarTOC.of(((ContentAwareArtifactResult) artifact).getPackages());
+                contents = JarTOC.of(((ContentAwareArtifactResult) artifact).getEntries());
             } else {
-                if (artifact.artifact() != null) {
+                File jar = artifact.artifact();
+                if (jar != null) {
+                    if(cacheDir != null && readCachedTOC(jar))
+                        return;
                     try {
-                        ZipFile zf = new ZipFile(artifact.artifact());
-                        try{
-                            Enumeration<? extends ZipEntry> entries = zf.entries();
-                            while(entries.hasMoreElements()){
-                                ZipEntry entry = entries.nextElement();
-                                // only cache class files
-                                if(!entry.isDirectory()){
-                                    packages.add(getPackageName(entry.getName()));
-                                    contents.add(entry.getName());
-                                }
-                            }
-                        }finally{
-                            zf.close();
-                        }
+                        scan(jar);
                     } catch (IOException e) {
                         throw new RuntimeException(e);
                     }
+                    if(cacheDir != null)
+                        writeCachedTOC(jar);
+                } else {
+                    packages = JarTOC.EMPTY;
+                    contents = JarTOC.EMPTY;
+                }
+            }
+        }
+
+        private void scan(File jar) throws IOException {
+            Set<String> packages = new HashSet<String>();
+            List<String> contents = new ArrayList<String>();
+            // the central directory we just mapped will serve the next reads
+            MappedJar mappedJar = pool.get(jar);
+            if(mappedJar != null){
+                for(String name : mappedJar.getEntryNames()){
+                    if(!name.endsWith("/")){
+                        packages.add(getPackageName(name));
+                        contents.add(name);
+                    }
+                }
+            }else{
+                ZipFile zf = new ZipFile(jar);
+                try{
+                    Enumeration<? extends ZipEntry> entries = zf.entries();
+                    while(entries.hasMoreElements()){
+                        ZipEntry entry = entries.nextElement();
+                        // only cache class files
+                        if(!entry.isDirectory()){
+                            packages.add(getPackageName(entry.getName()));
+                            contents.add(entry.getName());
+                        }
+                    }
+                }finally{
+                    zf.close();
+                }
+            }
+            this.packages = JarTOC.of(packages);
+            this.contents = JarTOC.of(contents);
+        }
+
+        private File getCacheFile(File jar) {
+            String path = jar.getAbsolutePath();
+            return new File(cacheDir, jar.getName() + "-" + Integer.toHexString(path.hashCode()) + TOC_CACHE_SUFFIX);
+        }
+
+        /**
+         * Reads our TOC from the cache, if it is there and up to date
+         */
+        private boolean readCachedTOC(File jar) {
+            File cacheFile = getCacheFile(jar);
+            if(!cacheFile.isFile())
+                return false;
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+                try{
+                    if(in.readInt() != TOC_CACHE_MAGIC
+                            || !in.readUTF().equals(jar.getAbsolutePath())
+                            || in.readLong() != jar.length()
+                            || in.readLong() != jar.lastModified())
+                        return false;
+                    packages = JarTOC.read(in);
+                    contents = JarTOC.read(in);
+                    return true;
+                }finally{
+                    in.close();
                 }
+            } catch (IOException e) {
+                // corrupt or being written: rebuild it
+                packages = null;
+                contents = null;
+                return false;
+            }
+        }
+
+        /**
+         * Writes our TOC to the cache, ignoring any error since it's only a cache
+         */
+        private void writeCachedTOC(File jar) {
+            File cacheFile = getCacheFile(jar);
+            File tmpFile = null;
+            try {
+                if(!cacheDir.isDirectory() && !cacheDir.mkdirs())
+                    return;
+                // write it elsewhere first so concurrent readers never see half of it
+                tmpFile = File.createTempFile(cacheFile.getName(), ".tmp", cacheDir);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+                try{
+                    out.writeInt(TOC_CACHE_MAGIC);
+                    out.writeUTF(jar.getAbsolutePath());
+                    out.writeLong(jar.length());
+                    out.writeLong(jar.lastModified());
+                    packages.write(out);
+                    contents.write(out);
+                }finally{
+                    out.close();
+                }
+                cacheFile.delete();
+                if(tmpFile.renameTo(cacheFile))
+                    tmpFile = null;
+            } catch (IOException e) {
+                // ignore
+            } finally {
+                if(tmpFile != null)
+                    tmpFile.delete();
             }
         }
 
@@ -105,13 +285,26 @@ public class CachedTOCJars {
             File jar = artifact.artifact();
             if (jar != null) {
                 try {
-                    ZipFile zf = new ZipFile(jar);
-                    try{
-                        ZipEntry entry = zf.getEntry(path);
-                        if(entry != null)
-                            return loadFile(zf.getInputStream(entry), (int)entry.getSize());
-                    }finally{
-                        zf.close();
+                    MappedJar mappedJar = pool.get(jar);
+                    if(mappedJar != null){
+                        byte[] ret;
+                        try{
+                            ret = mappedJar.read(path);
+                        }catch(MappedJar.ClosedException x){
+                            // another thread made the pool close it, map it again
+                            ret = pool.get(jar).read(path);
+                        }
+                        if(ret != null)
+                            return ret;
+                    }else{
+                        ZipFile zf = new ZipFile(jar);
+                        try{
+                            ZipEntry entry = zf.getEntry(path);
+                            if(entry != null)
+                                return loadFile(zf.getInputStream(entry), (int)entry.getSize());
+                        }finally{
+                            zf.close();
+                        }
                     }
                 } catch (IOException e) {
                     throw new RuntimeException(e);
@@ -121,23 +314,59 @@ public class CachedTOCJars {
             throw new RuntimeException("No file associated with artifact : " + artifact.toString());
         }
 
+        // read on the first lookup
+        private ClassFileCache mirrorCache;
+        private boolean mirrorCacheOpened;
+
+        byte[] getMirrorContents(String path){
+            ClassFileCache cache = getMirrorCache();
+            byte[] ret = cache != null ? cache.get(path) : null;
+            return ret != null ? ret : getContents(path);
+        }
+
+        private synchronized ClassFileCache getMirrorCache() {
+            if(!mirrorCacheOpened){
+                mirrorCacheOpened = true;
+                File jar = artifact.artifact();
+                if(mirrorCacheDir != null && jar != null && !(artifact instanceof ContentAwareArtifactResult)){
+                    try {
+                        mirrorCache = ClassFileCache.open(mirrorCacheDir, jar, new ClassFileCache.Source(){
+                            @Override
+                            public Iterable<String> getClassFileNames() {
+                                List<String> ret = new ArrayList<String>();
+                                for(String name : contents.getNames()){
+                                    if(name.endsWith(".class"))
+                                        ret.add(name);
+                                }
+                                return ret;
+                            }
+
+                            @Override
+                            public byte[] getContents(String path) {
+                                return CachedTOCJar.this.getContents(path);
+                            }
+                        });
+                    } catch (IOException e) {
+                        // ignore, it's only a cache
+                    }
+                }
+            }
+            return mirrorCache;
+        }
+
         URI getContentUri(String path){
             if (artifact instanceof ContentAwareArtifactResult) {
                 return ((ContentAwareArtifactResult) artifact).getContentUri(path);
             }
             File jar = artifact.artifact();
             if (jar != null) {
-                try {
-                    ZipFile zf = new ZipFile(jar);
-                    try{
-                        ZipEntry entry = zf.getEntry(path);
-                        if(entry != null)
-                            return new URI("classpath:" + jar.getPath() + "!" + entry.getName());
-                    }finally{
-                        zf.close();
+                // our TOC is enough to know if it's there
+                if(containsFile(path)){
+                    try {
+                        return new URI("classpath:" + jar.getPath() + "!" + path);
+                    } catch (URISyntaxException e) {
+                        throw new RuntimeException(e);
                     }
-                } catch (IOException | URISyntaxException e) {
-                    throw new RuntimeException(e);
                 }
                 throw new RuntimeException("Missing entry: "+path+" in jar file: "+ jar.getPath());
             }
@@ -165,30 +394,14 @@ public class CachedTOCJars {
             
             File jar = artifact.artifact();
             if (jar != null) {
-                try {
-                    // add a trailing / to only list members
-                    path += "/";
-                    ZipFile zf = new ZipFile(jar);
-                    try{
-                        Enumeration<? extends ZipEntry> entries = zf.entries();
-                        List<String> ret = new ArrayList<String>();
-                        while(entries.hasMoreElements()){
-                            ZipEntry entry = entries.nextElement();
-                            String name = entry.getName();
-                            // only cache class files
-                            if(!entry.isDirectory() && name.startsWith(path)){
-                                String part = name.substring(path.length());
-                                if(part.indexOf('/') == -1)
-                                    ret.add(name);
-                            }
-                        }
-                        return ret;
-                    }finally{
-                        zf.close();
-                    }
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
+                // add a trailing / to only list members
+                path += "/";
+                List<String> ret = new ArrayList<String>();
+                for(String name : contents.getNamesStartingWith(path)){
+                    if(name.indexOf('/', path.length()) == -1)
+                        ret.add(name);
                 }
+                return ret;
             } else {
                 throw new RuntimeException("No file associated with artifact : " + artifact.toString());
             }
@@ -201,7 +414,55 @@ public class CachedTOCJars {
     }
     
     private Map<Module, CachedTOCJar> jars = new HashMap<Module, CachedTOCJar>();
+    private final MappedJarPool pool;
+    private File cacheDir;
+    private File mirrorCacheDir;
+
+    public CachedTOCJars() {
+        this(DEFAULT_MAX_MAPPED_JARS);
+    }
+
+    /**
+     * @param maxMappedJars the maximum number of jars we keep mapped at the same time,
+     * 0 to always read them with {@link ZipFile}
+     */
+    public CachedTOCJars(int maxMappedJars) {
+        this.pool = new MappedJarPool(maxMappedJars);
+        String cacheDir = System.getProperty(TOC_CACHE_DIR_PROPERTY);
+        if(cacheDir != null && !cacheDir.isEmpty())
+            this.cacheDir = new File(cacheDir);
+        String mirrorCacheDir = System.getProperty(MIRROR_CACHE_DIR_PROPERTY);
+        if(mirrorCacheDir != null && !mirrorCacheDir.isEmpty())
+            this.mirrorCacheDir = new File(mirrorCacheDir);
+    }
+
+    /**
+     * Sets the folder where we cache the TOC of the jars we add, so that the next
+     * time we don't have to read their central directory. Defaults to the value of
+     * the {@link #TOC_CACHE_DIR_PROPERTY} system property. Use null to disable it.
+     */
+    public void setTOCCacheDir(File cacheDir) {
+        this.cacheDir = cacheDir;
+    }
     
+    /**
+     * Sets the folder where we cache the class files of the jars we add, stripped
+     * down to what class file mirrors read and keyed by the checksum of their jar,
+     * so that the next time we don't have to inflate and skip all their code.
+     * Defaults to the value of the {@link #MIRROR_CACHE_DIR_PROPERTY} system
+     * property. Use null to disable it.
+     */
+    public void setMirrorCacheDir(File mirrorCacheDir) {
+        this.mirrorCacheDir = mirrorCacheDir;
+    }
+
+    /**
+     * Returns true if we serve class files for mirrors from a mirror cache
+     */
+    public boolean hasMirrorCache() {
+        return mirrorCacheDir != null;
+    }
+
     public void addJar(ArtifactResult artifact, Module module) {
         addJar(artifact, module, false);
     }
@@ -235,6 +496,21 @@ public class CachedTOCJars {
         return null;
     }
 
+    /**
+     * Returns the given class file for class file mirrors, which may be stripped
+     * of anything they don't read, or null if it's not in any jar. Unlike
+     * {@link #getContents(String)} this includes the jars whose contents we skip,
+     * since mirrors don't define any class.
+     */
+    public byte[] getMirrorContents(String path) {
+        for(CachedTOCJar jar : jars.values()){
+            if(jar.containsFile(path)){
+                return jar.getMirrorContents(path);
+            }
+        }
+        return null;
+    }
+
     public URI getContentUri(String path) {
         for(CachedTOCJar jar : jars.values()){
             if(!jar.skipContents && jar.containsFile(path)){
@@ -260,6 +536,14 @@ public class CachedTOCJars {
         return null;
     }
 
+    /**
+     * Releases the jars we keep mapped, so that they can be replaced. We can
+     * still be used afterwards.
+     */
+    public void close() {
+        pool.close();
+    }
+
     @Override
     public String toString(){
         return "CachedTOCJars[jars="+jars+"]";
@@ -0,0 +1,286 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.loader.impl.reflect;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An immutable sorted set of names, such as the entries or packages of a jar,
+ * stored in a single byte array rather than as individual {@link String}s.
+ *
+ * Names are sorted by their UTF-8 bytes and front-coded in blocks of
+ * {@link #BLOCK_SIZE}: the first name of each block is stored whole, and
+ * the others as the length of the prefix they share with the previous name
+ * followed by the rest of their bytes. Lookups binary-search the first names
+ * of the blocks then scan a single block.
+ */
+class JarTOC {
+
+    /** How many names we store in each block */
+    static final int BLOCK_SIZE = 16;
+
+    static final JarTOC EMPTY = new JarTOC(new byte[0], new int[0], 0);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final Comparator<byte[]> UNSIGNED = new Comparator<byte[]>(){
+        @Override
+        public int compare(byte[] a, byte[] b) {
+            return JarTOC.compare(a, 0, a.length, b);
+        }
+    };
+
+    private final byte[] data;
+    private final int[] blocks;
+    private final int size;
+
+    private JarTOC(byte[] data, int[] blocks, int size) {
+        this.data = data;
+        this.blocks = blocks;
+        this.size = size;
+    }
+
+    /**
+     * Builds a TOC of the given names, ignoring duplicates.
+     */
+    static JarTOC of(Collection<String> names) {
+        if(names.isEmpty())
+            return EMPTY;
+        byte[][] sorted = new byte[names.size()][];
+        int i = 0;
+        for(String name : names)
+            sorted[i++] = name.getBytes(UTF8);
+        Arrays.sort(sorted, UNSIGNED);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int[] blocks = new int[(sorted.length + BLOCK_SIZE - 1) / BLOCK_SIZE];
+        int size = 0;
+        byte[] previous = null;
+        for(byte[] name : sorted){
+            if(previous != null && Arrays.equals(previous, name))
+                continue;
+            if(size % BLOCK_SIZE == 0){
+                blocks[size / BLOCK_SIZE] = out.size();
+                writeVarInt(out, name.length);
+                out.write(name, 0, name.length);
+            }else{
+                int shared = sharedPrefix(previous, name);
+                writeVarInt(out, shared);
+                writeVarInt(out, name.length - shared);
+                out.write(name, shared, name.length - shared);
+            }
+            previous = name;
+            size++;
+        }
+        int blockCount = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        return new JarTOC(out.toByteArray(), Arrays.copyOf(blocks, blockCount), size);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean contains(String name) {
+        byte[] key = name.getBytes(UTF8);
+        int block = findBlock(key);
+        if(block < 0)
+            return false;
+        Cursor cursor = new Cursor(block);
+        while(cursor.next()){
+            int cmp = compare(cursor.name, 0, cursor.length, key);
+            if(cmp == 0)
+                return true;
+            if(cmp > 0)
+                return false;
+        }
+        return false;
+    }
+
+    /**
+     * Returns all the names, in order.
+     */
+    List<String> getNames() {
+        return getNamesStartingWith("");
+    }
+
+    /**
+     * Returns the names which start with the given prefix, in order.
+     */
+    List<String> getNamesStartingWith(String prefix) {
+        if(size == 0)
+            return Collections.emptyList();
+        byte[] key = prefix.getBytes(UTF8);
+        // every name we want is at least in the block where the prefix would be
+        int block = Math.max(findBlock(key), 0);
+        List<String> ret = new ArrayList<String>();
+        Cursor cursor = new Cursor(block);
+        while(cursor.next()){
+            if(startsWith(cursor.name, cursor.length, key)){
+                ret.add(new String(cursor.name, 0, cursor.length, UTF8));
+            }else if(compare(cursor.name, 0, cursor.length, key) > 0){
+                break;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the last block whose first name is less than or equal to the key,
+     * or -1 if the key comes before every name.
+     */
+    private int findBlock(byte[] key) {
+        int low = 0;
+        int high = blocks.length - 1;
+        int ret = -1;
+        int[] pos = new int[1];
+        while(low <= high){
+            int mid = (low + high) >>> 1;
+            pos[0] = blocks[mid];
+            int length = readVarInt(data, pos);
+            if(compare(data, pos[0], length, key) <= 0){
+                ret = mid;
+                low = mid + 1;
+            }else{
+                high = mid - 1;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Decodes the names from a given block to the end of the TOC.
+     */
+    private class Cursor {
+        private final int[] pos = new int[1];
+        private int index;
+        byte[] name = new byte[64];
+        int length;
+
+        Cursor(int block) {
+            pos[0] = blocks[block];
+            index = block * BLOCK_SIZE;
+        }
+
+        boolean next() {
+            if(index >= size)
+                return false;
+            int shared = index % BLOCK_SIZE == 0 ? 0 : readVarInt(data, pos);
+            int rest = readVarInt(data, pos);
+            length = shared + rest;
+            if(name.length < length)
+                name = Arrays.copyOf(name, Math.max(length, name.length * 2));
+            System.arraycopy(data, pos[0], name, shared, rest);
+            pos[0] += rest;
+            index++;
+            return true;
+        }
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(size);
+        out.writeInt(blocks.length);
+        for(int block : blocks)
+            out.writeInt(block);
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    static JarTOC read(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        int[] blocks = new int[in.readInt()];
+        if(blocks.length != (size + BLOCK_SIZE - 1) / BLOCK_SIZE)
+            throw new IOException("Invalid TOC");
+        for(int i = 0; i < blocks.length; i++)
+            blocks[i] = in.readInt();
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        for(int block : blocks){
+            if(block < 0 || block >= data.length)
+                throw new IOException("Invalid TOC");
+        }
+        return size == 0 ? EMPTY : new JarTOC(data, blocks, size);
+    }
+
+    private static int sharedPrefix(byte[] a, byte[] b) {
+        int max = Math.min(a.length, b.length);
+        int i = 0;
+        while(i < max && a[i] == b[i])
+            i++;
+        return i;
+    }
+
+    private static boolean startsWith(byte[] name, int length, byte[] prefix) {
+        if(length < prefix.length)
+            return false;
+        for(int i = 0; i < prefix.length; i++){
+            if(name[i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compares the given part of a with b, as unsigned bytes.
+     */
+    private static int compare(byte[] a, int start, int length, byte[] b) {
+        int max = Math.min(length, b.length);
+        for(int i = 0; i < max; i++){
+            int cmp = (a[start + i] & 0xff) - (b[i] & 0xff);
+            if(cmp != 0)
+                return cmp;
+        }
+        return length - b.length;
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while((value & ~0x7f) != 0){
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(byte[] data, int[] pos) {
+        int ret = 0;
+        int shift = 0;
+        while(true){
+            byte b = data[pos[0]++];
+            ret |= (b & 0x7f) << shift;
+            if(b >= 0)
+                return ret;
+            shift += 7;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getNames().toString();
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.loader.impl.reflect;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * A read-only jar file which is memory-mapped once, with an index from
+ * entry name to the position of its central directory record, so that
+ * reading an entry does not need to open the jar or scan its central
+ * directory again.
+ *
+ * We only support what jars and cars use: stored and deflated entries,
+ * without encryption or ZIP64 extensions. Anything else throws a
+ * {@link ZipException} when opening the jar, so callers can fall back to
+ * {@link java.util.zip.ZipFile}.
+ *
+ * The mapping is released by {@link #close()}, rather than when we are
+ * garbage-collected, since a mapped file can't be replaced on some platforms.
+ * Reading a mapped file which another process truncates crashes the JVM, so
+ * the jars we map must only ever be replaced, which leaves our mapping of
+ * the old file intact, and never be rewritten in place: see {@link #isStale()}
+ * to find out when it was replaced.
+ *
+ * Instances are safe to use from several threads.
+ */
+class MappedJar {
+
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final int END_SIZE = 22;
+    private static final int CENTRAL_SIZE = 46;
+    private static final int LOCAL_SIZE = 30;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+    private static final int ENCRYPTED = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Thrown when reading a jar after we closed it, in which case it can
+     * simply be mapped again.
+     */
+    static class ClosedException extends ZipException {
+        private static final long serialVersionUID = 1L;
+
+        ClosedException(File file) {
+            super("Closed "+file);
+        }
+    }
+
+    private final File file;
+    private final long length;
+    private final long lastModified;
+    private final ByteBuffer buffer;
+    private final Map<String, Integer> centralOffsets;
+    // readers of the buffer hold the read lock, so we never unmap it under them
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private boolean closed;
+
+    MappedJar(File file) throws IOException {
+        this.file = file;
+        this.length = file.length();
+        this.lastModified = file.lastModified();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new ZipException("Jar too large to be mapped: "+file);
+            // the mapping stays valid after we close the channel
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+        } finally {
+            raf.close();
+        }
+        centralOffsets = readCentralDirectory();
+    }
+
+    private Map<String, Integer> readCentralDirectory() throws ZipException {
+        int end = findEndOfCentralDirectory();
+        int count = buffer.getShort(end + 10) & 0xffff;
+        long centralSize = buffer.getInt(end + 12) & 0xffffffffL;
+        long centralStart = buffer.getInt(end + 16) & 0xffffffffL;
+        if (count == 0xffff || centralStart == 0xffffffffL || centralStart + centralSize > end)
+            throw new ZipException("Unsupported or invalid central directory in "+file);
+        Map<String, Integer> ret = new HashMap<String, Integer>(count * 4 / 3 + 1);
+        int pos = (int) centralStart;
+        for (int i = 0; i < count; i++) {
+            if (pos + CENTRAL_SIZE > end || buffer.getInt(pos) != CENTRAL_SIGNATURE)
+                throw new ZipException("Invalid central directory entry in "+file);
+            int nameLength = buffer.getShort(pos + 28) & 0xffff;
+            int extraLength = buffer.getShort(pos + 30) & 0xffff;
+            int commentLength = buffer.getShort(pos + 32) & 0xffff;
+            String name = readString(pos + CENTRAL_SIZE, nameLength);
+            // refuse what read() can't handle now, rather than when reading the entry
+            int flags = buffer.getShort(pos + 8) & 0xffff;
+            int method = buffer.getShort(pos + 10) & 0xffff;
+            if ((flags & ENCRYPTED) != 0
+                    || (method != STORED && method != DEFLATED)
+                    || buffer.getInt(pos + 20) == -1
+                    || buffer.getInt(pos + 24) == -1
+                    || buffer.getInt(pos + 42) == -1)
+                throw new ZipException("Unsupported entry "+name+" in "+file);
+            ret.put(name, pos);
+            pos += CENTRAL_SIZE + nameLength + extraLength + commentLength;
+        }
+        return ret;
+    }
+
+    private int findEndOfCentralDirectory() throws ZipException {
+        // it's at the end, followed by a comment of at most 64K
+        int min = Math.max(0, buffer.limit() - END_SIZE - 0xffff);
+        for (int pos = buffer.limit() - END_SIZE; pos >= min; pos--) {
+            if (buffer.getInt(pos) == END_SIGNATURE)
+                return pos;
+        }
+        throw new ZipException("Not a zip file: "+file);
+    }
+
+    private String readString(int pos, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(pos);
+        view.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns true if our file was replaced or changed since we mapped it,
+     * in which case we still read the old one.
+     */
+    boolean isStale() {
+        return file.length() != length || file.lastModified() != lastModified;
+    }
+
+    /**
+     * Releases our mapping. Entries can't be read anymore, but their names
+     * can.
+     */
+    void close() {
+        lock.writeLock().lock();
+        try {
+            if (!closed) {
+                closed = true;
+                unmap(buffer);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Unmaps the given buffer right away if the JVM lets us, instead of
+     * waiting for it to be garbage-collected.
+     */
+    private static void unmap(ByteBuffer buffer) {
+        try {
+            // Java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (Exception x) {
+            // try the next one
+        }
+        try {
+            // Java 8 and earlier
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                Method clean = cleaner.getClass().getMethod("clean");
+                clean.setAccessible(true);
+                clean.invoke(cleaner);
+            }
+        } catch (Exception x) {
+            // leave it to the garbage collector
+        }
+    }
+
+    boolean contains(String name) {
+        return centralOffsets.containsKey(name);
+    }
+
+    /**
+     * Returns the entry names, which include the directories.
+     */
+    Iterable<String> getEntryNames() {
+        return centralOffsets.keySet();
+    }
+
+    /**
+     * Returns the uncompressed size of the given entry, or -1 if there is no
+     * such entry.
+     */
+    int getSize(String name) throws ZipException {
+        Integer central = centralOffsets.get(name);
+        if (central == null)
+            return -1;
+        lock.readLock().lock();
+        try {
+            if (closed)
+                throw new ClosedException(file);
+            return buffer.getInt(central + 24);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the uncompressed contents of the given entry, or null if there is
+     * no such entry.
+     */
+    byte[] read(String name) throws IOException {
+        int size = getSize(name);
+        if (size < 0)
+            return null;
+        byte[] ret = new byte[size];
+        read(name, ret, 0);
+        return ret;
+    }
+
+    /**
+     * Reads the uncompressed contents of the given existing entry into the
+     * given array, at the given offset.
+     */
+    void read(String name, byte[] dest, int destOffset) throws IOException {
+        Integer central = centralOffsets.get(name);
+        if (central == null)
+            throw new ZipException("Missing entry "+name+" in "+file);
+        lock.readLock().lock();
+        try {
+            if (closed)
+                throw new ClosedException(file);
+            read(name, central, dest, destOffset);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void read(String name, int central, byte[] dest, int destOffset) throws IOException {
+        int method = buffer.getShort(central + 10) & 0xffff;
+        int compressedSize = buffer.getInt(central + 20);
+        int size = buffer.getInt(central + 24);
+        int local = buffer.getInt(central + 42);
+        if (local < 0 || buffer.getInt(local) != LOCAL_SIGNATURE)
+            throw new ZipException("Invalid local header for "+name+" in "+file);
+        int data = local + LOCAL_SIZE
+                + (buffer.getShort(local + 26) & 0xffff)
+                + (buffer.getShort(local + 28) & 0xffff);
+        ByteBuffer view = buffer.duplicate();
+        view.position(data);
+        switch (method) {
+        case STORED:
+            view.get(dest, destOffset, size);
+            return;
+        case DEFLATED:
+            // the extra byte is required by Inflater in nowrap mode
+            byte[] compressed = new byte[compressedSize + 1];
+            view.get(compressed, 0, compressedSize);
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(compressed);
+                int read = 0;
+                while (read < size) {
+                    int n = inflater.inflate(dest, destOffset + read, size - read);
+                    if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+                        break;
+                    read += n;
+                }
+                if (read != size)
+                    throw new ZipException("Truncated entry "+name+" in "+file);
+                return;
+            } catch (DataFormatException e) {
+                throw new ZipException("Invalid entry "+name+" in "+file+": "+e.getMessage());
+            } finally {
+                inflater.end();
+            }
+        default:
+            throw new ZipException("Unsupported compression method "+method+" for "+name+" in "+file);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MappedJar[" + file + "]";
+    }
+}
@@ -20,21 +20,31 @@
 
 package com.redhat.ceylon.compiler.loader.impl.reflect;
 
-import java.lang.reflect.Member;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import com.redhat.ceylon.common.log.Logger;
 import com.redhat.ceylon.compiler.java.util.Timer;
 import com.redhat.ceylon.compiler.java.util.Util;
 import com.redhat.ceylon.compiler.loader.AbstractModelLoader;
 import com.redhat.ceylon.compiler.loader.TypeParser;
+import com.redhat.ceylon.compiler.loader.impl.reflect.classfile.ClassFileLoader;
+import com.redhat.ceylon.compiler.loader.impl.reflect.classfile.ClassFileMethod;
 import com.redhat.ceylon.compiler.loader.impl.reflect.mirror.ReflectionClass;
 import com.redhat.ceylon.compiler.loader.impl.reflect.mirror.ReflectionMethod;
 import com.redhat.ceylon.compiler.loader.mirror.ClassMirror;
 import com.redhat.ceylon.compiler.loader.mirror.MethodMirror;
 import com.redhat.ceylon.compiler.typechecker.analyzer.ModuleManager;
 import com.redhat.ceylon.compiler.typechecker.model.Module;
+import com.redhat.ceylon.compiler.typechecker.model.ModuleImport;
 import com.redhat.ceylon.compiler.typechecker.model.Modules;
+import com.redhat.ceylon.compiler.typechecker.model.Package;
 import com.redhat.ceylon.compiler.typechecker.model.Unit;
 
 /**
@@ -43,7 +53,30 @@ import com.redhat.ceylon.compiler.typechecker.model.Unit;
  * @author Stéphane Épardaud <stef@epardaud.fr>
  */
 public abstract class ReflectionModelLoader extends AbstractModelLoader {
+    /**
+     * The system property which makes us read the classes from their class files,
+     * for subclasses which implement {@link #loadClassBytes(String)}, rather than
+     * load them with {@link #loadClass(Module, String)}
+     */
+    public static final String CLASS_FILE_MIRRORS_PROPERTY = "ceylon.loader.classfiles";
+
+    /**
+     * The system property giving the number of threads we use to read and decode
+     * the class file mirrors of a package before we load its declarations. Defaults
+     * to zero, which disables prefetching.
+     */
+    public static final String PREFETCH_THREADS_PROPERTY = "ceylon.loader.prefetch.threads";
+
 	protected Logger log;
+    private boolean classFileMirrors = Boolean.getBoolean(CLASS_FILE_MIRRORS_PROPERTY);
+    private final ClassFileLoader classFileLoader = new ClassFileLoader(){
+        @Override
+        protected byte[] getClassBytes(String name) {
+            return loadClassBytes(name);
+        }
+    };
+    private int prefetchThreads = Integer.getInteger(PREFETCH_THREADS_PROPERTY, 0);
+    private ExecutorService prefetcher;
 	
     public ReflectionModelLoader(ModuleManager moduleManager, Modules modules, Logger log){
         this.moduleManager = moduleManager;
@@ -58,6 +91,17 @@ public abstract class ReflectionModelLoader extends AbstractModelLoader {
     protected abstract boolean packageExists(Module module, String packageName);
     protected abstract Class<?> loadClass(Module module, String name);
 
+    /**
+     * Returns the bytes of the class file of the given class, or null if there is
+     * none, in which case we fall back to {@link #loadClass(Module, String)}. This is only
+     * used when the {@link #CLASS_FILE_MIRRORS_PROPERTY} system property is set, and
+     * must also find the JDK classes, since class file mirrors look up the classes
+     * they refer to by name.
+     */
+    protected byte[] loadClassBytes(String name) {
+        return null;
+    }
+
     @Override
     public void loadStandardModules() {
         super.loadStandardModules();
@@ -81,25 +125,10 @@ public abstract class ReflectionModelLoader extends AbstractModelLoader {
         if(!packageExists(module, packageName))
             return false;
         if(loadDeclarations){
-            for(String file : getPackageList(module, packageName)){
-                // ignore non-class stuff
-                if(!file.toLowerCase().endsWith(".class"))
-                    continue;
-                // turn it into a class name
-                // FIXME: this is terrible
-                String className = file.substring(0, file.length()-6).replace('/', '.');
-                // get the last part
-                int lastDot = className.lastIndexOf('.');
-                String lastPart = lastDot == -1 ? className : className.substring(lastDot+1);
-                int dollar = lastPart.indexOf('$');
-                // if we have a dollar after the first char (where it would be quoting), skip it
-                // because those are local/member/anonymous/impl ones
-                if(dollar > 0)
-                    continue;
-                // skip module/package declarations too (do not strip before checking)
-                if(isModuleOrPackageDescriptorName(lastPart))
-                    continue;
-
+            List<String> classNames = getToplevelClassNames(module, packageName);
+            // read and decode their mirrors in parallel, since we can only load their declarations one at a time
+            prefetchClassMirrors(classNames);
+            for(String className : classNames){
                 // the logic for lower-cased names should be abstracted somewhere sane
                 if(!isLoadedFromSource(className) 
                         && (!className.endsWith("_") || !isLoadedFromSource(className.substring(0, className.length()-1)))
@@ -113,18 +142,151 @@ public abstract class ReflectionModelLoader extends AbstractModelLoader {
         return true;
     }
 
+    /**
+     * Returns the names of the classes of the given package which may be toplevel
+     * declarations
+     */
+    private List<String> getToplevelClassNames(Module module, String packageName) {
+        List<String> ret = new ArrayList<String>();
+        for(String file : getPackageList(module, packageName)){
+            // ignore non-class stuff
+            if(!file.toLowerCase().endsWith(".class"))
+                continue;
+            // turn it into a class name
+            // FIXME: this is terrible
+            String className = file.substring(0, file.length()-6).replace('/', '.');
+            // get the last part
+            int lastDot = className.lastIndexOf('.');
+            String lastPart = lastDot == -1 ? className : className.substring(lastDot+1);
+            int dollar = lastPart.indexOf('$');
+            // if we have a dollar after the first char (where it would be quoting), skip it
+            // because those are local/member/anonymous/impl ones
+            if(dollar > 0)
+                continue;
+            // skip module/package declarations too (do not strip before checking)
+            if(isModuleOrPackageDescriptorName(lastPart))
+                continue;
+            ret.add(className);
+        }
+        return ret;
+    }
+
+    /**
+     * Makes us read the classes from their class files, like the
+     * {@link #CLASS_FILE_MIRRORS_PROPERTY} system property does. This must be
+     * called before we load any class.
+     */
+    public void setClassFileMirrors(boolean classFileMirrors) {
+        this.classFileMirrors = classFileMirrors;
+    }
+
+    /**
+     * Sets the number of threads we use to read and decode the class file mirrors
+     * of a package before we load its declarations, which are still loaded one at
+     * a time under the model loader lock. Only used for class file mirrors, see
+     * {@link #CLASS_FILE_MIRRORS_PROPERTY}. Use zero or one to disable it.
+     */
+    public void setPrefetchThreads(int prefetchThreads) {
+        this.prefetchThreads = prefetchThreads;
+    }
+
+    /**
+     * Reads and decodes the class file mirrors of every toplevel class in the known
+     * packages of the modules imported by the given module, in parallel, so that
+     * loading their declarations later does not have to. Does nothing unless
+     * prefetching is enabled. The imported modules must already be on our class
+     * path, see {@link #addModuleToClassPath(Module, com.redhat.ceylon.cmr.api.ArtifactResult)}.
+     */
+    public void prefetchImportedPackages(Module module) {
+        synchronized(getLock()){
+            List<String> classNames = new ArrayList<String>();
+            for(ModuleImport imp : module.getImports()){
+                Module importedModule = imp.getModule();
+                for(Package pkg : importedModule.getPackages()){
+                    String packageName = Util.quoteJavaKeywords(pkg.getNameAsString());
+                    if(packageExists(importedModule, packageName))
+                        classNames.addAll(getToplevelClassNames(importedModule, packageName));
+                }
+            }
+            prefetchClassMirrors(classNames);
+        }
+    }
+
+    /**
+     * Decodes the given class file mirrors on the prefetcher threads, and waits
+     * for them. We must hold the model loader lock, so that the model loader does
+     * not start loading those classes half-way through. The tasks themselves only
+     * take the locks of the class file loader and its mirrors, never ours, so they
+     * can't deadlock while we wait for them.
+     */
+    private void prefetchClassMirrors(List<String> classNames) {
+        if(!Thread.holdsLock(getLock()))
+            throw new IllegalStateException("Class file mirrors must be prefetched under the model loader lock");
+        ExecutorService prefetcher = getPrefetcher();
+        if(prefetcher == null || classNames.size() < 2)
+            return;
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(classNames.size());
+        for(final String className : classNames){
+            tasks.add(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    classFileLoader.prefetch(className);
+                    return null;
+                }
+            });
+        }
+        try {
+            // we ignore failures: loading the declaration will run into them again and report them
+            prefetcher.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the executor which prefetches class file mirrors, or null if we
+     * don't prefetch them.
+     */
+    private ExecutorService getPrefetcher() {
+        if(prefetcher == null && classFileMirrors && prefetchThreads > 1){
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(prefetchThreads, prefetchThreads, 
+                    10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), 
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "ceylon-mirror-prefetcher");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            prefetcher = executor;
+        }
+        return prefetcher;
+    }
+
     protected boolean isLoadedFromSource(String className) {
         return false;
     }
 
     @Override
     public ClassMirror lookupNewClassMirror(Module module, String name) {
-        Class<?> klass = null;
+        ClassMirror mirror = null;
         // first try with the same name, for Java interop with classes with lowercase name
-        klass = loadClass(module, Util.quoteJavaKeywords(name));
-        if (klass == null && lastPartHasLowerInitial(name) && !name.endsWith("_")) {
-            klass = loadClass(module, Util.quoteJavaKeywords(name+"_"));
+        mirror = loadClassMirror(module, Util.quoteJavaKeywords(name));
+        if (mirror == null && lastPartHasLowerInitial(name) && !name.endsWith("_")) {
+            mirror = loadClassMirror(module, Util.quoteJavaKeywords(name+"_"));
+        }
+        return mirror;
+    }
+
+    private ClassMirror loadClassMirror(Module module, String name) {
+        if(classFileMirrors){
+            ClassMirror mirror = classFileLoader.lookupClass(name);
+            if(mirror != null)
+                return mirror;
         }
+        Class<?> klass = loadClass(module, name);
         return klass != null ? new ReflectionClass(klass) : null;
     }
 
@@ -143,22 +305,27 @@ public abstract class ReflectionModelLoader extends AbstractModelLoader {
     
     @Override
     protected boolean isOverridingMethod(MethodMirror methodSymbol) {
-        final Member method = ((ReflectionMethod)methodSymbol).method;
-        if (method.getDeclaringClass().getName().contentEquals("ceylon.language.Identifiable")) {
-            if (method.getName().contentEquals("equals") || method.getName().contentEquals("hashCode")) {
+        final String declaringClass = methodSymbol.getEnclosingClass().getQualifiedName();
+        final String name = methodSymbol.getName();
+        if (declaringClass.equals("ceylon.language.Identifiable")) {
+            if (name.equals("equals") || name.equals("hashCode")) {
                 return true;
             }
         }
-        if (method.getDeclaringClass().getName().contentEquals("ceylon.language.Object")) {
-            if (method.getName().contentEquals("equals") || method.getName().contentEquals("hashCode") || method.getName().contentEquals("toString")) {
+        if (declaringClass.equals("ceylon.language.Object")) {
+            if (name.equals("equals") || name.equals("hashCode") || name.equals("toString")) {
                 return false;
             }
         }
+        if (methodSymbol instanceof ClassFileMethod)
+            return ((ClassFileMethod)methodSymbol).isOverridingMethod();
         return ((ReflectionMethod)methodSymbol).isOverridingMethod();
     }
     
     @Override
     protected boolean isOverloadingMethod(MethodMirror methodSymbol) {
+        if (methodSymbol instanceof ClassFileMethod)
+            return ((ClassFileMethod)methodSymbol).isOverloadingMethod();
         return ((ReflectionMethod)methodSymbol).isOverloadingMethod();
     }
 
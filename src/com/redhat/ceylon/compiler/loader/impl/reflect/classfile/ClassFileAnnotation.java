@@ -0,0 +1,92 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.loader.impl.reflect.classfile;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.redhat.ceylon.compiler.loader.mirror.AnnotationMirror;
+
+/**
+ * An annotation read from a class file. We only locate its values when the
+ * first one is asked for, and decode each value the first time it is asked for,
+ * under the lock of the annotation.
+ */
+public class ClassFileAnnotation implements AnnotationMirror {
+
+    private final ClassFileLoader loader;
+    private final ClassFileReader reader;
+    private final String type;
+    // offset of the element value pairs
+    private final int offset;
+    private Map<String, Integer> valueOffsets;
+    private final Map<String, Object> values = new HashMap<String, Object>();
+
+    ClassFileAnnotation(ClassFileLoader loader, ClassFileReader reader, String type, int offset) {
+        this.loader = loader;
+        this.reader = reader;
+        this.type = type;
+        this.offset = offset;
+    }
+
+    /**
+     * Returns the name of the annotation class
+     */
+    public String getType() {
+        return type;
+    }
+
+    @Override
+    public synchronized Object getValue(String fieldName) {
+        if(values.containsKey(fieldName))
+            return values.get(fieldName);
+        Integer pos = getValueOffsets().get(fieldName);
+        Object value;
+        if(pos != null)
+            value = reader.readElementValue(loader, pos);
+        else // like reflection, we return the default value of values which are not set
+            value = loader.getAnnotationDefault(type, fieldName);
+        values.put(fieldName, value);
+        return value;
+    }
+
+    private Map<String, Integer> getValueOffsets() {
+        if(valueOffsets == null){
+            int pairs = reader.u2(offset);
+            valueOffsets = new HashMap<String, Integer>(pairs * 4 / 3 + 1);
+            int pos = offset + 2;
+            for(int i=0;i<pairs;i++){
+                valueOffsets.put(reader.utf8(reader.u2(pos)), pos + 2);
+                pos = reader.skipElementValue(pos + 2);
+            }
+        }
+        return valueOffsets;
+    }
+
+    @Override
+    public Object getValue() {
+        return getValue("value");
+    }
+
+    @Override
+    public String toString() {
+        return "[ClassFileAnnotation: "+type+"]";
+    }
+}
@@ -0,0 +1,402 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.loader.impl.reflect.classfile;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.redhat.ceylon.compiler.loader.ModelResolutionException;
+
+/**
+ * A persistent cache of the class files of an artifact, stripped of everything
+ * our class file mirrors never read, such as the code of methods, and grouped by
+ * package so that we only read the packages we load.
+ *
+ * Cache files are named after the SHA-1 of their artifact rather than its path:
+ * the contents of a released artifact never change for a given checksum, so
+ * they stay valid wherever the artifact is, and a new build of a module never
+ * sees the cache of the previous one. Opening a cache is only cheap when the
+ * repository stored that checksum next to the artifact: hashing a large
+ * artifact costs about as much as the cache saves.
+ *
+ * This only serves the class file mirrors of the reflection model loader, used
+ * by {@code ceylon doc} and the runtime: the compiler reads its dependencies
+ * with the javac class reader, which doesn't use this cache.
+ *
+ * Instances are safe to use from several threads.
+ */
+public class ClassFileCache {
+
+    /**
+     * Where we read the class files of the artifact from, when we have to
+     * build its cache.
+     */
+    public interface Source {
+        /**
+         * Returns the paths of the class files of the artifact, with slashes
+         */
+        Iterable<String> getClassFileNames();
+
+        byte[] getContents(String path) throws IOException;
+    }
+
+    private static final String CACHE_SUFFIX = ".mirrors";
+    // "CFC" followed by the format version
+    private static final int CACHE_MAGIC = 0x43464301;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final Set<String> MEMBER_ATTRIBUTES = new HashSet<String>(Arrays.asList(
+            "Signature", "RuntimeVisibleAnnotations", "RuntimeVisibleParameterAnnotations", "AnnotationDefault"));
+    private static final Set<String> CLASS_ATTRIBUTES = new HashSet<String>(Arrays.asList(
+            "Signature", "RuntimeVisibleAnnotations", "InnerClasses", "EnclosingMethod"));
+
+    private final ByteBuffer buffer;
+    // package path -> offset of its classes
+    private final Map<String, Integer> packageOffsets;
+    // package path -> class file name -> stripped class file, for the packages we read
+    private final Map<String, Map<String, byte[]>> packages = new HashMap<String, Map<String, byte[]>>();
+
+    private ClassFileCache(ByteBuffer buffer, Map<String, Integer> packageOffsets) {
+        this.buffer = buffer;
+        this.packageOffsets = packageOffsets;
+    }
+
+    /**
+     * Opens the cache of the given artifact, building it first if it's not there
+     * or can't be read.
+     *
+     * @throws IOException if we can't compute the checksum of the artifact, or
+     * can't write its cache
+     */
+    public static ClassFileCache open(File cacheDir, File artifact, Source source) throws IOException {
+        String sha1 = getSha1(artifact);
+        File cacheFile = new File(cacheDir, sha1 + CACHE_SUFFIX);
+        if(cacheFile.isFile()){
+            ClassFileCache ret = read(cacheFile, sha1);
+            if(ret != null)
+                return ret;
+        }
+        write(cacheFile, sha1, source);
+        ClassFileCache ret = read(cacheFile, sha1);
+        if(ret == null)
+            throw new IOException("Failed to read class file cache "+cacheFile);
+        return ret;
+    }
+
+    /**
+     * Returns the stripped class file for the given path, or null if it's not in
+     * this cache.
+     */
+    public byte[] get(String path) {
+        int lastSlash = path.lastIndexOf('/');
+        String pkg = lastSlash == -1 ? "" : path.substring(0, lastSlash);
+        Map<String, byte[]> classes;
+        synchronized(packages){
+            classes = packages.get(pkg);
+            if(classes == null){
+                Integer offset = packageOffsets.get(pkg);
+                if(offset == null)
+                    return null;
+                try{
+                    classes = readPackage(offset);
+                }catch(BufferUnderflowException x){
+                    // truncated: leave it to the artifact
+                    classes = Collections.<String, byte[]>emptyMap();
+                }
+                packages.put(pkg, classes);
+            }
+        }
+        return classes.get(path.substring(lastSlash + 1));
+    }
+
+    private Map<String, byte[]> readPackage(int offset) {
+        ByteBuffer in = buffer.duplicate();
+        in.position(offset);
+        int count = in.getInt();
+        Map<String, byte[]> ret = new HashMap<String, byte[]>(count * 2);
+        for(int i=0;i<count;i++){
+            String name = readString(in);
+            byte[] bytes = new byte[in.getInt()];
+            in.get(bytes);
+            ret.put(name, bytes);
+        }
+        return ret;
+    }
+
+    /**
+     * Maps the given cache file and reads its package index, or returns null if
+     * it's corrupt or not for the given checksum.
+     */
+    private static ClassFileCache read(File cacheFile, String sha1) {
+        try{
+            ByteBuffer buffer;
+            RandomAccessFile raf = new RandomAccessFile(cacheFile, "r");
+            try{
+                FileChannel channel = raf.getChannel();
+                // the mapping stays valid after we close the channel
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }finally{
+                raf.close();
+            }
+            ByteBuffer in = buffer.duplicate();
+            if(in.getInt() != CACHE_MAGIC
+                    || !readString(in).equals(sha1))
+                return null;
+            int count = in.getInt();
+            Map<String, Integer> packageOffsets = new HashMap<String, Integer>(count * 2);
+            for(int i=0;i<count;i++){
+                String pkg = readString(in);
+                int offset = in.getInt();
+                if(offset < 0 || offset >= buffer.limit())
+                    return null;
+                packageOffsets.put(pkg, offset);
+            }
+            return new ClassFileCache(buffer, packageOffsets);
+        }catch(IOException e){
+            return null;
+        }catch(RuntimeException e){
+            // truncated: rebuild it
+            return null;
+        }
+    }
+
+    /**
+     * Writes the cache of the given artifact, made of its package index followed
+     * by the stripped class files of each package.
+     */
+    private static void write(File cacheFile, String sha1, Source source) throws IOException {
+        Map<String, List<String>> classesByPackage = new TreeMap<String, List<String>>();
+        for(String path : source.getClassFileNames()){
+            int lastSlash = path.lastIndexOf('/');
+            String pkg = lastSlash == -1 ? "" : path.substring(0, lastSlash);
+            List<String> classes = classesByPackage.get(pkg);
+            if(classes == null){
+                classes = new ArrayList<String>();
+                classesByPackage.put(pkg, classes);
+            }
+            classes.add(path);
+        }
+        // we need the size of the index to know where the packages start
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+        DataOutputStream indexOut = new DataOutputStream(index);
+        DataOutputStream blocksOut = new DataOutputStream(blocks);
+        List<Integer> offsets = new ArrayList<Integer>(classesByPackage.size());
+        for(Map.Entry<String, List<String>> entry : classesByPackage.entrySet()){
+            offsets.add(blocksOut.size());
+            List<String> paths = entry.getValue();
+            ByteArrayOutputStream classes = new ByteArrayOutputStream();
+            DataOutputStream classesOut = new DataOutputStream(classes);
+            int count = 0;
+            for(String path : paths){
+                byte[] bytes = source.getContents(path);
+                try{
+                    bytes = strip(bytes);
+                }catch(ModelResolutionException x){
+                    // not something we can read: leave it to the artifact
+                    continue;
+                }catch(IndexOutOfBoundsException x){
+                    continue;
+                }
+                writeString(classesOut, path.substring(path.lastIndexOf('/') + 1));
+                classesOut.writeInt(bytes.length);
+                classesOut.write(bytes);
+                count++;
+            }
+            blocksOut.writeInt(count);
+            classes.writeTo(blocksOut);
+        }
+        indexOut.writeInt(CACHE_MAGIC);
+        writeString(indexOut, sha1);
+        indexOut.writeInt(classesByPackage.size());
+        int headerSize = index.size();
+        for(String pkg : classesByPackage.keySet())
+            headerSize += 2 + pkg.getBytes(UTF8).length + 4;
+        int i = 0;
+        for(String pkg : classesByPackage.keySet()){
+            writeString(indexOut, pkg);
+            indexOut.writeInt(headerSize + offsets.get(i++));
+        }
+
+        File cacheDir = cacheFile.getParentFile();
+        if(!cacheDir.isDirectory() && !cacheDir.mkdirs())
+            throw new IOException("Failed to create class file cache folder "+cacheDir);
+        // write it elsewhere first so concurrent readers never see half of it
+        File tmpFile = File.createTempFile(cacheFile.getName(), ".tmp", cacheDir);
+        try{
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try{
+                index.writeTo(out);
+                blocks.writeTo(out);
+            }finally{
+                out.close();
+            }
+            cacheFile.delete();
+            if(tmpFile.renameTo(cacheFile))
+                tmpFile = null;
+            else if(!cacheFile.isFile())
+                throw new IOException("Failed to write class file cache "+cacheFile);
+        }finally{
+            if(tmpFile != null)
+                tmpFile.delete();
+        }
+    }
+
+    /**
+     * Returns a copy of the given class file with only the attributes our mirrors
+     * read. We keep its constant pool as it is, so that every index stays valid.
+     */
+    static byte[] strip(byte[] bytes) {
+        ClassFileReader reader = new ClassFileReader(bytes);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2);
+        // access flags, this class, super class and interfaces
+        int pos = reader.poolEnd + 8 + 2 * reader.interfaces.length;
+        out.write(bytes, 0, pos);
+        // fields and methods
+        for(int i=0;i<2;i++){
+            int count = reader.u2(pos);
+            writeU2(out, count);
+            pos += 2;
+            for(int j=0;j<count;j++){
+                // access flags, name and descriptor
+                out.write(bytes, pos, 6);
+                pos = stripAttributes(reader, pos + 6, out, MEMBER_ATTRIBUTES);
+            }
+        }
+        stripAttributes(reader, pos, out, CLASS_ATTRIBUTES);
+        return out.toByteArray();
+    }
+
+    private static int stripAttributes(ClassFileReader reader, int pos, ByteArrayOutputStream out, Set<String> kept) {
+        int count = reader.u2(pos);
+        pos += 2;
+        int start = pos;
+        int keptCount = 0;
+        for(int i=0;i<count;i++){
+            if(kept.contains(reader.utf8(reader.u2(pos))))
+                keptCount++;
+            pos += 6 + reader.u4(pos + 2);
+        }
+        writeU2(out, keptCount);
+        pos = start;
+        for(int i=0;i<count;i++){
+            int length = 6 + reader.u4(pos + 2);
+            if(kept.contains(reader.utf8(reader.u2(pos))))
+                out.write(reader.bytes, pos, length);
+            pos += length;
+        }
+        return pos;
+    }
+
+    private static void writeU2(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getShort() & 0xffff];
+        in.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Returns the SHA-1 of the given artifact, from the checksum file that
+     * repositories store next to it if it's there, or computed otherwise.
+     */
+    static String getSha1(File artifact) throws IOException {
+        File sha1File = new File(artifact.getPath() + ".sha1");
+        if(sha1File.isFile() && sha1File.lastModified() >= artifact.lastModified()){
+            String sha1 = readSha1File(sha1File);
+            if(sha1 != null)
+                return sha1;
+        }
+        MessageDigest digest;
+        try{
+            digest = MessageDigest.getInstance("SHA-1");
+        }catch(NoSuchAlgorithmException e){
+            throw new IOException(e);
+        }
+        InputStream in = new FileInputStream(artifact);
+        try{
+            byte[] buffer = new byte[8192];
+            int read;
+            while((read = in.read(buffer)) != -1)
+                digest.update(buffer, 0, read);
+        }finally{
+            in.close();
+        }
+        StringBuilder ret = new StringBuilder(40);
+        for(byte b : digest.digest()){
+            ret.append(Character.forDigit((b >> 4) & 0xf, 16));
+            ret.append(Character.forDigit(b & 0xf, 16));
+        }
+        return ret.toString();
+    }
+
+    private static String readSha1File(File sha1File) throws IOException {
+        byte[] bytes = new byte[40];
+        InputStream in = new FileInputStream(sha1File);
+        try{
+            int offset = 0;
+            int read;
+            while(offset < bytes.length && (read = in.read(bytes, offset, bytes.length - offset)) != -1)
+                offset += read;
+            if(offset != bytes.length)
+                return null;
+        }finally{
+            in.close();
+        }
+        String sha1 = new String(bytes, UTF8).toLowerCase();
+        for(int i=0;i<sha1.length();i++){
+            if(Character.digit(sha1.charAt(i), 16) == -1)
+                return null;
+        }
+        return sha1;
+    }
+}
@@ -0,0 +1,469 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.loader.impl.reflect.classfile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import com.redhat.ceylon.compiler.loader.AbstractModelLoader;
+import com.redhat.ceylon.compiler.loader.mirror.AnnotationMirror;
+import com.redhat.ceylon.compiler.loader.mirror.ClassMirror;
+import com.redhat.ceylon.compiler.loader.mirror.FieldMirror;
+import com.redhat.ceylon.compiler.loader.mirror.MethodMirror;
+import com.redhat.ceylon.compiler.loader.mirror.PackageMirror;
+import com.redhat.ceylon.compiler.loader.mirror.TypeMirror;
+import com.redhat.ceylon.compiler.loader.mirror.TypeParameterMirror;
+import com.redhat.ceylon.compiler.typechecker.model.Module;
+
+/**
+ * A class mirror read from the bytes of a class file, which behaves like
+ * {@link com.redhat.ceylon.compiler.loader.impl.reflect.mirror.ReflectionClass}
+ * but does not need to define the class, or any of the classes it refers to.
+ *
+ * Mirrors may be read from several threads, so everything we decode lazily is
+ * decoded under the lock of the mirror which holds it. While we hold it, we only
+ * decode our own bytes, look up classes in the {@link ClassFileLoader}, or list
+ * the methods of another class, which does not take any other lock. We never
+ * call back into the model loader, so this can't deadlock.
+ */
+public class ClassFileClass implements ClassMirror, ClassFileSignature.TypeParameterScope {
+
+    final ClassFileLoader loader;
+    final ClassFileReader reader;
+    private final String name;
+    private ArrayList<FieldMirror> fields;
+    private ArrayList<MethodMirror> methods;
+    private Map<String, AnnotationMirror> annotations;
+    private boolean signatureRead;
+    private List<TypeParameterMirror> typeParameters;
+    private ClassFileType superClass;
+    private List<TypeMirror> interfaces;
+    private boolean innerClassesRead;
+    // from our own InnerClasses entry, if we are nested
+    private int innerAccess = -1;
+    private String outerName;
+    private String simpleName;
+    private List<String> memberClassNames;
+    private LinkedList<ClassMirror> innerClasses;
+    private boolean enclosingClassSet;
+    private ClassMirror enclosingClass;
+    private boolean enclosingMethodSet;
+    private MethodMirror enclosingMethod;
+    private Module cacheKeyModule;
+    private String cacheKey;
+
+    ClassFileClass(ClassFileLoader loader, byte[] bytes) {
+        this.loader = loader;
+        this.reader = new ClassFileReader(bytes);
+        this.name = reader.className(reader.thisClass);
+    }
+
+    @Override
+    public AnnotationMirror getAnnotation(String type) {
+        return getAnnotations().get(type);
+    }
+
+    private boolean isAnnotationPresent(String type) {
+        return getAnnotations().containsKey(type);
+    }
+
+    private synchronized Map<String, AnnotationMirror> getAnnotations() {
+        if(annotations == null)
+            annotations = reader.readAnnotations(loader, reader.annotations);
+        return annotations;
+    }
+
+    /**
+     * Returns the access flags of the class, which for nested classes are
+     * those of their InnerClasses entry, like in reflection.
+     */
+    private int getModifiers() {
+        readInnerClasses();
+        return innerAccess != -1 ? innerAccess : reader.access;
+    }
+
+    @Override
+    public boolean isPublic() {
+        return (getModifiers() & ClassFileReader.ACC_PUBLIC) != 0;
+    }
+
+    @Override
+    public boolean isProtected() {
+        return (getModifiers() & ClassFileReader.ACC_PROTECTED) != 0;
+    }
+
+    @Override
+    public boolean isDefaultAccess() {
+        return (getModifiers() & (ClassFileReader.ACC_PUBLIC | ClassFileReader.ACC_PROTECTED | ClassFileReader.ACC_PRIVATE)) == 0;
+    }
+
+    @Override
+    public String getQualifiedName() {
+        return name.replace('/', '.');
+    }
+
+    @Override
+    public String getFlatName() {
+        return getQualifiedName();
+    }
+
+    @Override
+    public String getName() {
+        readInnerClasses();
+        if(innerAccess != -1)
+            return simpleName != null ? simpleName : "";
+        return name.substring(name.lastIndexOf('/') + 1);
+    }
+
+    @Override
+    public PackageMirror getPackage() {
+        int lastSlash = name.lastIndexOf('/');
+        return new ClassFilePackage(lastSlash == -1 ? "" : name.substring(0, lastSlash).replace('/', '.'));
+    }
+
+    @Override
+    public boolean isInterface() {
+        return (reader.access & ClassFileReader.ACC_INTERFACE) != 0;
+    }
+
+    @Override
+    public boolean isAnnotationType() {
+        return (reader.access & ClassFileReader.ACC_ANNOTATION) != 0;
+    }
+
+    @Override
+    public boolean isAbstract() {
+        return (getModifiers() & ClassFileReader.ACC_ABSTRACT) != 0;
+    }
+
+    @Override
+    public boolean isStatic() {
+        return (getModifiers() & ClassFileReader.ACC_STATIC) != 0;
+    }
+
+    @Override
+    public boolean isFinal() {
+        return (getModifiers() & ClassFileReader.ACC_FINAL) != 0;
+    }
+
+    @Override
+    public synchronized List<MethodMirror> getDirectMethods() {
+        if(methods != null)
+            return methods;
+        methods = new ArrayList<MethodMirror>(reader.methods.size());
+        List<MethodMirror> constructors = new LinkedList<MethodMirror>();
+        for(ClassFileReader.Member method : reader.methods){
+            // Note: like ReflectionClass we return private members, because the runtime manager
+            // depends on them
+            if((method.access & (ClassFileReader.ACC_SYNTHETIC | ClassFileReader.ACC_BRIDGE)) != 0)
+                continue;
+            String methodName = reader.utf8(method.name);
+            if(methodName.equals("<clinit>"))
+                continue;
+            if(methodName.equals("<init>"))
+                constructors.add(new ClassFileMethod(this, method));
+            else
+                methods.add(new ClassFileMethod(this, method));
+        }
+        methods.addAll(constructors);
+        return methods;
+    }
+
+    @Override
+    public synchronized List<FieldMirror> getDirectFields() {
+        if(fields != null)
+            return fields;
+        fields = new ArrayList<FieldMirror>(reader.fields.size());
+        for(ClassFileReader.Member field : reader.fields)
+            if((field.access & ClassFileReader.ACC_SYNTHETIC) == 0)
+                fields.add(new ClassFileField(this, field));
+        return fields;
+    }
+
+    private synchronized void readSignature() {
+        if(signatureRead)
+            return;
+        if(reader.signature != -1){
+            ClassFileSignature signature = new ClassFileSignature(loader, this, reader.utf8(reader.signature));
+            typeParameters = signature.typeParameters();
+            superClass = signature.type();
+            interfaces = new ArrayList<TypeMirror>();
+            while(!signature.atEnd())
+                interfaces.add(signature.type());
+        }else{
+            typeParameters = Collections.<TypeParameterMirror>emptyList();
+            if(reader.superClass != 0)
+                superClass = ClassFileType.declared(loader, reader.className(reader.superClass), Collections.<TypeMirror>emptyList(), null);
+            interfaces = new ArrayList<TypeMirror>(reader.interfaces.length);
+            for(int iface : reader.interfaces)
+                interfaces.add(ClassFileType.declared(loader, reader.className(iface), Collections.<TypeMirror>emptyList(), null));
+        }
+        // like in reflection, interfaces have no superclass
+        if(isInterface())
+            superClass = null;
+        signatureRead = true;
+    }
+
+    @Override
+    public TypeMirror getSuperclass() {
+        readSignature();
+        return superClass;
+    }
+
+    @Override
+    public List<TypeMirror> getInterfaces() {
+        readSignature();
+        return interfaces;
+    }
+
+    @Override
+    public List<TypeParameterMirror> getTypeParameters() {
+        readSignature();
+        return typeParameters;
+    }
+
+    @Override
+    public TypeParameterMirror findTypeParameter(String name) {
+        for(TypeParameterMirror typeParameter : getTypeParameters()){
+            if(typeParameter.getName().equals(name))
+                return typeParameter;
+        }
+        // local classes see the type parameters of their method, member classes those of their class
+        MethodMirror enclosingMethod = getEnclosingMethod();
+        if(enclosingMethod instanceof ClassFileMethod)
+            return ((ClassFileMethod) enclosingMethod).findTypeParameter(name);
+        ClassMirror enclosingClass = getEnclosingClass();
+        if(enclosingClass instanceof ClassFileClass)
+            return ((ClassFileClass) enclosingClass).findTypeParameter(name);
+        return null;
+    }
+
+    /**
+     * Returns the erased superclass, or null if we're an interface or we can't find it.
+     */
+    ClassFileClass getSuperclassMirror() {
+        if(isInterface() || reader.superClass == 0)
+            return null;
+        return loader.lookupClass(reader.className(reader.superClass).replace('/', '.'));
+    }
+
+    /**
+     * Returns the erased interfaces we can find.
+     */
+    List<ClassFileClass> getInterfaceMirrors() {
+        List<ClassFileClass> ret = new ArrayList<ClassFileClass>(reader.interfaces.length);
+        for(int iface : reader.interfaces){
+            ClassFileClass mirror = loader.lookupClass(reader.className(iface).replace('/', '.'));
+            if(mirror != null)
+                ret.add(mirror);
+        }
+        return ret;
+    }
+
+    @Override
+    public boolean isCeylonToplevelAttribute() {
+        return !isInnerClass() && isAnnotationPresent(AbstractModelLoader.CEYLON_ATTRIBUTE_ANNOTATION);
+    }
+
+    @Override
+    public boolean isCeylonToplevelObject() {
+        return !isInnerClass() && isAnnotationPresent(AbstractModelLoader.CEYLON_OBJECT_ANNOTATION);
+    }
+
+    @Override
+    public boolean isCeylonToplevelMethod() {
+        return !isInnerClass() && isAnnotationPresent(AbstractModelLoader.CEYLON_METHOD_ANNOTATION);
+    }
+
+    @Override
+    public boolean isLoadedFromSource() {
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "[ClassFileClass: "+getQualifiedName()+"]";
+    }
+
+    /**
+     * Decodes everything the model loader reads from this toplevel class and its
+     * members, so that it can be done on another thread before the mirror is
+     * handed to the loader. Several classes can be prefetched at the same time,
+     * even if they share the mirrors of the classes they refer to.
+     */
+    void prefetch() {
+        getAnnotations();
+        readInnerClasses();
+        readSignature();
+        for(MethodMirror method : getDirectMethods())
+            ((ClassFileMethod) method).prefetch();
+        for(FieldMirror field : getDirectFields()){
+            field.getAnnotation(AbstractModelLoader.CEYLON_NAME_ANNOTATION);
+            field.getType();
+        }
+    }
+
+    private synchronized void readInnerClasses() {
+        if(innerClassesRead)
+            return;
+        memberClassNames = new LinkedList<String>();
+        int pos = reader.innerClasses;
+        if(pos != -1){
+            int count = reader.u2(pos);
+            pos += 2;
+            for(int i=0;i<count;i++, pos += 8){
+                String inner = reader.className(reader.u2(pos));
+                int outer = reader.u2(pos + 2);
+                if(inner.equals(name)){
+                    innerAccess = reader.u2(pos + 6);
+                    if(outer != 0)
+                        outerName = reader.className(outer);
+                    int simpleNameIndex = reader.u2(pos + 4);
+                    if(simpleNameIndex != 0)
+                        simpleName = reader.utf8(simpleNameIndex);
+                }else if(outer != 0 && reader.className(outer).equals(name)){
+                    memberClassNames.add(inner);
+                }
+            }
+        }
+        innerClassesRead = true;
+    }
+
+    /**
+     * Returns true if this is a Java member class
+     */
+    boolean isMemberClass() {
+        readInnerClasses();
+        return outerName != null;
+    }
+
+    /**
+     * Returns true if this is a Java local class, but not an anonymous one
+     */
+    boolean isJavaLocalClass() {
+        readInnerClasses();
+        return innerAccess != -1 && outerName == null && simpleName != null;
+    }
+
+    /**
+     * Returns true if our enclosing method or constructor is static
+     */
+    boolean hasStaticLocalContainer() {
+        MethodMirror method = getEnclosingMethod();
+        return method != null && method.isStatic();
+    }
+
+    @Override
+    public boolean isInnerClass() {
+        return isMemberClass() || isAnnotationPresent(AbstractModelLoader.CEYLON_CONTAINER_ANNOTATION);
+    }
+
+    @Override
+    public boolean isLocalClass() {
+        return isJavaLocalClass() || isAnnotationPresent(AbstractModelLoader.CEYLON_LOCAL_DECLARATION_ANNOTATION);
+    }
+
+    @Override
+    public synchronized List<ClassMirror> getDirectInnerClasses() {
+        if(innerClasses == null){
+            readInnerClasses();
+            innerClasses = new LinkedList<ClassMirror>();
+            for(String innerClass : memberClassNames){
+                ClassFileClass mirror = loader.lookupClass(innerClass.replace('/', '.'));
+                if(mirror != null)
+                    innerClasses.add(mirror);
+            }
+        }
+        return innerClasses;
+    }
+
+    @Override
+    public boolean isAnonymous() {
+        readInnerClasses();
+        return innerAccess != -1 && simpleName == null;
+    }
+
+    @Override
+    public boolean isJavaSource() {
+        return false;
+    }
+
+    @Override
+    public synchronized ClassMirror getEnclosingClass() {
+        if(enclosingClassSet)
+            return enclosingClass;
+        readInnerClasses();
+        String encl = null;
+        if(reader.enclosingMethod != -1)
+            encl = reader.className(reader.u2(reader.enclosingMethod));
+        else if(outerName != null)
+            encl = outerName;
+        if(encl != null)
+            enclosingClass = loader.lookupClass(encl.replace('/', '.'));
+        enclosingClassSet = true;
+        return enclosingClass;
+    }
+
+    @Override
+    public synchronized MethodMirror getEnclosingMethod() {
+        if(enclosingMethodSet)
+            return enclosingMethod;
+        int pos = reader.enclosingMethod;
+        // there's no enclosing method for classes in initialisers
+        if(pos != -1 && reader.u2(pos + 2) != 0){
+            int nameAndType = reader.u2(pos + 2);
+            String methodName = reader.nameAndTypeName(nameAndType);
+            String descriptor = reader.nameAndTypeDescriptor(nameAndType);
+            ClassFileClass declaringClass = loader.lookupClass(reader.className(reader.u2(pos)).replace('/', '.'));
+            if(declaringClass != null){
+                for(MethodMirror method : declaringClass.getDirectMethods()){
+                    ClassFileMethod classFileMethod = (ClassFileMethod) method;
+                    if(classFileMethod.getRawName().equals(methodName)
+                            && classFileMethod.getDescriptor().equals(descriptor)){
+                        enclosingMethod = method;
+                        break;
+                    }
+                }
+            }
+        }
+        enclosingMethodSet = true;
+        return enclosingMethod;
+    }
+
+    @Override
+    public boolean isEnum() {
+        return (reader.access & ClassFileReader.ACC_ENUM) != 0
+                && reader.superClass != 0
+                && reader.className(reader.superClass).equals("java/lang/Enum");
+    }
+
+    @Override
+    public synchronized String getCacheKey(Module module) {
+        // we are shared between lookups, so make sure we have the key of the right module
+        if(cacheKey == null || cacheKeyModule != module){
+            cacheKey = AbstractModelLoader.getCacheKeyByModule(module, getQualifiedName());
+            cacheKeyModule = module;
+        }
+        return cacheKey;
+    }
+}
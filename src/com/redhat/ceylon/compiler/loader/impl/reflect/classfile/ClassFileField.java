@@ -0,0 +1,90 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.loader.impl.reflect.classfile;
+
+import java.util.Map;
+
+import com.redhat.ceylon.compiler.loader.mirror.AnnotationMirror;
+import com.redhat.ceylon.compiler.loader.mirror.FieldMirror;
+import com.redhat.ceylon.compiler.loader.mirror.TypeMirror;
+
+public class ClassFileField implements FieldMirror {
+
+    private final ClassFileClass declaringClass;
+    private final ClassFileReader.Member field;
+    private ClassFileType type;
+    private Map<String, AnnotationMirror> annotations;
+
+    ClassFileField(ClassFileClass declaringClass, ClassFileReader.Member field) {
+        this.declaringClass = declaringClass;
+        this.field = field;
+    }
+
+    @Override
+    public synchronized AnnotationMirror getAnnotation(String type) {
+        if(annotations == null)
+            annotations = declaringClass.reader.readAnnotations(declaringClass.loader, field.annotations);
+        return annotations.get(type);
+    }
+
+    @Override
+    public String getName() {
+        return declaringClass.reader.utf8(field.name);
+    }
+
+    @Override
+    public boolean isStatic() {
+        return (field.access & ClassFileReader.ACC_STATIC) != 0;
+    }
+
+    @Override
+    public boolean isPublic() {
+        return (field.access & ClassFileReader.ACC_PUBLIC) != 0;
+    }
+
+    @Override
+    public boolean isProtected() {
+        return (field.access & ClassFileReader.ACC_PROTECTED) != 0;
+    }
+
+    @Override
+    public boolean isDefaultAccess() {
+        return (field.access & (ClassFileReader.ACC_PUBLIC | ClassFileReader.ACC_PROTECTED | ClassFileReader.ACC_PRIVATE)) == 0;
+    }
+
+    @Override
+    public boolean isFinal() {
+        return (field.access & ClassFileReader.ACC_FINAL) != 0;
+    }
+
+    @Override
+    public synchronized TypeMirror getType() {
+        if(type == null){
+            int signature = field.signature != -1 ? field.signature : field.descriptor;
+            type = new ClassFileSignature(declaringClass.loader, declaringClass, declaringClass.reader.utf8(signature)).type();
+        }
+        return type;
+    }
+
+    @Override
+    public String toString() {
+        return "[ClassFileField: "+declaringClass.getQualifiedName()+"."+getName()+"]";
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.loader.impl.reflect.classfile;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.redhat.ceylon.compiler.loader.mirror.MethodMirror;
+
+/**
+ * Creates {@link ClassFileClass} mirrors from the bytes of class files, without
+ * defining any {@link Class}, and caches them by name so that the classes and
+ * types which refer to the same class share its mirror.
+ *
+ * Lookups are synchronized, since {@link #getClassBytes(String)} need not be
+ * thread-safe. The mirrors decode themselves lazily and publish what they
+ * decoded safely, so they can be read from several threads at once.
+ */
+public abstract class ClassFileLoader {
+
+    private final Map<String, ClassFileClass> classes = new HashMap<String, ClassFileClass>();
+
+    /**
+     * Returns the bytes of the class file of the given class, or null if we
+     * can't find it. This is only called with the lock of this loader held.
+     *
+     * @param name the binary name of the class, such as <tt>java.util.Map$Entry</tt>
+     */
+    protected abstract byte[] getClassBytes(String name);
+
+    /**
+     * Returns the mirror of the given class, or null if we can't find its class file.
+     *
+     * @param name the binary name of the class, such as <tt>java.util.Map$Entry</tt>
+     */
+    public synchronized ClassFileClass lookupClass(String name) {
+        ClassFileClass ret = classes.get(name);
+        if(ret == null){
+            // we don't remember misses, since class files may be added later
+            byte[] bytes = getClassBytes(name);
+            if(bytes != null){
+                ret = new ClassFileClass(this, bytes);
+                classes.put(name, ret);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Looks up the given toplevel class and decodes everything the model loader
+     * will read from it. This is safe to call from several threads at once.
+     *
+     * @param name the binary name of the class
+     */
+    public void prefetch(String name) {
+        ClassFileClass mirror = lookupClass(name);
+        if(mirror != null)
+            mirror.prefetch();
+    }
+
+    /**
+     * Returns the default value of the given annotation method, or null.
+     */
+    Object getAnnotationDefault(String annotationType, String name) {
+        ClassFileClass annotation = lookupClass(annotationType);
+        if(annotation == null)
+            return null;
+        for(MethodMirror method : annotation.getDirectMethods()){
+            if(method.getName().equals(name))
+                return ((ClassFileMethod) method).getDefaultValue();
+        }
+        return null;
+    }
+}
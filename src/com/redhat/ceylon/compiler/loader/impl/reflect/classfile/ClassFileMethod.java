@@ -0,0 +1,302 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.loader.impl.reflect.classfile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.redhat.ceylon.compiler.loader.AbstractModelLoader;
+import com.redhat.ceylon.compiler.loader.mirror.AnnotationMirror;
+import com.redhat.ceylon.compiler.loader.mirror.ClassMirror;
+import com.redhat.ceylon.compiler.loader.mirror.MethodMirror;
+import com.redhat.ceylon.compiler.loader.mirror.TypeMirror;
+import com.redhat.ceylon.compiler.loader.mirror.TypeParameterMirror;
+import com.redhat.ceylon.compiler.loader.mirror.VariableMirror;
+
+public class ClassFileMethod implements MethodMirror, ClassFileSignature.TypeParameterScope {
+
+    private final ClassFileClass declaringClass;
+    private final ClassFileReader.Member method;
+    private ArrayList<VariableMirror> parameters;
+    private boolean signatureRead;
+    private List<TypeParameterMirror> typeParameters;
+    // from the descriptor, so erased and including synthetic parameters
+    private List<ClassFileType> parameterTypes;
+    // from the signature if we have one, which may not include synthetic parameters
+    private List<ClassFileType> genericParameterTypes;
+    private ClassFileType returnType;
+    private volatile Boolean overridingMethod;
+    private volatile Boolean overloadingMethod;
+    private boolean defaultValueSet;
+    private Object defaultValue;
+    private Map<String, AnnotationMirror> annotations;
+
+    ClassFileMethod(ClassFileClass declaringClass, ClassFileReader.Member method) {
+        this.declaringClass = declaringClass;
+        this.method = method;
+    }
+
+    @Override
+    public AnnotationMirror getAnnotation(String type) {
+        return getAnnotations().get(type);
+    }
+
+    private synchronized Map<String, AnnotationMirror> getAnnotations() {
+        if(annotations == null)
+            annotations = declaringClass.reader.readAnnotations(declaringClass.loader, method.annotations);
+        return annotations;
+    }
+
+    /**
+     * Returns the name of the method in the class file, which is <tt>&lt;init&gt;</tt>
+     * for constructors
+     */
+    String getRawName() {
+        return declaringClass.reader.utf8(method.name);
+    }
+
+    String getDescriptor() {
+        return declaringClass.reader.utf8(method.descriptor);
+    }
+
+    @Override
+    public String getName() {
+        // like in reflection, constructors are named after their class
+        return isConstructor() ? declaringClass.getQualifiedName() : getRawName();
+    }
+
+    @Override
+    public boolean isStatic() {
+        return (method.access & ClassFileReader.ACC_STATIC) != 0;
+    }
+
+    @Override
+    public boolean isPublic() {
+        return (method.access & ClassFileReader.ACC_PUBLIC) != 0;
+    }
+
+    @Override
+    public boolean isProtected() {
+        return (method.access & ClassFileReader.ACC_PROTECTED) != 0;
+    }
+
+    boolean isPrivate() {
+        return (method.access & ClassFileReader.ACC_PRIVATE) != 0;
+    }
+
+    @Override
+    public boolean isDefaultAccess() {
+        return (method.access & (ClassFileReader.ACC_PUBLIC | ClassFileReader.ACC_PROTECTED | ClassFileReader.ACC_PRIVATE)) == 0;
+    }
+
+    @Override
+    public boolean isConstructor() {
+        return getRawName().equals("<init>");
+    }
+
+    @Override
+    public boolean isStaticInit() {
+        return false;
+    }
+
+    @Override
+    public boolean isVariadic() {
+        return (method.access & ClassFileReader.ACC_VARARGS) != 0;
+    }
+
+    private synchronized void readSignature() {
+        if(signatureRead)
+            return;
+        ClassFileSignature descriptor = new ClassFileSignature(declaringClass.loader, this, getDescriptor());
+        parameterTypes = descriptor.parameterTypes();
+        returnType = descriptor.type();
+        if(method.signature != -1){
+            ClassFileSignature signature = new ClassFileSignature(declaringClass.loader, this, declaringClass.reader.utf8(method.signature));
+            typeParameters = signature.typeParameters();
+            genericParameterTypes = signature.parameterTypes();
+            returnType = signature.type();
+        }else{
+            typeParameters = Collections.<TypeParameterMirror>emptyList();
+            genericParameterTypes = parameterTypes;
+        }
+        signatureRead = true;
+    }
+
+    /**
+     * Returns the erased parameter types, as descriptors
+     */
+    List<String> getParameterErasures() {
+        readSignature();
+        List<String> ret = new ArrayList<String>(parameterTypes.size());
+        for(ClassFileType type : parameterTypes)
+            ret.add(type.getErasure(Collections.<String, String>emptyMap()));
+        return ret;
+    }
+
+    List<ClassFileType> getGenericParameterTypes() {
+        readSignature();
+        return genericParameterTypes;
+    }
+
+    @Override
+    public synchronized List<VariableMirror> getParameters() {
+        if(parameters != null)
+            return parameters;
+        readSignature();
+        List<ClassFileType> javaParameters = genericParameterTypes;
+        int[] annotations = method.parameterAnnotations != -1
+                ? declaringClass.reader.readParameterAnnotationOffsets(method.parameterAnnotations)
+                : null;
+        int parameterCount = parameterTypes.size();
+        int annotationCount = annotations != null ? annotations.length : parameterCount;
+        parameters = new ArrayList<VariableMirror>(parameterCount);
+        // this follows what ReflectionMethod does, since class files have the same synthetic parameter issues
+        int start = 0;
+        if(isConstructor()){
+            // enums will always add two synthetic parameters (string and int) and always be static so none more
+            if(declaringClass.isEnum())
+                start = 2;
+            // inner classes will always add a synthetic parameter to the constructor, unless they are static
+            // FIXME: local and anonymous classes may add more but we don't know how to find out
+            else if((declaringClass.isMemberClass()
+                        || declaringClass.isAnonymous()
+                        // if it's a local class its container method must not be static
+                        || (declaringClass.isJavaLocalClass() && !declaringClass.hasStaticLocalContainer()))
+                    && !declaringClass.isStatic())
+                start = 1;
+        }
+
+        // the signature and parameter annotations may only include non-synthetic parameters
+        int parametersOffset = javaParameters.size() != parameterCount ? -start : 0;
+        int annotationsOffset = annotationCount != parameterCount ? -start : 0;
+
+        // we have synthetic parameters first (skipped with start), then regular params, then synthetic captured params
+
+        // if we have any synthetic params, remove them from the count, except the ones from the start
+        // this makes sure we don't consider synthetic captured params
+        if(javaParameters.size() != parameterCount)
+            parameterCount = javaParameters.size() + start;
+        else if(annotationCount != parameterCount) // better luck with annotations?
+            parameterCount = annotationCount + start;
+
+        // skip synthetic parameters
+        for(int i=start;i<parameterCount;i++){
+            int annotationsIndex = i + annotationsOffset;
+            int annotationsPosition = annotations != null && annotationsIndex < annotations.length ? annotations[annotationsIndex] : -1;
+            parameters.add(new ClassFileVariable(declaringClass, javaParameters.get(i + parametersOffset), annotationsPosition));
+        }
+        return parameters;
+    }
+
+    /**
+     * See {@link ClassFileClass#prefetch()}
+     */
+    void prefetch() {
+        getAnnotation(AbstractModelLoader.CEYLON_NAME_ANNOTATION);
+        readSignature();
+        // the parameters of local classes depend on their enclosing method, which is another mirror
+        if(!declaringClass.isJavaLocalClass()){
+            for(VariableMirror parameter : getParameters())
+                parameter.getAnnotation(AbstractModelLoader.CEYLON_NAME_ANNOTATION);
+        }
+    }
+
+    @Override
+    public boolean isAbstract() {
+        return (method.access & ClassFileReader.ACC_ABSTRACT) != 0;
+    }
+
+    @Override
+    public boolean isFinal() {
+        return (method.access & ClassFileReader.ACC_FINAL) != 0;
+    }
+
+    @Override
+    public TypeMirror getReturnType() {
+        readSignature();
+        return returnType;
+    }
+
+    @Override
+    public boolean isDeclaredVoid() {
+        return !isConstructor() && getDescriptor().endsWith(")V");
+    }
+
+    @Override
+    public List<TypeParameterMirror> getTypeParameters() {
+        readSignature();
+        return typeParameters;
+    }
+
+    @Override
+    public TypeParameterMirror findTypeParameter(String name) {
+        for(TypeParameterMirror typeParameter : getTypeParameters()){
+            if(typeParameter.getName().equals(name))
+                return typeParameter;
+        }
+        return declaringClass.findTypeParameter(name);
+    }
+
+    public boolean isOverridingMethod() {
+        // this looks at the supertypes, so we don't hold our lock, and may compute it twice
+        if(overridingMethod == null)
+            overridingMethod = !isConstructor() && ClassFileUtils.isOverridingMethod(this);
+        return overridingMethod.booleanValue();
+    }
+
+    public boolean isOverloadingMethod() {
+        if(overloadingMethod == null)
+            overloadingMethod = !isConstructor() && ClassFileUtils.isOverloadingMethod(this);
+        return overloadingMethod.booleanValue();
+    }
+
+    @Override
+    public String toString() {
+        return "[ClassFileMethod: "+declaringClass.getQualifiedName()+"."+getRawName()+getDescriptor()+"]";
+    }
+
+    @Override
+    public boolean isDefault() {
+        return method.annotationDefault != -1;
+    }
+
+    /**
+     * Returns the default value of this annotation method, or null
+     */
+    synchronized Object getDefaultValue() {
+        if(!defaultValueSet){
+            if(method.annotationDefault != -1)
+                defaultValue = declaringClass.reader.readElementValue(declaringClass.loader, method.annotationDefault);
+            defaultValueSet = true;
+        }
+        return defaultValue;
+    }
+
+    @Override
+    public ClassMirror getEnclosingClass() {
+        return declaringClass;
+    }
+
+    ClassFileClass getDeclaringClass() {
+        return declaringClass;
+    }
+}
@@ -0,0 +1,419 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.loader.impl.reflect.classfile;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.redhat.ceylon.compiler.loader.ModelResolutionException;
+import com.redhat.ceylon.compiler.loader.mirror.AnnotationMirror;
+
+/**
+ * The bytes of a class file, with its constant pool indexed so that we can
+ * read its constants on demand. We only decode the UTF-8 constants we are
+ * asked for, and cache them.
+ *
+ * Annotations are not decoded when we read their members: we only remember
+ * where their attributes start, and decode them the first time they are
+ * asked for, one annotation value at a time.
+ */
+final class ClassFileReader {
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PRIVATE = 0x0002;
+    static final int ACC_PROTECTED = 0x0004;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_BRIDGE = 0x0040;
+    static final int ACC_VARARGS = 0x0080;
+    static final int ACC_INTERFACE = 0x0200;
+    static final int ACC_ABSTRACT = 0x0400;
+    static final int ACC_SYNTHETIC = 0x1000;
+    static final int ACC_ANNOTATION = 0x2000;
+    static final int ACC_ENUM = 0x4000;
+
+    private static final int MAGIC = 0xCAFEBABE;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_FLOAT = 4;
+    private static final int CONSTANT_LONG = 5;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+    private static final int CONSTANT_METHOD_HANDLE = 15;
+    private static final int CONSTANT_METHOD_TYPE = 16;
+    private static final int CONSTANT_DYNAMIC = 17;
+    private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+    private static final int CONSTANT_MODULE = 19;
+    private static final int CONSTANT_PACKAGE = 20;
+
+    /**
+     * A field or method, with the position of the attributes we care about,
+     * or -1 if it doesn't have them.
+     */
+    static class Member {
+        int access;
+        int name;
+        int descriptor;
+        // constant pool index of the generic signature
+        int signature = -1;
+        // offsets of the attribute contents
+        int annotations = -1;
+        int parameterAnnotations = -1;
+        int annotationDefault = -1;
+    }
+
+    final byte[] bytes;
+    // offset of the tag of each constant
+    private final int[] constants;
+    private final String[] strings;
+    // the offset right after the constant pool
+    final int poolEnd;
+
+    // the class header, right after the constant pool
+    final int access;
+    final int thisClass;
+    final int superClass;
+    final int[] interfaces;
+    final List<Member> fields;
+    final List<Member> methods;
+
+    // class attributes
+    int signature = -1;
+    int annotations = -1;
+    int innerClasses = -1;
+    int enclosingMethod = -1;
+
+    ClassFileReader(byte[] bytes) {
+        this.bytes = bytes;
+        if(bytes.length < 10 || u4(0) != MAGIC)
+            throw new ModelResolutionException("Invalid class file");
+        int count = u2(8);
+        constants = new int[count];
+        strings = new String[count];
+        int pos = 10;
+        for(int i=1;i<count;i++){
+            constants[i] = pos;
+            int tag = u1(pos);
+            switch(tag){
+            case CONSTANT_UTF8:
+                pos += 3 + u2(pos + 1);
+                break;
+            case CONSTANT_INTEGER:
+            case CONSTANT_FLOAT:
+            case CONSTANT_FIELDREF:
+            case CONSTANT_METHODREF:
+            case CONSTANT_INTERFACE_METHODREF:
+            case CONSTANT_NAME_AND_TYPE:
+            case CONSTANT_DYNAMIC:
+            case CONSTANT_INVOKE_DYNAMIC:
+                pos += 5;
+                break;
+            case CONSTANT_LONG:
+            case CONSTANT_DOUBLE:
+                // those take two slots
+                pos += 9;
+                i++;
+                break;
+            case CONSTANT_CLASS:
+            case CONSTANT_STRING:
+            case CONSTANT_METHOD_TYPE:
+            case CONSTANT_MODULE:
+            case CONSTANT_PACKAGE:
+                pos += 3;
+                break;
+            case CONSTANT_METHOD_HANDLE:
+                pos += 4;
+                break;
+            default:
+                throw new ModelResolutionException("Invalid constant pool tag "+tag+" in class file");
+            }
+        }
+        poolEnd = pos;
+        access = u2(pos);
+        thisClass = u2(pos + 2);
+        superClass = u2(pos + 4);
+        interfaces = new int[u2(pos + 6)];
+        pos += 8;
+        for(int i=0;i<interfaces.length;i++, pos += 2)
+            interfaces[i] = u2(pos);
+        fields = new ArrayList<Member>(u2(pos));
+        pos = readMembers(pos, fields);
+        methods = new ArrayList<Member>(u2(pos));
+        pos = readMembers(pos, methods);
+        int attributes = u2(pos);
+        pos += 2;
+        for(int i=0;i<attributes;i++){
+            String name = utf8(u2(pos));
+            int length = u4(pos + 2);
+            pos += 6;
+            if(name.equals("Signature"))
+                signature = u2(pos);
+            else if(name.equals("RuntimeVisibleAnnotations"))
+                annotations = pos;
+            else if(name.equals("InnerClasses"))
+                innerClasses = pos;
+            else if(name.equals("EnclosingMethod"))
+                enclosingMethod = pos;
+            pos += length;
+        }
+    }
+
+    private int readMembers(int pos, List<Member> members) {
+        int count = u2(pos);
+        pos += 2;
+        for(int i=0;i<count;i++){
+            Member member = new Member();
+            member.access = u2(pos);
+            member.name = u2(pos + 2);
+            member.descriptor = u2(pos + 4);
+            int attributes = u2(pos + 6);
+            pos += 8;
+            for(int j=0;j<attributes;j++){
+                String name = utf8(u2(pos));
+                int length = u4(pos + 2);
+                pos += 6;
+                if(name.equals("Signature"))
+                    member.signature = u2(pos);
+                else if(name.equals("RuntimeVisibleAnnotations"))
+                    member.annotations = pos;
+                else if(name.equals("RuntimeVisibleParameterAnnotations"))
+                    member.parameterAnnotations = pos;
+                else if(name.equals("AnnotationDefault"))
+                    member.annotationDefault = pos;
+                pos += length;
+            }
+            members.add(member);
+        }
+        return pos;
+    }
+
+    int u1(int pos) {
+        return bytes[pos] & 0xff;
+    }
+
+    int u2(int pos) {
+        return ((bytes[pos] & 0xff) << 8) | (bytes[pos + 1] & 0xff);
+    }
+
+    int u4(int pos) {
+        return ((bytes[pos] & 0xff) << 24)
+                | ((bytes[pos + 1] & 0xff) << 16)
+                | ((bytes[pos + 2] & 0xff) << 8)
+                | (bytes[pos + 3] & 0xff);
+    }
+
+    /**
+     * Returns the given UTF-8 constant
+     */
+    String utf8(int index) {
+        String ret = strings[index];
+        if(ret == null){
+            int pos = constants[index];
+            if(u1(pos) != CONSTANT_UTF8)
+                throw new ModelResolutionException("Invalid UTF-8 constant in class file");
+            try {
+                // class files use the same modified UTF-8 as DataInput, including the length
+                ret = new DataInputStream(new ByteArrayInputStream(bytes, pos + 1, 2 + u2(pos + 1))).readUTF();
+            } catch (IOException e) {
+                throw new ModelResolutionException("Invalid UTF-8 constant in class file", e);
+            }
+            strings[index] = ret;
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the internal name of the given class constant, such as <tt>java/util/Map$Entry</tt>
+     */
+    String className(int index) {
+        return utf8(u2(constants[index] + 1));
+    }
+
+    /**
+     * Returns the value of the given numeric or string constant
+     */
+    Object constant(int index) {
+        int pos = constants[index];
+        switch(u1(pos)){
+        case CONSTANT_INTEGER:
+            return u4(pos + 1);
+        case CONSTANT_FLOAT:
+            return Float.intBitsToFloat(u4(pos + 1));
+        case CONSTANT_LONG:
+            return readLong(pos + 1);
+        case CONSTANT_DOUBLE:
+            return Double.longBitsToDouble(readLong(pos + 1));
+        case CONSTANT_STRING:
+            return utf8(u2(pos + 1));
+        default:
+            throw new ModelResolutionException("Invalid constant "+index+" in class file");
+        }
+    }
+
+    private long readLong(int pos) {
+        return ((long)u4(pos) << 32) | (u4(pos + 4) & 0xffffffffL);
+    }
+
+    /**
+     * Returns the name of the given name and type constant
+     */
+    String nameAndTypeName(int index) {
+        return utf8(u2(constants[index] + 1));
+    }
+
+    /**
+     * Returns the descriptor of the given name and type constant
+     */
+    String nameAndTypeDescriptor(int index) {
+        return utf8(u2(constants[index] + 3));
+    }
+
+    //
+    // Annotations
+
+    /**
+     * Decodes the annotations of the annotations attribute at the given offset,
+     * by annotation class name, without decoding their values.
+     */
+    Map<String, AnnotationMirror> readAnnotations(ClassFileLoader loader, int pos) {
+        if(pos == -1)
+            return Collections.<String, AnnotationMirror>emptyMap();
+        int count = u2(pos);
+        if(count == 0)
+            return Collections.<String, AnnotationMirror>emptyMap();
+        pos += 2;
+        Map<String, AnnotationMirror> ret = new HashMap<String, AnnotationMirror>();
+        for(int i=0;i<count;i++){
+            String type = ClassFileType.descriptorToName(utf8(u2(pos)));
+            if(!ret.containsKey(type))
+                ret.put(type, new ClassFileAnnotation(loader, this, type, pos + 2));
+            pos = skipAnnotation(pos);
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the offsets of the annotations of each parameter, for the
+     * parameter annotations attribute at the given offset.
+     */
+    int[] readParameterAnnotationOffsets(int pos) {
+        int[] ret = new int[u1(pos)];
+        pos++;
+        for(int i=0;i<ret.length;i++){
+            ret[i] = pos;
+            int count = u2(pos);
+            pos += 2;
+            for(int j=0;j<count;j++)
+                pos = skipAnnotation(pos);
+        }
+        return ret;
+    }
+
+    /**
+     * Decodes the element value at the given offset, the way
+     * {@link com.redhat.ceylon.compiler.loader.impl.reflect.mirror.ReflectionAnnotation}
+     * converts annotation values: arrays become lists, enums become their names
+     * and classes become type mirrors.
+     */
+    Object readElementValue(ClassFileLoader loader, int pos) {
+        char tag = (char) u1(pos);
+        pos++;
+        switch(tag){
+        case 'B':
+            return ((Integer) constant(u2(pos))).byteValue();
+        case 'C':
+            return (char)((Integer) constant(u2(pos))).intValue();
+        case 'S':
+            return ((Integer) constant(u2(pos))).shortValue();
+        case 'Z':
+            return ((Integer) constant(u2(pos))).intValue() != 0;
+        case 'I':
+        case 'J':
+        case 'F':
+        case 'D':
+            return constant(u2(pos));
+        case 's':
+            return utf8(u2(pos));
+        case 'e':
+            return utf8(u2(pos + 2));
+        case 'c':
+            return ClassFileType.parseDescriptor(loader, utf8(u2(pos)));
+        case '@':
+            return new ClassFileAnnotation(loader, this, ClassFileType.descriptorToName(utf8(u2(pos))), pos + 2);
+        case '[':
+            int count = u2(pos);
+            pos += 2;
+            List<Object> values = new ArrayList<Object>(count);
+            for(int i=0;i<count;i++){
+                values.add(readElementValue(loader, pos));
+                pos = skipElementValue(pos);
+            }
+            return values;
+        default:
+            throw new ModelResolutionException("Invalid annotation value tag "+tag+" in class file");
+        }
+    }
+
+    /**
+     * Returns the offset right after the annotation at the given offset
+     */
+    int skipAnnotation(int pos) {
+        int pairs = u2(pos + 2);
+        pos += 4;
+        for(int i=0;i<pairs;i++)
+            pos = skipElementValue(pos + 2);
+        return pos;
+    }
+
+    /**
+     * Returns the offset right after the element value at the given offset
+     */
+    int skipElementValue(int pos) {
+        char tag = (char) u1(pos);
+        pos++;
+        switch(tag){
+        case 'e':
+            return pos + 4;
+        case '@':
+            return skipAnnotation(pos);
+        case '[':
+            int count = u2(pos);
+            pos += 2;
+            for(int i=0;i<count;i++)
+                pos = skipElementValue(pos);
+            return pos;
+        default:
+            // every other value is a single constant pool index
+            return pos + 2;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.loader.impl.reflect.classfile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.lang.model.type.TypeKind;
+
+import com.redhat.ceylon.compiler.loader.ModelResolutionException;
+import com.redhat.ceylon.compiler.loader.mirror.TypeMirror;
+import com.redhat.ceylon.compiler.loader.mirror.TypeParameterMirror;
+
+/**
+ * Parses descriptors and generic signatures, as described in the JVM specification.
+ * Descriptors are parsed as signatures, since they are a subset of them.
+ */
+final class ClassFileSignature {
+
+    /**
+     * Something which declares type parameters, where we look up the type
+     * parameter of type variables.
+     */
+    interface TypeParameterScope {
+        /**
+         * Returns the type parameter of the given name visible from this scope,
+         * or null if there is none.
+         */
+        TypeParameterMirror findTypeParameter(String name);
+    }
+
+    private final ClassFileLoader loader;
+    private final TypeParameterScope scope;
+    private final String signature;
+    private int pos;
+
+    ClassFileSignature(ClassFileLoader loader, TypeParameterScope scope, String signature) {
+        this.loader = loader;
+        this.scope = scope;
+        this.signature = signature;
+    }
+
+    boolean atEnd() {
+        return pos >= signature.length();
+    }
+
+    private char peek() {
+        if(atEnd())
+            throw new ModelResolutionException("Invalid signature: "+signature);
+        return signature.charAt(pos);
+    }
+
+    private void expect(char c) {
+        if(peek() != c)
+            throw new ModelResolutionException("Invalid signature: "+signature);
+        pos++;
+    }
+
+    /**
+     * Parses the type parameters, if there are any
+     */
+    List<TypeParameterMirror> typeParameters() {
+        if(atEnd() || peek() != '<')
+            return Collections.<TypeParameterMirror>emptyList();
+        pos++;
+        List<TypeParameterMirror> ret = new ArrayList<TypeParameterMirror>();
+        while(peek() != '>'){
+            int colon = signature.indexOf(':', pos);
+            if(colon == -1)
+                throw new ModelResolutionException("Invalid signature: "+signature);
+            String name = signature.substring(pos, colon);
+            pos = colon + 1;
+            List<TypeMirror> bounds = new ArrayList<TypeMirror>();
+            // the class bound is empty when there are only interface bounds
+            if(peek() != ':')
+                bounds.add(type());
+            while(peek() == ':'){
+                pos++;
+                bounds.add(type());
+            }
+            // like reflection, unbounded type parameters are bounded by Object
+            if(bounds.isEmpty())
+                bounds.add(ClassFileType.declared(loader, ClassFileType.OBJECT, Collections.<TypeMirror>emptyList(), null));
+            ret.add(new ClassFileTypeParameter(name, bounds));
+        }
+        pos++;
+        return ret;
+    }
+
+    /**
+     * Parses the parameter types of a method signature, after its type parameters
+     */
+    List<ClassFileType> parameterTypes() {
+        expect('(');
+        List<ClassFileType> ret = new ArrayList<ClassFileType>();
+        while(peek() != ')')
+            ret.add(type());
+        pos++;
+        return ret;
+    }
+
+    /**
+     * Parses a type, including primitive types and void
+     */
+    ClassFileType type() {
+        char c = peek();
+        pos++;
+        switch(c){
+        case 'Z': return ClassFileType.primitive(TypeKind.BOOLEAN);
+        case 'B': return ClassFileType.primitive(TypeKind.BYTE);
+        case 'C': return ClassFileType.primitive(TypeKind.CHAR);
+        case 'S': return ClassFileType.primitive(TypeKind.SHORT);
+        case 'I': return ClassFileType.primitive(TypeKind.INT);
+        case 'J': return ClassFileType.primitive(TypeKind.LONG);
+        case 'F': return ClassFileType.primitive(TypeKind.FLOAT);
+        case 'D': return ClassFileType.primitive(TypeKind.DOUBLE);
+        case 'V': return ClassFileType.primitive(TypeKind.VOID);
+        case '[':
+            return ClassFileType.array(type());
+        case 'T':
+            int end = signature.indexOf(';', pos);
+            if(end == -1)
+                throw new ModelResolutionException("Invalid signature: "+signature);
+            String name = signature.substring(pos, end);
+            pos = end + 1;
+            return ClassFileType.typeVariable(loader, name, scope);
+        case 'L':
+            return classType();
+        default:
+            throw new ModelResolutionException("Invalid signature: "+signature);
+        }
+    }
+
+    private ClassFileType classType() {
+        String name = identifier();
+        List<TypeMirror> typeArguments = typeArguments();
+        ClassFileType ret = ClassFileType.declared(loader, name, typeArguments, null);
+        // member types of parameterised types
+        while(peek() == '.'){
+            pos++;
+            name = name + "$" + identifier();
+            boolean ownerParameterised = !ret.getTypeArguments().isEmpty() || ret.getOwner() != null;
+            ret = ClassFileType.declared(loader, name, typeArguments(), ownerParameterised ? ret : null);
+        }
+        expect(';');
+        return ret;
+    }
+
+    private String identifier() {
+        int start = pos;
+        char c;
+        while((c = peek()) != '<' && c != '.' && c != ';')
+            pos++;
+        return signature.substring(start, pos);
+    }
+
+    private List<TypeMirror> typeArguments() {
+        if(peek() != '<')
+            return Collections.<TypeMirror>emptyList();
+        pos++;
+        List<TypeMirror> ret = new ArrayList<TypeMirror>();
+        while(peek() != '>'){
+            switch(peek()){
+            case '*':
+                pos++;
+                ret.add(ClassFileType.wildcard(loader, null, null));
+                break;
+            case '+':
+                pos++;
+                ret.add(ClassFileType.wildcard(loader, type(), null));
+                break;
+            case '-':
+                pos++;
+                ret.add(ClassFileType.wildcard(loader, null, type()));
+                break;
+            default:
+                ret.add(type());
+            }
+        }
+        pos++;
+        return ret;
+    }
+}
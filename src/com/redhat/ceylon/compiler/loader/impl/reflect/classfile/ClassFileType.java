@@ -0,0 +1,234 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.loader.impl.reflect.classfile;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.lang.model.type.TypeKind;
+
+import com.redhat.ceylon.compiler.loader.mirror.ClassMirror;
+import com.redhat.ceylon.compiler.loader.mirror.TypeMirror;
+import com.redhat.ceylon.compiler.loader.mirror.TypeParameterMirror;
+
+/**
+ * A type read from a class file descriptor or generic signature. Declared
+ * classes are only read when asked for.
+ */
+public class ClassFileType implements TypeMirror {
+
+    static final String OBJECT = "java/lang/Object";
+
+    private final ClassFileLoader loader;
+    private final TypeKind kind;
+    // the internal name of declared types, the name of type variables
+    private final String name;
+    private final List<TypeMirror> typeArguments;
+    // the enclosing type of member types, if it is parameterised
+    private final ClassFileType owner;
+    private final ClassFileType componentType;
+    private final ClassFileType upperBound;
+    private final ClassFileType lowerBound;
+    private final ClassFileSignature.TypeParameterScope scope;
+    private boolean declaredClassSet;
+    private ClassFileClass declaredClass;
+    private boolean typeParameterSet;
+    private TypeParameterMirror typeParameter;
+
+    private ClassFileType(ClassFileLoader loader, TypeKind kind, String name, List<TypeMirror> typeArguments, ClassFileType owner,
+            ClassFileType componentType, ClassFileType upperBound, ClassFileType lowerBound, ClassFileSignature.TypeParameterScope scope) {
+        this.loader = loader;
+        this.kind = kind;
+        this.name = name;
+        this.typeArguments = typeArguments;
+        this.owner = owner;
+        this.componentType = componentType;
+        this.upperBound = upperBound;
+        this.lowerBound = lowerBound;
+        this.scope = scope;
+    }
+
+    static ClassFileType primitive(TypeKind kind) {
+        return new ClassFileType(null, kind, null, Collections.<TypeMirror>emptyList(), null, null, null, null, null);
+    }
+
+    static ClassFileType declared(ClassFileLoader loader, String internalName, List<TypeMirror> typeArguments, ClassFileType owner) {
+        return new ClassFileType(loader, TypeKind.DECLARED, internalName, typeArguments, owner, null, null, null, null);
+    }
+
+    static ClassFileType array(ClassFileType componentType) {
+        return new ClassFileType(componentType.loader, TypeKind.ARRAY, null, Collections.<TypeMirror>emptyList(), null, componentType, null, null, null);
+    }
+
+    static ClassFileType typeVariable(ClassFileLoader loader, String name, ClassFileSignature.TypeParameterScope scope) {
+        return new ClassFileType(loader, TypeKind.TYPEVAR, name, Collections.<TypeMirror>emptyList(), null, null, null, null, scope);
+    }
+
+    static ClassFileType wildcard(ClassFileLoader loader, ClassFileType upperBound, ClassFileType lowerBound) {
+        return new ClassFileType(loader, TypeKind.WILDCARD, null, Collections.<TypeMirror>emptyList(), null, null, upperBound, lowerBound, null);
+    }
+
+    /**
+     * Parses a field descriptor, such as <tt>Ljava/lang/String;</tt>
+     */
+    static ClassFileType parseDescriptor(ClassFileLoader loader, String descriptor) {
+        return new ClassFileSignature(loader, null, descriptor).type();
+    }
+
+    /**
+     * Turns a class descriptor, such as <tt>Ljava/util/Map$Entry;</tt>, into a
+     * class name, such as <tt>java.util.Map$Entry</tt>
+     */
+    static String descriptorToName(String descriptor) {
+        return descriptor.substring(1, descriptor.length() - 1).replace('/', '.');
+    }
+
+    /**
+     * Returns the internal name of declared types
+     */
+    String getInternalName() {
+        return name;
+    }
+
+    ClassFileType getOwner() {
+        return owner;
+    }
+
+    /**
+     * Returns the descriptor of the erasure of this type, where type variables are
+     * replaced with the erasure of their type argument if we have one, or Object.
+     */
+    String getErasure(Map<String, String> typeVariables) {
+        switch(kind){
+        case DECLARED:
+            return "L" + name + ";";
+        case ARRAY:
+            return "[" + componentType.getErasure(typeVariables);
+        case TYPEVAR:
+            String ret = typeVariables.get(name);
+            return ret != null ? ret : "L" + OBJECT + ";";
+        case WILDCARD:
+            return upperBound != null ? upperBound.getErasure(typeVariables) : "L" + OBJECT + ";";
+        case BOOLEAN: return "Z";
+        case BYTE: return "B";
+        case CHAR: return "C";
+        case SHORT: return "S";
+        case INT: return "I";
+        case LONG: return "J";
+        case FLOAT: return "F";
+        case DOUBLE: return "D";
+        case VOID: return "V";
+        default:
+            throw new RuntimeException("Unknown type kind: "+kind);
+        }
+    }
+
+    @Override
+    public String getQualifiedName() {
+        switch(kind){
+        case DECLARED:
+            return name.replace('/', '.');
+        case TYPEVAR:
+            return name;
+        case ARRAY:
+            // same as Class.getName()
+            return getErasure(Collections.<String, String>emptyMap()).replace('/', '.');
+        case WILDCARD:
+            return "?";
+        default:
+            // primitive type names are the same as their kinds
+            return kind.name().toLowerCase();
+        }
+    }
+
+    @Override
+    public List<TypeMirror> getTypeArguments() {
+        return typeArguments;
+    }
+
+    @Override
+    public TypeKind getKind() {
+        return kind;
+    }
+
+    @Override
+    public TypeMirror getComponentType() {
+        return componentType;
+    }
+
+    @Override
+    public boolean isPrimitive() {
+        return kind.isPrimitive() || kind == TypeKind.VOID;
+    }
+
+    @Override
+    public boolean isRaw() {
+        switch(kind){
+        case DECLARED:
+            // we're raw if our type has type parameters that we don't have arguments for
+            ClassMirror declaredClass = getDeclaredClass();
+            return declaredClass != null && declaredClass.getTypeParameters().size() != typeArguments.size();
+        case ARRAY:
+            return componentType.isRaw();
+        default:
+            return false;
+        }
+    }
+
+    @Override
+    public TypeMirror getUpperBound() {
+        if(kind != TypeKind.WILDCARD || lowerBound != null)
+            return null;
+        // unbounded wildcards have Object as upper bound, like in reflection
+        return upperBound != null ? upperBound : declared(loader, OBJECT, Collections.<TypeMirror>emptyList(), null);
+    }
+
+    @Override
+    public TypeMirror getLowerBound() {
+        return lowerBound;
+    }
+
+    @Override
+    public synchronized ClassMirror getDeclaredClass() {
+        if(!declaredClassSet){
+            if(kind == TypeKind.DECLARED)
+                declaredClass = loader.lookupClass(name.replace('/', '.'));
+            declaredClassSet = true;
+        }
+        return declaredClass;
+    }
+
+    @Override
+    public synchronized TypeParameterMirror getTypeParameter() {
+        if(kind != TypeKind.TYPEVAR)
+            return null;
+        if(!typeParameterSet){
+            typeParameter = scope != null ? scope.findTypeParameter(name) : null;
+            typeParameterSet = true;
+        }
+        return typeParameter;
+    }
+
+    @Override
+    public String toString() {
+        return "[ClassFileType: "+getQualifiedName()+"]";
+    }
+}
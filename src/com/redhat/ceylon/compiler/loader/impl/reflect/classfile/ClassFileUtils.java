@@ -0,0 +1,281 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.loader.impl.reflect.classfile;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.redhat.ceylon.compiler.loader.AbstractModelLoader;
+import com.redhat.ceylon.compiler.loader.mirror.MethodMirror;
+import com.redhat.ceylon.compiler.loader.mirror.TypeMirror;
+import com.redhat.ceylon.compiler.loader.mirror.TypeParameterMirror;
+
+/**
+ * The same overriding and overloading checks as
+ * {@link com.redhat.ceylon.compiler.loader.impl.reflect.mirror.ReflectionUtils},
+ * on class file mirrors. Erased types are represented by their descriptors, and
+ * type variables by their names.
+ */
+class ClassFileUtils {
+
+    private static final String OBJECT_DESCRIPTOR = "L" + ClassFileType.OBJECT + ";";
+
+    private enum OverXing {
+        Overloading, Overriding
+    }
+
+    static boolean isOverridingMethod(ClassFileMethod method) {
+        return isOverXingMethod(OverXing.Overriding, method);
+    }
+
+    static boolean isOverloadingMethod(ClassFileMethod method) {
+        return isOverXingMethod(OverXing.Overloading, method);
+    }
+
+    private static boolean isOverXingMethod(OverXing searchType, ClassFileMethod method) {
+        // fast exit
+        if(method.isPrivate())
+            return false;
+        String name = method.getName();
+        List<String> parameterTypes = method.getParameterErasures();
+        ClassFileClass declaringClass = method.getDeclaringClass();
+        // make sure we don't visit interfaces more than once
+        Set<String> visited = new HashSet<String>();
+        // try the superclass first
+        ClassFileClass superclass = declaringClass.getSuperclassMirror();
+        if(superclass != null){
+            if(isOverXingMethodInClassRecursive(searchType, name, parameterTypes, declaringClass, superclass, visited))
+                return true;
+        }
+        // now try the interfaces
+        for(ClassFileClass interfce : declaringClass.getInterfaceMirrors()){
+            if(isOverXingMethodInClassRecursive(searchType, name, parameterTypes, declaringClass, interfce, visited))
+                return true;
+        }
+        // not overriding anything
+        return false;
+    }
+
+    private static boolean isOverXingMethodInClassRecursive(OverXing searchType, String name, List<String> parameterTypes,
+            ClassFileClass declaringClass, ClassFileClass klass, Set<String> visited) {
+        if(!visited.add(klass.getQualifiedName()))
+            return false;
+        if(isOverXingMethodInClass(searchType, name, parameterTypes, declaringClass, klass))
+            return true;
+        // try the superclass first
+        ClassFileClass superclass = klass.getSuperclassMirror();
+        if(superclass != null){
+            if(isOverXingMethodInClassRecursive(searchType, name, parameterTypes, declaringClass, superclass, visited))
+                return true;
+        }
+        // now try the interfaces
+        for(ClassFileClass interfce : klass.getInterfaceMirrors()){
+            if(isOverXingMethodInClassRecursive(searchType, name, parameterTypes, declaringClass, interfce, visited))
+                return true;
+        }
+        // not overriding anything here
+        return false;
+    }
+
+    private static boolean isOverXingMethodInClass(OverXing searchType, String name, List<String> parameterTypes,
+            ClassFileClass declaringClass, ClassFileClass klass) {
+        switch(searchType){
+        case Overloading:
+            return isOverloadingMethodInClass(name, parameterTypes, declaringClass, klass);
+        case Overriding:
+            return isOverridingMethodInClass(name, parameterTypes, declaringClass, klass);
+        default:
+            throw new RuntimeException("Non-exhaustive switch");
+        }
+    }
+
+    private static boolean isOverridingMethodInClass(String name, List<String> parameterTypes,
+            ClassFileClass declaringClass, ClassFileClass lookupClass) {
+        // direct lookup, our mirrors already exclude bridge and synthetic methods
+        for(MethodMirror mirror : lookupClass.getDirectMethods()){
+            ClassFileMethod m = (ClassFileMethod) mirror;
+            if(!m.isConstructor()
+                    && m.getName().equals(name)
+                    && m.getParameterErasures().equals(parameterTypes)){
+                // present
+                return !m.isPrivate()
+                        && m.getAnnotation(AbstractModelLoader.CEYLON_IGNORE_ANNOTATION) == null
+                        && !isHiddenMethod(m);
+            }
+        }
+        NEXT_METHOD:
+        for(MethodMirror mirror : lookupClass.getDirectMethods()){
+            ClassFileMethod m = (ClassFileMethod) mirror;
+            if(m.isConstructor()
+                    || !m.getName().equals(name)
+                    || m.getAnnotation(AbstractModelLoader.CEYLON_IGNORE_ANNOTATION) != null
+                    || m.isFinal()
+                    || m.isPrivate()
+                    || isHiddenMethod(m))
+                continue;
+            List<ClassFileType> genericParameterTypes = m.getGenericParameterTypes();
+            if(genericParameterTypes.size() != parameterTypes.size())
+                continue;
+            int i=0;
+            // get the type argument mappings for that method's container
+            Map<String, String> typeArguments = getMethodTypeArguments(declaringClass, m);
+            for(ClassFileType t : genericParameterTypes){
+                if(!t.getErasure(typeArguments).equals(parameterTypes.get(i++)))
+                    continue NEXT_METHOD;
+            }
+            // must be the same?
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean isOverloadingMethodInClass(String name, List<String> parameterTypes,
+            ClassFileClass declaringClass, ClassFileClass lookupClass) {
+        for(MethodMirror mirror : lookupClass.getDirectMethods()){
+            ClassFileMethod m = (ClassFileMethod) mirror;
+            if(m.isConstructor()
+                    || !m.getName().equals(name)
+                    || m.getAnnotation(AbstractModelLoader.CEYLON_IGNORE_ANNOTATION) != null
+                    || m.isPrivate()
+                    || isHiddenMethod(m))
+                continue;
+            List<ClassFileType> genericParameterTypes = m.getGenericParameterTypes();
+            if(genericParameterTypes.size() != parameterTypes.size())
+                return true;
+            int i=0;
+            // get the type argument mappings for that method's container
+            Map<String, String> typeArguments = getMethodTypeArguments(declaringClass, m);
+            for(ClassFileType t : genericParameterTypes){
+                if(!t.getErasure(typeArguments).equals(parameterTypes.get(i++)))
+                    return true;
+            }
+            // must be the overriding, check the next one
+        }
+        // no overload here
+        return false;
+    }
+
+    private static boolean isHiddenMethod(ClassFileMethod m) {
+        return m.getDeclaringClass().getQualifiedName().equals("java.lang.Object")
+                && (m.getName().equals("finalize")
+                        || m.getName().equals("clone"));
+    }
+
+    /**
+     * Returns the erasure of the type arguments of the class of the given method,
+     * as seen from the given subclass. The method's own type parameters erase to
+     * Object, and must hide the class type parameters of the same name.
+     */
+    private static Map<String, String> getMethodTypeArguments(ClassFileClass base, ClassFileMethod m) {
+        Map<String, String> typeArguments = getTypeArguments(base, m.getDeclaringClass(), Collections.<String, String>emptyMap());
+        if(typeArguments == null)
+            return Collections.<String, String>emptyMap();
+        List<TypeParameterMirror> methodTypeParameters = m.getTypeParameters();
+        if(!methodTypeParameters.isEmpty()){
+            typeArguments = new HashMap<String, String>(typeArguments);
+            for(TypeParameterMirror typeParameter : methodTypeParameters)
+                typeArguments.remove(typeParameter.getName());
+        }
+        return typeArguments;
+    }
+
+    private static Map<String, String> getTypeArguments(ClassFileClass base, ClassFileClass searchedSuperType, Map<String, String> baseTypeArguments){
+        // fast exit for non-generics
+        if(searchedSuperType.getTypeParameters().isEmpty())
+            return Collections.<String, String>emptyMap();
+
+        if(base.getQualifiedName().equals(searchedSuperType.getQualifiedName())){
+            return baseTypeArguments;
+        }
+        Map<String, String> ret = null;
+        // look for it in our super class
+        if(base.getSuperclass() != null){
+            ret = getTypeArgumentsForSuperType((ClassFileType) base.getSuperclass(), searchedSuperType, baseTypeArguments);
+        }
+        if(ret != null)
+            return ret;
+        // if not, look for interfaces, but only if the super type in question is an interface, otherwise there's no point
+        if(searchedSuperType.isInterface()){
+            for(TypeMirror superinterface : base.getInterfaces()){
+                ret = getTypeArgumentsForSuperType((ClassFileType) superinterface, searchedSuperType, baseTypeArguments);
+                if(ret != null)
+                    return ret;
+            }
+        }
+        // no match
+        return null;
+    }
+
+    private static Map<String, String> getTypeArgumentsForSuperType(ClassFileType superclass, ClassFileClass searchedSuperType, Map<String, String> baseTypeArguments) {
+        ClassFileClass sc = (ClassFileClass) superclass.getDeclaredClass();
+        if(sc == null)
+            return null;
+        if(superclass.getTypeArguments().isEmpty() && superclass.getOwner() == null){
+            // not generic, or raw
+            return getTypeArguments(sc, searchedSuperType, getTypeArguments(sc, Collections.<String, String>emptyMap()));
+        }
+        Map<String, String> newTypeArgs = getTypeArgumentsMap(superclass, baseTypeArguments);
+        return getTypeArguments(sc, searchedSuperType, newTypeArgs);
+    }
+
+    private static Map<String, String> getTypeArgumentsMap(ClassFileType pt, Map<String, String> baseTypeArguments) {
+        Map<String, String> typeArgsMap = new HashMap<String, String>();
+        addTypeArguments(pt, typeArgsMap, baseTypeArguments);
+        while(pt.getOwner() != null){
+            pt = pt.getOwner();
+            addTypeArguments(pt, typeArgsMap, baseTypeArguments);
+        }
+        return typeArgsMap;
+    }
+
+    private static void addTypeArguments(ClassFileType pt, Map<String, String> typeArgsMap, Map<String, String> baseTypeArguments) {
+        ClassFileClass sc = (ClassFileClass) pt.getDeclaredClass();
+        if(sc == null)
+            return;
+        List<TypeMirror> typeArguments = pt.getTypeArguments();
+        int i=0;
+        for(TypeParameterMirror tv : sc.getTypeParameters()){
+            if(i >= typeArguments.size())
+                break;
+            ClassFileType ta = (ClassFileType) typeArguments.get(i++);
+            // type parameters of member types hide those of their enclosing types
+            if(!typeArgsMap.containsKey(tv.getName()))
+                typeArgsMap.put(tv.getName(), ta.getErasure(baseTypeArguments));
+        }
+    }
+
+    private static Map<String, String> getTypeArguments(ClassFileClass base, Map<String, String> baseTypeArguments) {
+        Map<String, String> ret = new HashMap<String, String>();
+        for(TypeParameterMirror tv : base.getTypeParameters()){
+            String typeArg = baseTypeArguments.get(tv.getName());
+            /*
+             * See the Erasure bounds Note in ReflectionUtils
+             */
+            if(typeArg == null)
+                typeArg = OBJECT_DESCRIPTOR;
+            ret.put(tv.getName(), typeArg);
+        }
+        return ret;
+    }
+}
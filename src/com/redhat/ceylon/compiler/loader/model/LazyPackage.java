@@ -24,13 +24,14 @@ import static com.redhat.ceylon.compiler.typechecker.model.Util.lookupMember;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.EnumSet;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.redhat.ceylon.compiler.java.codegen.AnnotationArgument;
 import com.redhat.ceylon.compiler.java.codegen.AnnotationConstructorParameter;
@@ -65,7 +66,9 @@ public class LazyPackage extends Package {
     private AbstractModelLoader modelLoader;
     private List<Declaration> compiledDeclarations = new ArrayList<Declaration>(3);
     private Set<Unit> lazyUnits = new HashSet<Unit>();
-    private Map<String,Declaration> cache = new HashMap<String,Declaration>();
+    // looked up without the model loader lock, and we can't store null values in there
+    private Map<String,Declaration> cache = new ConcurrentHashMap<String,Declaration>();
+    private Set<String> notFoundCache = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
     
     public LazyPackage(AbstractModelLoader modelLoader){
         this.modelLoader = modelLoader;
@@ -83,17 +86,24 @@ public class LazyPackage extends Package {
 //        System.err.println("getMember "+name+" "+signature+" "+ellipsis);
         boolean canCache = (signature == null && !ellipsis);
         if(canCache){
-            if(cache.containsKey(name)) {
-                Declaration cachedDeclaration = cache.get(name);
-                if (cachedDeclaration != null || ! modelLoader.searchAgain(this, name)) {
-                    return cachedDeclaration;
+            Declaration cachedDeclaration = cache.get(name);
+            if(cachedDeclaration != null)
+                return cachedDeclaration;
+            if(notFoundCache.contains(name)) {
+                if (! modelLoader.searchAgain(this, name)) {
+                    return null;
                 }
 
             }
         }
         Declaration ret = getDirectMemberMemoised(name, signature, ellipsis);
         if(canCache){
-            cache.put(name, ret);
+            if(ret != null){
+                cache.put(name, ret);
+                notFoundCache.remove(name);
+            }else{
+                notFoundCache.add(name);
+            }
         }
         return ret;
     }
@@ -196,6 +206,7 @@ public class LazyPackage extends Package {
     
     private void flushCache(Declaration declaration) {
         cache.remove(declaration.getName());
+        notFoundCache.remove(declaration.getName());
     }
 
     public void addCompiledMember(Declaration d) {
@@ -1,8 +1,29 @@
 package com.redhat.ceylon.tools.moduleloading;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import com.redhat.ceylon.cmr.api.ArtifactContext;
 import com.redhat.ceylon.cmr.api.ArtifactResult;
@@ -15,8 +36,49 @@ import com.redhat.ceylon.common.ModuleUtil;
 import com.redhat.ceylon.common.Versions;
 import com.redhat.ceylon.compiler.typechecker.model.Module;
 
+/**
+ * A tool which loads a module and all its dependencies into {@link #loadedModules}.
+ * 
+ * We look up the artifacts of the modules on a single background thread by
+ * default, which lets us start on the imports we remember from the last time
+ * while we wait for a level of the dependency graph. Setting the
+ * {@link #RESOLUTION_THREADS_PROPERTY} system property to more than 1 looks
+ * them up on several threads at once, which is only safe if the
+ * {@link RepositoryManager} can be used by several threads for lookups: we
+ * don't know that of every repository, in particular the remote and caching
+ * ones.
+ */
 public abstract class ModuleLoadingTool extends RepoUsingTool {
 
+	/** The system property giving the folder where we cache the modules we resolved for each module, if any */
+	public static final String RESOLUTION_CACHE_DIR_PROPERTY = "ceylon.resolution.cache.dir";
+	/** The system property giving the maximum number of artifacts we look up at the same time, 1 by default */
+	public static final String RESOLUTION_THREADS_PROPERTY = "ceylon.resolution.threads";
+
+	private static final String RESOLUTION_CACHE_SUFFIX = ".deps";
+	private static final String RESOLUTION_CACHE_MAGIC = "ceylon-resolution-2";
+	private static final String UTF8 = "UTF-8";
+
+	private static class ModuleRequest {
+		final String name;
+		final String version;
+		final boolean optional;
+		final String key;
+
+		ModuleRequest(String name, String version, boolean optional) {
+			this.name = name;
+			this.version = version;
+			this.optional = optional;
+			this.key = name + "/" + version;
+		}
+	}
+
+	/** A resolved artifact, with its dependencies, or a null result if it's missing */
+	private static class Resolution {
+		ArtifactResult result;
+		final List<ModuleRequest> dependencies = new ArrayList<>();
+	}
+
 	public ModuleLoadingTool() {
 		super(ModuleLoadingMessages.RESOURCE_BUNDLE);
 	}
@@ -39,13 +101,13 @@ public abstract class ModuleLoadingTool extends RepoUsingTool {
 	protected boolean loadModule(String moduleName, String moduleVersion, boolean optional) throws IOException {
 		boolean success = false;
 		if (moduleVersion != null) {
-			success = true;
-			success &= internalLoadModule(Module.LANGUAGE_MODULE_NAME, Versions.CEYLON_VERSION_NUMBER, false);
-			success &= internalLoadModule("com.redhat.ceylon.compiler.java", Versions.CEYLON_VERSION_NUMBER, false);
-			success &= internalLoadModule("com.redhat.ceylon.common", Versions.CEYLON_VERSION_NUMBER, false);
-			success &= internalLoadModule("com.redhat.ceylon.module-resolver", Versions.CEYLON_VERSION_NUMBER, false);
-			success &= internalLoadModule("com.redhat.ceylon.typechecker", Versions.CEYLON_VERSION_NUMBER, false);
-			success &= internalLoadModule(moduleName, moduleVersion, false);
+			success = internalLoadModules(Arrays.asList(
+					new ModuleRequest(Module.LANGUAGE_MODULE_NAME, Versions.CEYLON_VERSION_NUMBER, false),
+					new ModuleRequest("com.redhat.ceylon.compiler.java", Versions.CEYLON_VERSION_NUMBER, false),
+					new ModuleRequest("com.redhat.ceylon.common", Versions.CEYLON_VERSION_NUMBER, false),
+					new ModuleRequest("com.redhat.ceylon.module-resolver", Versions.CEYLON_VERSION_NUMBER, false),
+					new ModuleRequest("com.redhat.ceylon.typechecker", Versions.CEYLON_VERSION_NUMBER, false),
+					new ModuleRequest(moduleName, moduleVersion, false)));
 		}
 		
 		return success;
@@ -56,36 +118,253 @@ public abstract class ModuleLoadingTool extends RepoUsingTool {
 				JDKUtils.isOracleJDKModule(moduleName);
 	}
 
-	private boolean internalLoadModule(String name, String version, boolean optional) throws IOException {
-        String key = name + "/" + version;
-        if(loadedModules.containsKey(key))
-            return true;
-        if(shouldExclude(name)) {
-            // let's not check the version and assume it's provided
-            // treat it as a missing optional for the purpose of classpath
-            loadedModules.put(key, null);
-            return true;
-        }
-        RepositoryManager repositoryManager = getRepositoryManager();
-        ArtifactContext artifactContext = new ArtifactContext(name, version, ArtifactContext.CAR, ArtifactContext.JAR);
-        ArtifactResult result = repositoryManager.getArtifactResult(artifactContext);
-        if(!optional
-                && (result == null || result.artifact() == null || !result.artifact().exists())){
-            String err = getModuleNotFoundErrorMessage(repositoryManager, name, version);
-            errorAppend(err);
-            errorNewline();
-            return false;
-        }
-        // save even missing optional modules as nulls to not re-resolve them
-        loadedModules.put(key, result);
-        if(result != null){
-            for(ArtifactResult dep : result.dependencies()){
-                internalLoadModule(dep.name(), dep.version(), dep.importType() == ImportType.OPTIONAL);
-            }
-        }
-        
-        return true;
-    }
+	/**
+	 * Loads the given modules and all their dependencies, breadth-first: we resolve
+	 * each level of the dependency graph in parallel, and never resolve the same
+	 * module twice. Returns false if one of the given modules is missing.
+	 * 
+	 * A missing module is an error if it is not optional for one of the modules
+	 * which import it in the first level where we meet it, and we only report it
+	 * once. The depth-first walk we used to do instead reported it every time it
+	 * met it as a mandatory import before it met it as an optional one, so it
+	 * depended on the order of the imports.
+	 */
+	private boolean internalLoadModules(List<ModuleRequest> roots) throws IOException {
+		RepositoryManager repositoryManager = getRepositoryManager();
+		int threads = Math.max(1, Integer.getInteger(RESOLUTION_THREADS_PROPERTY, 1));
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "ceylon-module-resolver");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		// every resolution we started, by module key, including those we may not need
+		Map<String, Future<Resolution>> resolutions = new HashMap<>();
+		try {
+			ModuleRequest root = roots.get(roots.size() - 1);
+			File cacheFile = getResolutionCacheFile(repositoryManager, root);
+			// what each module imported last time
+			Map<String, List<ModuleRequest>> cachedDependencies = readResolutionCache(cacheFile, repositoryManager, root);
+			// what each module imports this time
+			Map<String, List<ModuleRequest>> dependencies = new LinkedHashMap<>();
+			boolean success = true;
+			boolean rootLevel = true;
+			Set<String> seen = new HashSet<>();
+			List<ModuleRequest> level = roots;
+			while (!level.isEmpty()) {
+				// a module is only optional for this level if every request for it is
+				Map<String, ModuleRequest> mergedRequests = new LinkedHashMap<>();
+				for (ModuleRequest request : level) {
+					if (loadedModules.containsKey(request.key) || seen.contains(request.key))
+						continue;
+					ModuleRequest other = mergedRequests.get(request.key);
+					if (other == null || (other.optional && !request.optional))
+						mergedRequests.put(request.key, request);
+				}
+				List<ModuleRequest> requests = new ArrayList<>(mergedRequests.size());
+				for (ModuleRequest request : mergedRequests.values()) {
+					seen.add(request.key);
+					if (shouldExclude(request.name)) {
+						// let's not check the version and assume it's provided
+						// treat it as a missing optional for the purpose of classpath
+						loadedModules.put(request.key, null);
+						continue;
+					}
+					startResolution(executor, repositoryManager, resolutions, request);
+					// now that we know we need it, start on what it imported last time, so that
+					// we don't have to wait for this level to end. If the cache is stale this
+					// may look up a module we don't need, but never more than one level below
+					// a module we do need.
+					List<ModuleRequest> cached = cachedDependencies.get(request.key);
+					if (cached != null) {
+						for (ModuleRequest dependency : cached) {
+							if (!loadedModules.containsKey(dependency.key) && !shouldExclude(dependency.name))
+								startResolution(executor, repositoryManager, resolutions, dependency);
+						}
+					}
+					requests.add(request);
+				}
+				List<ModuleRequest> nextLevel = new ArrayList<>();
+				for (ModuleRequest request : requests) {
+					Resolution resolution = getResolution(resolutions.get(request.key));
+					ArtifactResult result = resolution.result;
+					if (!request.optional
+							&& (result == null || result.artifact() == null || !result.artifact().exists())) {
+						String err = getModuleNotFoundErrorMessage(repositoryManager, request.name, request.version);
+						errorAppend(err);
+						errorNewline();
+						if (rootLevel)
+							success = false;
+						continue;
+					}
+					// save even missing optional modules as nulls to not re-resolve them
+					loadedModules.put(request.key, result);
+					if (result != null)
+						dependencies.put(request.key, resolution.dependencies);
+					nextLevel.addAll(resolution.dependencies);
+				}
+				level = nextLevel;
+				rootLevel = false;
+			}
+			writeResolutionCache(cacheFile, repositoryManager, root, dependencies);
+			return success;
+		} finally {
+			// let the lookups we started and no longer need finish rather than interrupt
+			// them, since interrupting I/O may leave half-written artifacts in a cache
+			executor.shutdown();
+			awaitTermination(executor);
+		}
+	}
+
+	private static void awaitTermination(ExecutorService executor) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					if (executor.awaitTermination(1, TimeUnit.SECONDS))
+						return;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	private void startResolution(ExecutorService executor, final RepositoryManager repositoryManager,
+			Map<String, Future<Resolution>> resolutions, final ModuleRequest request) {
+		if (resolutions.containsKey(request.key))
+			return;
+		resolutions.put(request.key, executor.submit(new Callable<Resolution>() {
+			@Override
+			public Resolution call() {
+				Resolution resolution = new Resolution();
+				ArtifactContext artifactContext = new ArtifactContext(request.name, request.version, ArtifactContext.CAR, ArtifactContext.JAR);
+				resolution.result = getArtifactResult(repositoryManager, artifactContext);
+				// reading the dependencies may need more I/O, so do it here too
+				if (resolution.result != null) {
+					for (ArtifactResult dep : resolution.result.dependencies()) {
+						resolution.dependencies.add(new ModuleRequest(dep.name(), dep.version(), dep.importType() == ImportType.OPTIONAL));
+					}
+				}
+				return resolution;
+			}
+		}));
+	}
+
+	/**
+	 * Looks up the given artifact. This is called from several threads at once
+	 * if {@link #RESOLUTION_THREADS_PROPERTY} is more than 1.
+	 */
+	protected ArtifactResult getArtifactResult(RepositoryManager repositoryManager, ArtifactContext artifactContext) {
+		return repositoryManager.getArtifactResult(artifactContext);
+	}
+
+	private static Resolution getResolution(Future<Resolution> resolution) throws IOException {
+		try {
+			return resolution.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			// rethrow what the sequential resolution would have thrown
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Returns the file where we cache the modules we resolved for the given module
+	 * with the current repositories, or null if we don't cache them.
+	 */
+	private File getResolutionCacheFile(RepositoryManager repositoryManager, ModuleRequest root) {
+		String cacheDir = System.getProperty(RESOLUTION_CACHE_DIR_PROPERTY);
+		if (cacheDir == null || cacheDir.isEmpty())
+			return null;
+		String key = root.key + "\n" + repositoryManager.getRepositoriesDisplayString();
+		return new File(cacheDir, root.name + "-" + Integer.toHexString(key.hashCode()) + RESOLUTION_CACHE_SUFFIX);
+	}
+
+	/**
+	 * Returns the imports of each module we resolved the last time, by module key, if
+	 * we have them. They are only a hint of what we're going to need, since the
+	 * repositories may have changed.
+	 * 
+	 * After a header, the cache has one line per module, with its key followed by
+	 * the keys of its imports, separated by spaces. Optional imports start with a '?'.
+	 */
+	private Map<String, List<ModuleRequest>> readResolutionCache(File cacheFile, RepositoryManager repositoryManager, ModuleRequest root) {
+		if (cacheFile == null || !cacheFile.isFile())
+			return Collections.emptyMap();
+		Map<String, List<ModuleRequest>> ret = new HashMap<>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(cacheFile), UTF8))) {
+			if (!RESOLUTION_CACHE_MAGIC.equals(reader.readLine())
+					|| !root.key.equals(reader.readLine())
+					|| !String.valueOf(repositoryManager.getRepositoriesDisplayString()).equals(reader.readLine()))
+				return Collections.emptyMap();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] keys = line.split(" ");
+				List<ModuleRequest> imports = new ArrayList<>(keys.length - 1);
+				for (int i = 1; i < keys.length; i++) {
+					boolean optional = keys[i].startsWith("?");
+					String key = optional ? keys[i].substring(1) : keys[i];
+					int slash = key.indexOf('/');
+					if (slash > 0)
+						imports.add(new ModuleRequest(key.substring(0, slash), key.substring(slash + 1), optional));
+				}
+				ret.put(keys[0], imports);
+			}
+		} catch (IOException e) {
+			// ignore, it's only a cache
+			return Collections.emptyMap();
+		}
+		return ret;
+	}
+
+	/**
+	 * Writes the modules we resolved to the cache, ignoring any error since it's only a cache
+	 */
+	private void writeResolutionCache(File cacheFile, RepositoryManager repositoryManager, ModuleRequest root,
+			Map<String, List<ModuleRequest>> dependencies) {
+		if (cacheFile == null)
+			return;
+		File cacheDir = cacheFile.getParentFile();
+		File tmpFile = null;
+		try {
+			if (!cacheDir.isDirectory() && !cacheDir.mkdirs())
+				return;
+			// write it elsewhere first so concurrent readers never see half of it
+			tmpFile = File.createTempFile(cacheFile.getName(), ".tmp", cacheDir);
+			try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmpFile), UTF8)) {
+				writer.write(RESOLUTION_CACHE_MAGIC + "\n");
+				writer.write(root.key + "\n");
+				writer.write(String.valueOf(repositoryManager.getRepositoriesDisplayString()) + "\n");
+				for (Map.Entry<String, List<ModuleRequest>> entry : dependencies.entrySet()) {
+					writer.write(entry.getKey());
+					for (ModuleRequest dependency : entry.getValue())
+						writer.write((dependency.optional ? " ?" : " ") + dependency.key);
+					writer.write("\n");
+				}
+			}
+			cacheFile.delete();
+			if (tmpFile.renameTo(cacheFile))
+				tmpFile = null;
+		} catch (IOException e) {
+			// ignore
+		} finally {
+			if (tmpFile != null)
+				tmpFile.delete();
+		}
+	}
 	
 	protected Map<String, ArtifactResult> loadedModules = new HashMap<>();
 }
@@ -0,0 +1,238 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.java.launcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.ServerSocket;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.redhat.ceylon.common.FileUtil;
+import com.redhat.ceylon.compiler.java.launcher.Main.ExitState;
+import com.redhat.ceylon.compiler.java.launcher.Main.ExitState.CeylonState;
+import com.redhat.ceylon.compiler.java.test.CompilerTest;
+import com.redhat.ceylon.compiler.typechecker.model.Module;
+
+public class CompilerDaemonTest extends CompilerTest {
+
+    private static final String PROPERTY = "ceylon.test.compiler.daemon";
+
+    /**
+     * Records the value of {@link #PROPERTY} seen by each compilation.
+     */
+    private static class RecordingDaemon extends CompilerDaemon {
+        final List<String> seenProperties = Collections.synchronizedList(new ArrayList<String>());
+
+        RecordingDaemon(int port, File tokenFile) {
+            super(port, tokenFile, new PrintWriter(new StringWriter(), true));
+        }
+
+        @Override
+        ExitState compile(String[] args, PrintWriter out) {
+            seenProperties.add(System.getProperty(PROPERTY));
+            return super.compile(args, out);
+        }
+    }
+
+    private RecordingDaemon daemon;
+    private Thread serveThread;
+    private int port;
+    private File tmpDir;
+    private File tokenFile;
+
+    @Before
+    public void startDaemon() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        port = socket.getLocalPort();
+        socket.close();
+        tmpDir = Files.createTempDirectory("ceylon-compiler-daemon-").toFile();
+        tokenFile = new File(tmpDir, "daemon.token");
+        daemon = new RecordingDaemon(port, tokenFile);
+        serveThread = new Thread("compiler daemon") {
+            @Override
+            public void run() {
+                try {
+                    daemon.serve();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        serveThread.setDaemon(true);
+        serveThread.start();
+        // it writes its token once it listens
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!tokenFile.isFile() || tokenFile.length() == 0) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+    }
+
+    @After
+    public void stopDaemon() throws Exception {
+        if (serveThread.isAlive()) {
+            CompilerDaemon.stop(port, tokenFile);
+            serveThread.join(10000);
+        }
+        FileUtil.delete(tmpDir);
+    }
+
+    private String[] args(List<String> extraOptions, String file) {
+        List<String> args = new ArrayList<String>(defaultOptions);
+        args.add("-src");
+        args.add(dir);
+        args.addAll(extraOptions);
+        args.add(getPackagePath() + file);
+        return args.toArray(new String[args.size()]);
+    }
+
+    private ExitState compileInDaemon(String file, String... extraOptions) throws IOException {
+        return CompilerDaemon.compile(port, tokenFile, Collections.<String, String>emptyMap(), 
+                args(Arrays.asList(extraOptions), file), new PrintWriter(new StringWriter(), true));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        File car = getModuleArchive(Module.DEFAULT_MODULE_NAME, null);
+        car.delete();
+        StringWriter output = new StringWriter();
+        ExitState ok = CompilerDaemon.compile(port, tokenFile, Collections.<String, String>emptyMap(), args(Collections.<String>emptyList(), "DaemonOk.ceylon"), 
+                new PrintWriter(output, true));
+        assertEquals(output.toString(), CeylonState.OK, ok.ceylonState);
+        assertEquals(0, ok.errorCount);
+        assertTrue(car.exists());
+
+        output = new StringWriter();
+        ExitState error = CompilerDaemon.compile(port, tokenFile, Collections.<String, String>emptyMap(), args(Collections.<String>emptyList(), "DaemonError.ceylon"), 
+                new PrintWriter(output, true));
+        assertEquals(CeylonState.ERROR, error.ceylonState);
+        assertTrue(error.errorCount > 0);
+        assertTrue(output.toString(), output.toString().contains("DaemonError.ceylon"));
+
+        assertEquals(2, daemon.getCompilations());
+    }
+
+    @Test
+    public void testSystemProperties() throws Exception {
+        assertNull(System.getProperty(PROPERTY));
+        Map<String, String> properties = Collections.singletonMap(PROPERTY, "forwarded");
+        ExitState exitState = CompilerDaemon.compile(port, tokenFile, properties, args(Collections.<String>emptyList(), "DaemonOk.ceylon"), 
+                new PrintWriter(new StringWriter(), true));
+        assertEquals(CeylonState.OK, exitState.ceylonState);
+        compileInDaemon("DaemonOk.ceylon");
+        // set for the first compilation only, and restored afterwards
+        assertEquals(Arrays.asList("forwarded", null), daemon.seenProperties);
+        assertNull(System.getProperty(PROPERTY));
+
+        // the JVM's own properties are refused
+        StringWriter output = new StringWriter();
+        exitState = CompilerDaemon.compile(port, tokenFile, Collections.singletonMap("java.io.tmpdir", "/elsewhere"), 
+                args(Collections.<String>emptyList(), "DaemonOk.ceylon"), new PrintWriter(output, true));
+        assertEquals(Main.EXIT_CMDERR, exitState.javacExitCode);
+        assertTrue(output.toString(), output.toString().contains("java.io.tmpdir"));
+        assertFalse("/elsewhere".equals(System.getProperty("java.io.tmpdir")));
+        assertEquals(2, daemon.getCompilations());
+    }
+
+    @Test
+    public void testToken() throws Exception {
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            assertEquals(PosixFilePermissions.fromString("rw-------"), 
+                    Files.getPosixFilePermissions(tokenFile.toPath()));
+        }
+        // a client without the token is refused
+        File wrongTokenFile = new File(tmpDir, "wrong.token");
+        Files.write(wrongTokenFile.toPath(), "not the token".getBytes("UTF-8"));
+        try {
+            CompilerDaemon.compile(port, wrongTokenFile, Collections.<String, String>emptyMap(), 
+                    args(Collections.<String>emptyList(), "DaemonOk.ceylon"), new PrintWriter(new StringWriter(), true));
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            CompilerDaemon.stop(port, wrongTokenFile);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        assertTrue(serveThread.isAlive());
+        assertEquals(0, daemon.getCompilations());
+        // and one without a token file can't even try
+        try {
+            CompilerDaemon.stop(port, new File(tmpDir, "missing.token"));
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        // the right one still gets in
+        assertEquals(CeylonState.OK, compileInDaemon("DaemonOk.ceylon").ceylonState);
+    }
+
+    @Test
+    public void testRepositoryManagerCacheKeys() throws Exception {
+        compileInDaemon("DaemonOk.ceylon");
+        assertEquals(1, daemon.getRepositoryManagers().size());
+        // same options, same repository manager
+        compileInDaemon("DaemonOk.ceylon");
+        assertEquals(1, daemon.getRepositoryManagers().size());
+
+        File otherRepo = new File(destDir, "other-repo");
+        otherRepo.mkdirs();
+        compileInDaemon("DaemonOk.ceylon", "-rep", otherRepo.getPath());
+        assertEquals(2, daemon.getRepositoryManagers().size());
+        compileInDaemon("DaemonOk.ceylon", "-offline");
+        assertEquals(3, daemon.getRepositoryManagers().size());
+        compileInDaemon("DaemonOk.ceylon", "-cwd", otherRepo.getAbsolutePath());
+        assertEquals(4, daemon.getRepositoryManagers().size());
+        // and each of them is reused
+        compileInDaemon("DaemonOk.ceylon", "-offline");
+        assertEquals(4, daemon.getRepositoryManagers().size());
+    }
+
+    @Test
+    public void testStop() throws Exception {
+        assertTrue(serveThread.isAlive());
+        CompilerDaemon.stop(port, tokenFile);
+        serveThread.join(10000);
+        assertFalse(serveThread.isAlive());
+        assertEquals(0, daemon.getRepositoryManagers().size());
+        assertFalse(tokenFile.exists());
+    }
+}
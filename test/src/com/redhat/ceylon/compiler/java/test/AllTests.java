@@ -26,6 +26,7 @@ import org.junit.runners.Suite.SuiteClasses;
 import com.redhat.ceylon.ant.AntToolTests;
 import com.redhat.ceylon.ceylondoc.test.CeylonDocToolTest;
 import com.redhat.ceylon.compiler.java.codegen.NamingTest;
+import com.redhat.ceylon.compiler.java.launcher.CompilerDaemonTest;
 import com.redhat.ceylon.compiler.java.test.annotations.AnnotationsTest;
 import com.redhat.ceylon.compiler.java.test.bc.BcTests;
 import com.redhat.ceylon.compiler.java.test.cargeneration.CarGenerationTest;
@@ -62,6 +63,10 @@ import com.redhat.ceylon.compiler.java.test.structure.ConstructorTest;
 import com.redhat.ceylon.compiler.java.test.structure.StructureTest;
 import com.redhat.ceylon.compiler.java.test.structure.StructureTest2;
 import com.redhat.ceylon.compiler.java.test.structure.StructureTest3;
+import com.redhat.ceylon.compiler.loader.impl.reflect.JarTOCTest;
+import com.redhat.ceylon.compiler.loader.impl.reflect.MappedJarTest;
+import com.redhat.ceylon.compiler.loader.impl.reflect.classfile.ClassFileCacheTest;
+import com.redhat.ceylon.compiler.loader.impl.reflect.classfile.ClassFileMirrorTest;
 import com.redhat.ceylon.tools.TopLevelToolTest;
 import com.redhat.ceylon.tools.test.CompilerToolsTests;
 
@@ -109,7 +114,12 @@ import com.redhat.ceylon.tools.test.CompilerToolsTests;
     TraceTests.class,
     CarGenerationTest.class,
     ReportingTest.class,
-    SourcePositionsTest.class
+    SourcePositionsTest.class,
+    ClassFileCacheTest.class,
+    ClassFileMirrorTest.class,
+    CompilerDaemonTest.class,
+    MappedJarTest.class,
+    JarTOCTest.class
 })
 public class AllTests {
 }
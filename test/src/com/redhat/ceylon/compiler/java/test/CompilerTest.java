@@ -353,7 +353,7 @@ public abstract class CompilerTest {
     protected void compareWithJavaSourceWithPositions(String name) {
         // make a compiler task
         // FIXME: runFileManager.setSourcePath(dir);
-        CeyloncTaskImpl task = getCompilerTask(new String[] {name+".ceylon"});
+        CeyloncTaskImpl task = getCompilerTask(sourceComparisonOptions(defaultOptions), name+".ceylon");
 
         // grab the CU after we've completed it
         class Listener implements TaskListener{
@@ -396,7 +396,7 @@ public abstract class CompilerTest {
     protected void compareWithJavaSourceWithLines(String name) {
         // make a compiler task
         // FIXME: runFileManager.setSourcePath(dir);
-        CeyloncTaskImpl task = getCompilerTask(new String[] {name+".ceylon"});
+        CeyloncTaskImpl task = getCompilerTask(sourceComparisonOptions(defaultOptions), name+".ceylon");
 
         // grab the CU after we've completed it
         class Listener implements TaskListener{
@@ -439,11 +439,43 @@ public abstract class CompilerTest {
         compareWithJavaSource(defaultOptions, java, ceylon);
     }
     
+    /**
+     * The expected sources are written without cached type descriptors, 
+     * which would otherwise move every constant type descriptor away from 
+     * where it is used, with comprehensions transformed to iterables
+     * even when they're fused into loops, with chains of {@code map()}
+     * and {@code filter()} left as they are, and with switches on 
+     * {@code Integer}s and enumerated objects left as {@code if} chains, 
+     * with anonymous functions without a primitive entry point, with 
+     * tuples and entries allocated even when they don't escape, with 
+     * string templates built by a default {@code StringBuilder}, with 
+     * every interface member called through {@code $this}, with the 
+     * elements of arrays of primitives boxed, and with constant 
+     * expressions evaluated at runtime.
+     */
+    protected List<String> sourceComparisonOptions(List<String> options) {
+        final String optimizations = "TypeDescriptorCaching,ComprehensionLoopFusion,ComprehensionPresizing,IterableChainFusion,IntegerSwitch,EnumeratedObjectSwitch,PrimitiveCallable,TupleScalarReplacement,EntryScalarReplacement,StringTemplatePresizing,Devirtualization,UnboxedArrayAccess,ConstantFolding";
+        List<String> ret = new ArrayList<String>(options.size() + 1);
+        boolean disabled = false;
+        for (String option : options) {
+            if (option.equals("-disableOptimization")) {
+                disabled = true;
+            } else if (option.startsWith("-disableOptimization:")) {
+                option += "," + optimizations;
+                disabled = true;
+            }
+            ret.add(option);
+        }
+        if (!disabled)
+            ret.add("-disableOptimization:" + optimizations);
+        return ret;
+    }
+    
     protected void compareWithJavaSource(List<String> options, String java, String... ceylon) {
         // make a compiler task
         // FIXME: runFileManager.setSourcePath(dir);
         ErrorCollector collector = new ErrorCollector();
-        CeyloncTaskImpl task = getCompilerTask(options, collector, ceylon);
+        CeyloncTaskImpl task = getCompilerTask(sourceComparisonOptions(options), collector, ceylon);
 
         // grab the CU after we've completed it
         class Listener implements TaskListener{
@@ -36,6 +36,7 @@ import org.junit.Test;
 
 import com.redhat.ceylon.compiler.java.test.CompilerTest;
 import com.redhat.ceylon.compiler.java.tools.CeyloncTaskImpl;
+import com.redhat.ceylon.compiler.java.tools.DependencyIndex;
 
 public class CarGenerationTest extends CompilerTest {
     
@@ -69,6 +70,28 @@ public class CarGenerationTest extends CompilerTest {
         car.close();
     }
     
+    @Test
+    public void testCarDependencyIndex() throws IOException{
+        List<String> options = new LinkedList<String>();
+        options.add("-src");
+        options.add(getPackagePath() + "resmodules/simple/source");
+        options.add("-incremental");
+        options.addAll(defaultOptions);
+        CeyloncTaskImpl task = getCompilerTask(options, 
+                null,
+                Arrays.asList("test.simple"));
+        Boolean ret = task.call();
+        assertTrue(ret);
+        
+        File carFile = getModuleArchive("test.simple", "1.0");
+        assertTrue(carFile.exists());
+
+        DependencyIndex index = DependencyIndex.read(carFile);
+        assertNotNull(index);
+        assertNotNull(index.get("test/simple/module.ceylon"));
+        assertNotNull(index.get("test/simple/module.ceylon").getSourceHash());
+    }
+    
     @Test
     public void testCarResourceFiles() throws IOException{
         testCarResourceFilesSub(false);
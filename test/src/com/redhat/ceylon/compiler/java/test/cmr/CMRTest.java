@@ -174,6 +174,27 @@ public class CMRTest extends CompilerTest {
         compile("modules/incremental/A.ceylon", "modules/incremental/UsesB.ceylon");
     }
 
+    @Test
+    public void testMdlModuleIncrementalNoCompress() throws IOException{
+        List<String> options = new LinkedList<String>(defaultOptions);
+        options.add("-nocompress");
+        assertTrue(getCompilerTask(options, "modules/incremental/A.ceylon", "modules/incremental/BUsesA.ceylon").call());
+
+        String prefix = "com/redhat/ceylon/compiler/java/test/cmr/modules/incremental/";
+        File carFile = getModuleArchive("default", null);
+        ZipFile car = new ZipFile(carFile);
+        assertEquals(ZipEntry.STORED, car.getEntry(prefix+"A.class").getMethod());
+        assertEquals(ZipEntry.STORED, car.getEntry(prefix+"BUsesA.class").getMethod());
+        car.close();
+
+        // the unchanged classes are copied as they are, even the ones we compiled again
+        compile("modules/incremental/A.ceylon");
+        car = new ZipFile(carFile);
+        assertEquals(ZipEntry.STORED, car.getEntry(prefix+"A.class").getMethod());
+        assertEquals(ZipEntry.STORED, car.getEntry(prefix+"BUsesA.class").getMethod());
+        car.close();
+    }
+
     @Test
     public void testMdlModuleDefaultIncrementalNoPackage() throws IOException{
         List<String> options = new LinkedList<String>();
@@ -335,6 +356,34 @@ public class CMRTest extends CompilerTest {
         car.close();
     }
 
+    @Test
+    public void testMdlUnchangedModuleLeavesCarUntouched() throws IOException{
+        compile("modules/single/module.ceylon", "modules/single/Correct.ceylon");
+        
+        File carFile = getModuleArchive("com.redhat.ceylon.compiler.java.test.cmr.modules.single", "6.6.6");
+        File shaFile = getArchiveName("com.redhat.ceylon.compiler.java.test.cmr.modules.single", "6.6.6", destDir, "car.sha1");
+        assertTrue(carFile.exists());
+        assertTrue(shaFile.exists());
+        // make sure we'd notice if they were written again
+        long carTime = carFile.lastModified() - 10000;
+        long shaTime = shaFile.lastModified() - 10000;
+        assertTrue(carFile.setLastModified(carTime));
+        assertTrue(shaFile.setLastModified(shaTime));
+        
+        compile("modules/single/module.ceylon", "modules/single/Correct.ceylon");
+        assertEquals(carTime, carFile.lastModified());
+        assertEquals(shaTime, shaFile.lastModified());
+        
+        // but a changed module gets a new archive
+        compile("modules/single/subpackage/Subpackage.ceylon");
+        assertTrue(carTime != carFile.lastModified());
+        assertTrue(shaTime != shaFile.lastModified());
+        JarFile car = new JarFile(carFile);
+        assertNotNull(car.getEntry("com/redhat/ceylon/compiler/java/test/cmr/modules/single/Correct.class"));
+        assertNotNull(car.getEntry("com/redhat/ceylon/compiler/java/test/cmr/modules/single/subpackage/Subpackage.class"));
+        car.close();
+    }
+
     @Test
     public void testMdlCarWithInvalidSHA1() throws IOException{
         compile("modules/single/module.ceylon");
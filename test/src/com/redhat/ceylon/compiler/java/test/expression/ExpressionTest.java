@@ -20,7 +20,11 @@
 package com.redhat.ceylon.compiler.java.test.expression;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
+import org.junit.Assert;
+import org.junit.Ignore;
 import org.junit.Test;
 
 import com.redhat.ceylon.compiler.java.test.CompilerError;
@@ -440,6 +444,16 @@ public class ExpressionTest extends CompilerTest {
                 "operator/FloatPowerWithIntLiteralOptimCorrect.ceylon");
     }
     @Test
+    public void testOprUnboxedArrayAccess(){
+        compileAndRun("com.redhat.ceylon.compiler.java.test.expression.operator.unboxedArrayAccess", 
+                "operator/UnboxedArrayAccess.ceylon");
+    }
+    @Test
+    public void testOprConstantFolding(){
+        compileAndRun("com.redhat.ceylon.compiler.java.test.expression.operator.constantFolding", 
+                "operator/ConstantFolding.ceylon");
+    }
+    @Test
     public void testOprBitwiseOperators(){
         compareWithJavaSource("operator/BitwiseOperators");
     }
@@ -501,6 +515,25 @@ public class ExpressionTest extends CompilerTest {
         compareWithJavaSource("stringtemp/StringTemplate");
     }
     
+    @Test
+    public void testStpStringTemplatePresizing(){
+        compileAndRun("com.redhat.ceylon.compiler.java.test.expression.stringtemp.stringTemplatePresizing", 
+                "stringtemp/StringTemplatePresizing.ceylon");
+    }
+    
+    @Test
+    @Ignore("For benchmarking only")
+    public void testStpStringTemplateBench(){
+        compile("stringtemp/StringTemplateBench.ceylon");
+        long opt = (Long)run("com.redhat.ceylon.compiler.java.test.expression.stringtemp.stringTemplateBench");
+        opt = (Long)run("com.redhat.ceylon.compiler.java.test.expression.stringtemp.stringTemplateBench");
+        System.gc();
+        long unopt = (Long)run("com.redhat.ceylon.compiler.java.test.expression.stringtemp.stringTemplateBenchDis");
+        unopt = (Long)run("com.redhat.ceylon.compiler.java.test.expression.stringtemp.stringTemplateBenchDis");
+        System.out.println("Optimized took " + opt/1_000_000 + "ms");
+        System.out.println("Unoptimized took " + unopt/1_000_000 + "ms");
+    }
+    
     @Test
     public void testLmdAnonFunctionNullary(){
         compareWithJavaSource("lambda/AnonFunctionNullary");
@@ -531,6 +564,27 @@ public class ExpressionTest extends CompilerTest {
         compareWithJavaSource("lambda/AnonMemberQual");
     }
     
+    @Test
+    public void testLmdPrimitiveCallable(){
+        compileAndRun("com.redhat.ceylon.compiler.java.test.expression.lambda.primitiveCallable", 
+                "lambda/PrimitiveCallable.ceylon");
+    }
+    
+    @Test
+    public void testParallelCodegenOfAnalysedExpressions(){
+        // the code generation threads must see what the visitors found 
+        // before code generation
+        List<String> options = new ArrayList<String>(defaultOptions);
+        options.add("-codegen-threads");
+        options.add("4");
+        Boolean result = getCompilerTask(options, "lambda/PrimitiveCallable.ceylon", 
+                "destructuring/ScalarReplacement.ceylon", "operator/ConstantFolding.ceylon").call();
+        Assert.assertEquals(Boolean.TRUE, result);
+        run("com.redhat.ceylon.compiler.java.test.expression.lambda.primitiveCallable");
+        run("com.redhat.ceylon.compiler.java.test.expression.destructuring.scalarReplacement");
+        run("com.redhat.ceylon.compiler.java.test.expression.operator.constantFolding");
+    }
+    
     //
     // Optimisations
 
@@ -557,4 +557,10 @@ public class ExpressionTest2 extends CompilerTest {
     public void testDestructuring(){
         compareWithJavaSource("destructuring/Destruct");
     }
+    
+    @Test
+    public void testDestructuringScalarReplacement(){
+        compileAndRun("com.redhat.ceylon.compiler.java.test.expression.destructuring.scalarReplacement", 
+                "destructuring/ScalarReplacement.ceylon");
+    }
 }
@@ -25,6 +25,7 @@ import org.junit.Assert;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import com.redhat.ceylon.compiler.java.test.CompilerError;
 import com.redhat.ceylon.compiler.java.test.CompilerTest;
 
 public class ComprehensionTest extends CompilerTest {
@@ -238,5 +239,17 @@ public class ComprehensionTest extends CompilerTest {
     public void testComprehensionMemberQual() {
         compareWithJavaSource("ComprehensionMemberQual");
     }
+    
+    @Test
+    public void testComprehensionLoopFusion() {
+        compileAndRun("com.redhat.ceylon.compiler.java.test.expression.comprehensions.comprehensionLoopFusion", 
+                "ComprehensionLoopFusion.ceylon");
+    }
+    
+    @Test
+    public void testComprehensionLoopFusionRequired() {
+        assertErrors("ComprehensionLoopFusionRequired",
+                new CompilerError(23, "@requireOptimization[\"ComprehensionLoopFusion\"] assertion failed: if clauses with IsCondition are not fused"));
+    }
 
 }
@@ -19,13 +19,20 @@
  */
 package com.redhat.ceylon.compiler.java.test.misc;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.ProcessBuilder.Redirect;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Enumeration;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
 
 import javax.tools.JavaFileObject;
 
@@ -41,6 +48,7 @@ import com.redhat.ceylon.compiler.java.test.ErrorCollector;
 import com.redhat.ceylon.compiler.java.tools.CeyloncFileManager;
 import com.redhat.ceylon.compiler.java.tools.CeyloncTaskImpl;
 import com.redhat.ceylon.compiler.java.tools.CeyloncTool;
+import com.redhat.ceylon.compiler.java.util.Util;
 
 public class MiscTest extends CompilerTest {
 
@@ -71,6 +79,79 @@ public class MiscTest extends CompilerTest {
         compileAndRun("com.redhat.ceylon.compiler.java.test.misc.twoclasses.main", "twoclasses/One.ceylon", "twoclasses/Two.ceylon", "twoclasses/main.ceylon");
     }
 
+    @Test
+    public void testParallelCodegen() throws IOException{
+        String[] sources = {"twoclasses/One.ceylon", "twoclasses/Two.ceylon", "twoclasses/main.ceylon", 
+                "helloworld/helloworld.ceylon"};
+        Boolean result = getCompilerTask(defaultOptions, sources).call();
+        Assert.assertEquals(Boolean.TRUE, result);
+        Map<String, byte[]> sequential = readClasses(getModuleArchive("default", null));
+        
+        String parallelDestDir = destDir + "-parallel";
+        cleanCars(parallelDestDir);
+        List<String> options = new ArrayList<String>(defaultOptions);
+        options.set(options.indexOf("-out") + 1, parallelDestDir);
+        options.add("-codegen-threads");
+        options.add("4");
+        result = getCompilerTask(options, sources).call();
+        Assert.assertEquals(Boolean.TRUE, result);
+        Map<String, byte[]> parallel = readClasses(getModuleArchive("default", null, parallelDestDir));
+        
+        // the code generation threads must produce exactly what a single thread does
+        Assert.assertEquals(sequential.keySet(), parallel.keySet());
+        for (Map.Entry<String, byte[]> entry : sequential.entrySet()) {
+            Assert.assertTrue(entry.getKey() + " differs", 
+                    Arrays.equals(entry.getValue(), parallel.get(entry.getKey())));
+        }
+    }
+
+    private static Map<String, byte[]> readClasses(File car) throws IOException {
+        Map<String, byte[]> classes = new TreeMap<String, byte[]>();
+        JarFile jar = new JarFile(car);
+        try {
+            Enumeration<JarEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                if (entry.getName().endsWith(".class")) {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    InputStream in = jar.getInputStream(entry);
+                    try {
+                        Util.copy(in, bytes);
+                    } finally {
+                        in.close();
+                    }
+                    classes.put(entry.getName(), bytes.toByteArray());
+                }
+            }
+        } finally {
+            jar.close();
+        }
+        return classes;
+    }
+
+    @Test
+    public void testProfile() throws IOException{
+        File profile = File.createTempFile("ceylon-profile", ".json");
+        try{
+            List<String> options = new ArrayList<String>(defaultOptions);
+            options.add("-profile");
+            options.add(profile.getPath());
+            Boolean result = getCompilerTask(options, "twoclasses/One.ceylon", "twoclasses/Two.ceylon", "twoclasses/main.ceylon").call();
+            Assert.assertEquals(Boolean.TRUE, result);
+            String trace = new String(java.nio.file.Files.readAllBytes(profile.toPath()), "UTF-8");
+            Assert.assertTrue(trace.startsWith("{\"traceEvents\":["));
+            Assert.assertTrue(trace.contains("\"name\":\"Ceylon type checking\""));
+            Assert.assertTrue(trace.contains("\"name\":\"analyseTypes\""));
+            Assert.assertTrue(trace.contains("\"name\":\"write module archives\""));
+            Assert.assertTrue(trace.contains("\"declarations loaded\":"));
+            // the model loader is counted in the phases, not traced as spans of its own
+            Assert.assertTrue(trace.contains("\"model loader entries\":"));
+            Assert.assertFalse(trace.contains("\"name\":\"model loader\""));
+        }finally{
+            profile.delete();
+        }
+    }
+
     @Test
     public void testEqualsHashOverriding(){
         compareWithJavaSource("equalshashoverriding/EqualsHashOverriding");
@@ -1220,6 +1220,59 @@ public class ModelLoaderTest extends CompilerTest {
         }, Arrays.asList("-verbose:loader"));
     }
 
+    @Ignore("Benchmark of concurrent lookups of already loaded declarations, to check that they scale with threads")
+    @Test
+    public void modelLoaderContentionBenchmark(){
+        verifyCompilerClassLoading("Any.ceylon", new RunnableTest(){
+            @Override
+            public void test(final ModelLoader loader) {
+                // load everything first, we only measure lookups
+                final List<String> names = new ArrayList<String>();
+                final Module mod = loader.getLoadedModule("java.base");
+                Assert.assertNotNull(mod);
+                for(String pkgName : JDKUtils.getJDKPackagesByModule("java.base")){
+                    Package p = mod.getDirectPackage(pkgName);
+                    Assert.assertNotNull(p);
+                    for(Declaration decl : p.getMembers()){
+                        if(decl instanceof ClassOrInterface && decl.isShared())
+                            names.add(pkgName + "." + decl.getName());
+                    }
+                }
+                final int lookups = 2000000;
+                for(int threads = 1; threads <= 8; threads *= 2){
+                    List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(threads);
+                    final int lookupsPerThread = lookups / threads;
+                    for(int i=0;i<threads;i++){
+                        tasks.add(new Callable<Object>(){
+                            @Override
+                            public Object call() throws Exception {
+                                for(int i=0;i<lookupsPerThread;i++){
+                                    String name = names.get(i % names.size());
+                                    Assert.assertNotNull(loader.getDeclaration(mod, name, DeclarationType.TYPE));
+                                }
+                                return null;
+                            }
+                        });
+                    }
+                    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES, new ArrayBlockingQueue<Runnable>(threads));
+                    long start = System.nanoTime();
+                    try {
+                        for(Future<Object> f : executor.invokeAll(tasks)){
+                            f.get();
+                        }
+                        executor.shutdown();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    } catch (ExecutionException e) {
+                        throw new RuntimeException(e);
+                    }
+                    long millis = Math.max(1, (System.nanoTime() - start) / 1000000);
+                    System.err.println(threads+" thread(s): "+(lookups * 1000L / millis)+" lookups/s");
+                }
+            }
+        });
+    }
+
     protected String moduleForJavaModelLoading() {
         return packageForJavaModelLoading();
     }
@@ -446,4 +446,18 @@ public class TypeParserTest {
     public void testInvalidType(){
         new TypeParser(MockLoader.instance).decodeType("t2<a,b", null, mockModule, mockUnit);
     }
+
+    @Test
+    public void testCachedType(){
+        TypeParser parser = new TypeParser(MockLoader.instance);
+        ProducedType type1 = parser.decodeType("t2<b,out c>", null, mockModule, mockUnit);
+        ProducedType type2 = parser.decodeType("t2<b,out c>", null, mockModule, mockUnit);
+        Assert.assertEquals(1, parser.getCacheHits());
+        Assert.assertEquals(1, parser.getCacheMisses());
+        // we only cache the parsing: every use gets its own type
+        Assert.assertNotSame(type1, type2);
+        Assert.assertEquals("t2", type2.getDeclaration().getName());
+        Assert.assertEquals(2, type2.getTypeArgumentList().size());
+        Assert.assertEquals(SiteVariance.OUT, type2.getVarianceOverrides().get(type2.getDeclaration().getTypeParameters().get(1)));
+    }
 }
@@ -142,6 +142,20 @@ public class OptimizationTest extends CompilerTest {
         compareWithJavaSource("loop/optim/StringIterationStatic");
     }
     
+    @Test
+    public void testLopOptimIterableChainFusion() {
+        compileAndRun("com.redhat.ceylon.compiler.java.test.statement.loop.optim.iterableChainFusion",
+                "loop/optim/IterableChainFusion.ceylon");
+    }
+    
+    @Test
+    public void testLopOptimIterableChainFusionRequired() {
+        assertErrors("loop/optim/IterableChainFusionRequired",
+                new CompilerError(23, "@requireOptimization[\"IterableChainFusion\"] assertion failed: receiver is not an Array, a span, a Tuple or a Range"),
+                new CompilerError(27, "@requireOptimization[\"IterableChainFusion\"] assertion failed: receiver is not an Array, a span, a Tuple or a Range"),
+                new CompilerError(31, "@requireOptimization[\"IterableChainFusion\"] assertion failed: receiver is not an Array, a span, a Tuple or a Range"));
+    }
+    
     @Ignore("For benchmarking only")
     @Test
     public void testLopOptimDynamicIterationBench() {
@@ -547,6 +547,36 @@ public class StatementTest extends CompilerTest {
         run("com.redhat.ceylon.compiler.java.test.statement.swtch.switchWithNullCase");
     }
     
+    @Test
+    public void testSwitchInteger(){
+        compileAndRun("com.redhat.ceylon.compiler.java.test.statement.swtch.switchInteger", 
+                "swtch/SwitchInteger.ceylon");
+    }
+    
+    @Test
+    public void testSwitchEnumeratedObject(){
+        compileAndRun("com.redhat.ceylon.compiler.java.test.statement.swtch.switchEnumeratedObject", 
+                "swtch/SwitchEnumeratedObject.ceylon");
+    }
+
+    @Test
+    public void testSwitchEnumeratedObjectSeparate(){
+        compile("swtch/SwitchEnumeratedObjectSeparate.ceylon", "swtch/SwitchEnumeratedObjectSeparateCase.ceylon");
+        // a case compiled against the binary class still gets its $ordinal$()
+        compileAndRun("com.redhat.ceylon.compiler.java.test.statement.swtch.switchEnumeratedObjectSeparate",
+                "swtch/SwitchEnumeratedObjectSeparateCase.ceylon");
+        // and a switch compiled against the binary class and case uses it
+        compileAndRun("com.redhat.ceylon.compiler.java.test.statement.swtch.switchEnumeratedObjectSeparate",
+                "swtch/SwitchEnumeratedObjectSeparate.ceylon");
+    }
+    
+    @Test
+    public void testSwitchOptimRequired(){
+        assertErrors("swtch/SwitchOptimRequired",
+                new CompilerError(27, "@requireOptimization[\"IntegerSwitch\"] assertion failed: case is not an Integer literal which fits in an int"),
+                new CompilerError(34, "@requireOptimization[\"EnumeratedObjectSwitch\"] assertion failed: switch is not over a class enumerated with toplevel objects which has an $ordinal$()"));
+    }
+    
     @Test
     public void testReturnAnonFunction(){
         compareWithJavaSource("retrn/ReturnAnonFunction");
@@ -19,6 +19,10 @@
  */
 package com.redhat.ceylon.compiler.java.test.structure;
 
+import java.lang.reflect.Modifier;
+import java.net.URLClassLoader;
+
+import org.junit.Assert;
 import org.junit.Test;
 
 import com.redhat.ceylon.compiler.java.test.CompilerTest;
@@ -743,6 +747,20 @@ public class StructureTest extends CompilerTest {
         compileAndRun("com.redhat.ceylon.compiler.java.test.structure.reified.runtime", "reified/Runtime.ceylon");
     }
 
+    @Test
+    public void testRfdCachedTypeDescriptors() throws Exception {
+        compileAndRun("com.redhat.ceylon.compiler.java.test.structure.reified.cachedTypeDescriptors", "reified/CachedTypeDescriptors.ceylon");
+        // make sure we did cache the constant ones
+        URLClassLoader loader = getClassLoader("com.redhat.ceylon.compiler.java.test.structure.reified.cachedTypeDescriptors",
+                getDestModuleWithArtifact("com.redhat.ceylon.compiler.java.test.structure.reified.cachedTypeDescriptors"));
+        try {
+            Class<?> klass = loader.loadClass("com.redhat.ceylon.compiler.java.test.structure.reified.CachedTypeDescriptors");
+            Assert.assertTrue(Modifier.isStatic(klass.getDeclaredField("$TypeDescriptor$0").getModifiers()));
+        } finally {
+            loader.close();
+        }
+    }
+
     @Test
     public void testRfdUtilCalls(){
         compareWithJavaSource("reified/UtilCalls");
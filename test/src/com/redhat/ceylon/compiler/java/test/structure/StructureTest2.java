@@ -421,4 +421,10 @@ public class StructureTest2 extends CompilerTest {
     public void testCncAppliedTypeDefaultedParameter(){
         compareWithJavaSource("concrete/AppliedTypeDefaultedParameter");
     }
+    
+    @Test
+    public void testCncDevirtualization(){
+        compileAndRun("com.redhat.ceylon.compiler.java.test.structure.concrete.devirtualization", 
+                "concrete/Devirtualization.ceylon");
+    }
 }
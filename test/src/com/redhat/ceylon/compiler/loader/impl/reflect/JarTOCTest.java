@@ -0,0 +1,259 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.loader.impl.reflect;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+
+import org.junit.Test;
+
+import com.redhat.ceylon.common.FileUtil;
+import com.redhat.ceylon.compiler.java.test.CompilerTest;
+import com.redhat.ceylon.compiler.typechecker.model.Module;
+
+public class JarTOCTest {
+
+    /**
+     * The order of JarTOC: by UTF-8 bytes, which is not the order of
+     * {@link String#compareTo(String)} for supplementary characters
+     */
+    private static final Comparator<String> UTF8_ORDER = new Comparator<String>(){
+        @Override
+        public int compare(String a, String b) {
+            byte[] aBytes = utf8(a);
+            byte[] bBytes = utf8(b);
+            for(int i = 0; i < Math.min(aBytes.length, bBytes.length); i++){
+                int cmp = (aBytes[i] & 0xff) - (bBytes[i] & 0xff);
+                if(cmp != 0)
+                    return cmp;
+            }
+            return aBytes.length - bBytes.length;
+        }
+    };
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static List<String> sorted(Collection<String> names) {
+        List<String> ret = new ArrayList<String>(names);
+        Collections.sort(ret, UTF8_ORDER);
+        return ret;
+    }
+
+    private static List<String> startingWith(List<String> names, String prefix) {
+        List<String> ret = new ArrayList<String>();
+        for(String name : names){
+            if(name.startsWith(prefix))
+                ret.add(name);
+        }
+        return ret;
+    }
+
+    /**
+     * Enough names in each package to span several blocks, with long shared
+     * prefixes and non-ASCII names
+     */
+    private static List<String> names() {
+        List<String> names = new ArrayList<String>();
+        String[] packages = {
+                "a", "a/b", "ab", "com/example", "com/example/deep/er", "été", "日本", "😀", "\ufffd"
+        };
+        for(String pkg : packages){
+            for(int i = 0; i < JarTOC.BLOCK_SIZE * 2 + 3; i++){
+                names.add(pkg + "/C" + i + ".class");
+            }
+            names.add(pkg + "/Ü" + pkg + ".class");
+        }
+        names.add("Toplevel.class");
+        names.add("é");
+        return names;
+    }
+
+    private static void assertTOC(List<String> names, JarTOC toc) {
+        List<String> expected = sorted(names);
+        assertEquals(expected.size(), toc.size());
+        assertEquals(expected, toc.getNames());
+        for(String name : names){
+            assertTrue(name, toc.contains(name));
+            // every prefix of every name, whether it falls on a block boundary or not
+            for(int i = 0; i <= name.length(); i++){
+                // don't split surrogate pairs
+                if(i > 0 && Character.isHighSurrogate(name.charAt(i - 1)))
+                    continue;
+                String prefix = name.substring(0, i);
+                assertEquals(prefix, startingWith(expected, prefix), toc.getNamesStartingWith(prefix));
+            }
+        }
+        for(String missing : Arrays.asList("", "0", "a/C", "a/C0.clas", "a/C0.classes", "a/b/C99.class", 
+                "com/example/deep", "été/C0", "日本/C100.class", "😁", "\uffff", "zzz")){
+            assertFalse(missing, toc.contains(missing));
+        }
+        assertEquals(Collections.emptyList(), toc.getNamesStartingWith("a/C0.classes"));
+        assertEquals(Collections.emptyList(), toc.getNamesStartingWith("\uffff"));
+        assertEquals(Collections.emptyList(), toc.getNamesStartingWith("0"));
+    }
+
+    @Test
+    public void testLookups() {
+        List<String> names = names();
+        assertTOC(names, JarTOC.of(names));
+        // reversed order and duplicates don't matter
+        List<String> shuffled = new ArrayList<String>(names);
+        Collections.reverse(shuffled);
+        shuffled.addAll(names.subList(0, 40));
+        assertTOC(names, JarTOC.of(shuffled));
+    }
+
+    @Test
+    public void testBlockBoundaries() {
+        // from fewer names than a block to a few blocks, so that the first
+        // and last names of each block are looked up
+        for(int size = 1; size <= JarTOC.BLOCK_SIZE * 3 + 1; size++){
+            List<String> names = new ArrayList<String>();
+            for(int i = 0; i < size; i++)
+                names.add(String.format("p/%03d", i));
+            JarTOC toc = JarTOC.of(names);
+            assertTOC(names, toc);
+            assertFalse(toc.contains("p/" + size));
+            assertEquals(names, toc.getNamesStartingWith("p/"));
+        }
+    }
+
+    @Test
+    public void testEmpty() {
+        JarTOC toc = JarTOC.of(Collections.<String>emptyList());
+        assertEquals(0, toc.size());
+        assertFalse(toc.contains(""));
+        assertFalse(toc.contains("a"));
+        assertEquals(Collections.emptyList(), toc.getNames());
+        assertEquals(Collections.emptyList(), toc.getNamesStartingWith(""));
+    }
+
+    private static JarTOC writeAndRead(JarTOC toc) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        toc.write(out);
+        out.close();
+        return JarTOC.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        List<String> names = names();
+        assertTOC(names, writeAndRead(JarTOC.of(names)));
+        assertEquals(0, writeAndRead(JarTOC.EMPTY).size());
+    }
+
+    private static Map<String, byte[]> entries(String... names) throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        for(String name : names)
+            entries.put(name, MappedJarTest.contents(name, 100));
+        return entries;
+    }
+
+    private static CachedTOCJars addJar(File jar, File cacheDir, Module module) {
+        CachedTOCJars jars = new CachedTOCJars();
+        jars.setTOCCacheDir(cacheDir);
+        jars.addJar(CompilerTest.makeArtifactResult(jar), module);
+        return jars;
+    }
+
+    @Test
+    public void testCacheInvalidation() throws IOException {
+        File tmpDir = Files.createTempDirectory("ceylon-jar-toc-").toFile();
+        try{
+            File cacheDir = new File(tmpDir, "cache");
+            File jar = new File(tmpDir, "test.jar");
+            Module module = MappedJarTest.makeModule();
+            long time = 1400000000000L;
+
+            MappedJarTest.writeJar(jar, entries("a/A.class"), ZipEntry.STORED);
+            assertTrue(jar.setLastModified(time));
+            CachedTOCJars jars = addJar(jar, cacheDir, module);
+            assertEquals(Arrays.asList("a/A.class"), jars.getPackageList(module, "a"));
+            assertEquals(1, cacheDir.list().length);
+
+            // same size and time: the TOC comes from the cache, even though it's wrong
+            MappedJarTest.writeJar(jar, entries("b/B.class"), ZipEntry.STORED);
+            assertTrue(jar.setLastModified(time));
+            jars = addJar(jar, cacheDir, module);
+            assertTrue(jars.packageExists(module, "a"));
+            assertFalse(jars.packageExists(module, "b"));
+
+            // different time
+            assertTrue(jar.setLastModified(time + 2000));
+            jars = addJar(jar, cacheDir, module);
+            assertFalse(jars.packageExists(module, "a"));
+            assertEquals(Arrays.asList("b/B.class"), jars.getPackageList(module, "b"));
+            assertArrayEquals(MappedJarTest.contents("b/B.class", 100), jars.getContents("b/B.class"));
+
+            // different size, same time
+            MappedJarTest.writeJar(jar, entries("b/B.class", "c/C.class"), ZipEntry.STORED);
+            assertTrue(jar.setLastModified(time + 2000));
+            jars = addJar(jar, cacheDir, module);
+            assertEquals(Arrays.asList("b/B.class"), jars.getPackageList(module, "b"));
+            assertEquals(Arrays.asList("c/C.class"), jars.getPackageList(module, "c"));
+
+            // and the updated TOC was written back, replacing the old one
+            assertEquals(1, cacheDir.list().length);
+            jar.delete();
+            MappedJarTest.writeJar(jar, entries("b/B.class", "d/D.class"), ZipEntry.STORED);
+            assertTrue(jar.setLastModified(time + 2000));
+            jars = addJar(jar, cacheDir, module);
+            assertTrue(jars.packageExists(module, "c"));
+            assertFalse(jars.packageExists(module, "d"));
+
+            // a corrupt cache is ignored
+            for(File cacheFile : cacheDir.listFiles()){
+                Files.write(cacheFile.toPath(), Arrays.copyOf(Files.readAllBytes(cacheFile.toPath()), 20));
+            }
+            jars = addJar(jar, cacheDir, module);
+            assertFalse(jars.packageExists(module, "c"));
+            assertTrue(jars.packageExists(module, "d"));
+        }finally{
+            FileUtil.delete(tmpDir);
+        }
+    }
+}
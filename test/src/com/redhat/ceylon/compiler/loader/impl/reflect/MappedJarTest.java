@@ -0,0 +1,397 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.loader.impl.reflect;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.redhat.ceylon.common.FileUtil;
+import com.redhat.ceylon.compiler.java.test.CompilerTest;
+import com.redhat.ceylon.compiler.typechecker.model.Module;
+
+public class MappedJarTest {
+
+    private File tmpDir;
+
+    @Before
+    public void createTmpDir() throws IOException {
+        tmpDir = Files.createTempDirectory("ceylon-mapped-jar-").toFile();
+    }
+
+    @After
+    public void deleteTmpDir() {
+        FileUtil.delete(tmpDir);
+    }
+
+    /**
+     * Some contents which deflate well, but not to nothing
+     */
+    static byte[] contents(String seed, int size) throws IOException {
+        byte[] seedBytes = seed.getBytes("UTF-8");
+        byte[] ret = new byte[size];
+        for(int i = 0; i < size; i++)
+            ret[i] = (byte) (seedBytes[i % seedBytes.length] + i / 1000);
+        return ret;
+    }
+
+    /**
+     * Writes a jar with the given entries, which are stored or deflated
+     * depending on the given method.
+     */
+    static File writeJar(File file, Map<String, byte[]> entries, int method) throws IOException {
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+        try{
+            for(Map.Entry<String, byte[]> entry : entries.entrySet()){
+                ZipEntry zipEntry = new ZipEntry(entry.getKey());
+                byte[] bytes = entry.getValue();
+                // keep the jar size stable
+                zipEntry.setTime(0);
+                zipEntry.setMethod(method);
+                if(method == ZipEntry.STORED){
+                    CRC32 crc = new CRC32();
+                    crc.update(bytes);
+                    zipEntry.setSize(bytes.length);
+                    zipEntry.setCompressedSize(bytes.length);
+                    zipEntry.setCrc(crc.getValue());
+                }
+                out.putNextEntry(zipEntry);
+                out.write(bytes);
+                out.closeEntry();
+            }
+        }finally{
+            out.close();
+        }
+        return file;
+    }
+
+    private static Map<String, byte[]> entries() throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        entries.put("a/", new byte[0]);
+        entries.put("a/A.class", contents("A", 100));
+        entries.put("a/b/Big.class", contents("Big", 100000));
+        entries.put("a/b/Empty.class", new byte[0]);
+        entries.put("été/日本.class", contents("été", 10));
+        entries.put("META-INF/MANIFEST.MF", "Manifest-Version: 1.0\n".getBytes("UTF-8"));
+        return entries;
+    }
+
+    private static byte[] readFromZipFile(File file, String name) throws IOException {
+        ZipFile zipFile = new ZipFile(file);
+        try{
+            InputStream in = zipFile.getInputStream(zipFile.getEntry(name));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while((read = in.read(buffer)) != -1)
+                out.write(buffer, 0, read);
+            return out.toByteArray();
+        }finally{
+            zipFile.close();
+        }
+    }
+
+    private void assertReadsLikeZipFile(int method) throws IOException {
+        Map<String, byte[]> entries = entries();
+        File file = writeJar(new File(tmpDir, "test.jar"), entries, method);
+        MappedJar jar = new MappedJar(file);
+        Set<String> names = new HashSet<String>();
+        for(String name : jar.getEntryNames())
+            names.add(name);
+        assertEquals(entries.keySet(), names);
+        for(Map.Entry<String, byte[]> entry : entries.entrySet()){
+            String name = entry.getKey();
+            assertTrue(jar.contains(name));
+            assertEquals(entry.getValue().length, jar.getSize(name));
+            assertArrayEquals(name, entry.getValue(), jar.read(name));
+            assertArrayEquals(name, readFromZipFile(file, name), jar.read(name));
+            // at an offset in a larger array
+            byte[] dest = new byte[entry.getValue().length + 3];
+            jar.read(name, dest, 3);
+            assertArrayEquals(name, entry.getValue(), Arrays.copyOfRange(dest, 3, dest.length));
+        }
+        assertFalse(jar.contains("a/Missing.class"));
+        assertEquals(-1, jar.getSize("a/Missing.class"));
+        assertNull(jar.read("a/Missing.class"));
+        try{
+            jar.read("a/Missing.class", new byte[0], 0);
+            fail();
+        }catch(ZipException x){
+            // expected
+        }
+    }
+
+    @Test
+    public void testStoredEntries() throws IOException {
+        assertReadsLikeZipFile(ZipEntry.STORED);
+    }
+
+    @Test
+    public void testDeflatedEntries() throws IOException {
+        assertReadsLikeZipFile(ZipEntry.DEFLATED);
+    }
+
+    @Test
+    public void testMixedEntries() throws IOException {
+        File file = new File(tmpDir, "mixed.jar");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+        try{
+            byte[] stored = contents("stored", 5000);
+            ZipEntry entry = new ZipEntry("Stored.class");
+            CRC32 crc = new CRC32();
+            crc.update(stored);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(stored.length);
+            entry.setCrc(crc.getValue());
+            out.putNextEntry(entry);
+            out.write(stored);
+            out.closeEntry();
+            out.putNextEntry(new ZipEntry("Deflated.class"));
+            out.write(contents("deflated", 5000));
+            out.closeEntry();
+        }finally{
+            out.close();
+        }
+        MappedJar jar = new MappedJar(file);
+        assertArrayEquals(contents("stored", 5000), jar.read("Stored.class"));
+        assertArrayEquals(contents("deflated", 5000), jar.read("Deflated.class"));
+    }
+
+    /**
+     * Replaces the compression method of the given entry of a stored jar
+     */
+    static void patchMethod(File file, String name, int method) throws IOException {
+        byte[] nameBytes = name.getBytes("UTF-8");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try{
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            for(int i = 0; i + 4 <= bytes.length; i++){
+                if(bytes[i] != 'P' || bytes[i+1] != 'K')
+                    continue;
+                int methodOffset, nameOffset;
+                if(bytes[i+2] == 3 && bytes[i+3] == 4){
+                    // local file header
+                    methodOffset = 8;
+                    nameOffset = 30;
+                }else if(bytes[i+2] == 1 && bytes[i+3] == 2){
+                    // central directory record
+                    methodOffset = 10;
+                    nameOffset = 46;
+                }else{
+                    continue;
+                }
+                int nameStart = i + nameOffset;
+                if(nameStart + nameBytes.length <= bytes.length
+                        && Arrays.equals(nameBytes, Arrays.copyOfRange(bytes, nameStart, nameStart + nameBytes.length))){
+                    raf.seek(i + methodOffset);
+                    raf.write(method & 0xff);
+                    raf.write((method >> 8) & 0xff);
+                }
+            }
+        }finally{
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes a jar with more entries than fit in a non-ZIP64 central directory
+     */
+    static File writeZip64Jar(File file) throws IOException {
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+        try{
+            out.setLevel(0);
+            out.putNextEntry(new ZipEntry("a/A.class"));
+            out.write(contents("A", 100));
+            out.closeEntry();
+            for(int i = 0; i < 0x10000; i++){
+                out.putNextEntry(new ZipEntry("b/"+i));
+                out.closeEntry();
+            }
+        }finally{
+            out.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void testUnsupportedJars() throws IOException {
+        File bzip2 = writeJar(new File(tmpDir, "bzip2.jar"), entries(), ZipEntry.STORED);
+        patchMethod(bzip2, "a/A.class", 12);
+        try{
+            new MappedJar(bzip2);
+            fail();
+        }catch(ZipException x){
+            // expected
+        }
+
+        File zip64 = writeZip64Jar(new File(tmpDir, "zip64.jar"));
+        try{
+            new MappedJar(zip64);
+            fail();
+        }catch(ZipException x){
+            // expected
+        }
+
+        File notAJar = new File(tmpDir, "not-a.jar");
+        FileOutputStream out = new FileOutputStream(notAJar);
+        try{
+            out.write(contents("not a jar", 1000));
+        }finally{
+            out.close();
+        }
+        try{
+            new MappedJar(notAJar);
+            fail();
+        }catch(ZipException x){
+            // expected
+        }
+    }
+
+    @Test
+    public void testClose() throws IOException {
+        File file = writeJar(new File(tmpDir, "test.jar"), entries(), ZipEntry.DEFLATED);
+        MappedJar jar = new MappedJar(file);
+        assertArrayEquals(contents("A", 100), jar.read("a/A.class"));
+        jar.close();
+        try{
+            jar.read("a/A.class");
+            fail();
+        }catch(MappedJar.ClosedException x){
+            // expected
+        }
+        // we still know what's in it
+        assertTrue(jar.contains("a/A.class"));
+        assertNull(jar.read("a/Missing.class"));
+        jar.close();
+        // and the file can be replaced
+        assertTrue(file.delete());
+    }
+
+    @Test
+    public void testPool() throws IOException {
+        File a = writeJar(new File(tmpDir, "a.jar"), entries(), ZipEntry.STORED);
+        File b = writeJar(new File(tmpDir, "b.jar"), entries(), ZipEntry.STORED);
+        CachedTOCJars.MappedJarPool pool = new CachedTOCJars.MappedJarPool(1);
+        MappedJar mappedA = pool.get(a);
+        assertSame(mappedA, pool.get(a));
+        // mapping b evicts a, which gets closed
+        MappedJar mappedB = pool.get(b);
+        try{
+            mappedA.read("a/A.class");
+            fail();
+        }catch(MappedJar.ClosedException x){
+            // expected
+        }
+        assertArrayEquals(contents("A", 100), mappedB.read("a/A.class"));
+        MappedJar mappedA2 = pool.get(a);
+        assertNotSame(mappedA, mappedA2);
+        assertArrayEquals(contents("A", 100), mappedA2.read("a/A.class"));
+
+        // replacing a jar makes us map it again
+        Map<String, byte[]> entries = entries();
+        entries.put("a/A.class", contents("replaced", 200));
+        File replacement = writeJar(new File(tmpDir, "replacement.jar"), entries, ZipEntry.STORED);
+        Files.move(replacement.toPath(), a.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        assertTrue(mappedA2.isStale());
+        MappedJar mappedA3 = pool.get(a);
+        assertNotSame(mappedA2, mappedA3);
+        assertFalse(mappedA3.isStale());
+        assertArrayEquals(contents("replaced", 200), mappedA3.read("a/A.class"));
+
+        pool.close();
+        try{
+            mappedA3.read("a/A.class");
+            fail();
+        }catch(MappedJar.ClosedException x){
+            // expected
+        }
+
+        // a pool without room never maps anything
+        assertNull(new CachedTOCJars.MappedJarPool(0).get(a));
+    }
+
+    @Test
+    public void testCachedTOCJarsClose() throws IOException {
+        File file = writeJar(new File(tmpDir, "test.jar"), entries(), ZipEntry.DEFLATED);
+        for(int maxMappedJars : new int[]{ 0, 1 }){
+            Module module = makeModule();
+            CachedTOCJars jars = new CachedTOCJars(maxMappedJars);
+            jars.setTOCCacheDir(null);
+            jars.addJar(CompilerTest.makeArtifactResult(file), module);
+            assertArrayEquals(contents("Big", 100000), jars.getContents("a/b/Big.class"));
+            jars.close();
+            // we map it again when we need it
+            assertArrayEquals(contents("A", 100), jars.getContents(module, "a/A.class"));
+            jars.close();
+        }
+    }
+
+    static Module makeModule() {
+        Module module = new Module();
+        module.setName(Arrays.asList("test"));
+        module.setVersion("1");
+        return module;
+    }
+
+    @Test
+    public void testFallBackToZipFile() throws IOException {
+        File zip64 = writeZip64Jar(new File(tmpDir, "zip64.jar"));
+        Module module = makeModule();
+        CachedTOCJars jars = new CachedTOCJars();
+        jars.setTOCCacheDir(null);
+        jars.addJar(CompilerTest.makeArtifactResult(zip64), module);
+        assertTrue(jars.packageExists(module, "a"));
+        assertTrue(jars.packageExists(module, "b"));
+        assertEquals(Arrays.asList("a/A.class"), jars.getPackageList(module, "a"));
+        assertEquals(0x10000, jars.getPackageList(module, "b").size());
+        assertArrayEquals(contents("A", 100), jars.getContents("a/A.class"));
+        assertArrayEquals(new byte[0], jars.getContents(module, "b/42"));
+        assertNull(jars.getContents("a/Missing.class"));
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.loader.impl.reflect.classfile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.redhat.ceylon.common.FileUtil;
+
+public class ClassFileCacheTest {
+
+    /**
+     * A source of class files which counts how many class files we read from it
+     */
+    private static class MapSource implements ClassFileCache.Source {
+        private final Map<String, byte[]> classes = new TreeMap<String, byte[]>();
+        private int reads;
+
+        MapSource(Class<?>... klasses) throws IOException {
+            for(Class<?> klass : klasses){
+                String path = getPath(klass);
+                classes.put(path, getBytes(klass));
+            }
+        }
+
+        @Override
+        public Iterable<String> getClassFileNames() {
+            return classes.keySet();
+        }
+
+        @Override
+        public byte[] getContents(String path) throws IOException {
+            reads++;
+            return classes.get(path);
+        }
+    }
+
+    private File tmpDir;
+    private File cacheDir;
+
+    @Before
+    public void createTmpDir() throws IOException {
+        tmpDir = Files.createTempDirectory("ceylon-mirror-cache-").toFile();
+        cacheDir = new File(tmpDir, "cache");
+    }
+
+    @After
+    public void deleteTmpDir() {
+        FileUtil.delete(tmpDir);
+    }
+
+    private static String getPath(Class<?> klass) {
+        return klass.getName().replace('.', '/') + ".class";
+    }
+
+    private static byte[] getBytes(Class<?> klass) throws IOException {
+        InputStream in = ClassFileCacheTest.class.getClassLoader().getResourceAsStream(getPath(klass));
+        assertNotNull(in);
+        try{
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while((read = in.read(buffer)) != -1)
+                out.write(buffer, 0, read);
+            return out.toByteArray();
+        }finally{
+            in.close();
+        }
+    }
+
+    private File writeFile(String name, byte[] contents) throws IOException {
+        File file = new File(tmpDir, name);
+        OutputStream out = new FileOutputStream(file);
+        try{
+            out.write(contents);
+        }finally{
+            out.close();
+        }
+        return file;
+    }
+
+    private File getCacheFile(File artifact) throws IOException {
+        return new File(cacheDir, ClassFileCache.getSha1(artifact) + ".mirrors");
+    }
+
+    private static void assertCached(ClassFileCache cache, Class<?> klass) throws IOException {
+        byte[] original = getBytes(klass);
+        byte[] cached = cache.get(getPath(klass));
+        assertArrayEquals(ClassFileCache.strip(original), cached);
+        // method code is gone, but not the members
+        assertTrue(cached.length < original.length);
+        ClassFileReader originalReader = new ClassFileReader(original);
+        ClassFileReader cachedReader = new ClassFileReader(cached);
+        assertEquals(originalReader.fields.size(), cachedReader.fields.size());
+        assertEquals(originalReader.methods.size(), cachedReader.methods.size());
+    }
+
+    @Test
+    public void testWriteAndReadBack() throws IOException {
+        File artifact = writeFile("test-1.car", "first".getBytes("UTF-8"));
+        // two packages
+        MapSource source = new MapSource(ClassFileCache.class, ClassFileReader.class, Assert.class);
+        ClassFileCache cache = ClassFileCache.open(cacheDir, artifact, source);
+        assertTrue(getCacheFile(artifact).isFile());
+        assertEquals(3, source.reads);
+        assertCached(cache, ClassFileCache.class);
+        assertCached(cache, ClassFileReader.class);
+        assertCached(cache, Assert.class);
+        assertNull(cache.get(getPath(ClassFileCacheTest.class)));
+        assertNull(cache.get("no/such/Package.class"));
+
+        // the next time we read it back without looking at the artifact
+        MapSource unused = new MapSource(ClassFileCache.class, ClassFileReader.class, Assert.class);
+        cache = ClassFileCache.open(cacheDir, artifact, unused);
+        assertEquals(0, unused.reads);
+        assertCached(cache, ClassFileCache.class);
+        assertCached(cache, ClassFileReader.class);
+        assertCached(cache, Assert.class);
+    }
+
+    @Test
+    public void testRejectStaleCache() throws IOException {
+        File first = writeFile("test-1.car", "first".getBytes("UTF-8"));
+        ClassFileCache.open(cacheDir, first, new MapSource(ClassFileCache.class));
+        // a cache file which is not for the checksum it's named after
+        File second = writeFile("test-2.car", "second".getBytes("UTF-8"));
+        Files.copy(getCacheFile(first).toPath(), getCacheFile(second).toPath());
+
+        MapSource source = new MapSource(ClassFileReader.class);
+        ClassFileCache cache = ClassFileCache.open(cacheDir, second, source);
+        assertEquals(1, source.reads);
+        assertNull(cache.get(getPath(ClassFileCache.class)));
+        assertCached(cache, ClassFileReader.class);
+    }
+
+    @Test
+    public void testRejectCorruptCache() throws IOException {
+        File artifact = writeFile("test-1.car", "first".getBytes("UTF-8"));
+        ClassFileCache.open(cacheDir, artifact, new MapSource(ClassFileCache.class));
+        File cacheFile = getCacheFile(artifact);
+
+        // truncated in the middle of its package index
+        RandomAccessFile raf = new RandomAccessFile(cacheFile, "rw");
+        try{
+            raf.setLength(10);
+        }finally{
+            raf.close();
+        }
+        MapSource source = new MapSource(ClassFileCache.class);
+        ClassFileCache cache = ClassFileCache.open(cacheDir, artifact, source);
+        assertEquals(1, source.reads);
+        assertCached(cache, ClassFileCache.class);
+
+        // not a cache file at all
+        Files.write(cacheFile.toPath(), "garbage".getBytes("UTF-8"));
+        source = new MapSource(ClassFileCache.class);
+        cache = ClassFileCache.open(cacheDir, artifact, source);
+        assertEquals(1, source.reads);
+        assertCached(cache, ClassFileCache.class);
+    }
+
+    @Test
+    public void testSha1() throws Exception {
+        byte[] contents = "first".getBytes("UTF-8");
+        File artifact = writeFile("test-1.car", contents);
+        StringBuilder expected = new StringBuilder();
+        for(byte b : MessageDigest.getInstance("SHA-1").digest(contents))
+            expected.append(String.format("%02x", b & 0xff));
+        assertEquals(expected.toString(), ClassFileCache.getSha1(artifact));
+
+        // repositories store it next to the artifact
+        String stored = "0123456789ABCDEF0123456789ABCDEF01234567";
+        File sha1File = writeFile("test-1.car.sha1", stored.getBytes("UTF-8"));
+        sha1File.setLastModified(artifact.lastModified());
+        assertEquals(stored.toLowerCase(), ClassFileCache.getSha1(artifact));
+
+        // unless it's older than the artifact
+        sha1File.setLastModified(artifact.lastModified() - 10000);
+        assertEquals(expected.toString(), ClassFileCache.getSha1(artifact));
+
+        // or not a checksum
+        writeFile("test-1.car.sha1", "not a checksum at all, but forty characters long".getBytes("UTF-8"))
+            .setLastModified(artifact.lastModified());
+        assertEquals(expected.toString(), ClassFileCache.getSha1(artifact));
+
+        // and the cache is named after it
+        ClassFileCache.open(cacheDir, artifact, new MapSource(ClassFileCache.class));
+        assertTrue(new File(cacheDir, expected + ".mirrors").isFile());
+    }
+}
@@ -0,0 +1,582 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.compiler.loader.impl.reflect.classfile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.junit.Test;
+
+import com.redhat.ceylon.compiler.java.test.CompilerTest;
+import com.redhat.ceylon.compiler.loader.impl.reflect.mirror.ReflectionClass;
+import com.redhat.ceylon.compiler.loader.mirror.AnnotatedMirror;
+import com.redhat.ceylon.compiler.loader.mirror.AnnotationMirror;
+import com.redhat.ceylon.compiler.loader.mirror.ClassMirror;
+import com.redhat.ceylon.compiler.loader.mirror.FieldMirror;
+import com.redhat.ceylon.compiler.loader.mirror.MethodMirror;
+import com.redhat.ceylon.compiler.loader.mirror.TypeMirror;
+import com.redhat.ceylon.compiler.loader.mirror.TypeParameterMirror;
+import com.redhat.ceylon.compiler.loader.mirror.VariableMirror;
+
+/**
+ * Checks that the class file mirrors see exactly what the reflection mirrors
+ * see, for Java classes and for the classes the compiler generates.
+ */
+public class ClassFileMirrorTest extends CompilerTest {
+
+    //
+    // Java fixtures
+
+    @Retention(RetentionPolicy.RUNTIME)
+    public @interface Tag {
+        String value();
+    }
+
+    @Retention(RetentionPolicy.RUNTIME)
+    public @interface Fixture {
+        String value() default "default";
+        int number() default 3;
+        short small() default 1;
+        long big() default 1L << 40;
+        char letter() default 'c';
+        boolean flag() default true;
+        double real() default 0.5;
+        String[] strings() default {"a", "b"};
+        int[] numbers() default {};
+        Class<?> type() default Object.class;
+        Class<?>[] types() default {String.class, int[].class};
+        Thread.State state() default Thread.State.NEW;
+        Tag tag() default @Tag("tag");
+        Tag[] tags() default {@Tag("first"), @Tag("second")};
+    }
+
+    public interface Getter<T> {
+        T get();
+    }
+
+    public static abstract class GenericBase<T extends Comparable<T>, U> implements Comparable<GenericBase<T, U>> {
+        protected U[] array;
+        public Map<String, ? extends List<? super T>>[] wildcards;
+        public abstract <V extends List<? super T>> V method(Map<String, ? extends U> map, T... ts);
+        @Override
+        public int compareTo(GenericBase<T, U> other) {
+            return 0;
+        }
+    }
+
+    @Fixture(number = 5, strings = {"x"}, type = String.class, state = Thread.State.RUNNABLE, tags = {})
+    public static class Sub extends GenericBase<String, Integer> implements Getter<String> {
+        @Deprecated
+        public static final String CONSTANT = "constant";
+        private transient volatile int hidden;
+        @Fixture
+        @Override
+        public <V extends List<? super String>> V method(Map<String, ? extends Integer> map, String... ts) {
+            return null;
+        }
+        public void parameters(@Fixture("first") int first, long second, @Deprecated @Fixture(tag = @Tag("third")) String third) {
+        }
+        @Override
+        public String get() {
+            return null;
+        }
+        static synchronized native void nativeMethod();
+        protected final strictfp double overloaded(double d) {
+            return d;
+        }
+        protected final strictfp double overloaded(float f) {
+            return f;
+        }
+    }
+
+    public class Inner {
+        public Inner(@Fixture("outer") String s) {
+        }
+        public class InnerInner<X extends Inner> {
+            private X x;
+        }
+        private abstract class PrivateInner {
+        }
+    }
+
+    public enum Enumerated {
+        FIRST,
+        SECOND {
+            @Override
+            public String toString() {
+                return "second";
+            }
+        };
+        private final int ordinal;
+        private Enumerated() {
+            this.ordinal = ordinal();
+        }
+    }
+
+    static Class<?> localClass() {
+        class Local<T> extends ArrayList<T> {
+            private static final long serialVersionUID = 1L;
+        }
+        return Local.class;
+    }
+
+    <U extends Number> Class<?> genericLocalClass() {
+        class Local implements Getter<U> {
+            @Override
+            public U get() {
+                return null;
+            }
+        }
+        return Local.class;
+    }
+
+    static Class<?> anonymousClass() {
+        return new Getter<String>() {
+            @Override
+            public String get() {
+                return null;
+            }
+        }.getClass();
+    }
+
+    //
+    // Descriptions
+
+    private static final List<String> ANNOTATIONS = Arrays.asList(
+            Fixture.class.getName(),
+            Tag.class.getName(),
+            Deprecated.class.getName(),
+            "com.redhat.ceylon.compiler.java.metadata.Ceylon",
+            "com.redhat.ceylon.compiler.java.metadata.Name",
+            "com.redhat.ceylon.compiler.java.metadata.TypeInfo",
+            "com.redhat.ceylon.compiler.java.metadata.TypeParameters",
+            "com.redhat.ceylon.compiler.java.metadata.SatisfiedTypes",
+            "com.redhat.ceylon.compiler.java.metadata.CaseTypes",
+            "com.redhat.ceylon.compiler.java.metadata.Annotations",
+            "com.redhat.ceylon.compiler.java.metadata.Attribute",
+            "com.redhat.ceylon.compiler.java.metadata.Object",
+            "com.redhat.ceylon.compiler.java.metadata.Method",
+            "com.redhat.ceylon.compiler.java.metadata.Container",
+            "com.redhat.ceylon.compiler.java.metadata.LocalContainer",
+            "com.redhat.ceylon.compiler.java.metadata.LocalDeclaration",
+            "com.redhat.ceylon.compiler.java.metadata.LocalDeclarations",
+            "com.redhat.ceylon.compiler.java.metadata.Ignore",
+            "com.redhat.ceylon.compiler.java.metadata.Defaulted",
+            "com.redhat.ceylon.compiler.java.metadata.Sequenced",
+            "com.redhat.ceylon.compiler.java.metadata.Class",
+            "com.redhat.ceylon.compiler.java.metadata.Members",
+            "com.redhat.ceylon.compiler.java.metadata.AnnotationInstantiation",
+            "ceylon.language.SharedAnnotation$annotation$",
+            "ceylon.language.DocAnnotation$annotation$");
+
+    /**
+     * Describes everything the model loader may read from a class mirror
+     */
+    private static String describe(ClassMirror klass, ClassLoader loader) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("class ").append(klass.getQualifiedName())
+            .append(" flatName=").append(klass.getFlatName())
+            .append(" name=").append(klass.getName())
+            .append(" package=").append(klass.getPackage().getQualifiedName())
+            .append(" public=").append(klass.isPublic())
+            .append(" protected=").append(klass.isProtected())
+            .append(" defaultAccess=").append(klass.isDefaultAccess())
+            .append(" interface=").append(klass.isInterface())
+            .append(" annotationType=").append(klass.isAnnotationType())
+            .append(" abstract=").append(klass.isAbstract())
+            .append(" static=").append(klass.isStatic())
+            .append(" final=").append(klass.isFinal())
+            .append(" inner=").append(klass.isInnerClass())
+            .append(" local=").append(klass.isLocalClass())
+            .append(" anonymous=").append(klass.isAnonymous())
+            .append(" enum=").append(klass.isEnum())
+            .append(" toplevelAttribute=").append(klass.isCeylonToplevelAttribute())
+            .append(" toplevelObject=").append(klass.isCeylonToplevelObject())
+            .append(" toplevelMethod=").append(klass.isCeylonToplevelMethod())
+            .append('\n');
+        sb.append("  typeParameters=");
+        describeTypeParameters(sb, klass.getTypeParameters());
+        sb.append("\n  superclass=");
+        describe(sb, klass.getSuperclass());
+        sb.append("\n  interfaces=");
+        describe(sb, klass.getInterfaces());
+        sb.append("\n  enclosingClass=").append(klass.getEnclosingClass() != null ? klass.getEnclosingClass().getQualifiedName() : null);
+        sb.append("\n  enclosingMethod=").append(klass.getEnclosingMethod() != null ? klass.getEnclosingMethod().getName() : null);
+        sb.append('\n');
+        describeAnnotations(sb, "  ", klass, loader);
+        List<String> members = new ArrayList<String>();
+        for(ClassMirror inner : klass.getDirectInnerClasses())
+            members.add("  inner "+inner.getQualifiedName()+"\n");
+        for(FieldMirror field : klass.getDirectFields()){
+            StringBuilder fsb = new StringBuilder();
+            fsb.append("  field ").append(field.getName())
+                .append(" public=").append(field.isPublic())
+                .append(" protected=").append(field.isProtected())
+                .append(" defaultAccess=").append(field.isDefaultAccess())
+                .append(" static=").append(field.isStatic())
+                .append(" final=").append(field.isFinal())
+                .append(" type=");
+            describe(fsb, field.getType());
+            fsb.append('\n');
+            describeAnnotations(fsb, "    ", field, loader);
+            members.add(fsb.toString());
+        }
+        for(MethodMirror method : klass.getDirectMethods()){
+            StringBuilder msb = new StringBuilder();
+            msb.append("  method ").append(method.getName())
+                .append(" public=").append(method.isPublic())
+                .append(" protected=").append(method.isProtected())
+                .append(" defaultAccess=").append(method.isDefaultAccess())
+                .append(" static=").append(method.isStatic())
+                .append(" constructor=").append(method.isConstructor())
+                .append(" abstract=").append(method.isAbstract())
+                .append(" final=").append(method.isFinal())
+                .append(" staticInit=").append(method.isStaticInit())
+                .append(" variadic=").append(method.isVariadic())
+                .append(" void=").append(method.isDeclaredVoid())
+                .append(" enclosingClass=").append(method.getEnclosingClass().getQualifiedName());
+            if(klass.isAnnotationType())
+                msb.append(" default=").append(method.isDefault());
+            msb.append("\n    typeParameters=");
+            describeTypeParameters(msb, method.getTypeParameters());
+            if(!method.isConstructor()){
+                msb.append("\n    returns=");
+                describe(msb, method.getReturnType());
+            }
+            msb.append('\n');
+            describeAnnotations(msb, "    ", method, loader);
+            for(VariableMirror parameter : method.getParameters()){
+                msb.append("    parameter type=");
+                describe(msb, parameter.getType());
+                msb.append('\n');
+                describeAnnotations(msb, "      ", parameter, loader);
+            }
+            members.add(msb.toString());
+        }
+        // members may come in any order
+        Collections.sort(members);
+        for(String member : members)
+            sb.append(member);
+        return sb.toString();
+    }
+
+    private static void describeTypeParameters(StringBuilder sb, List<TypeParameterMirror> typeParameters) {
+        sb.append('<');
+        for(TypeParameterMirror typeParameter : typeParameters){
+            sb.append(typeParameter.getName()).append(" extends ");
+            describe(sb, typeParameter.getBounds());
+            sb.append(';');
+        }
+        sb.append('>');
+    }
+
+    private static void describe(StringBuilder sb, List<TypeMirror> types) {
+        sb.append('[');
+        for(TypeMirror type : types){
+            describe(sb, type);
+            sb.append(',');
+        }
+        sb.append(']');
+    }
+
+    private static void describe(StringBuilder sb, TypeMirror type) {
+        if(type == null){
+            sb.append("null");
+            return;
+        }
+        // only what the model loader asks for each kind of type
+        sb.append(type.getKind());
+        switch(type.getKind()){
+        case ARRAY:
+            sb.append(" of ");
+            describe(sb, type.getComponentType());
+            break;
+        case WILDCARD:
+            sb.append(" extends ");
+            describe(sb, type.getUpperBound());
+            sb.append(" super ");
+            describe(sb, type.getLowerBound());
+            break;
+        case TYPEVAR:
+            // not its bounds, which may refer to itself
+            sb.append(' ').append(type.getQualifiedName())
+                .append(" parameter ").append(type.getTypeParameter() != null ? type.getTypeParameter().getName() : null);
+            break;
+        case DECLARED:
+            sb.append(' ').append(type.getQualifiedName());
+            if(type.isRaw())
+                sb.append(" raw");
+            sb.append(" class ").append(type.getDeclaredClass() != null ? type.getDeclaredClass().getQualifiedName() : null);
+            describe(sb, type.getTypeArguments());
+            break;
+        default:
+            sb.append(" primitive=").append(type.isPrimitive());
+            break;
+        }
+    }
+
+    private static void describeAnnotations(StringBuilder sb, String indent, AnnotatedMirror mirror, ClassLoader loader) {
+        for(String name : ANNOTATIONS){
+            AnnotationMirror annotation = mirror.getAnnotation(name);
+            if(annotation != null){
+                sb.append(indent).append('@').append(name);
+                describe(sb, annotation, getAnnotationType(name, loader));
+                sb.append('\n');
+            }
+        }
+    }
+
+    private static Class<?> getAnnotationType(String name, ClassLoader loader) {
+        try{
+            return Class.forName(name, false, loader);
+        }catch(ClassNotFoundException x){
+            return null;
+        }
+    }
+
+    private static void describe(StringBuilder sb, AnnotationMirror annotation, Class<?> annotationType) {
+        if(annotationType == null)
+            return;
+        Method[] methods = annotationType.getDeclaredMethods();
+        Arrays.sort(methods, new Comparator<Method>(){
+            @Override
+            public int compare(Method a, Method b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        sb.append('(');
+        for(Method method : methods){
+            sb.append(method.getName()).append('=');
+            describeValue(sb, annotation.getValue(method.getName()), method.getReturnType());
+            sb.append(',');
+        }
+        sb.append(')');
+    }
+
+    private static void describeValue(StringBuilder sb, Object value, Class<?> type) {
+        if(value instanceof List){
+            sb.append('{');
+            for(Object element : (List<?>) value){
+                describeValue(sb, element, type.getComponentType());
+                sb.append(',');
+            }
+            sb.append('}');
+        }else if(value instanceof AnnotationMirror){
+            sb.append('@');
+            describe(sb, (AnnotationMirror) value, type);
+        }else if(value instanceof TypeMirror){
+            describe(sb, (TypeMirror) value);
+        }else if(value != null){
+            sb.append(value.getClass().getSimpleName()).append(' ').append(value);
+        }else{
+            sb.append("null");
+        }
+    }
+
+    //
+    // Loaders
+
+    private static byte[] getBytes(ClassLoader loader, String name) {
+        InputStream in = loader.getResourceAsStream(name.replace('.', '/') + ".class");
+        if(in == null)
+            return null;
+        try{
+            try{
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                int read;
+                while((read = in.read(buffer)) != -1)
+                    out.write(buffer, 0, read);
+                return out.toByteArray();
+            }finally{
+                in.close();
+            }
+        }catch(IOException x){
+            throw new RuntimeException(x);
+        }
+    }
+
+    private static ClassFileLoader makeLoader(final ClassLoader loader) {
+        return new ClassFileLoader(){
+            @Override
+            protected byte[] getClassBytes(String name) {
+                return getBytes(loader, name);
+            }
+        };
+    }
+
+    private static void assertSameMirrors(ClassFileLoader classFileLoader, Class<?> klass) {
+        ClassFileClass classFileMirror = classFileLoader.lookupClass(klass.getName());
+        assertNotNull(klass.getName(), classFileMirror);
+        ClassLoader loader = klass.getClassLoader();
+        assertEquals(describe(new ReflectionClass(klass), loader), describe(classFileMirror, loader));
+        // and again now that everything is decoded
+        assertEquals(describe(new ReflectionClass(klass), loader), describe(classFileMirror, loader));
+    }
+
+    /**
+     * Prefetches the given classes on several threads at once, then checks that
+     * their mirrors are the same as those of a loader which did not prefetch them.
+     */
+    private static void assertSamePrefetchedMirrors(final ClassLoader loader, List<String> names) throws Exception {
+        final ClassFileLoader prefetchedLoader = makeLoader(loader);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try{
+            List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+            // prefetch everything twice so that threads decode the same mirrors at the same time
+            for(int i=0;i<2;i++){
+                for(final String name : names){
+                    tasks.add(new Callable<Object>() {
+                        @Override
+                        public Object call() {
+                            prefetchedLoader.prefetch(name);
+                            return null;
+                        }
+                    });
+                }
+            }
+            for(Future<Object> result : executor.invokeAll(tasks))
+                result.get();
+        }finally{
+            executor.shutdown();
+        }
+        ClassFileLoader classFileLoader = makeLoader(loader);
+        for(String name : names){
+            ClassFileClass prefetched = prefetchedLoader.lookupClass(name);
+            assertNotNull(name, prefetched);
+            assertEquals(describe(classFileLoader.lookupClass(name), loader), describe(prefetched, loader));
+        }
+    }
+
+    //
+    // Tests
+
+    @Test
+    public void testJavaClasses() throws Exception {
+        ClassFileLoader loader = makeLoader(ClassFileMirrorTest.class.getClassLoader());
+        for(Class<?> klass : Arrays.<Class<?>>asList(
+                ClassFileMirrorTest.class,
+                Tag.class,
+                Fixture.class,
+                Getter.class,
+                GenericBase.class,
+                Sub.class,
+                Inner.class,
+                Inner.InnerInner.class,
+                Class.forName(Inner.class.getName()+"$PrivateInner"),
+                Enumerated.class,
+                Enumerated.SECOND.getClass(),
+                localClass(),
+                genericLocalClass(),
+                anonymousClass(),
+                // some JDK classes with everything
+                String.class,
+                Thread.State.class,
+                Map.Entry.class,
+                Retention.class)){
+            assertSameMirrors(loader, klass);
+        }
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        List<String> names = new ArrayList<String>();
+        for(Class<?> klass : Arrays.<Class<?>>asList(
+                ClassFileMirrorTest.class,
+                Tag.class,
+                Fixture.class,
+                Getter.class,
+                GenericBase.class,
+                Sub.class,
+                Enumerated.class,
+                // those refer to each other's annotation defaults
+                Retention.class,
+                Documented.class,
+                String.class,
+                Map.class))
+            names.add(klass.getName());
+        assertSamePrefetchedMirrors(ClassFileMirrorTest.class.getClassLoader(), names);
+    }
+
+    @Test
+    public void testCeylonClasses() throws Exception {
+        compile("Mirrors.ceylon");
+        File carFile = getModuleArchive("default", null);
+        assertTrue(carFile.exists());
+        List<URL> urls = new ArrayList<URL>();
+        urls.add(carFile.toURI().toURL());
+        for(String path : getClassPath())
+            urls.add(new File(path).toURI().toURL());
+        URLClassLoader loader = new URLClassLoader(urls.toArray(new URL[urls.size()]), getClass().getClassLoader());
+        try{
+            ClassFileLoader classFileLoader = makeLoader(loader);
+            int classes = 0;
+            List<String> toplevels = new ArrayList<String>();
+            JarFile car = new JarFile(carFile);
+            try{
+                Enumeration<JarEntry> entries = car.entries();
+                while(entries.hasMoreElements()){
+                    String name = entries.nextElement().getName();
+                    if(!name.endsWith(".class"))
+                        continue;
+                    name = name.substring(0, name.length() - 6).replace('/', '.');
+                    assertSameMirrors(classFileLoader, Class.forName(name, false, loader));
+                    classes++;
+                    if(name.indexOf('$') == -1)
+                        toplevels.add(name);
+                }
+            }finally{
+                car.close();
+            }
+            // toplevel classes, objects, attributes and functions, annotations,
+            // member, local and anonymous classes, and interface companions
+            assertTrue("Only found "+classes+" classes", classes > 20);
+            // and the whole package again, prefetched like the model loader does
+            assertSamePrefetchedMirrors(loader, toplevels);
+        }finally{
+            loader.close();
+        }
+    }
+}
@@ -19,14 +19,25 @@
  */
 package com.redhat.ceylon.tools.test;
 
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Enumeration;
 import java.util.List;
+import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
 import java.util.zip.ZipEntry;
 
 import org.junit.Assert;
@@ -44,6 +55,8 @@ import com.redhat.ceylon.compiler.CeylonCompileTool;
 import com.redhat.ceylon.compiler.CompilerErrorException;
 import com.redhat.ceylon.compiler.SystemErrorException;
 import com.redhat.ceylon.compiler.java.test.CompilerTest;
+import com.redhat.ceylon.compiler.java.tools.DependencyIndex;
+import com.redhat.ceylon.compiler.java.util.Util;
 
 public class CompilerToolTest extends AbstractToolTest {
     
@@ -436,4 +449,159 @@ public class CompilerToolTest extends AbstractToolTest {
         }
         
     }
+    
+    private File copyIncrementalTest(String name) throws IOException {
+        File dir = destFile(name);
+        FileUtil.delete(dir);
+        dir.mkdirs();
+        FileUtil.copyAll(new File("test/src/com/redhat/ceylon/tools/test/incremental"), dir);
+        return dir;
+    }
+    
+    private void writeSource(File dir, String unit, String source) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(new File(dir, "src/incremental/"+unit)), "UTF-8");
+        try {
+            writer.write(source);
+        } finally {
+            writer.close();
+        }
+    }
+    
+    /**
+     * Compiles the copy of the incremental test module in the given folder,
+     * and returns what the incremental compilation logged.
+     */
+    private String compileIncrementally(File dir) throws Exception {
+        ToolModel<CeylonCompileTool> model = pluginLoader.loadToolModel("compile");
+        Assert.assertNotNull(model);
+        CeylonCompileTool tool = pluginFactory.bindArguments(model, getMainTool(),
+                Arrays.asList(
+                        "--cwd", dir.getPath(),
+                        "--src=src",
+                        "--out=mod",
+                        "--incremental",
+                        "--verbose=benchmark",
+                        "--javac=-cp=" + getClassPathAsPath(),
+                        "incremental"));
+        PrintStream out = System.out;
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(log, true, "UTF-8"));
+        try {
+            tool.run();
+        } finally {
+            System.setOut(out);
+        }
+        return log.toString("UTF-8");
+    }
+    
+    /**
+     * Rewrites the given module archive with the given dependency index 
+     * contents, or without any if null.
+     */
+    private void rewriteDependencyIndex(File carFile, String index) throws IOException {
+        File newCarFile = new File(carFile.getPath()+".new");
+        JarFile car = new JarFile(carFile);
+        try {
+            JarOutputStream newCar = new JarOutputStream(new FileOutputStream(newCarFile));
+            try {
+                Enumeration<JarEntry> entries = car.entries();
+                while (entries.hasMoreElements()) {
+                    JarEntry entry = entries.nextElement();
+                    if (entry.getName().equals(DependencyIndex.INDEX_FILE))
+                        continue;
+                    newCar.putNextEntry(new ZipEntry(entry.getName()));
+                    InputStream inputStream = car.getInputStream(entry);
+                    try {
+                        Util.copy(inputStream, newCar);
+                    } finally {
+                        inputStream.close();
+                    }
+                    newCar.closeEntry();
+                }
+                if (index != null) {
+                    newCar.putNextEntry(new ZipEntry(DependencyIndex.INDEX_FILE));
+                    newCar.write(index.getBytes("ISO-8859-1"));
+                    newCar.closeEntry();
+                }
+            } finally {
+                newCar.close();
+            }
+        } finally {
+            car.close();
+        }
+        assertTrue(carFile.delete());
+        assertTrue(newCarFile.renameTo(carFile));
+    }
+    
+    @Test
+    public void testIncrementalNonApiChange() throws Exception {
+        File dir = copyIncrementalTest("incrementalnonapitest");
+        assertTrue(compileIncrementally(dir).contains("Compiling modules [incremental]"));
+        assertTrue(compileIncrementally(dir).contains("Everything is up to date"));
+        
+        // only the implementation changes: nobody else needs compiling
+        writeSource(dir, "api.ceylon", "shared Integer answer() => 43;\n");
+        String log = compileIncrementally(dir);
+        assertTrue(log, log.contains("Incremental round 1: compiling 1 file(s)"));
+        assertFalse(log, log.contains("Incremental round 2"));
+        
+        // neither does its documentation
+        writeSource(dir, "api.ceylon", "\"The answer\" shared Integer answer() => 43;\n");
+        log = compileIncrementally(dir);
+        assertTrue(log, log.contains("Incremental round 1: compiling 1 file(s)"));
+        assertFalse(log, log.contains("Incremental round 2"));
+    }
+    
+    @Test
+    public void testIncrementalApiChange() throws Exception {
+        File dir = copyIncrementalTest("incrementalapitest");
+        assertTrue(compileIncrementally(dir).contains("Compiling modules [incremental]"));
+        
+        // a new parameter: its user must be compiled again, but not the other unit
+        writeSource(dir, "api.ceylon", "shared Integer answer(Integer base = 42) => base;\n");
+        String log = compileIncrementally(dir);
+        assertTrue(log, log.contains("Incremental round 1: compiling 1 file(s)"));
+        assertTrue(log, log.contains("Incremental round 2: compiling 1 file(s)"));
+        assertFalse(log, log.contains("Incremental round 3"));
+        
+        // so does deprecating it
+        writeSource(dir, "api.ceylon", "deprecated shared Integer answer(Integer base = 42) => base;\n");
+        log = compileIncrementally(dir);
+        assertTrue(log, log.contains("Incremental round 2: compiling 1 file(s)"));
+        
+        // and making a class abstract
+        writeSource(dir, "api.ceylon", "shared class Answer() {}\n");
+        writeSource(dir, "user.ceylon", "shared Integer twice() => 84;\nshared class SubAnswer() extends Answer() {}\n");
+        compileIncrementally(dir);
+        writeSource(dir, "api.ceylon", "shared abstract class Answer() {}\n");
+        log = compileIncrementally(dir);
+        assertTrue(log, log.contains("Incremental round 2: compiling 1 file(s)"));
+    }
+    
+    @Test
+    public void testIncrementalMissingDependencyIndex() throws Exception {
+        File dir = copyIncrementalTest("incrementalmissingindextest");
+        compileIncrementally(dir);
+        File carFile = getModuleArchive("incremental", "1", (new File(dir, "mod")).getPath());
+        rewriteDependencyIndex(carFile, null);
+        
+        writeSource(dir, "api.ceylon", "shared Integer answer() => 43;\n");
+        assertTrue(compileIncrementally(dir).contains("Compiling modules [incremental]"));
+        assertNotNull(DependencyIndex.read(carFile));
+        assertTrue(compileIncrementally(dir).contains("Everything is up to date"));
+    }
+    
+    @Test
+    public void testIncrementalCorruptDependencyIndex() throws Exception {
+        File dir = copyIncrementalTest("incrementalcorruptindextest");
+        compileIncrementally(dir);
+        File carFile = getModuleArchive("incremental", "1", (new File(dir, "mod")).getPath());
+        rewriteDependencyIndex(carFile, "incremental/api.ceylon#exports=\\u12\n");
+        
+        String log = compileIncrementally(dir);
+        assertTrue(log, log.contains("Ignoring unreadable dependency index of module incremental"));
+        assertTrue(log, log.contains("Compiling modules [incremental]"));
+        assertNotNull(DependencyIndex.read(carFile));
+        assertTrue(compileIncrementally(dir).contains("Everything is up to date"));
+    }
 }
@@ -46,6 +46,7 @@ import com.redhat.ceylon.tools.help.PlaintextTest;
     NewProjectToolTest.class,
     TemplateTest.class,
     InfoToolTest.class,
+    ModuleLoadingToolTest.class,
     SrcToolTest.class,
     VersionToolTest.class
 })
@@ -0,0 +1,243 @@
+/*
+ * Copyright Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the authors tag. All rights reserved.
+ *
+ * This copyrighted material is made available to anyone wishing to use,
+ * modify, copy, or redistribute it subject to the terms and conditions
+ * of the GNU General Public License version 2.
+ *
+ * This particular file is subject to the "Classpath" exception as provided in the
+ * LICENSE file that accompanied this code.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT A
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License,
+ * along with this distribution; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA  02110-1301, USA.
+ */
+package com.redhat.ceylon.tools.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.redhat.ceylon.cmr.api.ArtifactContext;
+import com.redhat.ceylon.cmr.api.ArtifactResult;
+import com.redhat.ceylon.cmr.api.RepositoryManager;
+import com.redhat.ceylon.common.FileUtil;
+import com.redhat.ceylon.common.tool.ToolModel;
+import com.redhat.ceylon.compiler.CeylonCompileTool;
+import com.redhat.ceylon.tools.classpath.CeylonClasspathTool;
+import com.redhat.ceylon.tools.moduleloading.ModuleLoadingTool;
+
+/**
+ * Tests the way {@link ModuleLoadingTool} walks the dependencies of a module, and
+ * its resolution cache. The modules are:
+ * 
+ * <pre>
+ * mla -> mlb -> mld, optional mlopt
+ *     -> mlc -> mld, mlopt
+ * </pre>
+ */
+public class ModuleLoadingToolTest extends AbstractToolTest {
+
+    private static final List<String> MODULES = Arrays.asList("mla/1", "mlb/1", "mlc/1", "mld/1", "mlopt/1");
+
+    /**
+     * A classpath tool which records the artifacts it looks up
+     */
+    static class RecordingClasspathTool extends CeylonClasspathTool {
+        final List<String> lookups = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> finishedLookups = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        protected ArtifactResult getArtifactResult(RepositoryManager repositoryManager, ArtifactContext artifactContext) {
+            String key = artifactContext.getName() + "/" + artifactContext.getVersion();
+            lookups.add(key);
+            ArtifactResult ret = super.getArtifactResult(repositoryManager, artifactContext);
+            if (!Thread.currentThread().isInterrupted())
+                finishedLookups.add(key);
+            return ret;
+        }
+
+        Map<String, ArtifactResult> getLoadedModules() {
+            return loadedModules;
+        }
+
+        int lookupsOf(String key) {
+            return Collections.frequency(lookups, key);
+        }
+    }
+
+    private File getRepo() {
+        return new File(destDir, "moduleloading");
+    }
+
+    private void compileModules() throws Exception {
+        FileUtil.delete(getRepo());
+        ToolModel<CeylonCompileTool> model = pluginLoader.loadToolModel("compile");
+        CeylonCompileTool tool = pluginFactory.bindArguments(model, getMainTool(),
+                Arrays.asList(
+                        "--src=test/src/com/redhat/ceylon/tools/test/moduleloading/src",
+                        "--out=" + getRepo().getPath(),
+                        "--javac=-cp=" + getClassPathAsPath(),
+                        "mla", "mlb", "mlc", "mld", "mlopt"));
+        tool.run();
+    }
+
+    private RecordingClasspathTool loadModules() throws Exception {
+        RecordingClasspathTool tool = new RecordingClasspathTool();
+        tool.setModule("mla/1");
+        tool.setRepositoryAsStrings(Arrays.asList(getRepo().getAbsolutePath()));
+        tool.setSystemRepository("../ceylon-dist/dist/repo");
+        tool.setNoDefRepos(true);
+        tool.setOffline(true);
+        tool.setOut(new StringBuilder());
+        tool.run();
+        return tool;
+    }
+
+    private File getResolutionCacheFile(File cacheDir) {
+        File[] files = cacheDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith("mla-") && name.endsWith(".deps");
+            }
+        });
+        assertNotNull(files);
+        assertEquals(1, files.length);
+        return files[0];
+    }
+
+    private List<String> readLines(File file) throws IOException {
+        List<String> ret = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null)
+                ret.add(line);
+        } finally {
+            reader.close();
+        }
+        return ret;
+    }
+
+    @Test
+    public void testWalk() throws Exception {
+        compileModules();
+        RecordingClasspathTool tool = loadModules();
+        for (String key : MODULES) {
+            assertNotNull(key, tool.getLoadedModules().get(key));
+            // even mld, which both mlb and mlc import
+            assertEquals(key, 1, tool.lookupsOf(key));
+        }
+    }
+
+    @Test
+    public void testParallelWalk() throws Exception {
+        compileModules();
+        String oldThreads = System.getProperty(ModuleLoadingTool.RESOLUTION_THREADS_PROPERTY);
+        System.setProperty(ModuleLoadingTool.RESOLUTION_THREADS_PROPERTY, "4");
+        try {
+            RecordingClasspathTool tool = loadModules();
+            for (String key : MODULES) {
+                assertNotNull(key, tool.getLoadedModules().get(key));
+                assertEquals(key, 1, tool.lookupsOf(key));
+            }
+            assertEquals(tool.lookups, tool.finishedLookups);
+        } finally {
+            if (oldThreads != null)
+                System.setProperty(ModuleLoadingTool.RESOLUTION_THREADS_PROPERTY, oldThreads);
+            else
+                System.clearProperty(ModuleLoadingTool.RESOLUTION_THREADS_PROPERTY);
+        }
+    }
+
+    @Test
+    public void testMissingImport() throws Exception {
+        compileModules();
+        assertTrue(getModuleArchive("mlopt", "1", getRepo().getPath()).delete());
+        RecordingClasspathTool tool = loadModules();
+        // mlc imports it on the same level as mlb, and it's not optional for mlc, so it's an
+        // error, which we report once instead of remembering it as a missing optional module
+        assertFalse(tool.getLoadedModules().containsKey("mlopt/1"));
+        assertEquals(1, tool.lookupsOf("mlopt/1"));
+        for (String key : Arrays.asList("mla/1", "mlb/1", "mlc/1", "mld/1"))
+            assertNotNull(key, tool.getLoadedModules().get(key));
+    }
+
+    @Test
+    public void testResolutionCache() throws Exception {
+        compileModules();
+        File cacheDir = new File(destDir, "moduleloading-cache");
+        FileUtil.delete(cacheDir);
+        String oldCacheDir = System.getProperty(ModuleLoadingTool.RESOLUTION_CACHE_DIR_PROPERTY);
+        System.setProperty(ModuleLoadingTool.RESOLUTION_CACHE_DIR_PROPERTY, cacheDir.getPath());
+        try {
+            RecordingClasspathTool tool = loadModules();
+            File cacheFile = getResolutionCacheFile(cacheDir);
+            List<String> lines = readLines(cacheFile);
+            assertTrue(lines.toString(), lines.contains("mla/1 mlb/1 mlc/1"));
+            assertTrue(lines.toString(), lines.contains("mlb/1 mld/1 ?mlopt/1"));
+            assertTrue(lines.toString(), lines.contains("mlc/1 mld/1 mlopt/1"));
+            assertTrue(lines.toString(), lines.contains("mld/1"));
+
+            // the cache does not change what we load
+            RecordingClasspathTool cachedTool = loadModules();
+            assertEquals(tool.getLoadedModules().keySet(), cachedTool.getLoadedModules().keySet());
+            for (String key : MODULES)
+                assertEquals(key, 1, cachedTool.lookupsOf(key));
+
+            // now make it stale: mla used to import mlgone, which imported mldeeper
+            List<String> staleLines = new ArrayList<String>();
+            for (String line : lines) {
+                if (line.equals("mla/1 mlb/1 mlc/1"))
+                    line = "mla/1 mlb/1 mlc/1 mlgone/1";
+                staleLines.add(line);
+            }
+            staleLines.add("mlgone/1 mldeeper/1");
+            Writer writer = new OutputStreamWriter(new FileOutputStream(cacheFile), "UTF-8");
+            try {
+                for (String line : staleLines)
+                    writer.write(line + "\n");
+            } finally {
+                writer.close();
+            }
+            RecordingClasspathTool staleTool = loadModules();
+            assertEquals(tool.getLoadedModules().keySet(), staleTool.getLoadedModules().keySet());
+            // we may look ahead one level below a module we need, but no further
+            assertTrue(staleTool.lookupsOf("mlgone/1") <= 1);
+            assertEquals(0, staleTool.lookupsOf("mldeeper/1"));
+            // the lookups we didn't need were left to finish, not interrupted
+            assertEquals(staleTool.lookups, staleTool.finishedLookups);
+            assertFalse(staleTool.getLoadedModules().containsKey("mlgone/1"));
+            // and we fixed the cache
+            assertFalse(readLines(getResolutionCacheFile(cacheDir)).contains("mlgone/1 mldeeper/1"));
+        } finally {
+            if (oldCacheDir != null)
+                System.setProperty(ModuleLoadingTool.RESOLUTION_CACHE_DIR_PROPERTY, oldCacheDir);
+            else
+                System.clearProperty(ModuleLoadingTool.RESOLUTION_CACHE_DIR_PROPERTY);
+        }
+    }
+}